@@ -0,0 +1,117 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.pdf.security.BouncyCastleDigest;
+import com.itextpdf.text.pdf.security.MakeSignature;
+import com.itextpdf.text.pdf.security.PrivateKeySignature;
+import com.pyojan.eDastakhat.libs.AppearanceTemplateCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the visible appearance of one signature, rendered by iText every time or stamped from
+ * {@link AppearanceTemplateCache}. Opening the document is part of both, as it is of every signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AppearanceBenchmark {
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    @Param({"false", "true"})
+    public boolean greenTick;
+
+    private Path directory;
+    private byte[] pdf;
+    private KeyPair keyPair;
+    private X509Certificate certificate;
+    private AppearanceTemplateCache cache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.createTempDirectory();
+        pdf = Files.readAllBytes(Fixtures.createPdf(directory, 1, 100));
+        keyPair = Fixtures.createKeyPair("RSA-2048");
+        certificate = Fixtures.createCertificate(keyPair, "Benchmark Signer", false);
+        cache = new AppearanceTemplateCache(cached, 16);
+        // The template is recorded while the first document is signed.
+        sign();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public PdfTemplate appearance() throws IOException, DocumentException {
+        PdfReader reader = openReader();
+        try {
+            PdfStamper stamper = PdfStamper.createSignature(reader, new ByteArrayOutputStream(), '\0', null, true);
+            return prepare(stamper).getAppearance();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void sign() throws IOException, DocumentException, GeneralSecurityException {
+        PdfReader reader = openReader();
+        try {
+            PdfStamper stamper = PdfStamper.createSignature(reader, new ByteArrayOutputStream(), '\0', null, true);
+            MakeSignature.signDetached(prepare(stamper), new BouncyCastleDigest(),
+                    new PrivateKeySignature(keyPair.getPrivate(), "SHA-256", null), new Certificate[]{certificate},
+                    null, null, null, 0, MakeSignature.CryptoStandard.CADES);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private PdfSignatureAppearance prepare(PdfStamper stamper) {
+        PdfSignatureAppearance appearance = stamper.getSignatureAppearance();
+        appearance.setVisibleSignature(new Rectangle(350, 50, 550, 120), 1, "Signature1");
+        appearance.setCertificate(certificate);
+        appearance.setReason("Benchmark");
+        appearance.setLocation("Benchmark");
+        appearance.setRenderingMode(PdfSignatureAppearance.RenderingMode.NAME_AND_DESCRIPTION);
+        appearance.setAcro6Layers(!greenTick);
+        cache.apply(appearance, certificate);
+        return appearance;
+    }
+
+    private PdfReader openReader() throws IOException {
+        return new PdfReader(new RandomAccessFileOrArray(new RandomAccessSourceFactory().createSource(pdf)), null);
+    }
+}
@@ -0,0 +1,69 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.itextpdf.text.pdf.security.DigestAlgorithms;
+import com.itextpdf.text.pdf.security.ProviderDigest;
+import com.pyojan.eDastakhat.libs.PipelinedDigest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The digest stage of a large document as {@code MakeSignature.signDetached} runs it, per algorithm and provider,
+ * hashed inline or pipelined by {@link PipelinedDigest}. Pipelining needs more than one processor; on one it hashes
+ * inline whatever {@code pipelined} says.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DigestBenchmark {
+
+    @Param({"SHA-256", "SHA-384", "SHA-512"})
+    public String algorithm;
+
+    @Param({"SUN", "BC"})
+    public String provider;
+
+    @Param({"false", "true"})
+    public boolean pipelined;
+
+    @Param({"65536"})
+    public int sizeKb;
+
+    private byte[] document;
+    private PipelinedDigest digest;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        document = new byte[sizeKb * 1024];
+        new Random(1).nextBytes(document);
+        digest = new PipelinedDigest(new ProviderDigest(provider), pipelined ? Long.MAX_VALUE : 0);
+    }
+
+    @Benchmark
+    public byte[] digest() throws GeneralSecurityException, IOException {
+        return DigestAlgorithms.digest(new ByteArrayInputStream(document), digest.getMessageDigest(algorithm));
+    }
+}
@@ -0,0 +1,92 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.pyojan.eDastakhat.libs.KeyStoreManager;
+import com.pyojan.eDastakhat.libs.TsaClientRegistry;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import com.pyojan.eDastakhat.services.PdfSigning;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole signing path of {@link PdfSigning}, on the last page or on every page, with an optional in-process
+ * timestamp authority that answers after the given latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class DocumentSigningBenchmark {
+
+    private static final String STUB_TSA_URL = "http://stub-tsa.invalid/";
+
+    @Param({"1", "20"})
+    public int pages;
+
+    @Param({"100"})
+    public int sizeKb;
+
+    @Param({"L", "A"})
+    public String page;
+
+    @Param({"0", "50"})
+    public long tsaLatencyMillis;
+
+    private Path directory;
+    private Path pdf;
+    private Path pfx;
+    private KeyStoreManager keyStoreManager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.createTempDirectory();
+        pdf = Fixtures.createPdf(directory, pages, sizeKb);
+        pfx = Fixtures.createPfx(directory, "RSA-2048");
+        keyStoreManager = KeyStoreManager.getInstance(pfx, Fixtures.PASSWORD);
+        TsaClientRegistry.getInstance().register(STUB_TSA_URL, new StubTsaClient(tsaLatencyMillis));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        TsaClientRegistry.getInstance().unregister(STUB_TSA_URL);
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public HashMap<String, String> sign() throws IOException, GeneralSecurityException {
+        SignatureModel.Options options = new SignatureModel.Options();
+        options.setPage(page);
+        options.setCoord(new int[]{350, 50, 550, 120});
+        options.setReason("Benchmark");
+        options.setTimestamp(new SignatureModel.Timestamp(tsaLatencyMillis > 0, STUB_TSA_URL, null, null));
+
+        SignatureModel model = new SignatureModel(
+                new SignatureModel.CertInfo(pfx.toString(), Fixtures.PASSWORD),
+                options,
+                new SignatureModel.Pdf(null, "", pdf.toString()));
+        HashMap<String, String> result = new PdfSigning(model, keyStoreManager, directory.toString(), null).signDocument();
+        // A generated name never collides between threads; deleting it keeps the directory, and the name search, small.
+        Files.delete(Paths.get(result.get("filePath")));
+        return result;
+    }
+}
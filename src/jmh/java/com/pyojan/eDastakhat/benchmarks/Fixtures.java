@@ -0,0 +1,147 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.PdfWriter;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Generates the synthetic documents and keys the benchmarks run on, so no fixture is checked in.
+ */
+final class Fixtures {
+
+    static final String PASSWORD = "benchmark";
+
+    private Fixtures() {
+    }
+
+    /**
+     * Writes a PDF with the given number of pages, padded with uncompressed content to roughly the given size.
+     */
+    static Path createPdf(Path directory, int pages, int sizeKb) throws IOException {
+        Path pdf = directory.resolve("document-" + pages + "p-" + sizeKb + "kb.pdf");
+        long paddingPerPage = sizeKb * 1024L / pages;
+        Random random = new Random(pages * 31L + sizeKb);
+
+        try (OutputStream out = Files.newOutputStream(pdf)) {
+            Document document = new Document();
+            PdfWriter writer = PdfWriter.getInstance(document, out);
+            writer.setCompressionLevel(PdfStream.NO_COMPRESSION);
+            document.open();
+            for (int page = 1; page <= pages; page++) {
+                if (page > 1) {
+                    document.newPage();
+                }
+                document.add(new Paragraph("eDastakhat benchmark document, page " + page + " of " + pages));
+                PdfContentByte content = writer.getDirectContent();
+                StringBuilder padding = new StringBuilder();
+                while (padding.length() < paddingPerPage) {
+                    padding.append("% ").append(Long.toHexString(random.nextLong())).append(Long.toHexString(random.nextLong())).append('\n');
+                }
+                content.setLiteral(padding.toString());
+            }
+            document.close();
+        } catch (DocumentException e) {
+            throw new IOException(e);
+        }
+        return pdf;
+    }
+
+    /**
+     * Generates a key pair described as {@code RSA-<bits>} or {@code EC-<bits>} (P-256, P-384 or P-521).
+     */
+    static KeyPair createKeyPair(String key) throws GeneralSecurityException {
+        String[] parts = key.split("-");
+        int bits = Integer.parseInt(parts[1]);
+        if ("EC".equalsIgnoreCase(parts[0])) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp" + bits + "r1"));
+            return generator.generateKeyPair();
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(bits);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Issues a self-signed end-entity certificate for the key pair.
+     *
+     * @param timestamping Whether the certificate may sign RFC 3161 timestamp tokens.
+     */
+    static X509Certificate createCertificate(KeyPair keyPair, String commonName, boolean timestamping) throws GeneralSecurityException, IOException {
+        X500Name name = new X500Name("CN=" + commonName + ",O=eDastakhat Benchmarks,C=IN");
+        long now = System.currentTimeMillis();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(now), new Date(now - TimeUnit.DAYS.toMillis(1)),
+                new Date(now + TimeUnit.DAYS.toMillis(365)), name, keyPair.getPublic());
+        if (timestamping) {
+            builder.addExtension(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+        }
+        String algorithm = keyPair.getPrivate().getAlgorithm().startsWith("EC") ? "SHA256withECDSA" : "SHA256withRSA";
+        try {
+            return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder(algorithm).build(keyPair.getPrivate())));
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+
+    /**
+     * Writes a PKCS#12 file protected by {@link #PASSWORD} with a fresh key and self-signed certificate.
+     */
+    static Path createPfx(Path directory, String key) throws GeneralSecurityException, IOException {
+        KeyPair keyPair = createKeyPair(key);
+        X509Certificate certificate = createCertificate(keyPair, "Benchmark Signer " + key, false);
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("signer", keyPair.getPrivate(), PASSWORD.toCharArray(), new Certificate[]{certificate});
+
+        Path pfx = directory.resolve("signer-" + key + ".pfx");
+        try (OutputStream out = Files.newOutputStream(pfx)) {
+            keyStore.store(out, PASSWORD.toCharArray());
+        }
+        return pfx;
+    }
+
+    static Path createTempDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("eDastakhat-jmh-");
+        directory.toFile().deleteOnExit();
+        return directory;
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || Files.notExists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+}
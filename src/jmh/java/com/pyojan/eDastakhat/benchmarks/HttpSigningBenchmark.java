@@ -0,0 +1,110 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.pyojan.eDastakhat.services.HttpSigningService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load on the HTTP signing service from concurrent clients posting raw PDF documents, in requests per
+ * second. Clients that are turned away with {@code 429} count as operations too, so compare the throughput with the
+ * {@code edastakhat_http_requests_total} counters the benchmark prints at the end. Change the client count with
+ * JMH's {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class HttpSigningBenchmark {
+
+    @Param({"1", "20"})
+    public int pages;
+
+    @Param({"100"})
+    public int sizeKb;
+
+    @Param({"16"})
+    public int queue;
+
+    private Path directory;
+    private byte[] pdf;
+    private String payload;
+    private HttpSigningService service;
+    private URL url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.createTempDirectory();
+        pdf = Files.readAllBytes(Fixtures.createPdf(directory, pages, sizeKb));
+        Path pfx = Fixtures.createPfx(directory, "RSA-2048");
+        payload = "{\"certInfo\":{\"pfxPath\":\"" + pfx.toString().replace("\\", "\\\\") + "\",\"password\":\"" + Fixtures.PASSWORD + "\"},"
+                + "\"options\":{\"page\":\"L\",\"coord\":[350,50,550,120],\"reason\":\"Benchmark\",\"timestamp\":{\"enabled\":false,\"url\":\"http://stub-tsa.invalid/\"}}}";
+        service = new HttpSigningService(Runtime.getRuntime().availableProcessors(), queue, 64L * 1024 * 1024,
+                Collections.singletonList(directory));
+        InetSocketAddress address = service.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        url = new URL("http://127.0.0.1:" + address.getPort() + "/sign");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (String line : service.getPrometheusMetrics().split("\n")) {
+            if (line.startsWith("edastakhat_http_requests_total")) {
+                System.out.println(line);
+            }
+        }
+        service.stop();
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public int sign(Blackhole blackhole) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(pdf.length);
+        connection.setRequestProperty("Content-Type", "application/pdf");
+        connection.setRequestProperty("X-eDastakhat-Payload", payload);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(pdf);
+        }
+        int status = connection.getResponseCode();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            int read;
+            while (in != null && (read = in.read(buffer)) >= 0) {
+                blackhole.consume(read);
+            }
+        }
+        if (status != 200 && status != 429) {
+            throw new IOException("The signing service answered " + status + ".");
+        }
+        return status;
+    }
+}
@@ -0,0 +1,61 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.pyojan.eDastakhat.libs.KeyStoreManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unlocking a PKCS#12 key from disk against taking it from the process-wide key cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KeyStoreBenchmark {
+
+    @Param({"RSA-2048", "EC-256"})
+    public String key;
+
+    private Path directory;
+    private Path pfx;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.createTempDirectory();
+        pfx = Fixtures.createPfx(directory, key);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public PrivateKey load() throws IOException, GeneralSecurityException {
+        return new KeyStoreManager(pfx, Fixtures.PASSWORD).getPrivateKey();
+    }
+
+    @Benchmark
+    public PrivateKey cached() throws IOException, GeneralSecurityException {
+        return KeyStoreManager.getInstance(pfx, Fixtures.PASSWORD).getPrivateKey();
+    }
+}
@@ -0,0 +1,74 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.google.gson.Gson;
+import com.pyojan.eDastakhat.libs.SignValidator;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a signing payload with an inline Base64 document, with and without validating and decoding it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PayloadParsingBenchmark {
+
+    @Param({"100", "5000"})
+    public int sizeKb;
+
+    private final Gson gson = new Gson();
+    private Path directory;
+    private String json;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.createTempDirectory();
+        Path pdf = Fixtures.createPdf(directory, 1, sizeKb);
+        Path pfx = Fixtures.createPfx(directory, "RSA-2048");
+
+        SignatureModel.Options options = new SignatureModel.Options();
+        options.setTimestamp(new SignatureModel.Timestamp(false, "http://127.0.0.1/", null, null));
+        json = gson.toJson(new SignatureModel(
+                new SignatureModel.CertInfo(pfx.toString(), Fixtures.PASSWORD),
+                options,
+                new SignatureModel.Pdf(Base64.getEncoder().encodeToString(Files.readAllBytes(pdf)), "", null)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public SignatureModel parse() {
+        return gson.fromJson(json, SignatureModel.class);
+    }
+
+    @Benchmark
+    public byte[] parseAndValidate() throws IOException {
+        SignValidator validator = new SignValidator(gson.fromJson(json, SignatureModel.class));
+        validator.validateSignatureModel();
+        return validator.getPdfBytes();
+    }
+}
@@ -0,0 +1,108 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.pdf.security.BouncyCastleDigest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The document-side stages of signing: parsing the PDF, building the visible appearance and hashing the bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PdfPipelineBenchmark {
+
+    @Param({"1", "20"})
+    public int pages;
+
+    @Param({"100", "5000"})
+    public int sizeKb;
+
+    private Path directory;
+    private byte[] pdf;
+    private X509Certificate certificate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = Fixtures.createTempDirectory();
+        pdf = Files.readAllBytes(Fixtures.createPdf(directory, pages, sizeKb));
+        certificate = Fixtures.createCertificate(Fixtures.createKeyPair("RSA-2048"), "Benchmark Signer", false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public Object parse() throws IOException {
+        PdfReader reader = openReader();
+        try {
+            return reader.getAcroFields();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public PdfTemplate appearance() throws IOException, DocumentException {
+        PdfReader reader = openReader();
+        try {
+            PdfStamper stamper = PdfStamper.createSignature(reader, new ByteArrayOutputStream(), '\0', null, true);
+            PdfSignatureAppearance appearance = stamper.getSignatureAppearance();
+            appearance.setVisibleSignature(new Rectangle(350, 50, 550, 120), reader.getNumberOfPages(), "Signature1");
+            appearance.setCertificate(certificate);
+            appearance.setReason("Benchmark");
+            appearance.setLocation("Benchmark");
+            appearance.setRenderingMode(PdfSignatureAppearance.RenderingMode.NAME_AND_DESCRIPTION);
+            return appearance.getAppearance();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] digestBouncyCastle() throws GeneralSecurityException {
+        return new BouncyCastleDigest().getMessageDigest("SHA-256").digest(pdf);
+    }
+
+    @Benchmark
+    public byte[] digestJdk() throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(pdf);
+    }
+
+    private PdfReader openReader() throws IOException {
+        return new PdfReader(new RandomAccessFileOrArray(new RandomAccessSourceFactory().createSource(pdf)), null);
+    }
+}
@@ -0,0 +1,70 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.itextpdf.text.pdf.security.ExternalSignature;
+import com.pyojan.eDastakhat.libs.KeyStoreManager;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signatures per second on a PKCS#11 token from concurrent signers, per session pool size. The token is given with
+ * {@code -DeDastakhat.benchmark.pkcs11Library}, {@code -DeDastakhat.benchmark.pkcs11Pin} and, optionally,
+ * {@code -DeDastakhat.benchmark.pkcs11Slot} and {@code -DeDastakhat.benchmark.pkcs11KeyAlias}; SoftHSM will do. Change
+ * the signer count with JMH's {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class Pkcs11SigningBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int poolSize;
+
+    private ExternalSignature signature;
+    private byte[] signedAttributes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String library = System.getProperty("eDastakhat.benchmark.pkcs11Library");
+        if (library == null) {
+            throw new IllegalStateException("Set -DeDastakhat.benchmark.pkcs11Library and -DeDastakhat.benchmark.pkcs11Pin to the token to measure.");
+        }
+        // Read once when the pool class loads, which has not happened yet in this fork.
+        System.setProperty("eDastakhat.pkcs11.poolSize", String.valueOf(poolSize));
+        // The token given to the benchmark is the one it may load.
+        System.setProperty("eDastakhat.pkcs11.allowedLibraries", library);
+
+        SignatureModel.CertInfo certInfo = new SignatureModel.CertInfo();
+        certInfo.setPkcs11Library(library);
+        certInfo.setPassword(System.getProperty("eDastakhat.benchmark.pkcs11Pin"));
+        certInfo.setSlot(Integer.getInteger("eDastakhat.benchmark.pkcs11Slot"));
+        certInfo.setKeyAlias(System.getProperty("eDastakhat.benchmark.pkcs11KeyAlias"));
+        signature = KeyStoreManager.getInstance(certInfo).getSignature("SHA-256");
+        signedAttributes = new byte[256];
+        new Random(1).nextBytes(signedAttributes);
+    }
+
+    @Benchmark
+    public byte[] sign() throws GeneralSecurityException {
+        return signature.sign(signedAttributes);
+    }
+}
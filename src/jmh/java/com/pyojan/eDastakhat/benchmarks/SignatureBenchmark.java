@@ -0,0 +1,54 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.itextpdf.text.pdf.security.PrivateKeySignature;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The private key operation over a typical set of CMS signed attributes, per key type and size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SignatureBenchmark {
+
+    @Param({"RSA-2048", "RSA-3072", "RSA-4096", "EC-256", "EC-384"})
+    public String key;
+
+    private PrivateKeySignature signature;
+    private byte[] signedAttributes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws GeneralSecurityException {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        signature = new PrivateKeySignature(Fixtures.createKeyPair(key).getPrivate(), "SHA-256", BouncyCastleProvider.PROVIDER_NAME);
+        signedAttributes = new byte[256];
+        new Random(1).nextBytes(signedAttributes);
+    }
+
+    @Benchmark
+    public byte[] sign() throws GeneralSecurityException {
+        return signature.sign(signedAttributes);
+    }
+}
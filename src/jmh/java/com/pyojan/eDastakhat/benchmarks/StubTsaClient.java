@@ -0,0 +1,70 @@
+package com.pyojan.eDastakhat.benchmarks;
+
+import com.itextpdf.text.pdf.security.BouncyCastleDigest;
+import com.itextpdf.text.pdf.security.TSAClient;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process RFC 3161 authority that answers after a fixed delay, standing in for a remote TSA so benchmarks
+ * measure the cost of timestamping without depending on the network.
+ */
+final class StubTsaClient implements TSAClient {
+
+    private static final ASN1ObjectIdentifier POLICY = new ASN1ObjectIdentifier("1.3.6.1.4.1.0.1");
+
+    private final long latencyMillis;
+    private final TimeStampTokenGenerator tokenGenerator;
+    private final AtomicLong serialNumber = new AtomicLong();
+
+    StubTsaClient(long latencyMillis) throws Exception {
+        this.latencyMillis = latencyMillis;
+
+        KeyPair keyPair = Fixtures.createKeyPair("RSA-2048");
+        X509Certificate certificate = Fixtures.createCertificate(keyPair, "Benchmark TSA", true);
+        tokenGenerator = new TimeStampTokenGenerator(
+                new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", keyPair.getPrivate(), certificate),
+                new JcaDigestCalculatorProviderBuilder().build().get(new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256)),
+                POLICY);
+        tokenGenerator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+    }
+
+    @Override
+    public int getTokenSizeEstimate() {
+        return 4096;
+    }
+
+    @Override
+    public MessageDigest getMessageDigest() throws GeneralSecurityException {
+        return new BouncyCastleDigest().getMessageDigest("SHA-256");
+    }
+
+    @Override
+    public byte[] getTimeStampToken(byte[] imprint) throws Exception {
+        if (latencyMillis > 0) {
+            TimeUnit.MILLISECONDS.sleep(latencyMillis);
+        }
+        TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        requestGenerator.setCertReq(true);
+        synchronized (tokenGenerator) {
+            return tokenGenerator.generate(requestGenerator.generate(NISTObjectIdentifiers.id_sha256, imprint),
+                    BigInteger.valueOf(serialNumber.incrementAndGet()), new Date()).getEncoded();
+        }
+    }
+}
@@ -1,11 +1,27 @@
 package com.pyojan.eDastakhat;
 
+import com.pyojan.eDastakhat.models.FinalizeModel;
+import com.pyojan.eDastakhat.models.HashSigningModel;
+import com.pyojan.eDastakhat.models.PrepareModel;
+import com.pyojan.eDastakhat.models.WatchModel;
+import com.pyojan.eDastakhat.services.BatchSigning;
+import com.pyojan.eDastakhat.services.DeferredSigning;
+import com.pyojan.eDastakhat.services.DistributedBatchSigning;
+import com.pyojan.eDastakhat.services.HotFolderSigning;
+import com.pyojan.eDastakhat.services.HttpSigningService;
 import com.pyojan.eDastakhat.services.PdfSigning;
+import com.pyojan.eDastakhat.services.PfxImport;
 import com.pyojan.eDastakhat.services.PfxProcessor;
+import com.pyojan.eDastakhat.services.SignatureVerification;
+import com.pyojan.eDastakhat.services.SigningDaemon;
+import com.pyojan.eDastakhat.services.VaultQuery;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
@@ -37,6 +53,14 @@ public class EDastakhatApplication {
             if ("-HELP".equalsIgnoreCase(args[0]) || "-H".equalsIgnoreCase(args[0])) {
                 EDastakhatApplication.copyFile();
                 printHelp();
+            } else if ("-DAEMON".equalsIgnoreCase(args[0])) {
+                runDaemon(args);
+            } else if ("-HTTP".equalsIgnoreCase(args[0])) {
+                runHttp(args);
+            } else if ("-WATCH".equalsIgnoreCase(args[0])) {
+                runWatch(args);
+            } else if ("-VAULT".equalsIgnoreCase(args[0])) {
+                runVault(args);
             } else {
                 if (args.length < 2 || args.length > 4) {
                     throw new IllegalArgumentException("Invalid number of arguments. Expected between 2 and 4 arguments.");
@@ -52,19 +76,132 @@ public class EDastakhatApplication {
                     String outputDist = (args.length == 4 && args[3] != null && !args[3].isEmpty()) ? args[3] : null;
 
                     new PfxProcessor().readPfx(pfxFilePath, password, outputDist);
+                } else if (action.equalsIgnoreCase("-PFXBATCH")) {
+                    if (Files.isDirectory(Paths.get(filePath))) {
+                        if (args.length < 3) {
+                            throw new IllegalArgumentException("A PFX directory needs the password of its files. Usage: -pfxBatch <pfxDir> <pfxPassword> [<outputFileDir>]");
+                        }
+                        PfxImport.fromDirectory(filePath, args[2], args.length == 4 ? args[3] : null).execute();
+                    } else {
+                        PfxImport.fromManifest(filePath, resultSaveDirPath).execute();
+                    }
                 } else if (action.equalsIgnoreCase("-S") || action.equalsIgnoreCase("SIGNATURE")) {
                     new PdfSigning(filePath, resultSaveDirPath).executeSign();
+                } else if (action.equalsIgnoreCase("-B") || action.equalsIgnoreCase("-BATCH")) {
+                    new BatchSigning(filePath, resultSaveDirPath).execute();
+                } else if (action.equalsIgnoreCase("-BATCHWORKER")) {
+                    new DistributedBatchSigning(filePath, resultSaveDirPath).execute();
+                } else if (action.equalsIgnoreCase("-BATCHSTATUS")) {
+                    new DistributedBatchSigning(filePath, null).status();
+                } else if (action.equalsIgnoreCase("-PREPARE")) {
+                    DeferredSigning deferredSigning = new DeferredSigning(outputDirFor(filePath, resultSaveDirPath));
+                    generateSuccessResponse(deferredSigning.prepare(DeferredSigning.loadPayload(Paths.get(filePath), PrepareModel.class)));
+                } else if (action.equalsIgnoreCase("-SIGNHASHES")) {
+                    DeferredSigning deferredSigning = new DeferredSigning(outputDirFor(filePath, resultSaveDirPath));
+                    generateSuccessResponse(deferredSigning.signHashes(DeferredSigning.loadPayload(Paths.get(filePath), HashSigningModel.class)));
+                } else if (action.equalsIgnoreCase("-FINALIZE")) {
+                    DeferredSigning deferredSigning = new DeferredSigning(outputDirFor(filePath, resultSaveDirPath));
+                    generateSuccessResponse(deferredSigning.finalizeSignature(DeferredSigning.loadPayload(Paths.get(filePath), FinalizeModel.class)));
+                } else if (action.equalsIgnoreCase("-VERIFY")) {
+                    SignatureVerification.forDocument(filePath).execute();
+                } else if (action.equalsIgnoreCase("-VERIFYBATCH")) {
+                    SignatureVerification.forBatch(filePath).execute();
                 } else  {
                     throw new IllegalArgumentException("Invalid action type: " + action);
                 }
             }
-        } catch (IllegalArgumentException | IOException | URISyntaxException e ) {
+        } catch (IllegalArgumentException | IOException | URISyntaxException | InterruptedException | GeneralSecurityException e ) {
             generateErrorResponse(e);
         }
     }
 
+    private static void runDaemon(String[] args) throws IOException, InterruptedException {
+        if (args.length > 3) {
+            throw new IllegalArgumentException("Invalid number of arguments. Usage: -daemon [<outputFileDir>] [<port>]");
+        }
+        String outputDir = (args.length >= 2 && !args[1].isEmpty()) ? args[1] : Paths.get("").toAbsolutePath().toString();
+        SigningDaemon daemon = new SigningDaemon(outputDir, Runtime.getRuntime().availableProcessors());
+
+        if (args.length == 3) {
+            int port;
+            try {
+                port = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid daemon port: " + args[2]);
+            }
+            daemon.serveTcp(port);
+        } else {
+            daemon.serveStdin();
+        }
+    }
+
+    private static void runHttp(String[] args) throws IOException {
+        if (args.length > 2) {
+            throw new IllegalArgumentException("Invalid number of arguments. Usage: -http [<port>]");
+        }
+        int port;
+        try {
+            port = args.length == 2 ? Integer.parseInt(args[1]) : 8080;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid HTTP port: " + args[1]);
+        }
+        int workers = Integer.getInteger("eDastakhat.http.workers", Runtime.getRuntime().availableProcessors());
+        HttpSigningService service = new HttpSigningService(
+                workers,
+                Integer.getInteger("eDastakhat.http.queue", workers * 4),
+                Long.getLong("eDastakhat.http.maxDocumentBytes", 16L * 1024 * 1024),
+                HttpSigningService.parseAllowedKeyPaths(System.getProperty("eDastakhat.http.allowedKeyPaths")));
+        InetSocketAddress address = service.start(new InetSocketAddress(
+                InetAddress.getByName(System.getProperty("eDastakhat.http.bindAddress", "127.0.0.1")), port));
+
+        HashMap<String, String> listening = new HashMap<>();
+        listening.put("listening", address.getHostString() + ":" + address.getPort());
+        generateSuccessResponse(listening);
+    }
+
+    private static void runWatch(String[] args) throws IOException, GeneralSecurityException {
+        if (args.length < 3 || args.length > 4) {
+            throw new IllegalArgumentException("Invalid number of arguments. Usage: -watch <dir> <watchPayload.json> [<outputFileDir>]");
+        }
+        WatchModel model = DeferredSigning.loadPayload(Paths.get(args[2]), WatchModel.class);
+        int workers = model.getThreads() > 0 ? model.getThreads() : Runtime.getRuntime().availableProcessors();
+        HotFolderSigning hotFolder = new HotFolderSigning(args[1], model,
+                args.length == 4 && !args[3].isEmpty() ? args[3] : null,
+                workers,
+                Integer.getInteger("eDastakhat.watch.queue", workers * 4));
+        hotFolder.start();
+
+        HashMap<String, String> watching = new HashMap<>();
+        watching.put("watching", Paths.get(args[1]).toAbsolutePath().toString());
+        watching.put("mode", hotFolder.isPolling() ? "poll" : "watch");
+        generateSuccessResponse(watching);
+    }
+
+    private static void runVault(String[] args) throws IOException {
+        String usage = "Usage: -vault list [<vaultDir>] | -vault find <query> [<vaultDir>] | -vault reindex [<vaultDir>]";
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Missing vault command. " + usage);
+        }
+        if ("list".equalsIgnoreCase(args[1]) && args.length <= 3) {
+            new VaultQuery(args.length == 3 ? args[2] : null).list();
+        } else if ("find".equalsIgnoreCase(args[1]) && (args.length == 3 || args.length == 4)) {
+            new VaultQuery(args.length == 4 ? args[3] : null).find(args[2]);
+        } else if ("reindex".equalsIgnoreCase(args[1]) && args.length <= 3) {
+            new VaultQuery(args.length == 3 ? args[2] : null).reindex();
+        } else {
+            throw new IllegalArgumentException("Invalid vault command. " + usage);
+        }
+    }
+
+    private static String outputDirFor(String payloadPath, String outputDir) {
+        if (outputDir != null) {
+            return outputDir;
+        }
+        return Paths.get(payloadPath).toAbsolutePath().getParent().toString();
+    }
+
     private static void copyFile() throws IOException, URISyntaxException {
-        String[] payloadFileNames = {"Sign-Payload.json"};
+        String[] payloadFileNames = {"Sign-Payload.json", "Multi-Signer-Payload.json", "Batch-Manifest.json", "Watch-Payload.json", "PFX-Import-Manifest.json", "Prepare-Payload.json", "Sign-Hashes-Payload.json", "Finalize-Payload.json"};
         for(String sourceFilename : payloadFileNames) {
             URL resource = EDastakhatApplication.class.getClassLoader().getResource("examples/" +sourceFilename);
             if(resource == null) return;
@@ -84,25 +221,139 @@ public class EDastakhatApplication {
         System.out.println("          <outputFileDir>       Optional: Directory where the processed PFX will be saved.");
         System.out.println("                                 - If not provided, the file will be saved in the same folder as the source PFX file.");
         System.out.println();
+        System.out.println("  -pfxBatch  Import many PFX files into the vault concurrently.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -pfxBatch <pfxDir> <pfxPassword> [<outputFileDir>]");
+        System.out.println("                 java -jar /path/to/application.jar -pfxBatch <pfxImportManifest.json> [<outputFileDir>]");
+        System.out.println("          <pfxDir>              A directory of .pfx and .p12 files sharing one password.");
+        System.out.println("          <pfxImportManifest.json>  A manifest listing PFX paths and their passwords.");
+        System.out.println("          <outputFileDir>       Optional: Directory that holds the eDastkhatVault.");
+        System.out.println("                                 - If not provided, the PFX directory or the manifest's directory is used.");
+        System.out.println("                                 - Certificates already in the vault are skipped.");
+        System.out.println("                                 - One JSON line is printed per file, then a summary line.");
+        System.out.println();
+        System.out.println("  -vault  List or search the certificates stored by -p, using the vault index.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -vault list [<vaultDir>]");
+        System.out.println("                 java -jar /path/to/application.jar -vault find <query> [<vaultDir>]");
+        System.out.println("                 java -jar /path/to/application.jar -vault reindex [<vaultDir>]");
+        System.out.println("          <query>               Required for find: key=value terms separated by ';'.");
+        System.out.println("                                 - Keys: serial, alias, cn, issuer, validAt (now or yyyy-MM-dd), expiresWithinDays.");
+        System.out.println("          reindex               Rebuild the index from the key stores, after files were added or removed by hand.");
+        System.out.println("          <vaultDir>            Optional: The eDastkhatVault directory.");
+        System.out.println("                                 - If not provided, -DeDastakhat.vault.dir or ./eDastkhatVault is used.");
+        System.out.println();
         System.out.println("  -S, -s  Sign a PDF file using a signature payload JSON.");
         System.out.println("          Usage: java -jar /path/to/application.jar -s <signaturePayloadJsonFile.json> [<outputFileDir>]");
         System.out.println("          <signaturePayloadJsonFile.json>  Required: Path to the JSON file containing the signature payload.");
         System.out.println("          <outputFileDir>                 Optional: Path where the signed PDF will be saved.");
         System.out.println("                                            - If not provided, the signed file will be saved in the same folder as the JSON file.");
         System.out.println();
+        System.out.println("  -B, -batch  Sign every PDF listed in a batch manifest JSON with one unlocked key.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -batch <batchManifest.json> [<outputFileDir>]");
+        System.out.println("          <batchManifest.json>  Required: Path to the manifest listing the PDF files and signing options.");
+        System.out.println("          <outputFileDir>       Optional: Directory where the signed PDFs will be saved.");
+        System.out.println("                                 - If not provided, the signed files will be saved in the same folder as the manifest.");
+        System.out.println("                                 - One JSON line is printed per document, then a summary line.");
+        System.out.println();
+        System.out.println("  -batchWorker  Sign a batch manifest together with other worker processes sharing its directory.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -batchWorker <batchManifest.json> [<outputFileDir>]");
+        System.out.println("          <batchManifest.json>  Required: The same manifest for every worker, on a shared filesystem.");
+        System.out.println("          <outputFileDir>       Optional: Directory where the signed PDFs will be saved.");
+        System.out.println("                                 - Workers claim shards of -DeDastakhat.cluster.shardSize documents through lease files.");
+        System.out.println("                                 - Finished shards are journaled in <batchManifest.json>.run and skipped on restart.");
+        System.out.println("                                 - Prints a line per document, a summary of this worker and one of the whole run.");
+        System.out.println();
+        System.out.println("  -batchStatus  Print the progress and throughput of a -batchWorker run across all workers.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -batchStatus <batchManifest.json>");
+        System.out.println();
+        System.out.println("  -prepare  Write a PDF with an empty signature field and print the digest to sign, without the private key.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -prepare <preparePayload.json> [<outputFileDir>]");
+        System.out.println("          <preparePayload.json>  Required: Document, signature options and the signer's certificate chain file.");
+        System.out.println("          <outputFileDir>        Optional: Directory where the prepared PDF will be saved.");
+        System.out.println();
+        System.out.println("  -signHashes  Sign the digests printed by -prepare with one unlocked key.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -signHashes <signHashesPayload.json>");
+        System.out.println("          <signHashesPayload.json>  Required: PFX details, optional timestamp and the list of digests.");
+        System.out.println("                                     - Prints the Base64 CMS signature of each digest by its id.");
+        System.out.println();
+        System.out.println("  -finalize  Inject a signature returned by -signHashes into a prepared PDF.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -finalize <finalizePayload.json> [<outputFileDir>]");
+        System.out.println("          <finalizePayload.json>  Required: Prepared PDF path, field name and the Base64 CMS signature.");
+        System.out.println("          <outputFileDir>         Optional: Directory where the signed PDF will be saved.");
+        System.out.println();
+        System.out.println("  -verify  Verify every signature of a signed PDF and print a JSON line report.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -verify <signedFile.pdf>");
+        System.out.println("          <signedFile.pdf>      Required: Path to the signed PDF file.");
+        System.out.println("                                 - Checks the digest, byte range, certificate chain and timestamp of each signature.");
+        System.out.println("                                 - Trusted roots come from -DeDastakhat.verify.trustStore, or the JDK cacerts.");
+        System.out.println();
+        System.out.println("  -verifyBatch  Verify many signed PDFs in parallel.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -verifyBatch <directory | pdfList.txt>");
+        System.out.println("          <directory>           Required: A directory of PDF files, or a text file with one PDF path per line.");
+        System.out.println("                                 - One JSON line is printed per document, then a summary line.");
+        System.out.println();
+        System.out.println("  -daemon Keep the application running and sign payloads as they arrive.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -daemon [<outputFileDir>] [<port>]");
+        System.out.println("          <outputFileDir>       Optional: Directory where the signed PDFs will be saved.");
+        System.out.println("                                 - If not provided, the current working directory is used.");
+        System.out.println("          <port>                Optional: Loopback TCP port to listen on instead of reading stdin.");
+        System.out.println("                                 - Each line is a signature payload JSON with an optional \"requestId\".");
+        System.out.println("                                 - Each job answers with one JSON line tagged with the same \"requestId\".");
+        System.out.println();
+        System.out.println("  -http   Serve signing over HTTP, streaming signed PDFs back without writing them to disk.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -http [<port>]");
+        System.out.println("          <port>                Optional: Port to listen on, 8080 by default, on -DeDastakhat.http.bindAddress (127.0.0.1).");
+        System.out.println("                                 - POST /sign: multipart payload and pdf parts, or application/pdf with an X-eDastakhat-Payload header.");
+        System.out.println("                                 - GET /health and GET /metrics (Prometheus text format).");
+        System.out.println("                                 - Answers 429, without reading the document, when -DeDastakhat.http.workers plus -DeDastakhat.http.queue requests are in progress.");
+        System.out.println("                                 - Keys are vault entries by serial or alias; pfxPath, vaultPath and pkcs11Library only under -DeDastakhat.http.allowedKeyPaths.");
+        System.out.println();
+        System.out.println("  -watch  Sign every PDF dropped into a folder, until the process is stopped.");
+        System.out.println("          Usage: java -jar /path/to/application.jar -watch <dir> <watchPayload.json> [<outputFileDir>]");
+        System.out.println("          <dir>                 Required: The folder to watch. Sources are moved to its done and failed subfolders.");
+        System.out.println("          <watchPayload.json>   Required: certInfo, options and threads applied to every file.");
+        System.out.println("          <outputFileDir>       Optional: Directory where the signed PDFs will be saved, <dir>/signed by default.");
+        System.out.println("                                 - A file is signed once its size is stable for -DeDastakhat.watch.stableMillis,");
+        System.out.println("                                   or once <file><suffix> exists with -DeDastakhat.watch.marker=<suffix>.");
+        System.out.println("                                 - -DeDastakhat.watch.poll=true lists the folder instead, for network mounts.");
+        System.out.println("                                 - One JSON line is printed per file, and a stats line every minute.");
+        System.out.println();
         System.out.println("  -v      Display the version of the application.");
         System.out.println("          Usage: java -jar /path/to/application.jar -v");
         System.out.println();
         System.out.println("  -H, -h  Display this help message.");
         System.out.println("          Usage: java -jar /path/to/application.jar -h");
         System.out.println();
+        System.out.println("OUTPUT:");
+        System.out.println("  -DeDastakhat.output=lines               Print every response as one compact JSON line on stdout.");
+        System.out.println("  -DeDastakhat.output.stackTraces=true    Add stack traces to failed responses (default only without lines).");
+        System.out.println("  -DeDastakhat.output.inlineSignedPdf=true  Add the signed PDF, Base64 encoded, to signing responses.");
+        System.out.println("          - Failed responses carry a stable \"code\", such as PFX_PASSWORD or TSA_UNAVAILABLE.");
+        System.out.println();
         System.out.println("EXAMPLES:");
         System.out.println("  Process a PFX file:");
         System.out.println("    java -jar /path/to/application.jar -p /path/to/file.pfx myPassword /path/to/output/dir");
         System.out.println();
+        System.out.println("  Find the valid certificates of a signer in the vault:");
+        System.out.println("    java -jar /path/to/application.jar -vault find \"cn=John;validAt=now\" /path/to/eDastkhatVault");
+        System.out.println();
         System.out.println("  Sign a PDF file:");
         System.out.println("    java -jar /path/to/application.jar -s /path/to/signaturePayload.json /path/to/signedOutputDir");
         System.out.println();
+        System.out.println("  Sign a batch of PDF files:");
+        System.out.println("    java -jar /path/to/application.jar -batch /path/to/batchManifest.json /path/to/signedOutputDir");
+        System.out.println();
+        System.out.println("  Sign a large batch with a worker on each of several machines sharing /mnt/batch:");
+        System.out.println("    java -jar /path/to/application.jar -batchWorker /mnt/batch/batchManifest.json /mnt/batch/signed");
+        System.out.println();
+        System.out.println("  Sign the PDF files an upstream system drops into a folder:");
+        System.out.println("    java -jar /path/to/application.jar -watch /path/to/inbox /path/to/watchPayload.json");
+        System.out.println();
+        System.out.println("  Verify a folder of signed PDF files:");
+        System.out.println("    java -DeDastakhat.verify.trustStore=/path/to/roots.p12 -jar /path/to/application.jar -verifyBatch /path/to/signedOutputDir");
+        System.out.println();
+        System.out.println("  Start a signing daemon reading payloads from stdin:");
+        System.out.println("    java -jar /path/to/application.jar -daemon /path/to/signedOutputDir");
+        System.out.println();
         System.out.println("  Display version:");
         System.out.println("    java -jar /path/to/application.jar -v");
         System.out.println();
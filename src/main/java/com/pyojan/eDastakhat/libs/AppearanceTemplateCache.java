@@ -0,0 +1,356 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.itextpdf.text.Font;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.BaseFont;
+import com.itextpdf.text.pdf.ByteBuffer;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.security.CertificateInfo;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the content streams of visible signature appearances, so that the text layout iText runs for every
+ * signature ({@code ColumnText.fitText} tries font sizes until the description fits) runs once per appearance
+ * instead of once per document.
+ * <p>
+ * Templates are keyed by everything that decides the layout: the size of the rectangle, the layers, the signer
+ * name, the reason, the location and the shape of the date. The first document with a key is rendered by iText as
+ * before and its layers are recorded as it is signed; later documents get those layers stamped in, with only the
+ * font resource name and the date filled in. Helvetica draws every digit at the same width, so a date of the same
+ * shape lays out, and wraps, exactly like the recorded one. An appearance whose date cannot be told apart from the
+ * rest of its text is remembered as uncacheable and is always rendered by iText.
+ * <p>
+ * The cache holds at most {@code eDastakhat.appearance.maxEntries} templates, least recently used first out, and is
+ * disabled with {@code -DeDastakhat.appearance.cache=false}.
+ */
+public class AppearanceTemplateCache {
+
+    private static final AppearanceTemplateCache INSTANCE = new AppearanceTemplateCache(
+            Boolean.parseBoolean(System.getProperty("eDastakhat.appearance.cache", "true")),
+            Integer.getInteger("eDastakhat.appearance.maxEntries", 64));
+
+    // The date line iText writes into layer 2, see PdfSignatureAppearance.getAppearance().
+    private static final String DATE_FORMAT = "yyyy.MM.dd HH:mm:ss z";
+    // A font selection always starts a line of the content stream, so text shown by Tj cannot match.
+    private static final Pattern FONT_OPERATOR = Pattern.compile("(?m)^/([^\\s/]+) [-0-9.]+ Tf$");
+    private static final Template UNCACHEABLE = new Template(new Layer[0]);
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Template> templates = new LinkedHashMap<>(16, 0.75f, true);
+    private BaseFont font;
+    private long hits;
+    private long misses;
+    private long uncacheable;
+    private long evictions;
+
+    public AppearanceTemplateCache(boolean enabled, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Appearance cache must allow at least one entry.");
+        }
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+    }
+
+    public static AppearanceTemplateCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Prepares the layers of a visible signature appearance. Call it once every option of the appearance, the
+     * certificate included, has been set and before the signature is made.
+     * <p>
+     * On a hit the layers are filled from the template; on a miss iText renders them while signing and they are
+     * recorded for the next document. Appearances with a custom text, font or image are left to iText.
+     *
+     * @param appearance  The appearance of the signature about to be made.
+     * @param certificate The signing certificate, whose name is rendered.
+     */
+    public void apply(PdfSignatureAppearance appearance, Certificate certificate) {
+        if (!enabled || !isTemplatable(appearance)) {
+            return;
+        }
+
+        String date = new SimpleDateFormat(DATE_FORMAT).format(appearance.getSignDate().getTime());
+        String key = cacheKey(appearance, signerName(certificate), date);
+        Template template;
+        synchronized (this) {
+            template = templates.get(key);
+            if (template == null) {
+                misses++;
+            } else if (template == UNCACHEABLE) {
+                uncacheable++;
+            } else {
+                hits++;
+            }
+        }
+
+        if (template == null) {
+            record(appearance, key, date);
+        } else if (template != UNCACHEABLE) {
+            template.fill(appearance, date, getFont());
+        }
+    }
+
+    /**
+     * Drops every template.
+     *
+     * @return The number of templates removed.
+     */
+    public synchronized int invalidateAll() {
+        int removed = templates.size();
+        templates.clear();
+        return removed;
+    }
+
+    /**
+     * @return The cache counters, suitable for a response data map.
+     */
+    public synchronized HashMap<String, String> getStats() {
+        HashMap<String, String> stats = new HashMap<>();
+        stats.put("appearanceCacheEntries", String.valueOf(templates.size()));
+        stats.put("appearanceCacheHits", String.valueOf(hits));
+        stats.put("appearanceCacheMisses", String.valueOf(misses));
+        stats.put("appearanceCacheUncacheable", String.valueOf(uncacheable));
+        stats.put("appearanceCacheEvictions", String.valueOf(evictions));
+        return stats;
+    }
+
+    private static boolean isTemplatable(PdfSignatureAppearance appearance) {
+        PdfSignatureAppearance.RenderingMode mode = appearance.getRenderingMode();
+        return !appearance.isInvisible()
+                && (mode == PdfSignatureAppearance.RenderingMode.NAME_AND_DESCRIPTION || mode == PdfSignatureAppearance.RenderingMode.DESCRIPTION)
+                && appearance.getLayer2Text() == null
+                && appearance.getLayer2Font() == null
+                && appearance.getImage() == null
+                && appearance.getSignatureGraphic() == null;
+    }
+
+    /**
+     * The signer name as iText renders it: the CN of the certificate, else its e-mail address.
+     */
+    private static String signerName(Certificate certificate) {
+        if (!(certificate instanceof X509Certificate)) {
+            return "";
+        }
+        CertificateInfo.X500Name subject = CertificateInfo.getSubjectFields((X509Certificate) certificate);
+        String name = subject == null ? null : subject.getField("CN");
+        if (name == null && subject != null) {
+            name = subject.getField("E");
+        }
+        return name == null ? "" : name;
+    }
+
+    private static String cacheKey(PdfSignatureAppearance appearance, String signerName, String date) {
+        Rectangle rect = appearance.getRect();
+        return rect.getWidth() + "x" + rect.getHeight()
+                + '|' + appearance.isAcro6Layers()
+                + '|' + appearance.getRenderingMode()
+                + '|' + appearance.getRunDirection()
+                + '|' + date.replaceAll("[0-9]", "0")
+                + '|' + signerName
+                + '|' + appearance.getReason()
+                + '|' + appearance.getLocation();
+    }
+
+    private static int[] renderedLayers(PdfSignatureAppearance appearance) {
+        return appearance.isAcro6Layers() ? new int[]{2} : new int[]{1, 2, 3, 4};
+    }
+
+    /**
+     * Records the layers once iText has rendered them, which is when the signature dictionary is asked for.
+     */
+    private void record(PdfSignatureAppearance appearance, String key, String date) {
+        PdfSignatureAppearance.SignatureEvent previous = appearance.getSignatureEvent();
+        appearance.setSignatureEvent(new PdfSignatureAppearance.SignatureEvent() {
+            @Override
+            public void getSignatureDictionary(PdfDictionary sig) {
+                put(key, Template.capture(appearance, renderedLayers(appearance), date));
+                if (previous != null) {
+                    previous.getSignatureDictionary(sig);
+                }
+            }
+        });
+    }
+
+    private synchronized void put(String key, Template template) {
+        if (template == UNCACHEABLE) {
+            uncacheable++;
+        }
+        templates.put(key, template);
+        while (templates.size() > maxEntries) {
+            templates.remove(templates.keySet().iterator().next());
+            evictions++;
+        }
+    }
+
+    /**
+     * The font iText uses for the appearance text when none is set.
+     */
+    private synchronized BaseFont getFont() {
+        if (font == null) {
+            font = new Font().getCalculatedBaseFont(false);
+        }
+        return font;
+    }
+
+    /**
+     * The parts of the date text that change from document to document, cut at the spaces where iText may wrap it.
+     */
+    private static byte[][] datePieces(String date) {
+        List<byte[]> pieces = new ArrayList<>();
+        for (String piece : date.split(" ")) {
+            if (piece.matches(".*[0-9].*")) {
+                pieces.add(piece.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+        return pieces.toArray(new byte[0][]);
+    }
+
+    private static class Template {
+        private final Layer[] layers;
+
+        Template(Layer[] layers) {
+            this.layers = layers;
+        }
+
+        /**
+         * @return The template, or {@link #UNCACHEABLE} when a layer uses more than one font or a piece of the date
+         * is not found exactly once.
+         */
+        static Template capture(PdfSignatureAppearance appearance, int[] numbers, String date) {
+            byte[][] pieces = datePieces(date);
+            Layer[] layers = new Layer[numbers.length];
+            int[] found = new int[pieces.length];
+            for (int i = 0; i < numbers.length; i++) {
+                layers[i] = Layer.capture(appearance.getLayer(numbers[i]), numbers[i], pieces);
+                if (layers[i] == null) {
+                    return UNCACHEABLE;
+                }
+                for (byte gap : layers[i].gaps) {
+                    if (gap != Layer.FONT_NAME) {
+                        found[gap]++;
+                    }
+                }
+            }
+            for (int count : found) {
+                if (count != 1) {
+                    return UNCACHEABLE;
+                }
+            }
+            return new Template(layers);
+        }
+
+        void fill(PdfSignatureAppearance appearance, String date, BaseFont font) {
+            byte[][] pieces = datePieces(date);
+            for (Layer layer : layers) {
+                layer.fill(appearance.getLayer(layer.number), pieces, font);
+            }
+        }
+    }
+
+    /**
+     * The content stream of one layer, cut where the font resource name and the pieces of the date go.
+     */
+    private static class Layer {
+        private static final byte FONT_NAME = -1;
+
+        private final int number;
+        private final Rectangle boundingBox;
+        private final byte[][] parts;
+        // What goes after each part but the last: the font name, or the index of a date piece.
+        private final byte[] gaps;
+
+        private Layer(int number, Rectangle boundingBox, byte[][] parts, byte[] gaps) {
+            this.number = number;
+            this.boundingBox = boundingBox;
+            this.parts = parts;
+            this.gaps = gaps;
+        }
+
+        /**
+         * @return The layer, or {@code null} when it uses more than one font.
+         */
+        static Layer capture(PdfTemplate template, int number, byte[][] datePieces) {
+            byte[] content = template.getInternalBuffer().toByteArray();
+            String text = new String(content, StandardCharsets.ISO_8859_1);
+
+            List<int[]> cuts = new ArrayList<>();
+            String fontName = null;
+            Matcher matcher = FONT_OPERATOR.matcher(text);
+            while (matcher.find()) {
+                if (fontName != null && !fontName.equals(matcher.group(1))) {
+                    return null;
+                }
+                fontName = matcher.group(1);
+                cuts.add(new int[]{matcher.start(1), matcher.end(1), FONT_NAME});
+            }
+            for (int piece = 0; piece < datePieces.length; piece++) {
+                String pieceText = new String(datePieces[piece], StandardCharsets.ISO_8859_1);
+                for (int at = text.indexOf(pieceText); at >= 0; at = text.indexOf(pieceText, at + 1)) {
+                    cuts.add(new int[]{at, at + pieceText.length(), piece});
+                }
+            }
+            cuts.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+            byte[][] parts = new byte[cuts.size() + 1][];
+            byte[] gaps = new byte[cuts.size()];
+            int from = 0;
+            for (int i = 0; i < cuts.size(); i++) {
+                int[] cut = cuts.get(i);
+                if (cut[0] < from) {
+                    return null;
+                }
+                parts[i] = Arrays.copyOfRange(content, from, cut[0]);
+                gaps[i] = (byte) cut[2];
+                from = cut[1];
+            }
+            parts[cuts.size()] = Arrays.copyOfRange(content, from, content.length);
+            return new Layer(number, new Rectangle(template.getBoundingBox()), parts, gaps);
+        }
+
+        void fill(PdfTemplate template, byte[][] datePieces, BaseFont font) {
+            template.setBoundingBox(new Rectangle(boundingBox));
+            byte[] fontName = null;
+            if (containsFontName()) {
+                // Registers the font in the document and in the resources of the layer, under the document's name.
+                template.setFontAndSize(font, 1);
+                byte[] selection = template.getInternalBuffer().toByteArray();
+                int end = 1;
+                while (selection[end] != ' ') {
+                    end++;
+                }
+                fontName = Arrays.copyOfRange(selection, 1, end);
+                template.reset();
+            }
+            ByteBuffer buffer = template.getInternalBuffer();
+            for (int i = 0; i < gaps.length; i++) {
+                buffer.append(parts[i]);
+                buffer.append(gaps[i] == FONT_NAME ? fontName : datePieces[gaps[i]]);
+            }
+            buffer.append(parts[gaps.length]);
+        }
+
+        private boolean containsFontName() {
+            for (byte gap : gaps) {
+                if (gap == FONT_NAME) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.pyojan.eDastakhat.libs;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers whether a certificate chain leads to a trusted root, so verifying many documents signed with the same
+ * certificate builds and checks its path once.
+ * <p>
+ * Entries are keyed by the SHA-256 of the chain's encoded certificates. The result does not depend on when a
+ * signature was made: the path is checked at the latest {@code notBefore} of the chain, and callers check the
+ * validity period against the signing time with {@link #isValidAt(Certificate[], Date)}. Revocation is not checked
+ * here. Trust anchors are read from the key store named by the {@code eDastakhat.verify.trustStore},
+ * {@code eDastakhat.verify.trustStorePassword} and {@code eDastakhat.verify.trustStoreType} system properties, or
+ * from the JDK's {@code cacerts} when none is set. The cache size is read from {@code eDastakhat.verify.maxEntries}.
+ */
+public class ChainValidationCache {
+
+    private static ChainValidationCache instance;
+
+    private final KeyStore trustStore;
+    private final int maxEntries;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public ChainValidationCache(KeyStore trustStore, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Chain validation cache must allow at least one entry.");
+        }
+        this.trustStore = trustStore;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return The shared cache, loading the configured trust store on first use.
+     */
+    public static synchronized ChainValidationCache getInstance() throws IOException, GeneralSecurityException {
+        if (instance == null) {
+            instance = new ChainValidationCache(loadTrustStore(), Integer.getInteger("eDastakhat.verify.maxEntries", 4096));
+        }
+        return instance;
+    }
+
+    /**
+     * Checks that the chain leads to a trusted root, using the cached result when the same chain was checked
+     * before. Concurrent callers asking for the same chain wait for a single check.
+     *
+     * @param chain Signer certificate first, followed by any intermediate certificates.
+     */
+    public Result validate(Certificate[] chain) throws GeneralSecurityException {
+        if (chain == null || chain.length == 0) {
+            return new Result(false, "The signature carries no certificate.");
+        }
+        String key = cacheKey(chain);
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                entry = new Entry();
+                entries.put(key, entry);
+                evictOverflow();
+            } else {
+                hits++;
+            }
+        }
+        return entry.load(chain);
+    }
+
+    /**
+     * @return {@code true} if every certificate of the chain was within its validity period at the given time.
+     */
+    public static boolean isValidAt(Certificate[] chain, Date time) {
+        for (Certificate certificate : chain) {
+            X509Certificate x509 = (X509Certificate) certificate;
+            if (time.before(x509.getNotBefore()) || time.after(x509.getNotAfter())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The cache counters, suitable for a response data map.
+     */
+    public synchronized HashMap<String, String> getStats() {
+        HashMap<String, String> stats = new HashMap<>();
+        stats.put("chainCacheEntries", String.valueOf(entries.size()));
+        stats.put("chainCacheHits", String.valueOf(hits));
+        stats.put("chainCacheMisses", String.valueOf(misses));
+        stats.put("chainCacheEvictions", String.valueOf(evictions));
+        return stats;
+    }
+
+    private Result check(Certificate[] chain) {
+        try {
+            X509CertSelector target = new X509CertSelector();
+            target.setCertificate((X509Certificate) chain[0]);
+            PKIXBuilderParameters parameters = new PKIXBuilderParameters(trustStore, target);
+            parameters.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(Arrays.asList(chain))));
+            parameters.setRevocationEnabled(false);
+            parameters.setDate(latestNotBefore(chain));
+            CertPathBuilder.getInstance("PKIX").build(parameters);
+            return new Result(true, null);
+        } catch (GeneralSecurityException e) {
+            return new Result(false, e.getMessage());
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static Date latestNotBefore(Certificate[] chain) {
+        Date latest = ((X509Certificate) chain[0]).getNotBefore();
+        for (Certificate certificate : chain) {
+            Date notBefore = ((X509Certificate) certificate).getNotBefore();
+            if (notBefore.after(latest)) {
+                latest = notBefore;
+            }
+        }
+        return latest;
+    }
+
+    private static String cacheKey(Certificate[] chain) throws GeneralSecurityException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        for (Certificate certificate : chain) {
+            sha256.update(certificate.getEncoded());
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : sha256.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static KeyStore loadTrustStore() throws IOException, GeneralSecurityException {
+        String configured = System.getProperty("eDastakhat.verify.trustStore");
+        Path path = configured != null && !configured.isEmpty()
+                ? Paths.get(configured)
+                : Paths.get(System.getProperty("java.home"), "lib", "security", "cacerts");
+        if (Files.notExists(path)) {
+            throw new IOException("Trust store path is incorrect or the file does not exist: " + path);
+        }
+
+        String lowerName = path.getFileName().toString().toLowerCase();
+        String defaultType = lowerName.endsWith(".p12") || lowerName.endsWith(".pfx") ? "PKCS12" : KeyStore.getDefaultType();
+        String password = System.getProperty("eDastakhat.verify.trustStorePassword");
+
+        KeyStore keyStore = KeyStore.getInstance(System.getProperty("eDastakhat.verify.trustStoreType", defaultType));
+        try (InputStream in = Files.newInputStream(path)) {
+            keyStore.load(in, password != null ? password.toCharArray() : null);
+        }
+        return keyStore;
+    }
+
+    /**
+     * Outcome of checking one chain. The reason tells why the chain is not trusted, or is {@code null} when it is.
+     */
+    @Getter
+    public static class Result {
+        private final boolean trusted;
+        private final String reason;
+
+        Result(boolean trusted, String reason) {
+            this.trusted = trusted;
+            this.reason = reason;
+        }
+    }
+
+    private class Entry {
+        private Result result;
+
+        synchronized Result load(Certificate[] chain) {
+            if (result == null) {
+                result = check(chain);
+            }
+            return result;
+        }
+    }
+}
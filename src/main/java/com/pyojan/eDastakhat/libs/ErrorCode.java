@@ -0,0 +1,106 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.google.gson.JsonParseException;
+import com.itextpdf.text.ExceptionConverter;
+import com.itextpdf.text.exceptions.BadPasswordException;
+import com.itextpdf.text.exceptions.InvalidPdfException;
+import com.pyojan.eDastakhat.services.PfxProcessor;
+import org.bouncycastle.tsp.TSPException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Stable codes for failed responses, so that callers can branch on the kind of failure without parsing messages.
+ * Codes are only ever added, never renamed or removed.
+ */
+public enum ErrorCode {
+    INVALID_ARGUMENT,
+    FILE_NOT_FOUND,
+    INVALID_PDF,
+    PDF_PASSWORD,
+    PFX_PASSWORD,
+    CERTIFICATE_EXPIRED,
+    CERTIFICATE_INVALID,
+    CERTIFICATE_REVOKED,
+    REVOCATION_UNAVAILABLE,
+    TSA_UNAVAILABLE,
+    INTERRUPTED,
+    SECURITY_ERROR,
+    IO_ERROR,
+    INTERNAL_ERROR,
+    BUSY;
+
+    /**
+     * Classifies a failure by the deepest exception in its cause chain that has a specific code, so a TSA outage
+     * reported as an invalid argument is still {@link #TSA_UNAVAILABLE}. Wrappers such as a plain
+     * {@link IOException} only decide the code when nothing in the chain is more specific.
+     *
+     * @param ex The failure.
+     * @return The code of the failure, never {@code null}.
+     */
+    public static ErrorCode of(Throwable ex) {
+        ErrorCode outermost = null;
+        ErrorCode specific = null;
+        Throwable current = ex;
+        for (int depth = 0; current != null && depth < 16; depth++) {
+            ErrorCode code = classify(current);
+            if (!code.isGeneric()) {
+                specific = code;
+            }
+            if (outermost == null) {
+                outermost = code;
+            }
+            current = current instanceof ExceptionConverter ? ((ExceptionConverter) current).getException() : current.getCause();
+        }
+        if (specific != null) {
+            return specific;
+        }
+        return outermost == null ? INTERNAL_ERROR : outermost;
+    }
+
+    private boolean isGeneric() {
+        return this == IO_ERROR || this == SECURITY_ERROR || this == INTERNAL_ERROR;
+    }
+
+    private static ErrorCode classify(Throwable ex) {
+        if (ex instanceof IllegalArgumentException || ex instanceof JsonParseException) {
+            return INVALID_ARGUMENT;
+        } else if (ex instanceof NoSuchFileException || ex instanceof FileNotFoundException) {
+            return FILE_NOT_FOUND;
+        } else if (ex instanceof BadPasswordException) {
+            return PDF_PASSWORD;
+        } else if (ex instanceof InvalidPdfException) {
+            return INVALID_PDF;
+        } else if (ex instanceof UnrecoverableKeyException) {
+            return PFX_PASSWORD;
+        } else if (ex instanceof PfxProcessor.CertificateExpiredException || ex instanceof CertificateExpiredException
+                || ex instanceof CertificateNotYetValidException) {
+            return CERTIFICATE_EXPIRED;
+        } else if (ex instanceof CertificateException) {
+            return CERTIFICATE_INVALID;
+        } else if (ex instanceof RevocationCache.RevokedException) {
+            return CERTIFICATE_REVOKED;
+        } else if (ex instanceof RevocationCache.RevocationException) {
+            return REVOCATION_UNAVAILABLE;
+        } else if (ex instanceof TimestampClient.TsaException || ex instanceof TSPException) {
+            return TSA_UNAVAILABLE;
+        } else if (ex instanceof RejectedExecutionException) {
+            return BUSY;
+        } else if (ex instanceof InterruptedException) {
+            return INTERRUPTED;
+        } else if (ex instanceof GeneralSecurityException) {
+            return SECURITY_ERROR;
+        } else if (ex instanceof IOException) {
+            return IO_ERROR;
+        }
+        return INTERNAL_ERROR;
+    }
+}
@@ -0,0 +1,195 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Writes responses as compact JSON lines, {@code {"status":..,"requestId":..,"data":{..},"metrics":{..}}}, straight
+ * into a buffered stream through one reused {@link JsonWriter} instead of building a String per response.
+ * <p>
+ * An instance is shared by every thread writing to the same stream; each line is written and flushed whole.
+ * Failures to write are ignored: the output stream is gone and there is nobody left to report them to.
+ */
+public class JsonLineWriter {
+
+    private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // A multiple of 3, so every chunk but the last encodes to Base64 without padding.
+    private static final int BASE64_CHUNK = 48 * 1024;
+
+    private static JsonLineWriter stdout;
+
+    private final Writer writer;
+    private JsonWriter json;
+    private byte[] chunk;
+    private byte[] encoded;
+    private char[] chars;
+
+    public JsonLineWriter(OutputStream out) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.json = newJsonWriter();
+    }
+
+    /**
+     * @return The writer shared by everything that prints responses to {@code System.out}.
+     */
+    public static synchronized JsonLineWriter stdout() {
+        if (stdout == null) {
+            stdout = new JsonLineWriter(System.out);
+        }
+        return stdout;
+    }
+
+    public void success(String requestId, Map<String, String> data) {
+        success(requestId, data, null);
+    }
+
+    /**
+     * Writes a success line with an optional {@code metrics} block, which is left out when {@code null}.
+     *
+     * @param requestId Identifier of the job, or {@code null} for a single job.
+     * @param data      Response data.
+     * @param metrics   Timings of the job, see {@link SigningMetrics#toResponse()}.
+     */
+    public synchronized void success(String requestId, Map<String, String> data, Map<String, Object> metrics) {
+        try {
+            begin("SUCCESS", requestId);
+            json.name("data").beginObject();
+            writeFields(data);
+            json.endObject();
+            end(metrics);
+        } catch (IOException e) {
+            // The output stream is gone.
+        }
+    }
+
+    /**
+     * Writes a success line whose {@code data} also holds the Base64 of a file under {@code contentName}. The file is
+     * encoded in chunks straight into the output, so neither its bytes nor its Base64 text are ever held whole.
+     *
+     * @param requestId   Identifier of the job, or {@code null} for a single job.
+     * @param data        Response data.
+     * @param metrics     Timings of the job, or {@code null}.
+     * @param contentName Name of the Base64 field.
+     * @param content     File to embed.
+     * @throws IOException if the file cannot be opened; nothing has been written then.
+     */
+    public synchronized void success(String requestId, Map<String, String> data, Map<String, Object> metrics,
+                                     String contentName, Path content) throws IOException {
+        try (InputStream in = Files.newInputStream(content)) {
+            try {
+                begin("SUCCESS", requestId);
+                json.name("data").beginObject();
+                writeFields(data);
+                json.name(contentName);
+                // Base64 needs no escaping, so it goes between the quotes directly on the underlying writer.
+                json.jsonValue("\"");
+                writeBase64(in);
+                writer.write('"');
+                json.endObject();
+                end(metrics);
+            } catch (IOException e) {
+                // Terminate the broken line and start over, so that the lines after it can still be parsed.
+                json = newJsonWriter();
+                writer.write('\n');
+                writer.flush();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes an error line, whose {@code data} is described by {@link Response#getErrorData}.
+     *
+     * @param requestId Identifier of the job, or {@code null} for a single job.
+     * @param ex        The failure.
+     */
+    public synchronized void error(String requestId, Throwable ex) {
+        try {
+            begin("FAILED", requestId);
+            json.name("data").beginObject();
+            writeFields(Response.getErrorData(ex));
+            json.endObject();
+            end(null);
+        } catch (IOException e) {
+            // The output stream is gone.
+        }
+    }
+
+    private JsonWriter newJsonWriter() {
+        JsonWriter jsonWriter = new JsonWriter(writer);
+        // Lenient lets the same writer go on after the first top-level object.
+        jsonWriter.setLenient(true);
+        jsonWriter.setHtmlSafe(false);
+        jsonWriter.setSerializeNulls(false);
+        return jsonWriter;
+    }
+
+    private void begin(String status, String requestId) throws IOException {
+        json.beginObject();
+        json.name("status").value(status);
+        json.name("requestId").value(requestId);
+    }
+
+    private void end(Map<String, Object> metrics) throws IOException {
+        if (metrics != null) {
+            json.name("metrics");
+            gson.toJson(metrics, Map.class, json);
+        }
+        json.endObject();
+        writer.write('\n');
+        writer.flush();
+    }
+
+    private void writeFields(Map<String, String> data) throws IOException {
+        if (data == null) {
+            return;
+        }
+        for (Map.Entry<String, String> field : data.entrySet()) {
+            json.name(field.getKey()).value(field.getValue());
+        }
+    }
+
+    private void writeBase64(InputStream in) throws IOException {
+        if (chunk == null) {
+            chunk = new byte[BASE64_CHUNK];
+            encoded = new byte[BASE64_CHUNK / 3 * 4];
+            chars = new char[encoded.length];
+        }
+        Base64.Encoder encoder = Base64.getEncoder();
+        int length;
+        while ((length = readChunk(in)) > 0) {
+            int size = encoder.encode(length == chunk.length ? chunk : Arrays.copyOf(chunk, length), encoded);
+            for (int i = 0; i < size; i++) {
+                chars[i] = (char) encoded[i];
+            }
+            writer.write(chars, 0, size);
+        }
+    }
+
+    /**
+     * Fills the chunk unless the stream ends first, so that only the last chunk can need padding.
+     */
+    private int readChunk(InputStream in) throws IOException {
+        int length = 0;
+        int read;
+        while (length < chunk.length && (read = in.read(chunk, length, chunk.length - length)) >= 0) {
+            length += read;
+        }
+        return length;
+    }
+}
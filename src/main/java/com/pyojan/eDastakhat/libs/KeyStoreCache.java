@@ -0,0 +1,211 @@
+package com.pyojan.eDastakhat.libs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps unlocked {@link KeyStoreManager}s in memory so a PFX is read, loaded and decrypted once per process
+ * instead of once per document.
+ * <p>
+ * Entries are keyed by the PFX path, its modification time and a salted hash of its password, so a replaced
+ * PFX or a different password never hits a stale entry. An entry is evicted when it has not been used for the
+ * idle TTL, when it is older than the absolute TTL, or when the cache grows beyond its maximum size (least
+ * recently used first). The signer certificate is checked for expiry on every hit, and an entry whose certificate
+ * has expired is evicted. Limits are read from the {@code eDastakhat.keyCache.idleTtlSeconds},
+ * {@code eDastakhat.keyCache.absoluteTtlSeconds} and {@code eDastakhat.keyCache.maxEntries} system properties.
+ */
+public class KeyStoreCache {
+
+    private static final KeyStoreCache INSTANCE = new KeyStoreCache(
+            TimeUnit.SECONDS.toNanos(Long.getLong("eDastakhat.keyCache.idleTtlSeconds", 600)),
+            TimeUnit.SECONDS.toNanos(Long.getLong("eDastakhat.keyCache.absoluteTtlSeconds", 3600)),
+            Integer.getInteger("eDastakhat.keyCache.maxEntries", 16));
+
+    private final long idleTtlNanos;
+    private final long absoluteTtlNanos;
+    private final int maxEntries;
+    private final byte[] salt = new byte[16];
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long loadFailures;
+
+    public KeyStoreCache(long idleTtlNanos, long absoluteTtlNanos, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Key cache must allow at least one entry.");
+        }
+        this.idleTtlNanos = idleTtlNanos;
+        this.absoluteTtlNanos = absoluteTtlNanos;
+        this.maxEntries = maxEntries;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public static KeyStoreCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the unlocked key store for the given PFX, loading it on a miss. Concurrent callers asking for the
+     * same PFX wait for a single load.
+     *
+     * @param pfxPath  Path to the PFX file.
+     * @param password Password of the PFX file.
+     * @return An unlocked key store manager.
+     */
+    public KeyStoreManager get(Path pfxPath, String password) throws IOException, GeneralSecurityException {
+        String key = cacheKey(pfxPath, password);
+        long now = System.nanoTime();
+        Entry entry;
+
+        synchronized (this) {
+            evictExpired(now);
+            entry = entries.get(key);
+            if (entry == null) {
+                misses++;
+                entry = new Entry(pfxPath, now);
+                entries.put(key, entry);
+                evictOverflow();
+            } else {
+                hits++;
+                entry.lastAccess = now;
+            }
+        }
+
+        KeyStoreManager keyStoreManager;
+        try {
+            keyStoreManager = entry.load(password);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            synchronized (this) {
+                loadFailures++;
+                entries.remove(key, entry);
+            }
+            throw e;
+        }
+
+        // The certificate may have expired since the key was cached.
+        try {
+            keyStoreManager.checkCertificateValidity();
+        } catch (GeneralSecurityException e) {
+            synchronized (this) {
+                if (entries.remove(key, entry)) {
+                    evictions++;
+                }
+            }
+            throw e;
+        }
+        return keyStoreManager;
+    }
+
+    /**
+     * Drops every cached entry of the given PFX file.
+     *
+     * @return The number of entries removed.
+     */
+    public synchronized int invalidate(Path pfxPath) {
+        Path target = pfxPath.toAbsolutePath().normalize();
+        int removed = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().pfxPath.equals(target)) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Drops every cached entry.
+     *
+     * @return The number of entries removed.
+     */
+    public synchronized int invalidateAll() {
+        int removed = entries.size();
+        entries.clear();
+        return removed;
+    }
+
+    /**
+     * @return The cache counters, suitable for a response data map.
+     */
+    public synchronized HashMap<String, String> getStats() {
+        HashMap<String, String> stats = new HashMap<>();
+        stats.put("keyCacheEntries", String.valueOf(entries.size()));
+        stats.put("keyCacheHits", String.valueOf(hits));
+        stats.put("keyCacheMisses", String.valueOf(misses));
+        stats.put("keyCacheEvictions", String.valueOf(evictions));
+        stats.put("keyCacheLoadFailures", String.valueOf(loadFailures));
+        return stats;
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.lastAccess > idleTtlNanos || now - entry.created > absoluteTtlNanos) {
+                iterator.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private String cacheKey(Path pfxPath, String password) throws IOException, NoSuchAlgorithmException {
+        Path absolutePath = pfxPath.toAbsolutePath().normalize();
+        long modified = Files.getLastModifiedTime(absolutePath).toMillis();
+
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(salt);
+        if (password != null) {
+            sha256.update(password.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder key = new StringBuilder(absolutePath.toString()).append('|').append(modified).append('|');
+        for (byte b : sha256.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static class Entry {
+        private final Path pfxPath;
+        private final long created;
+        private volatile long lastAccess;
+        private KeyStoreManager keyStoreManager;
+
+        Entry(Path pfxPath, long now) {
+            this.pfxPath = pfxPath.toAbsolutePath().normalize();
+            this.created = now;
+            this.lastAccess = now;
+        }
+
+        synchronized KeyStoreManager load(String password) throws IOException, GeneralSecurityException {
+            if (keyStoreManager == null) {
+                KeyStoreManager loaded = new KeyStoreManager(pfxPath, password);
+                loaded.getPrivateKey();
+                keyStoreManager = loaded;
+            }
+            return keyStoreManager;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.pyojan.eDastakhat.libs;
 
+import com.itextpdf.text.pdf.security.ExternalSignature;
+import com.itextpdf.text.pdf.security.PrivateKeySignature;
+import com.pyojan.eDastakhat.models.SignatureModel;
 import com.pyojan.eDastakhat.services.PfxProcessor;
 import lombok.Getter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -12,6 +15,7 @@ import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Enumeration;
 
 public class KeyStoreManager extends PfxProcessor {
 
@@ -20,8 +24,10 @@ public class KeyStoreManager extends PfxProcessor {
 
     private String alias;
     private KeyStore keyStore;
+    private PrivateKey privateKey;
+    private Certificate[] certificateChain;
     @Getter
-    private final BouncyCastleProvider provider = new BouncyCastleProvider();
+    private final BouncyCastleProvider provider = BC_PROVIDER;
 
     public KeyStoreManager(Path pfxPath, String password) throws CertificateException, KeyStoreException, IOException, NoSuchAlgorithmException {
         this.pfxPath = pfxPath;
@@ -30,21 +36,69 @@ public class KeyStoreManager extends PfxProcessor {
         getKeyStore();
     }
 
+    /**
+     * For key sources that are not PFX files, such as {@link Pkcs11KeyStoreManager}.
+     */
+    protected KeyStoreManager() {
+        this.pfxPath = null;
+        this.password = null;
+    }
+
+    /**
+     * Returns the unlocked key a signing request refers to: the pooled sessions of its PKCS#11 token when it names
+     * a {@code pkcs11Library}, otherwise its PFX file or vault entry from the shared {@link KeyStoreCache}.
+     *
+     * @param certInfo The request's key details.
+     */
+    public static KeyStoreManager getInstance(SignatureModel.CertInfo certInfo) throws IOException, GeneralSecurityException {
+        if (Pkcs11KeyStoreManager.isToken(certInfo)) {
+            return Pkcs11KeyStoreManager.getInstance(certInfo);
+        }
+        return getInstance(VaultIndex.resolve(certInfo), certInfo.getPassword());
+    }
+
+    /**
+     * Checks that the key a signing request refers to can be found, before anything is signed.
+     *
+     * @param certInfo The request's key details.
+     */
+    public static void check(SignatureModel.CertInfo certInfo) throws IOException {
+        if (Pkcs11KeyStoreManager.isToken(certInfo)) {
+            Pkcs11KeyStoreManager.checkToken(certInfo);
+        } else {
+            VaultIndex.resolve(certInfo);
+        }
+    }
+
+    /**
+     * Returns an unlocked key store for the PFX from the shared {@link KeyStoreCache}, loading it only on a miss.
+     *
+     * @param pfxPath  Path to the PFX file.
+     * @param password Password of the PFX file.
+     */
+    public static KeyStoreManager getInstance(Path pfxPath, String password) throws IOException, GeneralSecurityException {
+        return KeyStoreCache.getInstance().get(pfxPath, password);
+    }
+
     public void getKeyStore() throws KeyStoreException, IOException, CertificateException, NoSuchAlgorithmException {
-        Security.addProvider(provider);
-        keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (SigningMetrics.Phase phase = SigningMetrics.current().phase("keyStoreLoad")) {
+            keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
 
-        byte[] pfxBytes = Files.readAllBytes(pfxPath);
-        keyStore.load(new ByteArrayInputStream(pfxBytes), password.toCharArray());
+            byte[] pfxBytes = Files.readAllBytes(pfxPath);
+            phase.addBytes(pfxBytes.length);
+            keyStore.load(new ByteArrayInputStream(pfxBytes), password.toCharArray());
 
-        alias = getAliasFromKeyStore();
+            alias = getAliasFromKeyStore();
+            certificateChain = keyStore.getCertificateChain(alias);
+        }
     }
 
 
     private String getAliasFromKeyStore() throws KeyStoreException, CertificateExpiredException {
 
-        while (keyStore.aliases().hasMoreElements()) {
-            String alias = keyStore.aliases().nextElement();
+        Enumeration<String> aliases = keyStore.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
             Certificate certificate = keyStore.getCertificate(alias);
             if (certificate instanceof X509Certificate) {
                 X509Certificate x509Certificate = (X509Certificate) certificate;
@@ -57,11 +111,38 @@ public class KeyStoreManager extends PfxProcessor {
         throw new RuntimeException("User certificate not found in KeyStore.");
     }
 
-    public PrivateKey getPrivateKey() throws NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException {
-        return (PrivateKey) keyStore.getKey(alias, password.toCharArray());
+    /**
+     * Decrypts the private key on first use and returns the same key afterwards, so one manager can be
+     * shared by every document signed with it.
+     */
+    public synchronized PrivateKey getPrivateKey() throws NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException {
+        if (privateKey == null) {
+            try (SigningMetrics.Phase ignored = SigningMetrics.current().phase("keyUnlock")) {
+                privateKey = (PrivateKey) keyStore.getKey(alias, password.toCharArray());
+            }
+        }
+        return privateKey;
     }
 
     public Certificate[] getCertificateChain() throws KeyStoreException {
-        return keyStore.getCertificateChain(alias);
+        return certificateChain;
+    }
+
+    /**
+     * Checks that the signer certificate is valid now. A key stays cached, and a token logged in, for longer than
+     * its certificate may have left, so this is checked every time the key is handed out, not only when it is loaded.
+     *
+     * @throws CertificateExpiredException if the certificate has expired or is not yet valid.
+     */
+    public void checkCertificateValidity() throws GeneralSecurityException {
+        isCertificateNotExpired((X509Certificate) getCertificateChain()[0]);
+    }
+
+    /**
+     * @param hashAlgorithm Digest algorithm of the signature, such as {@code SHA-256}.
+     * @return A signature made with this key, shareable by every document signed with it.
+     */
+    public ExternalSignature getSignature(String hashAlgorithm) throws GeneralSecurityException {
+        return new PrivateKeySignature(getPrivateKey(), hashAlgorithm, provider.getName());
     }
 }
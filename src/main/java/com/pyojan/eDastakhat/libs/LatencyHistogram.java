@@ -0,0 +1,79 @@
+package com.pyojan.eDastakhat.libs;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed millisecond buckets, cheap enough to record every request.
+ */
+public class LatencyHistogram {
+
+    private static final long[] BUCKET_BOUNDS_MILLIS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long millis = nanos / 1_000_000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max;
+        do {
+            max = maxNanos.get();
+        } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Adds the histogram to a response data map. Buckets are cumulative, as in Prometheus:
+     * {@code <prefix>.le<N>ms} counts the requests that took at most N milliseconds.
+     *
+     * @param data   Response data to enrich.
+     * @param prefix Key prefix identifying the measured operation.
+     */
+    public void addTo(HashMap<String, String> data, String prefix) {
+        long cumulative = 0;
+        for (int k = 0; k < BUCKET_BOUNDS_MILLIS.length; k++) {
+            cumulative += buckets.get(k);
+            data.put(prefix + ".le" + BUCKET_BOUNDS_MILLIS[k] + "ms", String.valueOf(cumulative));
+        }
+        long requests = count.get();
+        data.put(prefix + ".count", String.valueOf(requests));
+        data.put(prefix + ".meanMillis", String.format("%.3f", requests == 0 ? 0.0 : totalNanos.get() / 1e6 / requests));
+        data.put(prefix + ".maxMillis", String.format("%.3f", maxNanos.get() / 1e6));
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, in seconds: {@code <name>_bucket{le=".."}},
+     * {@code <name>_sum} and {@code <name>_count}.
+     *
+     * @param out  Exposition being written.
+     * @param name Metric name.
+     * @param help Description of the metric.
+     */
+    public void appendPrometheus(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int k = 0; k < BUCKET_BOUNDS_MILLIS.length; k++) {
+            cumulative += buckets.get(k);
+            out.append(name).append("_bucket{le=\"").append(BUCKET_BOUNDS_MILLIS[k] / 1000.0).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += buckets.get(BUCKET_BOUNDS_MILLIS.length);
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(totalNanos.get() / 1e9).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
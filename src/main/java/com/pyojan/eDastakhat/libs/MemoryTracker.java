@@ -0,0 +1,122 @@
+package com.pyojan.eDastakhat.libs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+
+/**
+ * Measures the memory cost of a single signing job.
+ * <p>
+ * {@code peakHeapBytes} is the highest heap occupancy seen by the JVM while the job ran. The JVM keeps one peak for
+ * the whole process, so it is reset only when a job starts with no other job running, and reported only when no
+ * other job ran alongside it; a job that overlapped another, as in a batch, the daemon or the HTTP service, leaves
+ * {@code peakHeapBytes} out rather than report another job's peak or reset the one it is measuring.
+ * {@code allocatedBytes} counts the bytes allocated by the calling thread only, where the JVM supports it.
+ */
+public class MemoryTracker implements AutoCloseable {
+
+    private static int running;
+    private static long started;
+
+    private final long startAllocatedBytes;
+    private final long threadId;
+    private final long sequence;
+    private final boolean alone;
+    private boolean closed;
+
+    private MemoryTracker(long sequence, boolean alone) {
+        this.threadId = Thread.currentThread().getId();
+        this.startAllocatedBytes = getAllocatedBytes(threadId);
+        this.sequence = sequence;
+        this.alone = alone;
+    }
+
+    /**
+     * Starts measuring the calling thread, resetting the heap peak counters if no other job is running. Close the
+     * tracker when the job ends.
+     *
+     * @return A tracker bound to the calling thread.
+     */
+    public static MemoryTracker start() {
+        synchronized (MemoryTracker.class) {
+            boolean alone = running == 0;
+            if (alone) {
+                for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                    if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                        pool.resetPeakUsage();
+                    }
+                }
+            }
+            running++;
+            return new MemoryTracker(++started, alone);
+        }
+    }
+
+    /**
+     * @return Whether no other job has run since this one started, so the heap peak is its own.
+     */
+    public boolean isExclusive() {
+        synchronized (MemoryTracker.class) {
+            return alone && started == sequence;
+        }
+    }
+
+    /**
+     * @return The sum of the peak usage of every heap pool since {@link #start()}.
+     */
+    public long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * @return Bytes allocated by the tracked thread since {@link #start()}, or -1 if the JVM cannot tell.
+     */
+    public long getAllocatedBytes() {
+        long current = getAllocatedBytes(threadId);
+        return (current < 0 || startAllocatedBytes < 0) ? -1 : current - startAllocatedBytes;
+    }
+
+    /**
+     * Adds the measured values to a response data map.
+     *
+     * @param data Response data to enrich.
+     */
+    public void addTo(HashMap<String, String> data) {
+        if (isExclusive()) {
+            data.put("peakHeapBytes", String.valueOf(getPeakHeapBytes()));
+        }
+        data.put("allocatedBytes", String.valueOf(getAllocatedBytes()));
+    }
+
+    /**
+     * Ends the job, so the next one to start alone may reset the heap peak counters.
+     */
+    @Override
+    public void close() {
+        synchronized (MemoryTracker.class) {
+            if (!closed) {
+                closed = true;
+                running--;
+            }
+        }
+    }
+
+    static long getAllocatedBytes(long threadId) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (hotspotBean.isThreadAllocatedMemorySupported() && hotspotBean.isThreadAllocatedMemoryEnabled()) {
+                return hotspotBean.getThreadAllocatedBytes(threadId);
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,253 @@
+package com.pyojan.eDastakhat.libs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Reads the parts of a {@code multipart/form-data} body one after the other while it arrives, without buffering the
+ * body: {@link #next()} moves to the next part and {@link #getBody()} streams its content up to the boundary.
+ */
+public class MultipartReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean started;
+    private boolean finished;
+    private PartBody body;
+    private String name;
+    private String fileName;
+    private String contentType;
+
+    /**
+     * @param in          The request body.
+     * @param contentType The request's {@code Content-Type}, which holds the boundary.
+     */
+    public MultipartReader(InputStream in, String contentType) {
+        String boundary = parameter(contentType, "boundary");
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IllegalArgumentException("The multipart request has no boundary.");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        // The first boundary is not preceded by a line break; a virtual one lets it match the same delimiter.
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * Moves to the next part, skipping whatever is left of the current one.
+     *
+     * @return {@code false} once the closing boundary has been read.
+     */
+    public boolean next() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (body != null) {
+            body.skipAll();
+        } else if (!started) {
+            // Skips the preamble.
+            new PartBody().skipAll();
+        }
+        started = true;
+
+        if (!fill(2)) {
+            throw new IOException("The multipart body ends without its closing boundary.");
+        }
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+            finished = true;
+            return false;
+        }
+        readLine();
+
+        name = null;
+        fileName = null;
+        contentType = null;
+        String header;
+        while (!(header = readLine()).isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String headerName = header.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = header.substring(colon + 1).trim();
+            if ("content-disposition".equals(headerName)) {
+                name = parameter(value, "name");
+                fileName = parameter(value, "filename");
+            } else if ("content-type".equals(headerName)) {
+                contentType = value;
+            }
+        }
+        body = new PartBody();
+        return true;
+    }
+
+    /**
+     * @return The form field name of the current part, or {@code null}.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The file name of the current part, or {@code null} if it is not a file.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @return The content type of the current part, or {@code null}.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return The content of the current part, which ends at the next boundary.
+     */
+    public InputStream getBody() {
+        if (body == null) {
+            throw new IllegalStateException("No current part; call next() first.");
+        }
+        return body;
+    }
+
+    /**
+     * @return The value of {@code parameter} in a header value such as {@code form-data; name="pdf"}, or {@code null}.
+     */
+    static String parameter(String headerValue, String parameter) {
+        if (headerValue == null) {
+            return null;
+        }
+        for (String element : headerValue.split(";")) {
+            int equals = element.indexOf('=');
+            if (equals > 0 && element.substring(0, equals).trim().equalsIgnoreCase(parameter)) {
+                String value = element.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (!fill(1)) {
+                throw new IOException("The multipart body ends inside the headers of a part.");
+            }
+            byte b = buffer[position++];
+            if (b == '\n') {
+                int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            if (line.length() >= MAX_HEADER_BYTES) {
+                throw new IllegalArgumentException("A multipart header is longer than " + MAX_HEADER_BYTES + " bytes.");
+            }
+            line.append((char) (b & 0xff));
+        }
+    }
+
+    /**
+     * Makes at least {@code count} unread bytes available in the buffer.
+     *
+     * @return {@code false} if the body ends first.
+     */
+    private boolean fill(int count) throws IOException {
+        if (limit - position >= count) {
+            return true;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit < count) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * @return Index of the delimiter in the unread bytes, or {@code -1}.
+     */
+    private int indexOfDelimiter() {
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = position; i <= last; i++) {
+            for (int k = 0; k < delimiter.length; k++) {
+                if (buffer[i + k] != delimiter[k]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private class PartBody extends InputStream {
+        // Bytes before the delimiter that can be handed out, once the delimiter has been found.
+        private int end = -1;
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (end < 0) {
+                    end = indexOfDelimiter();
+                }
+                // Without a delimiter in sight, the last delimiter.length - 1 bytes may be the start of one.
+                int available = (end >= 0 ? end : limit - delimiter.length + 1) - position;
+                if (available > 0) {
+                    int count = Math.min(available, len);
+                    System.arraycopy(buffer, position, b, off, count);
+                    position += count;
+                    return count;
+                }
+                if (end >= 0) {
+                    position += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                if (!fill(limit - position + 1)) {
+                    throw new IOException("The multipart body ends inside a part.");
+                }
+            }
+        }
+
+        void skipAll() throws IOException {
+            byte[] skipped = new byte[BUFFER_SIZE];
+            while (read(skipped, 0, skipped.length) >= 0) {
+                // Discarded.
+            }
+        }
+    }
+}
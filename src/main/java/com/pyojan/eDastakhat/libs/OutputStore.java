@@ -0,0 +1,401 @@
+package com.pyojan.eDastakhat.libs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Names signed files and puts them in place atomically.
+ * <p>
+ * A signed file is written to a temporary file in the output directory and only moved to its name once complete,
+ * so a reader never sees half a file and a failed signature leaves nothing behind. A file never replaces another:
+ * when the name is taken, {@code _2}, {@code _3} and so on are appended to it, except that a content-addressed name
+ * that is taken already holds the same bytes. The name comes from the
+ * {@code eDastakhat.output.nameTemplate} system property, default {@code {name}}, with the placeholders
+ * {@code {name}} (the name the caller asked for, or {@code {time}_{uuid}} when it asked for none), {@code {time}},
+ * {@code {uuid}} and {@code {sha256}} (hex digest of the signed file, for content-addressed names). With
+ * {@code eDastakhat.output.shardDepth} above 0 the file goes that many levels of two-hex-digit directories down,
+ * taken from the SHA-256 of its name, so no directory holds more than a fraction of the output.
+ * <p>
+ * {@code eDastakhat.output.sync} decides durability: {@code none} (default) leaves flushing to the OS, {@code file}
+ * forces every file and its directory to disk before the file is reported, and {@code group} does the same from one
+ * committer thread for all files that are ready together, forcing each directory once per group. Callers wait for
+ * their group, so a batch pays for one directory sync per group instead of one per document.
+ */
+public class OutputStore {
+
+    private static volatile OutputStore instance;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy'T'HH-mm-ss");
+    private static final String EXTENSION = ".pdf";
+    private static final int MAX_SUFFIX = 10000;
+
+    /**
+     * When a committed file is forced to disk.
+     */
+    public enum Sync {
+        NONE, FILE, GROUP;
+
+        /**
+         * @param value {@code none}, {@code file} or {@code group}, in any case.
+         * @throws IllegalArgumentException naming the valid values if {@code value} is none of them.
+         */
+        public static Sync parse(String value) {
+            for (Sync sync : values()) {
+                if (sync.name().equalsIgnoreCase(value.trim())) {
+                    return sync;
+                }
+            }
+            throw new IllegalArgumentException("Invalid eDastakhat.output.sync value: " + value + ". Valid values are: none, file, group");
+        }
+    }
+
+    private final String nameTemplate;
+    private final boolean contentAddressed;
+    private final int shardDepth;
+    private final Sync sync;
+    private final LinkedBlockingQueue<Commit> commits = new LinkedBlockingQueue<>();
+    private Thread committer;
+    private long files;
+    private long groups;
+    private long syncs;
+
+    public OutputStore(String nameTemplate, int shardDepth, Sync sync) {
+        if (shardDepth < 0 || shardDepth > 8) {
+            throw new IllegalArgumentException("Output shard depth must be between 0 and 8.");
+        }
+        this.nameTemplate = nameTemplate;
+        this.contentAddressed = nameTemplate.contains("{sha256}");
+        this.shardDepth = shardDepth;
+        this.sync = sync;
+    }
+
+    /**
+     * Returns the store configured by the system properties, created on first use so that an invalid property fails
+     * the job with its message instead of the class.
+     *
+     * @throws IllegalArgumentException if a property has an invalid value.
+     */
+    public static OutputStore getInstance() {
+        OutputStore store = instance;
+        if (store == null) {
+            synchronized (OutputStore.class) {
+                store = instance;
+                if (store == null) {
+                    store = new OutputStore(
+                            System.getProperty("eDastakhat.output.nameTemplate", "{name}"),
+                            Integer.getInteger("eDastakhat.output.shardDepth", 0),
+                            Sync.parse(System.getProperty("eDastakhat.output.sync", "none")));
+                    instance = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Starts a signed file in the given directory. Write it to {@link Pending#getTempPath()}, then
+     * {@link Pending#commit()} it; closing it without a commit deletes it.
+     *
+     * @param directory Output directory, created if missing.
+     * @param name      Name the caller asks for, without extension, or {@code null} for a generated one.
+     */
+    public Pending create(Path directory, String name) throws IOException {
+        Files.createDirectories(directory);
+        return new Pending(directory, name, Files.createTempFile(directory, ".eDastakhat-", EXTENSION + ".tmp"));
+    }
+
+    /**
+     * @return The output counters, suitable for a response data map.
+     */
+    public synchronized HashMap<String, String> getStats() {
+        HashMap<String, String> stats = new HashMap<>();
+        stats.put("outputFiles", String.valueOf(files));
+        stats.put("outputGroupCommits", String.valueOf(groups));
+        stats.put("outputSyncs", String.valueOf(syncs));
+        return stats;
+    }
+
+    String fileName(String name, Path content) throws IOException {
+        String generated = TIME_FORMAT.format(LocalDateTime.now()) + "_" + UUID.randomUUID();
+        String fileName = nameTemplate
+                .replace("{name}", name != null ? name : generated)
+                .replace("{time}", TIME_FORMAT.format(LocalDateTime.now()))
+                .replace("{uuid}", UUID.randomUUID().toString());
+        if (fileName.contains("{sha256}")) {
+            fileName = fileName.replace("{sha256}", sha256(content));
+        }
+        if (fileName.isEmpty() || fileName.contains("/") || fileName.contains("\\") || fileName.startsWith(".")) {
+            throw new IllegalArgumentException("The output name template gives an invalid file name: '" + fileName + "'.");
+        }
+        return fileName;
+    }
+
+    Path shard(Path directory, String fileName) {
+        if (shardDepth == 0) {
+            return directory;
+        }
+        String hash = hex(sha256().digest(fileName.getBytes(StandardCharsets.UTF_8)));
+        Path shard = directory;
+        for (int level = 0; level < shardDepth; level++) {
+            shard = shard.resolve(hash.substring(level * 2, level * 2 + 2));
+        }
+        return shard;
+    }
+
+    /**
+     * @return The path the file was given, which has a numbered suffix when the target was taken.
+     */
+    private Path put(Path temp, Path target) throws IOException {
+        Path path;
+        switch (sync) {
+            case FILE:
+                force(temp, false);
+                path = move(temp, target, contentAddressed);
+                force(path.getParent(), true);
+                synchronized (this) {
+                    syncs += 2;
+                }
+                break;
+            case GROUP:
+                path = awaitGroup(new Commit(temp, target));
+                break;
+            default:
+                path = move(temp, target, contentAddressed);
+        }
+        synchronized (this) {
+            files++;
+        }
+        return path;
+    }
+
+    private Path awaitGroup(Commit commit) throws IOException {
+        synchronized (this) {
+            if (committer == null) {
+                committer = new Thread(this::runCommitter, "eDastakhat-output-commit");
+                committer.setDaemon(true);
+                committer.start();
+            }
+        }
+        commits.add(commit);
+        try {
+            return commit.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while committing " + commit.target + ".");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Takes every commit that is waiting, forces and moves the files, then forces their directories once each.
+     * Commits that arrive meanwhile form the next group.
+     */
+    private void runCommitter() {
+        List<Commit> group = new ArrayList<>();
+        while (true) {
+            try {
+                group.add(commits.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            commits.drainTo(group);
+
+            int forced = 0;
+            Set<Path> directories = new LinkedHashSet<>();
+            List<Commit> moved = new ArrayList<>();
+            for (Commit commit : group) {
+                try {
+                    force(commit.temp, false);
+                    forced++;
+                    commit.path = move(commit.temp, commit.target, contentAddressed);
+                    directories.add(commit.path.getParent());
+                    moved.add(commit);
+                } catch (IOException | RuntimeException e) {
+                    commit.done.completeExceptionally(e);
+                }
+            }
+            IOException directoryFailure = null;
+            for (Path directory : directories) {
+                try {
+                    force(directory, true);
+                    forced++;
+                } catch (IOException e) {
+                    directoryFailure = e;
+                }
+            }
+            for (Commit commit : moved) {
+                if (directoryFailure == null) {
+                    commit.done.complete(commit.path);
+                } else {
+                    commit.done.completeExceptionally(directoryFailure);
+                }
+            }
+            synchronized (this) {
+                groups++;
+                syncs += forced;
+            }
+            group.clear();
+        }
+    }
+
+    /**
+     * Gives the temporary file its name without replacing a file that already has it. A hard link is created
+     * under the name, which fails atomically if the name is taken, and the temporary name is then removed. Where
+     * links are not supported, the file is moved unless the name exists.
+     *
+     * @param contentAddressed Whether the name is derived from the content, so a file that already has it holds the
+     *                         same bytes and is kept instead of storing a second copy.
+     * @return The name the file got: the target, or the target with the first free numbered suffix.
+     */
+    static Path move(Path temp, Path target, boolean contentAddressed) throws IOException {
+        Files.createDirectories(target.getParent());
+        String fileName = target.getFileName().toString();
+        String base = fileName.endsWith(EXTENSION) ? fileName.substring(0, fileName.length() - EXTENSION.length()) : fileName;
+        String extension = fileName.substring(base.length());
+        for (int number = 1; number <= MAX_SUFFIX; number++) {
+            Path candidate = number == 1 ? target : target.resolveSibling(base + "_" + number + extension);
+            try {
+                place(temp, candidate);
+                return candidate;
+            } catch (FileAlreadyExistsException e) {
+                if (contentAddressed) {
+                    Files.delete(temp);
+                    return candidate;
+                }
+                // Taken; try the next number.
+            }
+        }
+        throw new FileAlreadyExistsException(target.toString(), null, "No free name after " + MAX_SUFFIX + " attempts.");
+    }
+
+    private static void place(Path temp, Path target) throws IOException {
+        try {
+            Files.createLink(target, temp);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // No hard links here (FAT, some network shares): without REPLACE_EXISTING the move refuses an existing name.
+            Files.move(temp, target);
+            return;
+        }
+        Files.delete(temp);
+    }
+
+    private static void force(Path path, boolean directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory to force it; the file itself is on disk either way.
+            if (!directory) {
+                throw e;
+            }
+        }
+    }
+
+    private static String sha256(Path content) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(content)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static class Commit {
+        private final Path temp;
+        private final Path target;
+        private final CompletableFuture<Path> done = new CompletableFuture<>();
+        private Path path;
+
+        Commit(Path temp, Path target) {
+            this.temp = temp;
+            this.target = target;
+        }
+    }
+
+    /**
+     * A signed file being written.
+     */
+    public class Pending implements Closeable {
+        private final Path directory;
+        private final String name;
+        private final Path temp;
+        private Path target;
+
+        private Pending(Path directory, String name, Path temp) {
+            this.directory = directory;
+            this.name = name;
+            this.temp = temp;
+        }
+
+        /**
+         * @return The temporary file to write the signed document to.
+         */
+        public Path getTempPath() {
+            return temp;
+        }
+
+        /**
+         * Names the written file and moves it into place, durably if so configured.
+         *
+         * @return The path of the signed file.
+         */
+        public Path commit() throws IOException {
+            String fileName = fileName(name, temp);
+            target = put(temp, shard(directory, fileName).resolve(fileName + EXTENSION));
+            return target;
+        }
+
+        /**
+         * Deletes the temporary file unless it was committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (target == null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import lombok.Getter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Reads a signing payload file without ever holding {@code pdf.base64Content} as a String.
+ * <p>
+ * Gson's {@code JsonReader} can only hand over a string value whole, so the payload is scanned here instead: every
+ * other value is small and is handed to Gson as is, while the Base64 text is decoded in chunks as it is read, into a
+ * byte array for small documents or into a temporary file for documents of at least the spill threshold. Memory use
+ * for a large payload is then a few buffers, whatever the size of the document.
+ */
+class PayloadReader {
+
+    private static final Gson gson = new Gson();
+    // A multiple of 4, so every chunk but the last is whole Base64 quanta.
+    private static final int DECODE_CHUNK = 16 * 1024;
+
+    @Getter
+    private SignatureModel signatureModel;
+    /**
+     * The decoded document when it is below the spill threshold, otherwise {@code null}.
+     */
+    @Getter
+    private byte[] pdfBytes;
+    /**
+     * The temporary file holding the decoded document when it is at least the spill threshold, otherwise
+     * {@code null}. The caller deletes it.
+     */
+    @Getter
+    private Path pdfFile;
+
+    private final Reader in;
+    private final long decodedSizeLimit;
+    private final long spillThreshold;
+    private final Path spillDir;
+    private int pushedBack = -1;
+    private long position;
+
+    private PayloadReader(Reader in, long payloadSize, long spillThreshold, Path spillDir) {
+        this.in = in;
+        // Decoded bytes can never outnumber three quarters of the payload.
+        this.decodedSizeLimit = payloadSize / 4 * 3 + 3;
+        this.spillThreshold = spillThreshold;
+        this.spillDir = spillDir;
+    }
+
+    /**
+     * @param payload        The payload JSON file.
+     * @param spillThreshold Decoded size from which the document goes to a temporary file.
+     * @param spillDir       Directory for the temporary file.
+     * @throws IllegalArgumentException if the payload is not valid JSON or the Base64 content is invalid.
+     */
+    static PayloadReader read(Path payload, long spillThreshold, Path spillDir) throws IOException {
+        try (Reader reader = Files.newBufferedReader(payload, StandardCharsets.UTF_8)) {
+            PayloadReader payloadReader = new PayloadReader(reader, Files.size(payload), spillThreshold, spillDir);
+            try {
+                payloadReader.readPayload();
+            } catch (IOException | RuntimeException e) {
+                if (payloadReader.pdfFile != null) {
+                    Files.deleteIfExists(payloadReader.pdfFile);
+                }
+                throw e;
+            }
+            return payloadReader;
+        }
+    }
+
+    private void readPayload() throws IOException {
+        JsonObject envelope = new JsonObject();
+        JsonObject pdf = null;
+
+        expect('{');
+        int c = nextNonWhitespace();
+        while (c != '}') {
+            String key = readKey(c);
+            c = nextNonWhitespace();
+            if (key.equals("pdf") && c == '{') {
+                pdf = readPdf();
+            } else {
+                envelope.add(key, parse(captureValue(c)));
+            }
+            c = nextAfterMember();
+        }
+        expectEnd();
+
+        try {
+            signatureModel = gson.fromJson(envelope, SignatureModel.class);
+            if (pdf != null) {
+                signatureModel.setPdf(gson.fromJson(pdf, SignatureModel.Pdf.class));
+            }
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid JSON payload: " + e.getMessage(), e);
+        }
+    }
+
+    private JsonObject readPdf() throws IOException {
+        JsonObject pdf = new JsonObject();
+        int c = nextNonWhitespace();
+        while (c != '}') {
+            String key = readKey(c);
+            c = nextNonWhitespace();
+            if (key.equals("base64Content") && c == '"') {
+                long decoded = decodeContent();
+                if (decoded == 0) {
+                    // Let validation report the empty content as before.
+                    pdf.addProperty(key, "");
+                }
+            } else {
+                pdf.add(key, parse(captureValue(c)));
+            }
+            c = nextAfterMember();
+        }
+        return pdf;
+    }
+
+    /**
+     * Decodes the Base64 string whose opening quote has been read, up to its closing quote.
+     *
+     * @return The number of decoded bytes.
+     */
+    private long decodeContent() throws IOException {
+        try (SigningMetrics.Phase phase = SigningMetrics.current().phase("base64Decode");
+             Sink sink = decodedSizeLimit >= Math.min(spillThreshold, Integer.MAX_VALUE - 8) ? new FileSink() : new ArraySink()) {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] chunk = new byte[DECODE_CHUNK];
+            byte[] decoded = new byte[DECODE_CHUNK / 4 * 3];
+            int length = 0;
+            boolean padded = false;
+
+            int c;
+            while ((c = next()) != '"') {
+                if (c == '\\') {
+                    c = readEscape();
+                }
+                if (c == '\n' || c == '\r') {
+                    continue;
+                }
+                if (padded || c > 0x7F) {
+                    throw invalidContent(null);
+                }
+                chunk[length++] = (byte) c;
+                if (length == chunk.length) {
+                    sink.write(decoded, decode(decoder, chunk, decoded));
+                    padded = chunk[length - 1] == '=';
+                    length = 0;
+                }
+            }
+            if (length > 0) {
+                sink.write(decoded, decode(decoder, Arrays.copyOf(chunk, length), decoded));
+            }
+            phase.addBytes(sink.size());
+            sink.finish();
+            return sink.size();
+        }
+    }
+
+    private static int decode(Base64.Decoder decoder, byte[] chunk, byte[] decoded) {
+        try {
+            return decoder.decode(chunk, decoded);
+        } catch (IllegalArgumentException e) {
+            throw invalidContent(e);
+        }
+    }
+
+    private static IllegalArgumentException invalidContent(Throwable cause) {
+        return new IllegalArgumentException("Invalid PDF base64 content. Please ensure that the provided base64 content represents a valid PDF document.", cause);
+    }
+
+    private interface Sink extends AutoCloseable {
+        void write(byte[] bytes, int length) throws IOException;
+
+        long size();
+
+        void finish();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private class ArraySink implements Sink {
+        private final byte[] buffer = new byte[(int) decodedSizeLimit];
+        private int size;
+
+        @Override
+        public void write(byte[] bytes, int length) {
+            System.arraycopy(bytes, 0, buffer, size, length);
+            size += length;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void finish() {
+            pdfBytes = size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private class FileSink implements Sink {
+        private final OutputStream out;
+        private long size;
+
+        FileSink() throws IOException {
+            Files.createDirectories(spillDir);
+            pdfFile = Files.createTempFile(spillDir, ".eDastakhat-payload-", ".pdf");
+            out = new BufferedOutputStream(Files.newOutputStream(pdfFile), 64 * 1024);
+        }
+
+        @Override
+        public void write(byte[] bytes, int length) throws IOException {
+            out.write(bytes, 0, length);
+            size += length;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // JSON scanning. Only the structure of the payload and the Base64 string are interpreted here; every other
+    // value is copied verbatim and parsed by Gson.
+
+    private String readKey(int c) throws IOException {
+        if (c != '"') {
+            throw syntaxError("Expected a member name");
+        }
+        StringBuilder key = new StringBuilder();
+        while ((c = next()) != '"') {
+            key.append((char) (c == '\\' ? readEscape() : c));
+        }
+        expect(':');
+        return key.toString();
+    }
+
+    private int nextAfterMember() throws IOException {
+        int c = nextNonWhitespace();
+        if (c == ',') {
+            return nextNonWhitespace();
+        }
+        if (c != '}') {
+            throw syntaxError("Expected ',' or '}'");
+        }
+        return c;
+    }
+
+    /**
+     * Copies one JSON value, whose first character has been read, without interpreting it.
+     */
+    private String captureValue(int c) throws IOException {
+        StringBuilder value = new StringBuilder();
+        int depth = 0;
+        while (true) {
+            if (c == '"') {
+                value.append('"');
+                while ((c = next()) != '"') {
+                    value.append((char) c);
+                    if (c == '\\') {
+                        value.append((char) next());
+                    }
+                }
+                value.append('"');
+            } else if (c == '{' || c == '[') {
+                depth++;
+                value.append((char) c);
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    pushedBack = c;
+                    break;
+                }
+                depth--;
+                value.append((char) c);
+            } else if (c == ',' && depth == 0) {
+                pushedBack = c;
+                break;
+            } else {
+                value.append((char) c);
+            }
+            if (depth == 0 && value.length() > 0 && (value.charAt(0) == '"' || value.charAt(0) == '{' || value.charAt(0) == '[')) {
+                break;
+            }
+            c = next();
+        }
+        if (value.toString().trim().isEmpty()) {
+            throw syntaxError("Expected a value");
+        }
+        return value.toString();
+    }
+
+    private static JsonElement parse(String value) {
+        try {
+            return JsonParser.parseString(value);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid JSON payload: " + e.getMessage(), e);
+        }
+    }
+
+    private int readEscape() throws IOException {
+        int c = next();
+        switch (c) {
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("Invalid \\u escape");
+                    }
+                    code = code * 16 + digit;
+                }
+                return code;
+            default:
+                return c;
+        }
+    }
+
+    private void expect(int expected) throws IOException {
+        if (nextNonWhitespace() != expected) {
+            throw syntaxError("Expected '" + (char) expected + "'");
+        }
+    }
+
+    /**
+     * Checks that nothing but whitespace follows the payload object, as Gson does for a whole document.
+     */
+    private void expectEnd() throws IOException {
+        int c;
+        while ((c = in.read()) >= 0) {
+            position++;
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                throw syntaxError("Unexpected content after the payload");
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+        return c;
+    }
+
+    private int next() throws IOException {
+        int c;
+        if (pushedBack >= 0) {
+            c = pushedBack;
+            pushedBack = -1;
+        } else {
+            c = in.read();
+            position++;
+        }
+        if (c < 0) {
+            throw syntaxError("Unexpected end of the payload");
+        }
+        return c;
+    }
+
+    private IllegalArgumentException syntaxError(String message) {
+        return new IllegalArgumentException("Invalid JSON payload: " + message + " at character " + position + ".");
+    }
+}
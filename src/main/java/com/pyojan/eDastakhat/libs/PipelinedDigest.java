@@ -0,0 +1,207 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.itextpdf.text.pdf.security.ExternalDigest;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.ProviderException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes the signed byte ranges of large documents on a second thread while the signing thread keeps reading them.
+ * <p>
+ * iText reads the ranges in 8 KB pieces and hashes each piece before reading the next, so disk reads and hashing
+ * never overlap. Here the pieces are copied into pooled buffers of {@value #BUFFER_SIZE} bytes; every full buffer is
+ * handed to a hashing task and the next one is filled meanwhile. The tasks of one digest are chained so they run in
+ * order, and at most {@code eDastakhat.digest.pipelineBuffers} buffers (default 4) are in flight per digest; reading
+ * waits for a buffer to come back when all are. Documents below {@code eDastakhat.digest.pipelineThresholdBytes}
+ * (default 16 MB, the size from which documents are signed on disk) are hashed inline as before, and so is everything
+ * on a single processor, where the two stages could only take turns.
+ */
+public class PipelinedDigest implements ExternalDigest {
+
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final long THRESHOLD = Long.getLong("eDastakhat.digest.pipelineThresholdBytes", 16L * 1024 * 1024);
+    private static final int BUFFERS = Math.max(Integer.getInteger("eDastakhat.digest.pipelineBuffers", 4), 2);
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+    // Buffers outlive a digest so that a batch does not allocate them again for every document.
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+    private static final int MAX_POOLED = BUFFERS * PROCESSORS;
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "eDastakhat-digest");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ExternalDigest digest;
+    private final boolean pipelined;
+
+    /**
+     * @param digest         The digest doing the hashing.
+     * @param documentLength Size of the document being signed, which decides whether hashing is pipelined.
+     */
+    public PipelinedDigest(ExternalDigest digest, long documentLength) {
+        this.digest = digest;
+        this.pipelined = PROCESSORS > 1 && documentLength >= THRESHOLD;
+    }
+
+    @Override
+    public MessageDigest getMessageDigest(String hashAlgorithm) throws GeneralSecurityException {
+        MessageDigest messageDigest = digest.getMessageDigest(hashAlgorithm);
+        return pipelined ? new Pipeline(messageDigest) : messageDigest;
+    }
+
+    private static byte[] borrow() {
+        byte[] buffer = POOL.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    private static void giveBack(byte[] buffer) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(buffer);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    private static class Pipeline extends MessageDigest {
+        private final MessageDigest messageDigest;
+        private final BlockingQueue<byte[]> hashed = new LinkedBlockingQueue<>();
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private byte[] buffer;
+        private int length;
+        private int borrowed;
+
+        Pipeline(MessageDigest messageDigest) {
+            super(messageDigest.getAlgorithm());
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            engineUpdate(new byte[]{input}, 0, 1);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            while (len > 0) {
+                if (buffer == null) {
+                    buffer = nextBuffer();
+                }
+                int count = Math.min(len, buffer.length - length);
+                System.arraycopy(input, offset, buffer, length, count);
+                length += count;
+                offset += count;
+                len -= count;
+                if (length == buffer.length) {
+                    submit();
+                }
+            }
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            try {
+                await();
+                if (buffer != null) {
+                    // The last, partial buffer is not worth a hand-over.
+                    messageDigest.update(buffer, 0, length);
+                }
+                return messageDigest.digest();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        protected void engineReset() {
+            try {
+                await();
+            } finally {
+                release();
+                messageDigest.reset();
+            }
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return messageDigest.getDigestLength();
+        }
+
+        private void submit() {
+            final byte[] full = buffer;
+            final int fullLength = length;
+            // Runs after a failed task too, only to give its buffer back, so reading never waits for a lost buffer.
+            tail = tail.handleAsync((ignored, failure) -> {
+                try {
+                    if (failure == null) {
+                        messageDigest.update(full, 0, fullLength);
+                    }
+                } finally {
+                    hashed.add(full);
+                }
+                if (failure != null) {
+                    throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+                }
+                return null;
+            }, EXECUTOR);
+            buffer = null;
+            length = 0;
+        }
+
+        private byte[] nextBuffer() {
+            byte[] next = hashed.poll();
+            if (next != null) {
+                return next;
+            }
+            if (borrowed < BUFFERS) {
+                borrowed++;
+                return borrow();
+            }
+            try {
+                return hashed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProviderException("Interrupted while hashing the document.", e);
+            }
+        }
+
+        private void await() {
+            try {
+                tail.join();
+            } catch (CompletionException e) {
+                throw new ProviderException("Hashing the document failed.", e.getCause());
+            }
+        }
+
+        /**
+         * Returns every buffer of this digest to the pool. Only called once no hashing task is pending.
+         */
+        private void release() {
+            tail = CompletableFuture.completedFuture(null);
+            if (buffer != null) {
+                hashed.add(buffer);
+                buffer = null;
+                length = 0;
+            }
+            byte[] next;
+            while ((next = hashed.poll()) != null) {
+                giveBack(next);
+            }
+            borrowed = 0;
+        }
+    }
+}
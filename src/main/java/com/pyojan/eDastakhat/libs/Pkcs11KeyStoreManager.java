@@ -0,0 +1,407 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.itextpdf.text.pdf.security.DigestAlgorithms;
+import com.itextpdf.text.pdf.security.ExternalSignature;
+import com.pyojan.eDastakhat.models.SignatureModel;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.Signature;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * Signs with a key on a PKCS#11 token, such as a USB crypto token or SoftHSM, through a pool of logged-in sessions.
+ * <p>
+ * A token runs one operation per session at a time and logging in is a slow round trip, so every member of the pool
+ * is a SunPKCS11 provider of its own on the token's slot, logged in once and holding the key handle and certificate
+ * chain. The providers are used directly and never registered with {@link Security}, so a session that fails to log
+ * in, or a pool that is dropped, leaves nothing behind. A signature borrows a free member for its private key operation only, so concurrent documents are signed on
+ * as many sessions as the pool has, {@code eDastakhat.pkcs11.poolSize} (default 4); members are opened as they are
+ * needed. When an operation fails because the token was removed or its session or key handle is gone, the member
+ * opens a new provider, whose sessions are fresh, logs in again and retries the operation once, so re-inserting the
+ * token is all it takes for signing to resume.
+ * <p>
+ * Pools are kept per module, slot, key and PIN for the life of the process. A module is only loaded when it is one of
+ * {@code eDastakhat.pkcs11.allowedLibraries}, since loading it runs its native code in this process.
+ */
+public class Pkcs11KeyStoreManager extends KeyStoreManager {
+
+    static final int POOL_SIZE = Math.max(Integer.getInteger("eDastakhat.pkcs11.poolSize", 4), 1);
+    // Failures after which a session logs in again, as PKCS#11 return values or SunPKCS11 messages.
+    private static final String[] TOKEN_LOST = {"CKR_DEVICE_REMOVED", "CKR_DEVICE_ERROR", "CKR_TOKEN_NOT_PRESENT",
+            "CKR_TOKEN_NOT_RECOGNIZED", "CKR_SESSION_HANDLE_INVALID", "CKR_SESSION_CLOSED", "CKR_USER_NOT_LOGGED_IN",
+            "CKR_KEY_HANDLE_INVALID", "CKR_OBJECT_HANDLE_INVALID", "Token has been removed"};
+
+    private static final Map<String, Pkcs11KeyStoreManager> POOLS = new HashMap<>();
+    private static final byte[] SALT = new byte[16];
+    private static final AtomicLong LOGINS = new AtomicLong();
+    private static final AtomicLong SIGNATURES = new AtomicLong();
+    private static final AtomicLong WAITS = new AtomicLong();
+    private static final AtomicLong REAUTHENTICATIONS = new AtomicLong();
+
+    static {
+        new SecureRandom().nextBytes(SALT);
+    }
+
+    private final String library;
+    private final Integer slot;
+    private final String keyAlias;
+    private final char[] pin;
+    private final LinkedBlockingQueue<Session> idle = new LinkedBlockingQueue<>();
+    private int opened;
+    private volatile Certificate[] certificateChain;
+
+    private Pkcs11KeyStoreManager(String library, Integer slot, String keyAlias, String pin) {
+        this.library = library;
+        this.slot = slot;
+        this.keyAlias = keyAlias;
+        this.pin = pin.toCharArray();
+    }
+
+    /**
+     * @return Whether the key details name a PKCS#11 token rather than a PFX file.
+     */
+    public static boolean isToken(SignatureModel.CertInfo certInfo) {
+        return certInfo != null && certInfo.getPkcs11Library() != null && !certInfo.getPkcs11Library().isEmpty();
+    }
+
+    /**
+     * Returns the session pool of the token and key the request names, logging in on first use. The certificate is
+     * checked for expiry on every call.
+     *
+     * @param certInfo Key details with {@code pkcs11Library} and the PIN as {@code password}.
+     */
+    public static Pkcs11KeyStoreManager getInstance(SignatureModel.CertInfo certInfo) throws FileNotFoundException, GeneralSecurityException {
+        checkToken(certInfo);
+        String key = certInfo.getPkcs11Library() + '|' + certInfo.getSlot() + '|' + certInfo.getKeyAlias() + '|' + pinHash(certInfo.getPassword());
+        Pkcs11KeyStoreManager pool;
+        synchronized (POOLS) {
+            pool = POOLS.get(key);
+            if (pool == null) {
+                pool = new Pkcs11KeyStoreManager(certInfo.getPkcs11Library(), certInfo.getSlot(), certInfo.getKeyAlias(), certInfo.getPassword());
+                POOLS.put(key, pool);
+            }
+        }
+        try {
+            pool.release(pool.borrow());
+            pool.checkCertificateValidity();
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // A wrong PIN, a key alias or an expired certificate must not stay cached.
+            synchronized (POOLS) {
+                POOLS.remove(key, pool);
+            }
+            throw e;
+        }
+        return pool;
+    }
+
+    /**
+     * Checks the token details of a request before anything is signed: the module must be a file named in
+     * {@code eDastakhat.pkcs11.allowedLibraries}, compared after resolving symbolic links, and may not hold control
+     * characters, which would change the provider configuration it is written into.
+     */
+    public static void checkToken(SignatureModel.CertInfo certInfo) throws FileNotFoundException {
+        String library = certInfo.getPkcs11Library();
+        if (library.chars().anyMatch(c -> Character.isISOControl(c) || c == '"')) {
+            throw new IllegalArgumentException("certInfo.pkcs11Library cannot contain control characters or quotes.");
+        }
+        if (!Files.isRegularFile(Paths.get(library))) {
+            throw new FileNotFoundException("PKCS#11 library is incorrect or does not exist: " + library);
+        }
+        if (!isAllowedLibrary(Paths.get(library))) {
+            throw new IllegalArgumentException("PKCS#11 library " + library + " is not one of -DeDastakhat.pkcs11.allowedLibraries.");
+        }
+        if (certInfo.getPassword() == null) {
+            throw new IllegalArgumentException("certInfo.password must hold the user PIN of the PKCS#11 token.");
+        }
+    }
+
+    private static boolean isAllowedLibrary(Path library) {
+        String allowed = System.getProperty("eDastakhat.pkcs11.allowedLibraries", "");
+        try {
+            Path real = library.toRealPath();
+            for (String part : allowed.split(File.pathSeparator)) {
+                if (!part.trim().isEmpty() && Files.exists(Paths.get(part.trim())) && Paths.get(part.trim()).toRealPath().equals(real)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * @return The pool counters of every token, suitable for a response data map.
+     */
+    public static HashMap<String, String> getStats() {
+        int sessions = 0;
+        int pools;
+        synchronized (POOLS) {
+            pools = POOLS.size();
+            for (Pkcs11KeyStoreManager pool : POOLS.values()) {
+                synchronized (pool) {
+                    sessions += pool.opened;
+                }
+            }
+        }
+        HashMap<String, String> stats = new HashMap<>();
+        stats.put("pkcs11Pools", String.valueOf(pools));
+        stats.put("pkcs11Sessions", String.valueOf(sessions));
+        stats.put("pkcs11Logins", String.valueOf(LOGINS.get()));
+        stats.put("pkcs11Signatures", String.valueOf(SIGNATURES.get()));
+        stats.put("pkcs11SessionWaits", String.valueOf(WAITS.get()));
+        stats.put("pkcs11Reauthentications", String.valueOf(REAUTHENTICATIONS.get()));
+        return stats;
+    }
+
+    /**
+     * @return The key handle of one of the logged-in sessions; sign through {@link #getSignature(String)} instead,
+     * which spreads the work over all of them.
+     */
+    @Override
+    public PrivateKey getPrivateKey() throws KeyStoreException {
+        try {
+            Session session = borrow();
+            release(session);
+            return session.key;
+        } catch (KeyStoreException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new KeyStoreException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Certificate[] getCertificateChain() {
+        return certificateChain;
+    }
+
+    @Override
+    public ExternalSignature getSignature(String hashAlgorithm) {
+        String keyAlgorithm = certificateChain[0].getPublicKey().getAlgorithm();
+        String encryptionAlgorithm = keyAlgorithm.startsWith("EC") ? "ECDSA" : keyAlgorithm;
+        return new ExternalSignature() {
+            @Override
+            public String getHashAlgorithm() {
+                return hashAlgorithm;
+            }
+
+            @Override
+            public String getEncryptionAlgorithm() {
+                return encryptionAlgorithm;
+            }
+
+            @Override
+            public byte[] sign(byte[] message) throws GeneralSecurityException {
+                return Pkcs11KeyStoreManager.this.sign(hashAlgorithm, message);
+            }
+        };
+    }
+
+    private byte[] sign(String hashAlgorithm, byte[] message) throws GeneralSecurityException {
+        Session session = borrow();
+        try {
+            try {
+                return session.sign(hashAlgorithm, message);
+            } catch (GeneralSecurityException | ProviderException e) {
+                if (!isTokenLost(e)) {
+                    throw e;
+                }
+                REAUTHENTICATIONS.incrementAndGet();
+                session.reopen();
+                return session.sign(hashAlgorithm, message);
+            }
+        } finally {
+            release(session);
+        }
+    }
+
+    private Session borrow() throws GeneralSecurityException {
+        Session session = idle.poll();
+        if (session != null) {
+            return session;
+        }
+        boolean open;
+        synchronized (this) {
+            open = opened < POOL_SIZE;
+            if (open) {
+                opened++;
+            }
+        }
+        if (open) {
+            try {
+                session = new Session();
+                session.login();
+                return session;
+            } catch (GeneralSecurityException | RuntimeException e) {
+                synchronized (this) {
+                    opened--;
+                }
+                throw e;
+            }
+        }
+        WAITS.incrementAndGet();
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while waiting for a PKCS#11 session.", e);
+        }
+    }
+
+    private void release(Session session) {
+        idle.add(session);
+    }
+
+    static boolean isTokenLost(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String message = String.valueOf(cause.getMessage());
+            for (String lost : TOKEN_LOST) {
+                if (message.contains(lost)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String pinHash(String pin) throws GeneralSecurityException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.update(SALT);
+        StringBuilder hash = new StringBuilder();
+        for (byte b : sha256.digest(pin.getBytes(StandardCharsets.UTF_8))) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Opens a SunPKCS11 provider with the given configuration, through {@code Provider.configure} where there is
+     * one and through the constructor of Java 8 otherwise.
+     */
+    static Provider configure(String config) throws KeyStoreException {
+        try {
+            Provider prototype = Security.getProvider("SunPKCS11");
+            if (prototype != null) {
+                Method configure = Provider.class.getMethod("configure", String.class);
+                return (Provider) configure.invoke(prototype, "--" + config);
+            }
+            Class<?> sunPkcs11 = Class.forName("sun.security.pkcs11.SunPKCS11");
+            return (Provider) sunPkcs11.getConstructor(InputStream.class).newInstance(new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8)));
+        } catch (InvocationTargetException e) {
+            throw new KeyStoreException("Cannot open the PKCS#11 token: " + e.getCause().getMessage(), e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new KeyStoreException("This Java runtime has no PKCS#11 support.", e);
+        }
+    }
+
+    private class Session {
+        private Provider provider;
+        private PrivateKey key;
+
+        Session() throws KeyStoreException {
+            provider = configure(config());
+        }
+
+        /**
+         * Replaces the provider and logs in on it. The provider keeps the session handles it opened, so after the
+         * token dropped them only a new one signs again.
+         */
+        void reopen() throws GeneralSecurityException {
+            provider = configure(config());
+            login();
+        }
+
+        private String config() {
+            String module = library.matches(".*\\s.*") ? '"' + library + '"' : library;
+            return "name = eDastakhat\n"
+                    + "library = " + module + "\n"
+                    + (slot != null ? "slot = " + slot : "slotListIndex = 0") + "\n";
+        }
+
+        /**
+         * Logs in, again after the token was re-inserted, and finds the key handle and chain.
+         */
+        void login() throws GeneralSecurityException {
+            try (SigningMetrics.Phase ignored = SigningMetrics.current().phase("keyUnlock")) {
+                KeyStore keyStore = KeyStore.getInstance("PKCS11", provider);
+                try {
+                    keyStore.load(null, pin);
+                } catch (IOException e) {
+                    // A wrong PIN is reported as an I/O error with the failed login as its cause.
+                    if (e.getCause() instanceof LoginException) {
+                        UnrecoverableKeyException wrongPin = new UnrecoverableKeyException("PKCS#11 login failed; check the PIN given as certInfo.password.");
+                        wrongPin.initCause(e.getCause());
+                        throw wrongPin;
+                    }
+                    throw new KeyStoreException("Cannot log in to the PKCS#11 token: " + e.getMessage(), e);
+                }
+                String alias = keyAlias != null ? keyAlias : findAlias(keyStore);
+                key = (PrivateKey) keyStore.getKey(alias, null);
+                if (key == null) {
+                    throw new KeyStoreException("The PKCS#11 token has no private key '" + alias + "'.");
+                }
+                Certificate[] chain = keyStore.getCertificateChain(alias);
+                if (chain == null || chain.length == 0) {
+                    throw new KeyStoreException("The PKCS#11 token has no certificate for the key '" + alias + "'.");
+                }
+                // Every login, as the token may have been re-inserted with another certificate since the last one.
+                isCertificateNotExpired((X509Certificate) chain[0]);
+                certificateChain = chain;
+                LOGINS.incrementAndGet();
+            }
+        }
+
+        byte[] sign(String hashAlgorithm, byte[] message) throws GeneralSecurityException {
+            // As PrivateKeySignature does, but with the unregistered provider itself rather than its name.
+            String encryptionAlgorithm = key.getAlgorithm().startsWith("EC") ? "ECDSA" : key.getAlgorithm();
+            Signature signature = Signature.getInstance(
+                    DigestAlgorithms.getDigest(DigestAlgorithms.getAllowedDigests(hashAlgorithm)) + "with" + encryptionAlgorithm, provider);
+            signature.initSign(key);
+            signature.update(message);
+            byte[] signed = signature.sign();
+            SIGNATURES.incrementAndGet();
+            return signed;
+        }
+
+        private String findAlias(KeyStore keyStore) throws GeneralSecurityException {
+            Enumeration<String> aliases = keyStore.aliases();
+            while (aliases.hasMoreElements()) {
+                String alias = aliases.nextElement();
+                Certificate certificate = keyStore.getCertificate(alias);
+                if (keyStore.isKeyEntry(alias) && certificate instanceof X509Certificate && isUserCertificate((X509Certificate) certificate)) {
+                    return alias;
+                }
+            }
+            throw new KeyStoreException("The PKCS#11 token has no private key with an end-entity certificate.");
+        }
+    }
+}
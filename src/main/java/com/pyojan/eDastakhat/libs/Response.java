@@ -5,15 +5,34 @@ import com.google.gson.GsonBuilder;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.Map;
 
 @Getter @Setter
 public class Response<T> {
     private final static Gson jsonPrinter = new GsonBuilder().setPrettyPrinting().create();
+    /**
+     * Prints every response, including errors, as one compact JSON line on {@code System.out} instead of pretty JSON,
+     * see {@link JsonLineWriter}. Set with {@code -DeDastakhat.output=lines}.
+     */
+    public static final boolean LINES_OUTPUT = "lines".equalsIgnoreCase(System.getProperty("eDastakhat.output"));
+    /**
+     * Adds the stack trace to failed responses. On by default, except with {@link #LINES_OUTPUT}.
+     */
+    public static final boolean STACK_TRACES = Boolean.parseBoolean(System.getProperty("eDastakhat.output.stackTraces", String.valueOf(!LINES_OUTPUT)));
+    /**
+     * Adds the signed PDF to signing responses, Base64 encoded, as {@code signedPdf}.
+     */
+    public static final boolean INLINE_SIGNED_PDF = Boolean.getBoolean("eDastakhat.output.inlineSignedPdf");
     private String status;
     private T data;
+    private Map<String, Object> metrics;
 
     private Response(String status, T data) {
         this.status = status;
@@ -21,23 +40,72 @@ public class Response<T> {
     }
 
     public static void generateSuccessResponse(HashMap<String, String> data) {
+        generateSuccessResponse(data, null);
+    }
+
+    /**
+     * Prints a success response with an optional {@code metrics} block, which is left out when {@code null}.
+     *
+     * @param data    Response data.
+     * @param metrics Timings of the job, see {@link SigningMetrics#toResponse()}.
+     */
+    public static void generateSuccessResponse(HashMap<String, String> data, Map<String, Object> metrics) {
+        if (LINES_OUTPUT) {
+            JsonLineWriter.stdout().success(null, data, metrics);
+            return;
+        }
         Response<HashMap<String, String>> response = new Response<>("SUCCESS", data);
+        response.setMetrics(metrics);
         String json = jsonPrinter.toJson(response);
         System.out.println(json);
 
     }
 
+    /**
+     * Prints a success response that also holds a file, Base64 encoded. With {@link #LINES_OUTPUT} the file is
+     * streamed into the output without being loaded.
+     *
+     * @param data        Response data.
+     * @param metrics     Timings of the job, or {@code null}.
+     * @param contentName Name of the Base64 field in {@code data}.
+     * @param content     File to embed.
+     * @throws IOException if the file cannot be read.
+     */
+    public static void generateSuccessResponse(HashMap<String, String> data, Map<String, Object> metrics, String contentName, Path content) throws IOException {
+        if (LINES_OUTPUT) {
+            JsonLineWriter.stdout().success(null, data, metrics, contentName, content);
+            return;
+        }
+        data.put(contentName, Base64.getEncoder().encodeToString(Files.readAllBytes(content)));
+        generateSuccessResponse(data, metrics);
+    }
+
 
     public static void generateErrorResponse(Throwable ex) {
-        HashMap<String, String> errorResponse = new HashMap<>();
-        errorResponse.put("message", ex.getMessage());
-        errorResponse.put("cause", getFullStackTrace(ex));
-        Response<HashMap<String, String>> response = new Response<>("FAILED", errorResponse);
+        if (LINES_OUTPUT) {
+            JsonLineWriter.stdout().error(null, ex);
+            return;
+        }
+        Response<HashMap<String, String>> response = new Response<>("FAILED", getErrorData(ex));
         String json = jsonPrinter.toJson(response);
 
         System.err.println(json);
     }
 
+    /**
+     * @return The {@code data} of a failed response: the {@code message}, its {@link ErrorCode} as {@code code} and,
+     * when {@link #STACK_TRACES} is set, the stack trace of the whole cause chain as {@code cause}.
+     */
+    static HashMap<String, String> getErrorData(Throwable ex) {
+        HashMap<String, String> errorResponse = new HashMap<>();
+        errorResponse.put("message", ex.getMessage());
+        errorResponse.put("code", ErrorCode.of(ex).name());
+        if (STACK_TRACES) {
+            errorResponse.put("cause", getFullStackTrace(ex));
+        }
+        return errorResponse;
+    }
+
     private static String getFullStackTrace(Throwable throwable) {
         StringWriter sw = new StringWriter();
         PrintWriter pw = new PrintWriter(sw);
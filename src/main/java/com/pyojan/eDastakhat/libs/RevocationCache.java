@@ -0,0 +1,417 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.itextpdf.text.pdf.security.CertificateUtil;
+import lombok.Getter;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches OCSP responses and CRLs for signer certificates and keeps them until their {@code nextUpdate}, so every
+ * document signed with the same certificate shares one set of revocation data instead of asking the responder
+ * again.
+ * <p>
+ * OCSP responses are keyed by issuer and serial number, CRLs by their distribution point URL. Concurrent callers
+ * asking for the same entry wait for a single fetch. Both are checked before they are cached: the OCSP response
+ * must be signed by the issuer or a responder it delegated to, and the CRL by the issuer. A revoked certificate
+ * fails the signing. CRL URLs may use the {@code file:} scheme. Limits are read from the
+ * {@code eDastakhat.ltv.timeoutMillis}, {@code eDastakhat.ltv.fallbackTtlSeconds} (for data without a
+ * {@code nextUpdate}) and {@code eDastakhat.ltv.maxEntries} system properties.
+ */
+public class RevocationCache {
+
+    private static final RevocationCache INSTANCE = new RevocationCache(
+            Integer.getInteger("eDastakhat.ltv.timeoutMillis", 5000),
+            TimeUnit.SECONDS.toMillis(Long.getLong("eDastakhat.ltv.fallbackTtlSeconds", 3600)),
+            Integer.getInteger("eDastakhat.ltv.maxEntries", 1024));
+
+    private final int timeoutMillis;
+    private final long fallbackTtlMillis;
+    private final int maxEntries;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long fetchFailures;
+
+    public RevocationCache(int timeoutMillis, long fallbackTtlMillis, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Revocation cache must allow at least one entry.");
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.fallbackTtlMillis = fallbackTtlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public static RevocationCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Collects the revocation data of every certificate in the chain that is not self-signed: its OCSP response if
+     * it names a responder, and its CRL if it names a distribution point.
+     *
+     * @param chain Signer certificate chain, signer first, each certificate followed by its issuer.
+     * @return The responses, CRLs and certificates to embed.
+     * @throws IOException              if no revocation data could be fetched for a certificate.
+     * @throws GeneralSecurityException if a certificate is revoked or its revocation data is not authentic.
+     */
+    public RevocationData collect(Certificate[] chain) throws IOException, GeneralSecurityException {
+        RevocationData data = new RevocationData();
+        for (int i = 0; i < chain.length; i++) {
+            X509Certificate certificate = (X509Certificate) chain[i];
+            data.certificates.add(certificate.getEncoded());
+            if (isSelfSigned(certificate)) {
+                continue;
+            }
+            if (i + 1 >= chain.length) {
+                throw new IllegalArgumentException("LTV needs the issuer of '" + certificate.getSubjectX500Principal().getName() + "' in the certificate chain of the PFX file.");
+            }
+            X509Certificate issuer = (X509Certificate) chain[i + 1];
+
+            String ocspUrl = CertificateUtil.getOCSPURL(certificate);
+            String crlUrl = CertificateUtil.getCRLURL(certificate);
+            if (ocspUrl == null && crlUrl == null) {
+                throw new RevocationException("The certificate '" + certificate.getSubjectX500Principal().getName() + "' names neither an OCSP responder nor a CRL.");
+            }
+
+            IOException failure = null;
+            int found = 0;
+            if (ocspUrl != null) {
+                try {
+                    Entry entry = get("ocsp|" + issuer.getSubjectX500Principal().getName() + '|' + certificate.getSerialNumber().toString(16), ocspUrl, certificate, issuer);
+                    data.ocspResponses.add(entry.encoded);
+                    data.certificates.addAll(entry.certificates);
+                    found++;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (crlUrl != null) {
+                try {
+                    Entry entry = get("crl|" + crlUrl, crlUrl, certificate, issuer);
+                    entry.checkNotRevoked(certificate);
+                    data.crls.add(entry.encoded);
+                    found++;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (found == 0) {
+                throw new RevocationException("Revocation data for '" + certificate.getSubjectX500Principal().getName() + "' could not be fetched: " + failure.getMessage(), failure);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * @return The cache counters, suitable for a response data map.
+     */
+    public synchronized HashMap<String, String> getStats() {
+        HashMap<String, String> stats = new HashMap<>();
+        stats.put("revocationCacheEntries", String.valueOf(entries.size()));
+        stats.put("revocationCacheHits", String.valueOf(hits));
+        stats.put("revocationCacheMisses", String.valueOf(misses));
+        stats.put("revocationCacheEvictions", String.valueOf(evictions));
+        stats.put("revocationFetchFailures", String.valueOf(fetchFailures));
+        return stats;
+    }
+
+    /**
+     * Drops every cached response and CRL.
+     *
+     * @return The number of entries removed.
+     */
+    public synchronized int invalidateAll() {
+        int removed = entries.size();
+        entries.clear();
+        return removed;
+    }
+
+    private Entry get(String key, String url, X509Certificate certificate, X509Certificate issuer) throws IOException, GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.isExpired(now)) {
+                entries.remove(key);
+                evictions++;
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+                entry = new Entry(key.startsWith("ocsp|"), url);
+                entries.put(key, entry);
+                evictOverflow();
+            } else {
+                hits++;
+            }
+        }
+
+        try {
+            entry.load(certificate, issuer);
+            return entry;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            synchronized (this) {
+                fetchFailures++;
+                entries.remove(key, entry);
+            }
+            throw e;
+        }
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private byte[] fetch(String url, byte[] ocspRequest) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        if (ocspRequest != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/ocsp-request");
+            connection.setRequestProperty("Accept", "application/ocsp-response");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(ocspRequest);
+            }
+        }
+        if (connection instanceof HttpURLConnection) {
+            int responseCode = ((HttpURLConnection) connection).getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                drain(((HttpURLConnection) connection).getErrorStream());
+                throw new IOException("'" + url + "' answered with HTTP " + responseCode);
+            }
+        }
+        return drain(connection.getInputStream());
+    }
+
+    private static byte[] drain(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try (InputStream body = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = body.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static boolean isSelfSigned(X509Certificate certificate) {
+        if (!certificate.getSubjectX500Principal().equals(certificate.getIssuerX500Principal())) {
+            return false;
+        }
+        try {
+            certificate.verify(certificate.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Revocation data gathered for one certificate chain: DER-encoded OCSP responses, CRLs and certificates, as the
+     * PDF document security store expects them.
+     */
+    @Getter
+    public static class RevocationData {
+        private final List<byte[]> ocspResponses = new ArrayList<>();
+        private final List<byte[]> crls = new ArrayList<>();
+        private final List<byte[]> certificates = new ArrayList<>();
+    }
+
+    private class Entry {
+        private final boolean ocsp;
+        private final String url;
+        private byte[] encoded;
+        private X509CRL crl;
+        private final List<byte[]> certificates = new ArrayList<>();
+        private volatile long expires = Long.MAX_VALUE;
+
+        Entry(boolean ocsp, String url) {
+            this.ocsp = ocsp;
+            this.url = url;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expires;
+        }
+
+        synchronized void load(X509Certificate certificate, X509Certificate issuer) throws IOException, GeneralSecurityException {
+            if (encoded != null) {
+                return;
+            }
+            if (ocsp) {
+                loadOcsp(certificate, issuer);
+            } else {
+                loadCrl(issuer);
+            }
+        }
+
+        void checkNotRevoked(X509Certificate certificate) throws GeneralSecurityException {
+            X509CRLEntry revoked = crl.getRevokedCertificate(certificate);
+            if (revoked != null) {
+                throw new RevokedException("The certificate '" + certificate.getSubjectX500Principal().getName() + "' was revoked on " + revoked.getRevocationDate() + ".");
+            }
+        }
+
+        private void loadOcsp(X509Certificate certificate, X509Certificate issuer) throws IOException, GeneralSecurityException {
+            try {
+                CertificateID id = new CertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+                        new JcaX509CertificateHolder(issuer), certificate.getSerialNumber());
+                OCSPReqBuilder requestBuilder = new OCSPReqBuilder();
+                requestBuilder.addRequest(id);
+
+                OCSPResp response = new OCSPResp(fetch(url, requestBuilder.build().getEncoded()));
+                if (response.getStatus() != OCSPResp.SUCCESSFUL) {
+                    throw new IOException("OCSP responder '" + url + "' answered with status " + response.getStatus());
+                }
+                BasicOCSPResp basicResponse = (BasicOCSPResp) response.getResponseObject();
+                if (basicResponse == null) {
+                    throw new IOException("OCSP responder '" + url + "' returned no response.");
+                }
+                X509Certificate responder = verifyResponder(basicResponse, issuer);
+
+                SingleResp single = null;
+                for (SingleResp candidate : basicResponse.getResponses()) {
+                    if (candidate.getCertID().equals(id)) {
+                        single = candidate;
+                    }
+                }
+                if (single == null) {
+                    throw new IOException("OCSP responder '" + url + "' did not answer for the certificate.");
+                }
+                Object status = single.getCertStatus();
+                if (status instanceof RevokedStatus) {
+                    throw new RevokedException("The certificate '" + certificate.getSubjectX500Principal().getName() + "' was revoked on " + ((RevokedStatus) status).getRevocationTime() + ".");
+                }
+                if (status != CertificateStatus.GOOD) {
+                    throw new IOException("OCSP responder '" + url + "' does not know the certificate.");
+                }
+
+                if (responder != issuer) {
+                    certificates.add(responder.getEncoded());
+                }
+                expires = expiry(single.getNextUpdate(), single.getThisUpdate());
+                encoded = response.getEncoded();
+            } catch (OCSPException | OperatorCreationException e) {
+                throw new IOException("Invalid OCSP response from '" + url + "': " + e.getMessage(), e);
+            }
+        }
+
+        private X509Certificate verifyResponder(BasicOCSPResp response, X509Certificate issuer) throws GeneralSecurityException, OperatorCreationException, OCSPException, IOException {
+            if (isSignedBy(response, issuer.getPublicKey())) {
+                return issuer;
+            }
+            for (X509CertificateHolder holder : response.getCerts()) {
+                X509Certificate delegate = new JcaX509CertificateConverter().getCertificate(holder);
+                List<String> usages = delegate.getExtendedKeyUsage();
+                if (usages == null || !usages.contains(KeyPurposeId.id_kp_OCSPSigning.getId())) {
+                    continue;
+                }
+                try {
+                    delegate.verify(issuer.getPublicKey());
+                    delegate.checkValidity();
+                } catch (GeneralSecurityException e) {
+                    continue;
+                }
+                if (isSignedBy(response, delegate.getPublicKey())) {
+                    return delegate;
+                }
+            }
+            throw new GeneralSecurityException("The OCSP response from '" + url + "' is not signed by the issuer or a responder it authorized.");
+        }
+
+        private boolean isSignedBy(BasicOCSPResp response, PublicKey key) throws OperatorCreationException, OCSPException {
+            return response.isSignatureValid(new JcaContentVerifierProviderBuilder().build(key));
+        }
+
+        private void loadCrl(X509Certificate issuer) throws IOException, GeneralSecurityException {
+            byte[] bytes = fetch(url, null);
+            X509CRL parsed = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(bytes));
+            if (!parsed.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+                throw new GeneralSecurityException("The CRL at '" + url + "' is not issued by '" + issuer.getSubjectX500Principal().getName() + "'.");
+            }
+            parsed.verify(issuer.getPublicKey());
+            crl = parsed;
+            expires = expiry(parsed.getNextUpdate(), parsed.getThisUpdate());
+            encoded = bytes;
+        }
+
+        private long expiry(Date nextUpdate, Date thisUpdate) {
+            if (nextUpdate != null) {
+                return nextUpdate.getTime();
+            }
+            return Math.max(thisUpdate.getTime(), System.currentTimeMillis()) + fallbackTtlMillis;
+        }
+    }
+
+    /**
+     * No OCSP response or CRL could be obtained for a certificate.
+     */
+    public static class RevocationException extends IOException {
+        public RevocationException(String message) {
+            super(message);
+        }
+
+        public RevocationException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * The OCSP responder or the CRL reports the certificate as revoked.
+     */
+    public static class RevokedException extends GeneralSecurityException {
+        public RevokedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,39 +1,88 @@
 package com.pyojan.eDastakhat.libs;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.pyojan.eDastakhat.models.SignatureModel;
+import lombok.Getter;
 import net.sf.oval.ConstraintViolation;
 import net.sf.oval.Validator;
 
-import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Base64;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class SignValidator {
-    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
     private final SignatureModel signatureModel;
+    @Getter
+    private byte[] pdfBytes;
+    @Getter
+    private Path pdfPath;
+    /**
+     * Whether {@link #getPdfPath()} is a temporary file holding the decoded {@code base64Content}, which the caller
+     * deletes once signed.
+     */
+    @Getter
+    private boolean temporaryPdf;
 
-    public SignValidator(Path pdfContentJSONFilePath) throws IOException {
+    /**
+     * Reads a payload file. The Base64 content is decoded while the file is read, into memory or, from
+     * {@code spillThresholdBytes} on, into a temporary file in {@code spillDir}.
+     *
+     * @param pdfContentJSONFilePath Path to the payload JSON file.
+     * @param spillThresholdBytes    Decoded size from which the document is written to a temporary file.
+     * @param spillDir               Directory for the temporary file.
+     */
+    public SignValidator(Path pdfContentJSONFilePath, long spillThresholdBytes, Path spillDir) throws IOException {
         if (pdfContentJSONFilePath == null) {
             throw new NullPointerException("pdfContentJSONFilePath is required");
         }
-        this.signatureModel = loadSignatureModel(pdfContentJSONFilePath);
+        try (SigningMetrics.Phase phase = SigningMetrics.current().phase("payloadParse")) {
+            phase.addBytes(Files.size(pdfContentJSONFilePath));
+            PayloadReader payloadReader = PayloadReader.read(pdfContentJSONFilePath, spillThresholdBytes, spillDir);
+            this.signatureModel = payloadReader.getSignatureModel();
+            this.pdfBytes = payloadReader.getPdfBytes();
+            this.pdfPath = payloadReader.getPdfFile();
+            this.temporaryPdf = pdfPath != null;
+        }
     }
 
-    private SignatureModel loadSignatureModel(Path pdfContentJSONFilePath) throws IOException {
-        String jsonContent = new String(Files.readAllBytes(pdfContentJSONFilePath));
-        return gson.fromJson(jsonContent, SignatureModel.class);
+    public SignValidator(SignatureModel signatureModel) {
+        if (signatureModel == null) {
+            throw new NullPointerException("signatureModel is required");
+        }
+        this.signatureModel = signatureModel;
     }
 
+    /**
+     * Validates a payload whose document arrived on its own, such as an HTTP upload, instead of in {@code pdf}.
+     *
+     * @param signatureModel Signature payload; its {@code pdf} holds only the password.
+     * @param pdfBytes       The document.
+     */
+    public SignValidator(SignatureModel signatureModel, byte[] pdfBytes) {
+        this(signatureModel);
+        this.pdfBytes = pdfBytes;
+    }
+
+    /**
+     * Validates the payload. A temporary PDF file is deleted when the payload is invalid.
+     */
     public SignatureModel validateSignatureModel() throws IOException, IllegalArgumentException {
-        validatePdfPayloadModel();
-        validateCertInfoModel();
-        validatePdfModel();
+        try {
+            applySigners();
+            validatePdfPayloadModel();
+            validateSigners();
+            validateCertInfoModel();
+            validatePdfModel();
+        } catch (IOException | RuntimeException e) {
+            if (temporaryPdf) {
+                Files.deleteIfExists(pdfPath);
+            }
+            throw e;
+        }
 
         return signatureModel;
     }
@@ -47,20 +96,83 @@ public class SignValidator {
         }
     }
 
+    /**
+     * Makes the first of the {@code signers} the top-level {@code certInfo} and {@code options}, which the rest of
+     * the signing code reads.
+     */
+    private void applySigners() {
+        List<SignatureModel.Signer> signers = signatureModel.getSigners();
+        if (signers == null || signers.isEmpty()) {
+            return;
+        }
+        if (signers.contains(null)) {
+            throw new IllegalArgumentException("signers cannot contain null");
+        }
+        SignatureModel.Signer first = signers.get(0);
+        if ((signatureModel.getCertInfo() != null && signatureModel.getCertInfo() != first.getCertInfo())
+                || (signatureModel.getOptions() != null && signatureModel.getOptions() != first.getOptions())) {
+            throw new IllegalArgumentException("Give either certInfo and options or signers, not both.");
+        }
+        signatureModel.setCertInfo(first.getCertInfo());
+        signatureModel.setOptions(first.getOptions());
+    }
+
+    /**
+     * Rejects what several signatures on one document cannot do. A signature that allows no changes certifies the
+     * document, which only the first signature may do and which every later one would break, so all of them must
+     * allow changes.
+     */
+    private void validateSigners() {
+        List<SignatureModel.Signer> signers = signatureModel.getSigners();
+        if (signers == null || signers.size() < 2) {
+            return;
+        }
+        for (int i = 0; i < signers.size(); i++) {
+            SignatureModel.Options options = signers.get(i).getOptions();
+            if ("A".equalsIgnoreCase(options.getPage())) {
+                throw new IllegalArgumentException("signers[" + i + "]: Signing all pages [ page: A ] is not supported with several signers.");
+            }
+            if (!options.isChangesAllowed()) {
+                throw new IllegalArgumentException("signers[" + i + "]: Every one of several signers must allow changes [ changesAllowed: true ].");
+            }
+        }
+    }
+
     private void validateCertInfoModel() throws IOException {
-        SignatureModel.CertInfo certInfo = signatureModel.getCertInfo();
-        String pfxPath = certInfo.getPfxPath();
-        File file = new File(pfxPath);
-        if (!file.exists()) {
-            throw new IOException("PFX path is incorrect or the file does not exist.");
+        KeyStoreManager.check(signatureModel.getCertInfo());
+        if (signatureModel.getSigners() != null) {
+            // The first signer is the top-level certInfo.
+            for (int i = 1; i < signatureModel.getSigners().size(); i++) {
+                KeyStoreManager.check(signatureModel.getSigners().get(i).getCertInfo());
+            }
         }
     }
 
-    private void validatePdfModel() throws IllegalArgumentException {
+    /**
+     * Decodes the PDF content once and keeps the bytes for signing. The Base64 string is released from the
+     * model afterwards so the document is not held twice. A document given by path is left on disk.
+     */
+    private void validatePdfModel() throws IOException, IllegalArgumentException {
+        if (pdfBytes != null || temporaryPdf) {
+            // Already decoded while the payload file was read.
+            return;
+        }
         SignatureModel.Pdf pdf = signatureModel.getPdf();
+        if (pdf.getPath() != null && !pdf.getPath().isEmpty()) {
+            pdfPath = Paths.get(pdf.getPath());
+            if (!Files.isRegularFile(pdfPath)) {
+                throw new FileNotFoundException("PDF path is incorrect or the file does not exist.");
+            }
+            return;
+        }
         String base64Content = pdf.getBase64Content();
-        try {
-            Base64.getDecoder().decode(base64Content);
+        if (base64Content == null) {
+            throw new IllegalArgumentException("base64Content or path is required");
+        }
+        try (SigningMetrics.Phase phase = SigningMetrics.current().phase("base64Decode")) {
+            pdfBytes = Base64.getDecoder().decode(base64Content);
+            phase.addBytes(pdfBytes.length);
+            pdf.setBase64Content(null);
         } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("Invalid PDF base64 content. Please ensure that the provided base64 content represents a valid PDF document.");
 
@@ -0,0 +1,178 @@
+package com.pyojan.eDastakhat.libs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records where the time of one signing job goes: payload parsing, Base64 decoding, key unlocking, PDF parsing,
+ * hashing, the private key operation, the timestamp request and writing the signed PDF.
+ * <p>
+ * A job's metrics are bound to the thread that runs it, so {@link SignValidator}, {@link KeyStoreManager} and the
+ * signing service all add to the same record without passing it around. Phases may nest; each phase reports only
+ * the time and allocation not already reported by the phases inside it, so the phases add up to the whole job.
+ * Every phase is also emitted as a {@code com.pyojan.eDastakhat.SigningPhase} JFR event when the JVM supports
+ * Flight Recorder. The {@code metrics} block is added to responses when the {@code eDastakhat.metrics.enabled}
+ * system property is {@code true}.
+ */
+public class SigningMetrics {
+
+    public static final boolean RESPONSE_ENABLED = Boolean.getBoolean("eDastakhat.metrics.enabled");
+
+    private static final ThreadLocal<SigningMetrics> CURRENT = new ThreadLocal<>();
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    private final long threadId = Thread.currentThread().getId();
+    private final long startNanos = System.nanoTime();
+    private final long startAllocatedBytes = MemoryTracker.getAllocatedBytes(threadId);
+    private final LinkedHashMap<String, long[]> phases = new LinkedHashMap<>();
+    private Phase open;
+
+    private SigningMetrics() {
+    }
+
+    /**
+     * Starts a new record and binds it to the calling thread, replacing any record bound before.
+     */
+    public static SigningMetrics start() {
+        SigningMetrics metrics = new SigningMetrics();
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * @return The record bound to the calling thread, or a new bound record if there is none.
+     */
+    public static SigningMetrics join() {
+        SigningMetrics metrics = CURRENT.get();
+        return metrics != null ? metrics : start();
+    }
+
+    /**
+     * @return The record bound to the calling thread, or a detached record whose phases are only sent to JFR.
+     */
+    public static SigningMetrics current() {
+        SigningMetrics metrics = CURRENT.get();
+        return metrics != null ? metrics : new SigningMetrics();
+    }
+
+    /**
+     * Unbinds the calling thread's record, so the next job on a pooled thread starts afresh.
+     */
+    public static void clear() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Starts timing a phase on the calling thread. Close it, usually with try-with-resources, to record it.
+     *
+     * @param name Name of the phase in the response and the JFR event.
+     */
+    public Phase phase(String name) {
+        open = new Phase(name, open);
+        return open;
+    }
+
+    /**
+     * Records time measured outside {@link #phase(String)}, such as many short calls summed by the caller. It is
+     * taken out of the enclosing phase.
+     */
+    public void record(String name, long nanos, long bytes) {
+        if (open != null) {
+            open.childNanos += nanos;
+        }
+        add(name, nanos, bytes, -1);
+    }
+
+    /**
+     * @return The {@code metrics} block of a response: total time and allocation, and per phase its time,
+     * number of occurrences, bytes processed and bytes allocated by the job's thread, and for phases that process
+     * bytes their throughput in MB/s.
+     */
+    public Map<String, Object> toResponse() {
+        LinkedHashMap<String, Object> block = new LinkedHashMap<>();
+        block.put("totalNanos", System.nanoTime() - startNanos);
+        block.put("allocatedBytes", allocatedSince(startAllocatedBytes));
+
+        LinkedHashMap<String, Object> phaseBlock = new LinkedHashMap<>();
+        synchronized (phases) {
+            for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+                long[] totals = entry.getValue();
+                LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+                values.put("nanos", totals[0]);
+                values.put("count", totals[1]);
+                values.put("bytes", totals[2]);
+                values.put("allocatedBytes", totals[3]);
+                if (totals[2] > 0 && totals[0] > 0) {
+                    values.put("mbPerSecond", Math.round(totals[2] * 1e5 / totals[0]) / 100.0);
+                }
+                phaseBlock.put(entry.getKey(), values);
+            }
+        }
+        block.put("phases", phaseBlock);
+        return block;
+    }
+
+    private void add(String name, long nanos, long bytes, long allocatedBytes) {
+        synchronized (phases) {
+            long[] totals = phases.computeIfAbsent(name, k -> new long[]{0, 0, 0, 0});
+            totals[0] += nanos;
+            totals[1]++;
+            totals[2] += bytes;
+            totals[3] = (totals[3] < 0 || allocatedBytes < 0) ? -1 : totals[3] + allocatedBytes;
+        }
+        if (JFR_AVAILABLE) {
+            SigningPhaseEvent.emit(name, nanos, bytes, allocatedBytes);
+        }
+    }
+
+    private long allocatedSince(long startBytes) {
+        long current = MemoryTracker.getAllocatedBytes(threadId);
+        return (current < 0 || startBytes < 0) ? -1 : current - startBytes;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * A phase being timed. Phases must be closed in the reverse order they were started.
+     */
+    public class Phase implements AutoCloseable {
+        private final String name;
+        private final Phase parent;
+        private final long start = System.nanoTime();
+        private final long startAllocatedBytes = MemoryTracker.getAllocatedBytes(threadId);
+        private long childNanos;
+        private long childAllocatedBytes;
+        private long bytes;
+
+        private Phase(String name, Phase parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        /**
+         * Counts bytes read, decoded or written by this phase.
+         */
+        public void addBytes(long count) {
+            bytes += count;
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - start;
+            long allocatedBytes = allocatedSince(startAllocatedBytes);
+            open = parent;
+            if (parent != null) {
+                parent.childNanos += nanos;
+                parent.childAllocatedBytes = (allocatedBytes < 0) ? -1 : parent.childAllocatedBytes + allocatedBytes;
+            }
+            add(name, nanos - childNanos, bytes, (allocatedBytes < 0 || childAllocatedBytes < 0) ? -1 : allocatedBytes - childAllocatedBytes);
+        }
+    }
+}
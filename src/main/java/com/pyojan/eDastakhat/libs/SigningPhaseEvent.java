@@ -0,0 +1,48 @@
+package com.pyojan.eDastakhat.libs;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for one phase of a signing job. Only loaded by {@link SigningMetrics} when the JVM
+ * provides {@code jdk.jfr}; record it with {@code -XX:StartFlightRecording} or {@code jcmd <pid> JFR.start}.
+ */
+@Name("com.pyojan.eDastakhat.SigningPhase")
+@Label("Signing Phase")
+@Category("eDastakhat")
+@Description("Time, bytes and allocation of one phase of a signing job")
+@StackTrace(false)
+class SigningPhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long nanos;
+
+    @Label("Bytes Processed")
+    @DataAmount
+    long bytes;
+
+    @Label("Bytes Allocated")
+    @DataAmount
+    long allocatedBytes;
+
+    static void emit(String phase, long nanos, long bytes, long allocatedBytes) {
+        SigningPhaseEvent event = new SigningPhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase;
+            event.nanos = nanos;
+            event.bytes = bytes;
+            event.allocatedBytes = allocatedBytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.itextpdf.text.pdf.security.BouncyCastleDigest;
+import com.itextpdf.text.pdf.security.DigestAlgorithms;
+import com.itextpdf.text.pdf.security.TSAClient;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cmp.PKIFailureInfo;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.TimeStampToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * RFC 3161 timestamp client for one TSA endpoint, shared by every signature that uses the endpoint.
+ * <p>
+ * Responses are always read to the end and their streams closed without disconnecting, so the JVM keeps the
+ * HTTP connection alive for the next request. At most {@code maxConcurrent} requests are in flight at once.
+ * The endpoint's health is remembered: after a success or a successful probe it is not probed again for the
+ * health TTL, and after {@code failureThreshold} consecutive failures the circuit opens and requests fail fast
+ * until the open period has elapsed, when a single trial request is let through.
+ */
+public class TimestampClient implements TSAClient {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int DEFAULT_TOKEN_SIZE_ESTIMATE = 8192;
+    private static final int TOKEN_SIZE_MARGIN = 1024;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final TsaClientRegistry.Settings settings;
+
+    private final Semaphore inFlight;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final SecureRandom nonceGenerator = new SecureRandom();
+
+    private int consecutiveFailures;
+    private long openUntil;
+    private long healthyUntil;
+    private boolean trialInFlight;
+    private long failures;
+    private int largestToken;
+
+    public TimestampClient(String url, String username, String password, TsaClientRegistry.Settings settings) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.settings = settings;
+        this.inFlight = new Semaphore(settings.getMaxConcurrent(), true);
+        // Starts neither open nor known to be healthy.
+        this.openUntil = System.nanoTime();
+        this.healthyUntil = openUntil;
+    }
+
+    /**
+     * Fails fast if the circuit is open, and probes the endpoint with a HEAD request only if its health is not
+     * already known.
+     *
+     * @throws IOException if the endpoint is unavailable.
+     */
+    public void ensureAvailable() throws IOException {
+        boolean trial;
+        synchronized (this) {
+            long now = System.nanoTime();
+            trial = checkCircuit(now);
+            if (now - healthyUntil < 0) {
+                endTrial(trial);
+                return;
+            }
+        }
+        try {
+            probe();
+        } finally {
+            endTrial(trial);
+        }
+    }
+
+    private void probe() throws IOException {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("HEAD"); // Use HEAD method to check URL availability without downloading the content
+            connection.setConnectTimeout(settings.getTimeoutMillis());
+            connection.setReadTimeout(settings.getTimeoutMillis());
+
+            int responseCode = connection.getResponseCode();
+            drain(responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream());
+            // Check if the response code is in the range of 200-399
+            if (responseCode < HttpURLConnection.HTTP_OK || responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new TsaException("TSA URL is not valid or not accessible.");
+            }
+        } catch (IOException e) {
+            recordFailure();
+            throw TsaException.wrap(url, e);
+        }
+        recordSuccess();
+    }
+
+    @Override
+    public int getTokenSizeEstimate() {
+        synchronized (this) {
+            return largestToken == 0 ? DEFAULT_TOKEN_SIZE_ESTIMATE : largestToken + TOKEN_SIZE_MARGIN;
+        }
+    }
+
+    @Override
+    public MessageDigest getMessageDigest() throws GeneralSecurityException {
+        return new BouncyCastleDigest().getMessageDigest(DIGEST_ALGORITHM);
+    }
+
+    @Override
+    public byte[] getTimeStampToken(byte[] imprint) throws IOException, TSPException, InterruptedException {
+        boolean trial;
+        synchronized (this) {
+            trial = checkCircuit(System.nanoTime());
+        }
+        // A trial that ends without an answer, interrupted or failing before the request, must not hold the circuit
+        // half-open for good.
+        try {
+            return requestToken(imprint);
+        } finally {
+            endTrial(trial);
+        }
+    }
+
+    private byte[] requestToken(byte[] imprint) throws IOException, TSPException, InterruptedException {
+        TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        requestGenerator.setCertReq(true);
+        BigInteger nonce = new BigInteger(64, nonceGenerator);
+        TimeStampRequest request = requestGenerator.generate(new ASN1ObjectIdentifier(DigestAlgorithms.getAllowedDigests(DIGEST_ALGORITHM)), imprint, nonce);
+
+        byte[] token;
+        inFlight.acquire();
+        long start = System.nanoTime();
+        try {
+            TimeStampResponse response = new TimeStampResponse(post(request.getEncoded()));
+            // validate communication level attributes (RFC 3161 PKIStatus)
+            response.validate(request);
+            PKIFailureInfo failure = response.getFailInfo();
+            if (failure != null && failure.intValue() != 0) {
+                throw new TsaException("Invalid TSA '" + url + "' response, code " + failure.intValue());
+            }
+            TimeStampToken timeStampToken = response.getTimeStampToken();
+            if (timeStampToken == null) {
+                throw new TsaException("TSA '" + url + "' failed to return time stamp token: " + response.getStatusString());
+            }
+            token = timeStampToken.getEncoded();
+        } catch (IOException e) {
+            recordFailure();
+            throw TsaException.wrap(url, e);
+        } catch (TSPException | RuntimeException e) {
+            recordFailure();
+            throw e;
+        } finally {
+            latency.record(System.nanoTime() - start);
+            inFlight.release();
+        }
+
+        recordSuccess();
+        synchronized (this) {
+            largestToken = Math.max(largestToken, token.length);
+        }
+        return token;
+    }
+
+    /**
+     * Adds this endpoint's counters and latency histogram to a response data map.
+     *
+     * @param data Response data to enrich.
+     */
+    public void addTo(HashMap<String, String> data) {
+        String prefix = "tsa[" + url + "]";
+        synchronized (this) {
+            data.put(prefix + ".failures", String.valueOf(failures));
+            data.put(prefix + ".circuit", System.nanoTime() - openUntil < 0 ? "OPEN" : "CLOSED");
+        }
+        data.put(prefix + ".inFlight", String.valueOf(settings.getMaxConcurrent() - inFlight.availablePermits()));
+        latency.addTo(data, prefix + ".latency");
+    }
+
+    private byte[] post(byte[] requestBytes) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(settings.getTimeoutMillis());
+        connection.setReadTimeout(settings.getTimeoutMillis());
+        connection.setDoInput(true);
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/timestamp-query");
+        connection.setRequestProperty("Content-Transfer-Encoding", "binary");
+        connection.setFixedLengthStreamingMode(requestBytes.length);
+
+        if (username != null && !username.isEmpty()) {
+            String userPassword = username + ":" + (password == null ? "" : password);
+            connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString(userPassword.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(requestBytes);
+        }
+
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            drain(connection.getErrorStream());
+            throw new IOException("TSA '" + url + "' answered with HTTP " + responseCode);
+        }
+
+        byte[] responseBytes = drain(connection.getInputStream());
+        String encoding = connection.getContentEncoding();
+        if (encoding != null && encoding.equalsIgnoreCase("base64")) {
+            responseBytes = Base64.getMimeDecoder().decode(responseBytes);
+        }
+        return responseBytes;
+    }
+
+    /**
+     * Reads a response body to the end and closes it, which hands the connection back to the keep-alive cache.
+     */
+    private static byte[] drain(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try (InputStream body = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = body.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * @return Whether the caller is the trial request of a half-open circuit, and must call {@link #endTrial(boolean)}
+     * when it is done.
+     */
+    private boolean checkCircuit(long now) throws IOException {
+        if (now - openUntil < 0) {
+            throw new TsaException("TSA '" + url + "' is unavailable after " + consecutiveFailures + " consecutive failures; retrying after the circuit closes.");
+        }
+        if (consecutiveFailures >= settings.getFailureThreshold()) {
+            // Half-open: let a single trial through and fail the others until it reports back.
+            if (trialInFlight) {
+                throw new TsaException("TSA '" + url + "' is being re-checked after consecutive failures.");
+            }
+            trialInFlight = true;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void endTrial(boolean trial) {
+        if (trial) {
+            trialInFlight = false;
+        }
+    }
+
+    private synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        healthyUntil = System.nanoTime() + settings.getHealthTtlNanos();
+    }
+
+    private synchronized void recordFailure() {
+        failures++;
+        consecutiveFailures++;
+        trialInFlight = false;
+        healthyUntil = System.nanoTime();
+        if (consecutiveFailures >= settings.getFailureThreshold()) {
+            openUntil = System.nanoTime() + settings.getOpenNanos();
+        }
+    }
+
+    /**
+     * The TSA could not be reached or did not return a usable token.
+     */
+    public static class TsaException extends IOException {
+        public TsaException(String message) {
+            super(message);
+        }
+
+        public TsaException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
+        static TsaException wrap(String url, IOException e) {
+            if (e instanceof TsaException) {
+                return (TsaException) e;
+            }
+            return new TsaException("TSA '" + url + "' is not accessible: " + e.getMessage(), e);
+        }
+    }
+}
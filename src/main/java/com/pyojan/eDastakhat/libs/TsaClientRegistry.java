@@ -0,0 +1,135 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.itextpdf.text.pdf.security.TSAClient;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out one shared {@link TimestampClient} per TSA endpoint and credentials, so connection reuse, health and
+ * latency statistics span every document signed by the process.
+ * <p>
+ * Other {@link TSAClient} implementations can be plugged in for a URL with {@link #register(String, TSAClient)},
+ * for example an in-process RFC 3161 responder. Limits are read from the {@code eDastakhat.tsa.maxConcurrent},
+ * {@code eDastakhat.tsa.timeoutMillis}, {@code eDastakhat.tsa.healthTtlSeconds},
+ * {@code eDastakhat.tsa.failureThreshold} and {@code eDastakhat.tsa.openSeconds} system properties.
+ */
+public class TsaClientRegistry {
+
+    private static final TsaClientRegistry INSTANCE = new TsaClientRegistry(Settings.fromSystemProperties());
+
+    private final Settings settings;
+    private final ConcurrentHashMap<String, TimestampClient> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TSAClient> registered = new ConcurrentHashMap<>();
+    // Keys hold a salted hash of the password rather than the password itself.
+    private final byte[] salt = new byte[16];
+
+    public TsaClientRegistry(Settings settings) {
+        this.settings = settings;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    public static TsaClientRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the client for the timestamp options, checking that the endpoint is available. A known healthy
+     * endpoint is not probed again, and an endpoint with an open circuit fails without a network call.
+     *
+     * @param timestamp Timestamp options of the signature payload.
+     * @return The shared client for the endpoint.
+     * @throws IOException if the endpoint is not available.
+     */
+    public TSAClient getClient(SignatureModel.Timestamp timestamp) throws IOException {
+        TSAClient plugged = registered.get(timestamp.getUrl());
+        if (plugged != null) {
+            return plugged;
+        }
+
+        // A corrected password must not be answered with the client of an earlier, wrong one.
+        String key = timestamp.getUrl() + '\n' + (timestamp.getUsername() == null ? "" : timestamp.getUsername())
+                + '\n' + passwordHash(timestamp.getPassword());
+        TimestampClient client = clients.computeIfAbsent(key,
+                k -> new TimestampClient(timestamp.getUrl(), timestamp.getUsername(), timestamp.getPassword(), settings));
+        client.ensureAvailable();
+        return client;
+    }
+
+    private String passwordHash(String password) {
+        if (password == null) {
+            return "";
+        }
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(salt);
+            StringBuilder hash = new StringBuilder();
+            for (byte b : sha256.digest(password.getBytes(StandardCharsets.UTF_8))) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Uses the given client for every signature that asks for the URL.
+     */
+    public void register(String url, TSAClient client) {
+        registered.put(url, client);
+    }
+
+    public void unregister(String url) {
+        registered.remove(url);
+    }
+
+    /**
+     * @return The counters and latency histograms of every endpoint used so far.
+     */
+    public HashMap<String, String> getStats() {
+        HashMap<String, String> stats = new HashMap<>();
+        for (Map.Entry<String, TimestampClient> entry : clients.entrySet()) {
+            entry.getValue().addTo(stats);
+        }
+        return stats;
+    }
+
+    @Getter
+    public static class Settings {
+        private final int maxConcurrent;
+        private final int timeoutMillis;
+        private final long healthTtlNanos;
+        private final int failureThreshold;
+        private final long openNanos;
+
+        public Settings(int maxConcurrent, int timeoutMillis, long healthTtlNanos, int failureThreshold, long openNanos) {
+            if (maxConcurrent < 1 || failureThreshold < 1) {
+                throw new IllegalArgumentException("TSA concurrency and failure threshold must be at least 1.");
+            }
+            this.maxConcurrent = maxConcurrent;
+            this.timeoutMillis = timeoutMillis;
+            this.healthTtlNanos = healthTtlNanos;
+            this.failureThreshold = failureThreshold;
+            this.openNanos = openNanos;
+        }
+
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    Integer.getInteger("eDastakhat.tsa.maxConcurrent", 4),
+                    Integer.getInteger("eDastakhat.tsa.timeoutMillis", 5000),
+                    TimeUnit.SECONDS.toNanos(Long.getLong("eDastakhat.tsa.healthTtlSeconds", 60)),
+                    Integer.getInteger("eDastakhat.tsa.failureThreshold", 3),
+                    TimeUnit.SECONDS.toNanos(Long.getLong("eDastakhat.tsa.openSeconds", 30)));
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.pyojan.eDastakhat.models.SignatureModel;
+import lombok.Getter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Index of the key stores in an {@code eDastkhatVault} directory, so a certificate can be found by serial number or
+ * alias without opening every key store.
+ * <p>
+ * The index is the file {@value #INDEX_FILE} next to the key stores. It holds one record per key store (serial,
+ * alias, subject, issuer, validity, key algorithm and SHA-256 fingerprint) and two open-addressing hash tables, one
+ * by serial and one by alias, pointing at the records. It is read into memory once per version of the file and used
+ * in place, so a lookup hashes the key and reads one or two slots whatever the size of the vault. Writers rebuild the
+ * whole file under a lock, write it to a temporary file and move it over the old one, so readers always see a complete
+ * index. The file is not memory-mapped, since a mapped file cannot be replaced on Windows. A vault without an
+ * index is indexed on first use.
+ */
+public class VaultIndex {
+
+    public static final String DIRECTORY_NAME = "eDastkhatVault";
+    public static final String INDEX_FILE = "vault.idx";
+
+    private static final String LOCK_FILE = "vault.lock";
+    private static final int MAGIC = 0x45445658;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int EMPTY = 0;
+    private static final int AMBIGUOUS = -1;
+
+    private static final ConcurrentHashMap<Path, VaultIndex> OPEN = new ConcurrentHashMap<>();
+    // File locks are held by the whole process, so writers in the same process also take this lock.
+    private static final Object WRITE_LOCK = new Object();
+
+    private final Path vaultDir;
+    private final ByteBuffer buffer;
+    private final FileTime modified;
+    private final Object fileKey;
+    private final int count;
+    private final int slotCount;
+
+    private VaultIndex(Path vaultDir, ByteBuffer buffer, BasicFileAttributes attributes) throws IOException {
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("The vault index is damaged or from another version: " + vaultDir.resolve(INDEX_FILE));
+        }
+        this.vaultDir = vaultDir;
+        this.buffer = buffer;
+        this.modified = attributes.lastModifiedTime();
+        this.fileKey = attributes.fileKey();
+        this.count = buffer.getInt(8);
+        this.slotCount = buffer.getInt(12);
+    }
+
+    /**
+     * Returns the index of a vault, building it first when the vault has key stores but no index. The index read is
+     * shared and read again when the index file changes.
+     *
+     * @param vaultDir The {@code eDastkhatVault} directory.
+     */
+    public static VaultIndex open(Path vaultDir) throws IOException {
+        Path dir = vaultDir.toAbsolutePath().normalize();
+        Path indexFile = dir.resolve(INDEX_FILE);
+        if (Files.notExists(indexFile)) {
+            if (!Files.isDirectory(dir)) {
+                throw new IOException("Vault directory is incorrect or does not exist: " + dir);
+            }
+            rebuild(dir);
+        }
+
+        // Every write replaces the file, so a changed file key or modification time means a new index.
+        BasicFileAttributes attributes = Files.readAttributes(indexFile, BasicFileAttributes.class);
+        VaultIndex index = OPEN.get(dir);
+        if (index != null && index.modified.equals(attributes.lastModifiedTime()) && Objects.equals(index.fileKey, attributes.fileKey())) {
+            return index;
+        }
+        // Read whole rather than mapped: the index is small, and the next write must be able to replace the file.
+        index = new VaultIndex(dir, ByteBuffer.wrap(Files.readAllBytes(indexFile)), attributes);
+        OPEN.put(dir, index);
+        return index;
+    }
+
+    /**
+     * Finds the key store a signing request refers to: its {@code pfxPath}, or the vault entry named by its
+     * {@code serial} or {@code alias}. The vault is the request's {@code vaultPath}, the
+     * {@code eDastakhat.vault.dir} system property or {@code eDastkhatVault} in the working directory.
+     *
+     * @return Path of the PFX or vault key store.
+     */
+    public static Path resolve(SignatureModel.CertInfo certInfo) throws IOException {
+        Path keyStore;
+        if (!isEmpty(certInfo.getPfxPath())) {
+            keyStore = Paths.get(certInfo.getPfxPath());
+        } else if (!isEmpty(certInfo.getSerial()) || !isEmpty(certInfo.getAlias())) {
+            String vaultPath = !isEmpty(certInfo.getVaultPath())
+                    ? certInfo.getVaultPath()
+                    : System.getProperty("eDastakhat.vault.dir", DIRECTORY_NAME);
+            VaultIndex index = open(Paths.get(vaultPath));
+            Entry entry = !isEmpty(certInfo.getSerial()) ? index.findBySerial(certInfo.getSerial()) : index.findByAlias(certInfo.getAlias());
+            if (entry == null) {
+                String key = !isEmpty(certInfo.getSerial()) ? "serial '" + certInfo.getSerial() + "'" : "alias '" + certInfo.getAlias() + "'";
+                throw new IOException("No vault entry with " + key + " in " + index.vaultDir);
+            }
+            keyStore = index.vaultDir.resolve(entry.getFile());
+        } else {
+            throw new IllegalArgumentException("certInfo needs a pfxPath, or the serial or alias of a vault entry.");
+        }
+
+        if (Files.notExists(keyStore)) {
+            throw new IOException("PFX path is incorrect or the file does not exist.");
+        }
+        return keyStore;
+    }
+
+    /**
+     * Adds or replaces the entries of the given key store files and rewrites the index.
+     *
+     * @param vaultDir The {@code eDastkhatVault} directory.
+     * @param added    Entries describing key stores already written to the vault.
+     */
+    public static void put(Path vaultDir, List<Entry> added) throws IOException {
+        Path dir = vaultDir.toAbsolutePath().normalize();
+        synchronized (WRITE_LOCK) {
+            try (FileChannel lockChannel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = lockChannel.lock()) {
+                LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+                List<Entry> current = Files.exists(dir.resolve(INDEX_FILE)) ? open(dir).list() : scan(dir);
+                for (Entry entry : current) {
+                    entries.put(entry.getFile(), entry);
+                }
+                for (Entry entry : added) {
+                    entries.put(entry.getFile(), entry);
+                }
+                write(dir, new ArrayList<>(entries.values()));
+            }
+        }
+    }
+
+    /**
+     * Indexes every key store found in the vault directory, replacing the current index. Key stores are read
+     * without their password, which is enough for their certificates.
+     */
+    public static void rebuild(Path vaultDir) throws IOException {
+        Path dir = vaultDir.toAbsolutePath().normalize();
+        synchronized (WRITE_LOCK) {
+            try (FileChannel lockChannel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 FileLock ignored = lockChannel.lock()) {
+                write(dir, scan(dir));
+            }
+        }
+    }
+
+    private static List<Entry> scan(Path dir) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                String name = file.getFileName().toString();
+                if (!Files.isRegularFile(file) || name.equals(INDEX_FILE) || name.equals(LOCK_FILE) || name.endsWith(".tmp")) {
+                    continue;
+                }
+                Entry entry = readKeyStore(file);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Describes the user certificate of a key store about to be added to the vault.
+     *
+     * @param file        Name of the key store file inside the vault.
+     * @param alias       Alias of the key entry.
+     * @param certificate The user certificate.
+     */
+    public static Entry describe(String file, String alias, X509Certificate certificate) throws NoSuchAlgorithmException, CertificateEncodingException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        return new Entry(
+                certificate.getSerialNumber().toString(16).toUpperCase(),
+                alias,
+                certificate.getSubjectX500Principal().getName(),
+                certificate.getIssuerX500Principal().getName(),
+                keyAlgorithm(certificate.getPublicKey()),
+                String.format("%064X", new BigInteger(1, sha256.digest(certificate.getEncoded()))),
+                file,
+                certificate.getNotBefore().getTime(),
+                certificate.getNotAfter().getTime());
+    }
+
+    /**
+     * @return The entry with the given serial number (hexadecimal, any case), or {@code null}.
+     */
+    public Entry findBySerial(String serial) {
+        String key = serial.trim().toUpperCase();
+        int offset = lookup(HEADER_BYTES, key);
+        Entry entry = offset > 0 ? readEntry(offset) : null;
+        return entry != null && entry.getSerial().equals(key) ? entry : null;
+    }
+
+    /**
+     * @return The entry with the given key store alias (any case), or {@code null}.
+     * @throws IllegalArgumentException If several entries share the alias.
+     */
+    public Entry findByAlias(String alias) {
+        String key = alias.trim().toLowerCase(Locale.ROOT);
+        int offset = lookup(HEADER_BYTES + 4 * slotCount, key);
+        if (offset == AMBIGUOUS) {
+            throw new IllegalArgumentException("Alias '" + alias + "' belongs to several vault entries. Use the serial instead.");
+        }
+        Entry entry = offset > 0 ? readEntry(offset) : null;
+        return entry != null && entry.getAlias().toLowerCase(Locale.ROOT).equals(key) ? entry : null;
+    }
+
+    /**
+     * @return Every entry, in the order the key stores were indexed.
+     */
+    public List<Entry> list() {
+        List<Entry> entries = new ArrayList<>(count);
+        int offset = HEADER_BYTES + 12 * slotCount;
+        for (int i = 0; i < count; i++) {
+            entries.add(readEntry(offset));
+            offset += 4 + buffer.getInt(offset);
+        }
+        return entries;
+    }
+
+    public Path getVaultDir() {
+        return vaultDir;
+    }
+
+    /**
+     * Probes one hash table. Slots hold the record offset, {@link #EMPTY} or {@link #AMBIGUOUS}; a slot whose
+     * record has another key belongs to a colliding key, so probing continues with the next slot.
+     */
+    private int lookup(int table, String key) {
+        if (slotCount == 0) {
+            return EMPTY;
+        }
+        int mask = slotCount - 1;
+        boolean bySerial = table == HEADER_BYTES;
+        for (int slot = hash(key) & mask, probes = 0; probes < slotCount; slot = (slot + 1) & mask, probes++) {
+            int value = buffer.getInt(table + 4 * slot);
+            if (value == EMPTY) {
+                return EMPTY;
+            }
+            int recordOffset = value == AMBIGUOUS ? buffer.getInt(table + 4 * slotCount + 4 * slot) : value;
+            Entry entry = readEntry(recordOffset);
+            String entryKey = bySerial ? entry.getSerial() : entry.getAlias().toLowerCase(Locale.ROOT);
+            if (entryKey.equals(key)) {
+                return value;
+            }
+        }
+        return EMPTY;
+    }
+
+    private Entry readEntry(int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + 4);
+        return new Entry(readString(record), readString(record), readString(record), readString(record),
+                readString(record), readString(record), readString(record), record.getLong(), record.getLong());
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the index: header, serial table, alias table, then the records. An alias shared by several entries
+     * is marked {@link #AMBIGUOUS} in the alias table, with the record offset in a shadow slot after the table so
+     * probing can still compare keys.
+     */
+    private static void write(Path dir, List<Entry> entries) throws IOException {
+        int slotCount = Integer.highestOneBit(Math.max(1, entries.size()) * 2 - 1) << 1;
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(records);
+        int recordsStart = HEADER_BYTES + 12 * slotCount;
+        int[] offsets = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            offsets[i] = recordsStart + recordOut.size();
+            byte[] record = encode(entries.get(i));
+            recordOut.writeInt(record.length);
+            recordOut.write(record);
+        }
+
+        int[] serialSlots = new int[slotCount];
+        int[] aliasSlots = new int[slotCount];
+        int[] aliasShadow = new int[slotCount];
+        HashMap<String, Integer> aliasSlotOf = new HashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            insert(serialSlots, entry.getSerial(), offsets[i]);
+            String alias = entry.getAlias().toLowerCase(Locale.ROOT);
+            Integer existing = aliasSlotOf.get(alias);
+            if (existing == null) {
+                aliasSlotOf.put(alias, insert(aliasSlots, alias, offsets[i]));
+            } else if (aliasSlots[existing] != AMBIGUOUS) {
+                aliasShadow[existing] = aliasSlots[existing];
+                aliasSlots[existing] = AMBIGUOUS;
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(recordsStart + records.size());
+        out.putInt(MAGIC).putInt(VERSION).putInt(entries.size()).putInt(slotCount);
+        for (int value : serialSlots) {
+            out.putInt(value);
+        }
+        for (int value : aliasSlots) {
+            out.putInt(value);
+        }
+        for (int value : aliasShadow) {
+            out.putInt(value);
+        }
+        out.put(records.toByteArray());
+        out.flip();
+
+        Path temporary = Files.createTempFile(dir, "vault", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temporary, dir.resolve(INDEX_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, dir.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static int insert(int[] slots, String key, int offset) {
+        int mask = slots.length - 1;
+        int slot = hash(key) & mask;
+        while (slots[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = offset;
+        return slot;
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String value : new String[]{entry.getSerial(), entry.getAlias(), entry.getSubject(), entry.getIssuer(),
+                entry.getKeyAlgorithm(), entry.getFingerprint(), entry.getFile()}) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            if (utf8.length > 0xFFFF) {
+                throw new IOException("Vault entry field is too long: " + value.substring(0, 64) + "...");
+            }
+            out.writeShort(utf8.length);
+            out.write(utf8);
+        }
+        out.writeLong(entry.getNotBefore());
+        out.writeLong(entry.getNotAfter());
+        return bytes.toByteArray();
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static Entry readKeyStore(Path file) {
+        for (String type : new String[]{"JKS", "PKCS12"}) {
+            try (InputStream in = Files.newInputStream(file)) {
+                KeyStore keyStore = KeyStore.getInstance(type);
+                keyStore.load(in, null);
+                Enumeration<String> aliases = keyStore.aliases();
+                while (aliases.hasMoreElements()) {
+                    String alias = aliases.nextElement();
+                    Certificate certificate = keyStore.getCertificate(alias);
+                    if (keyStore.isKeyEntry(alias) && certificate instanceof X509Certificate
+                            && ((X509Certificate) certificate).getBasicConstraints() == -1) {
+                        return describe(file.getFileName().toString(), alias, (X509Certificate) certificate);
+                    }
+                }
+                return null;
+            } catch (IOException | GeneralSecurityException e) {
+                // Not a key store of this type, or not a key store at all.
+            }
+        }
+        return null;
+    }
+
+    private static String keyAlgorithm(PublicKey publicKey) {
+        if (publicKey instanceof RSAPublicKey) {
+            return "RSA-" + ((RSAPublicKey) publicKey).getModulus().bitLength();
+        }
+        if (publicKey instanceof ECPublicKey) {
+            return "EC-" + ((ECPublicKey) publicKey).getParams().getCurve().getField().getFieldSize();
+        }
+        return publicKey.getAlgorithm();
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    /**
+     * One key store of the vault. Validity times are milliseconds since the epoch.
+     */
+    @Getter
+    public static class Entry {
+        private final String serial;
+        private final String alias;
+        private final String subject;
+        private final String issuer;
+        private final String keyAlgorithm;
+        private final String fingerprint;
+        private final String file;
+        private final long notBefore;
+        private final long notAfter;
+
+        Entry(String serial, String alias, String subject, String issuer, String keyAlgorithm, String fingerprint,
+              String file, long notBefore, long notAfter) {
+            this.serial = serial;
+            this.alias = alias;
+            this.subject = subject;
+            this.issuer = issuer;
+            this.keyAlgorithm = keyAlgorithm;
+            this.fingerprint = fingerprint;
+            this.file = file;
+            this.notBefore = notBefore;
+            this.notAfter = notAfter;
+        }
+
+        /**
+         * @return {@code true} if the certificate is within its validity period at the given time.
+         */
+        public boolean isValidAt(Date time) {
+            return time.getTime() >= notBefore && time.getTime() <= notAfter;
+        }
+
+        /**
+         * @return The common name of the subject, or the whole subject when it has none.
+         */
+        public String getCommonName() {
+            for (String part : subject.split(",")) {
+                String[] pair = part.split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("CN")) {
+                    return pair[1].trim();
+                }
+            }
+            return subject;
+        }
+
+        /**
+         * @param vaultDir Directory the entry belongs to.
+         * @return The entry as response data.
+         */
+        public HashMap<String, String> toResponse(Path vaultDir) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+            HashMap<String, String> data = new HashMap<>();
+            data.put("serialNumber", serial);
+            data.put("alias", alias);
+            data.put("commonName", getCommonName());
+            data.put("subject", subject);
+            data.put("issuer", issuer);
+            data.put("notBefore", format.format(new Date(notBefore)));
+            data.put("notAfter", format.format(new Date(notAfter)));
+            data.put("keyAlgorithm", keyAlgorithm);
+            data.put("fingerprint", fingerprint);
+            data.put("path", vaultDir.resolve(file).toString());
+            return data;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.pyojan.eDastakhat.models;
+
+import com.google.gson.JsonObject;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import net.sf.oval.constraint.*;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchManifestModel {
+
+    @NotNull(message = "CertInfo cannot be null")
+    @AssertValid
+    private SignatureModel.CertInfo certInfo;
+
+    /**
+     * Default {@link SignatureModel.Options} for every document, kept as JSON so documents can override single fields.
+     */
+    @NotNull(message = "Options cannot be null")
+    private JsonObject options;
+
+    @Min(value = 0, message = "threads cannot be negative")
+    private int threads;
+
+    @NotNull(message = "documents cannot be null")
+    @Size(min = 1, message = "documents must list at least one PDF")
+    @AssertValid
+    private List<Document> documents;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Document {
+        private String id;
+        @NotEmpty(message = "path cannot be empty")
+        @NotNull(message = "path cannot be null")
+        private String path;
+        private String password = "";
+        private JsonObject options;
+    }
+}
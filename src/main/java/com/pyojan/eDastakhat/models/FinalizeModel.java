@@ -0,0 +1,32 @@
+package com.pyojan.eDastakhat.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import net.sf.oval.constraint.*;
+
+/**
+ * Payload of the {@code -finalize} action, which injects a CMS signature into a document written by {@code -prepare}.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FinalizeModel {
+
+    @NotEmpty(message = "preparedPath cannot be empty")
+    @NotNull(message = "preparedPath cannot be null")
+    private String preparedPath;
+
+    @NotEmpty(message = "fieldName cannot be empty")
+    @NotNull(message = "fieldName cannot be null")
+    private String fieldName;
+
+    /**
+     * Base64 CMS signature returned by {@code -signHashes}.
+     */
+    @NotEmpty(message = "signature cannot be empty")
+    @NotNull(message = "signature cannot be null")
+    private String signature;
+
+    private String password = "";
+}
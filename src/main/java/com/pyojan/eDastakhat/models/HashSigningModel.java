@@ -0,0 +1,50 @@
+package com.pyojan.eDastakhat.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import net.sf.oval.constraint.*;
+
+import java.util.List;
+
+/**
+ * Payload of the {@code -signHashes} action: digests exported by {@code -prepare}, signed in one call with one
+ * unlocked key.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HashSigningModel {
+
+    @NotNull(message = "CertInfo cannot be null")
+    @AssertValid
+    private SignatureModel.CertInfo certInfo;
+
+    private SignatureModel.Timestamp timestamp;
+
+    @NotNull(message = "hashes cannot be null")
+    @Size(min = 1, message = "hashes must list at least one digest")
+    @AssertValid
+    private List<Hash> hashes;
+
+    /**
+     * Digest algorithm printed by {@code -prepare} for these digests.
+     */
+    @MatchPattern(pattern = SignatureModel.DIGEST_ALGORITHM_REGEX_PATTERN, message = "Invalid digestAlgorithm value. Valid values are: SHA-256, SHA-384, SHA-512")
+    private String digestAlgorithm = "SHA-256";
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Hash {
+        @NotEmpty(message = "id cannot be empty")
+        @NotNull(message = "id cannot be null")
+        private String id;
+        /**
+         * Base64 digest of the prepared document's byte range.
+         */
+        @NotEmpty(message = "digest cannot be empty")
+        @NotNull(message = "digest cannot be null")
+        private String digest;
+    }
+}
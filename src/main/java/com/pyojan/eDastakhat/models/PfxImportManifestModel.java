@@ -0,0 +1,37 @@
+package com.pyojan.eDastakhat.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import net.sf.oval.constraint.*;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PfxImportManifestModel {
+
+    /**
+     * Password of every PFX file that does not have its own.
+     */
+    private String password;
+
+    @Min(value = 0, message = "threads cannot be negative")
+    private int threads;
+
+    @NotNull(message = "files cannot be null")
+    @Size(min = 1, message = "files must list at least one PFX")
+    @AssertValid
+    private List<Pfx> files;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Pfx {
+        @NotEmpty(message = "path cannot be empty")
+        @NotNull(message = "path cannot be null")
+        private String path;
+        private String password;
+    }
+}
@@ -0,0 +1,30 @@
+package com.pyojan.eDastakhat.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import net.sf.oval.constraint.*;
+
+/**
+ * Payload of the {@code -prepare} action. It needs only the signer's certificate chain, never the private key.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PrepareModel {
+
+    /**
+     * Signer certificate chain, signer first, as a DER, PEM or PKCS#7 file.
+     */
+    @NotEmpty(message = "certificatePath cannot be empty")
+    @NotNull(message = "certificatePath cannot be null")
+    private String certificatePath;
+
+    @NotNull(message = "Options cannot be null")
+    @AssertValid
+    private SignatureModel.Options options;
+
+    @NotNull(message = "Pdf cannot be null")
+    @AssertValid
+    private SignatureModel.Pdf pdf;
+}
@@ -6,12 +6,15 @@ import lombok.AllArgsConstructor;
 import lombok.Value;
 import net.sf.oval.constraint.*;
 
+import java.util.List;
+
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class SignatureModel {
 
     private static final String PAGE_REGEX_PATTERN = "(?!0)(?i)(f|l|a|\\d+)";
+    static final String DIGEST_ALGORITHM_REGEX_PATTERN = "(?i)SHA-?(256|384|512)";
 
     @NotNull(message = "CertInfo cannot be null")
     @AssertValid
@@ -25,14 +28,41 @@ public class SignatureModel {
     @AssertValid
     private Pdf pdf;
 
+    /**
+     * Signers applied in order, each as its own incremental revision of the document. When given, {@code certInfo}
+     * and {@code options} are left out and stand for the first signer.
+     */
+    @Size(min = 1, max = 10, message = "signers must have between 1 and 10 elements")
+    @AssertValid
+    private List<Signer> signers;
+
+    public SignatureModel(CertInfo certInfo, Options options, Pdf pdf) {
+        this.certInfo = certInfo;
+        this.options = options;
+        this.pdf = pdf;
+    }
+
     @Data
     @NoArgsConstructor
     @AllArgsConstructor
     public static class CertInfo {
-        @NotEmpty(message = "pfxPath cannot be empty")
-        @NotNull(message = "pfxPath cannot be null")
+        // Either pfxPath, or the serial or alias of an entry in the vault at vaultPath, or a PKCS#11 token.
         private String pfxPath;
         private String password;
+        private String serial;
+        private String alias;
+        private String vaultPath;
+        // PKCS#11 module of the token holding the key, such as /usr/lib/softhsm/libsofthsm2.so; password is the user PIN.
+        private String pkcs11Library;
+        // Token slot id; the first slot with a token when left out.
+        private Integer slot;
+        // Label of the key on the token; the first key with an end-entity certificate when left out.
+        private String keyAlias;
+
+        public CertInfo(String pfxPath, String password) {
+            this.pfxPath = pfxPath;
+            this.password = password;
+        }
     }
 
     @Data
@@ -59,6 +89,21 @@ public class SignatureModel {
         @NotNull(message = "timestamp cannot be null")
         private Timestamp timestamp;
         private boolean enableLtv;
+        @MatchPattern(pattern = DIGEST_ALGORITHM_REGEX_PATTERN, message = "Invalid digestAlgorithm value. Valid values are: SHA-256, SHA-384, SHA-512")
+        private String digestAlgorithm = "SHA-256";
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Signer {
+        @NotNull(message = "signer certInfo cannot be null")
+        @AssertValid
+        private CertInfo certInfo;
+
+        @NotNull(message = "signer options cannot be null")
+        @AssertValid
+        private Options options;
     }
 
     @Data
@@ -81,5 +126,9 @@ public class SignatureModel {
         private String base64Content;
         @NotNull(message = "password cannot be null")
         private String password;
+        /**
+         * Path to the PDF file, used instead of {@code base64Content} for documents too large to send inline.
+         */
+        private String path;
     }
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package com.pyojan.eDastakhat.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import net.sf.oval.constraint.*;
+
+/**
+ * Payload of the {@code -watch} action: the key and signing options applied to every PDF dropped into the folder.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WatchModel {
+
+    @NotNull(message = "CertInfo cannot be null")
+    @AssertValid
+    private SignatureModel.CertInfo certInfo;
+
+    @NotNull(message = "Options cannot be null")
+    @AssertValid
+    private SignatureModel.Options options;
+
+    @Min(value = 0, message = "threads cannot be negative")
+    private int threads;
+}
@@ -0,0 +1,248 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.pyojan.eDastakhat.libs.AppearanceTemplateCache;
+import com.pyojan.eDastakhat.libs.JsonLineWriter;
+import com.pyojan.eDastakhat.libs.KeyStoreCache;
+import com.pyojan.eDastakhat.libs.KeyStoreManager;
+import com.pyojan.eDastakhat.libs.OutputStore;
+import com.pyojan.eDastakhat.libs.Pkcs11KeyStoreManager;
+import com.pyojan.eDastakhat.libs.Response;
+import com.pyojan.eDastakhat.libs.RevocationCache;
+import com.pyojan.eDastakhat.libs.SigningMetrics;
+import com.pyojan.eDastakhat.libs.TsaClientRegistry;
+import com.pyojan.eDastakhat.models.BatchManifestModel;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import net.sf.oval.ConstraintViolation;
+import net.sf.oval.Validator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Signs every PDF listed in a batch manifest with one key that is unlocked once for the whole run.
+ * <p>
+ * Documents are read from disk and signed concurrently. One JSON line is written per document as soon as it
+ * finishes, followed by a summary line with the run's throughput.
+ */
+public class BatchSigning {
+
+    private static final Gson gson = new Gson();
+    private static final int QUEUE_PER_WORKER = 4;
+
+    private final Path manifestPath;
+    private final String outDir;
+    private final JsonLineWriter out = JsonLineWriter.stdout();
+
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesSigned = new AtomicLong();
+
+    /**
+     * @param manifestFilePath Path to the batch manifest JSON file.
+     * @param outRootDir       Directory for the signed files, or {@code null} to use the manifest's directory.
+     */
+    public BatchSigning(String manifestFilePath, String outRootDir) {
+        this.manifestPath = Paths.get(manifestFilePath);
+        if (outRootDir == null || outRootDir.isEmpty()) {
+            Path parent = manifestPath.toAbsolutePath().getParent();
+            outRootDir = parent.toString();
+        }
+        this.outDir = outRootDir;
+    }
+
+    /**
+     * Runs the batch and blocks until every document has been processed.
+     */
+    public void execute() throws IOException, GeneralSecurityException, InterruptedException {
+        BatchManifestModel manifest = loadManifest();
+        SignatureModel.CertInfo certInfo = manifest.getCertInfo();
+        // Unlock the key before the workers start so they never contend on the first unlock.
+        KeyStoreManager keyStoreManager = KeyStoreManager.getInstance(certInfo);
+
+        int threads = manifest.getThreads() > 0 ? manifest.getThreads() : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore slots = new Semaphore(threads * QUEUE_PER_WORKER);
+
+        List<String> outputNames = outputNames(manifest);
+        long start = System.nanoTime();
+        for (int i = 0; i < manifest.getDocuments().size(); i++) {
+            BatchManifestModel.Document document = manifest.getDocuments().get(i);
+            String documentId = documentId(document, i);
+            String outputName = outputNames.get(i);
+            slots.acquire();
+            executor.execute(() -> {
+                try {
+                    signDocument(documentId, document, outputName, manifest, keyStoreManager);
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        out.success("summary", summarize(threads, System.nanoTime() - start));
+    }
+
+    /**
+     * Signs one document of the manifest and writes its result line.
+     *
+     * @param outputName Name of the signed file, from {@link #outputNames(BatchManifestModel)}.
+     * @return The size of the source document, or {@code -1} if it failed.
+     */
+    long signDocument(String documentId, BatchManifestModel.Document document, String outputName, BatchManifestModel manifest, KeyStoreManager keyStoreManager) {
+        long start = System.nanoTime();
+        try {
+            Path source = Paths.get(document.getPath());
+
+            SignatureModel.Options options = gson.fromJson(mergeOptions(manifest.getOptions(), document.getOptions()), SignatureModel.Options.class);
+            SignatureModel.Pdf pdf = new SignatureModel.Pdf(null, document.getPassword() == null ? "" : document.getPassword(), document.getPath());
+            SignatureModel signatureModel = new SignatureModel(manifest.getCertInfo(), options, pdf);
+
+            PdfSigning pdfSigning = new PdfSigning(signatureModel, keyStoreManager, outDir, outputName);
+            HashMap<String, String> result = pdfSigning.signDocument();
+            long bytes = Files.size(source);
+            result.put("source", document.getPath());
+            result.put("bytes", String.valueOf(bytes));
+            result.put("elapsedMillis", formatMillis(System.nanoTime() - start));
+
+            if (Response.INLINE_SIGNED_PDF) {
+                out.success(documentId, result, pdfSigning.getMetrics(), "signedPdf", Paths.get(result.get("filePath")));
+            } else {
+                out.success(documentId, result, pdfSigning.getMetrics());
+            }
+            succeeded.incrementAndGet();
+            bytesSigned.addAndGet(bytes);
+            return bytes;
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            out.error(documentId, e);
+            return -1;
+        } finally {
+            SigningMetrics.clear();
+        }
+    }
+
+    BatchManifestModel loadManifest() throws IOException {
+        BatchManifestModel manifest;
+        try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            manifest = gson.fromJson(reader, BatchManifestModel.class);
+        }
+        if (manifest == null) {
+            throw new IllegalArgumentException("The batch manifest is empty: " + manifestPath);
+        }
+
+        List<ConstraintViolation> violations = new Validator().validate(manifest);
+        if (!violations.isEmpty()) {
+            List<String> errors = violations.stream().map(ConstraintViolation::getMessage).collect(Collectors.toList());
+            throw new IllegalArgumentException(String.valueOf(errors));
+        }
+        KeyStoreManager.check(manifest.getCertInfo());
+        return manifest;
+    }
+
+    /**
+     * Applies the per-document option overrides on top of the manifest defaults. Overrides replace whole fields.
+     */
+    private JsonObject mergeOptions(JsonObject defaults, JsonObject overrides) {
+        if (overrides == null) {
+            return defaults;
+        }
+        JsonObject merged = defaults.deepCopy();
+        for (Map.Entry<String, JsonElement> entry : overrides.entrySet()) {
+            merged.add(entry.getKey(), entry.getValue());
+        }
+        return merged;
+    }
+
+    /**
+     * @return The id of the document at {@code index}: its own, or its position in the manifest counted from 1.
+     */
+    static String documentId(BatchManifestModel.Document document, int index) {
+        return document.getId() != null ? document.getId() : String.valueOf(index + 1);
+    }
+
+    /**
+     * Names the signed file of every document, by position. A document is named {@code <source name>_signed} unless
+     * another document of the manifest has the same source name, from another directory or listed twice; those are
+     * named {@code <source name>_<id>_signed}, so no two results write the same file.
+     */
+    static List<String> outputNames(BatchManifestModel manifest) {
+        List<BatchManifestModel.Document> documents = manifest.getDocuments();
+        Map<String, Integer> sourceNames = new HashMap<>();
+        for (BatchManifestModel.Document document : documents) {
+            sourceNames.merge(baseName(Paths.get(document.getPath())).toLowerCase(Locale.ROOT), 1, Integer::sum);
+        }
+        List<String> names = new ArrayList<>(documents.size());
+        Set<String> taken = new HashSet<>();
+        for (int i = 0; i < documents.size(); i++) {
+            String baseName = baseName(Paths.get(documents.get(i).getPath()));
+            String name = sourceNames.get(baseName.toLowerCase(Locale.ROOT)) == 1
+                    ? baseName + "_signed"
+                    : baseName + "_" + documentId(documents.get(i), i).replaceAll("[^A-Za-z0-9._-]", "_") + "_signed";
+            // Compared without case, as on the file systems of Windows and macOS.
+            if (!taken.add(name.toLowerCase(Locale.ROOT))) {
+                throw new IllegalArgumentException("Two documents would both be signed to " + name + ".pdf (id "
+                        + documentId(documents.get(i), i) + "); give them distinct ids.");
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    private static String baseName(Path source) {
+        String name = source.getFileName().toString();
+        int extension = name.toLowerCase(Locale.ROOT).lastIndexOf(".pdf");
+        return extension > 0 ? name.substring(0, extension) : name;
+    }
+
+    static String signedFileName(Path source) {
+        return baseName(source) + "_signed";
+    }
+
+    HashMap<String, String> summarize(int threads, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long documents = succeeded.get() + failed.get();
+
+        HashMap<String, String> summary = new HashMap<>();
+        summary.put("documents", String.valueOf(documents));
+        summary.put("succeeded", String.valueOf(succeeded.get()));
+        summary.put("failed", String.valueOf(failed.get()));
+        summary.put("threads", String.valueOf(threads));
+        summary.put("elapsedMillis", formatMillis(elapsedNanos));
+        summary.put("documentsPerSecond", String.format("%.2f", documents / seconds));
+        summary.put("megabytesPerSecond", String.format("%.2f", bytesSigned.get() / 1048576.0 / seconds));
+        summary.putAll(KeyStoreCache.getInstance().getStats());
+        summary.putAll(TsaClientRegistry.getInstance().getStats());
+        summary.putAll(RevocationCache.getInstance().getStats());
+        summary.putAll(AppearanceTemplateCache.getInstance().getStats());
+        summary.putAll(OutputStore.getInstance().getStats());
+        summary.putAll(Pkcs11KeyStoreManager.getStats());
+        return summary;
+    }
+
+    static String formatMillis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
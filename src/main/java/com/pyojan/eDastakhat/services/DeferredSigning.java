@@ -0,0 +1,348 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.Gson;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.security.*;
+import com.pyojan.eDastakhat.libs.KeyStoreManager;
+import com.pyojan.eDastakhat.libs.OutputStore;
+import com.pyojan.eDastakhat.models.FinalizeModel;
+import com.pyojan.eDastakhat.models.HashSigningModel;
+import com.pyojan.eDastakhat.models.PrepareModel;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import net.sf.oval.ConstraintViolation;
+import net.sf.oval.Validator;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Splits a signature into three steps so PDF processing and the private key can live on different machines.
+ * <ol>
+ *     <li>{@link #prepare} reserves the signature field in a placeholder PDF and returns the digest of its
+ *     byte range, hashed with {@code options.digestAlgorithm}. It needs only the signer's certificate chain.</li>
+ *     <li>{@link #signHashes} builds the CMS signatures for many digests with one unlocked key.</li>
+ *     <li>{@link #finalizeSignature} checks a CMS signature against the placeholder PDF and injects it.</li>
+ * </ol>
+ */
+public class DeferredSigning {
+
+    private static final Gson gson = new Gson();
+    private static final String PREPARED_NAME_SUFFIX = ".prepared";
+    private static final String PREPARED_SUFFIX = PREPARED_NAME_SUFFIX + ".pdf";
+    /**
+     * The key holder may add a timestamp that the preparing node cannot size, so iText's default is reserved.
+     */
+    private static final int TIMESTAMP_TOKEN_RESERVE = 8192;
+
+    private final String outDir;
+
+    /**
+     * @param outRootDir Directory for the prepared and signed files.
+     */
+    public DeferredSigning(String outRootDir) {
+        this.outDir = outRootDir;
+    }
+
+    /**
+     * Reads and validates a deferred signing payload.
+     *
+     * @param payloadPath Path to the payload JSON file.
+     * @param type        Payload model class.
+     * @return The validated payload.
+     * @throws IllegalArgumentException if the payload is empty or invalid.
+     */
+    public static <T> T loadPayload(Path payloadPath, Class<T> type) throws IOException {
+        T payload;
+        try (Reader reader = Files.newBufferedReader(payloadPath, StandardCharsets.UTF_8)) {
+            payload = gson.fromJson(reader, type);
+        }
+        if (payload == null) {
+            throw new IllegalArgumentException("The payload is empty: " + payloadPath);
+        }
+        return payload;
+    }
+
+    /**
+     * Writes a placeholder PDF with an empty signature of the estimated size and returns the digest to sign.
+     *
+     * @param prepareModel Document, appearance options and signer certificate chain.
+     * @return Response data with {@code preparedPath}, {@code fieldName}, {@code digestAlgorithm}, {@code digest}
+     * (Base64) and {@code reservedBytes}.
+     */
+    public HashMap<String, String> prepare(PrepareModel prepareModel) throws IOException, GeneralSecurityException {
+        validate(prepareModel);
+        SignatureModel.Options options = prepareModel.getOptions();
+        if ("A".equalsIgnoreCase(options.getPage())) {
+            throw new IllegalArgumentException("Deferred signing signs a single page. Page A is not supported.");
+        }
+
+        Certificate[] certChain = readCertificateChain(Paths.get(prepareModel.getCertificatePath()));
+        SignatureModel.Pdf pdf = prepareModel.getPdf();
+        byte[] password = pdf.getPassword() == null ? new byte[0] : pdf.getPassword().getBytes();
+
+        PdfReader reader;
+        long documentSize;
+        if (pdf.getPath() != null && !pdf.getPath().isEmpty()) {
+            Path pdfPath = Paths.get(pdf.getPath());
+            if (!Files.isRegularFile(pdfPath)) {
+                throw new FileNotFoundException("PDF path is incorrect or the file does not exist.");
+            }
+            documentSize = Files.size(pdfPath);
+            reader = PdfSigning.openReader(pdfPath, password);
+        } else {
+            byte[] pdfBytes = decodeBase64(pdf.getBase64Content(), "Invalid PDF base64 content. Please ensure that the provided base64 content represents a valid PDF document.");
+            documentSize = pdfBytes.length;
+            reader = PdfSigning.openReader(pdfBytes, password);
+        }
+
+        int pageNumber = PdfSigning.getSignaturePageNumber(options.getPage(), reader.getNumberOfPages());
+        String fieldName = PdfSigning.newFieldName(pageNumber);
+        boolean isTimestamp = options.getTimestamp().isEnabled();
+        int reservedBytes = PdfSigning.estimateSignatureSize(certChain, isTimestamp ? TIMESTAMP_TOKEN_RESERVE : 0);
+
+        // Unique per job, and committed without replacing anything, so concurrent jobs never touch each other's file.
+        String preparedName = fieldName + "_" + UUID.randomUUID() + PREPARED_NAME_SUFFIX;
+        Path preparedPath;
+        String digestAlgorithm = PdfSigning.getDigestAlgorithm(options);
+        ByteRangeDigest byteRangeDigest = new ByteRangeDigest(digestAlgorithm);
+        boolean spill = documentSize >= PdfSigning.SPILL_THRESHOLD_BYTES;
+        try (OutputStore.Pending output = OutputStore.getInstance().create(Paths.get(outDir), preparedName)) {
+            try (OutputStream preparedPdfOutputStream = spill ? null : new BufferedOutputStream(Files.newOutputStream(output.getTempPath()))) {
+                PdfStamper stamper = PdfSigning.createSignatureStamper(reader, preparedPdfOutputStream, spill ? output.getTempPath().toFile() : null);
+                PdfSignatureAppearance appearance = PdfSigning.getPdfSignatureAppearance(stamper,
+                        PdfSigning.getSignatureRectangle(options.getCoord()), pageNumber, fieldName,
+                        options.isChangesAllowed(), options.getReason(), options.getLocation(), options.isGreenTick(), certChain[0]);
+                MakeSignature.signExternalContainer(appearance, byteRangeDigest, reservedBytes);
+            } catch (DocumentException e) {
+                throw new IOException("ERROR: " + e.getMessage(), e);
+            }
+            preparedPath = output.commit();
+        } finally {
+            reader.close();
+        }
+
+        HashMap<String, String> prepareDataMap = new HashMap<>();
+        prepareDataMap.put("preparedPath", preparedPath.toString());
+        prepareDataMap.put("fieldName", fieldName);
+        prepareDataMap.put("digestAlgorithm", digestAlgorithm);
+        prepareDataMap.put("digest", Base64.getEncoder().encodeToString(byteRangeDigest.digest));
+        prepareDataMap.put("reservedBytes", String.valueOf(reservedBytes));
+        return prepareDataMap;
+    }
+
+    /**
+     * Builds a CAdES-detached CMS signature for every digest with one unlocked key.
+     *
+     * @param hashSigningModel Key, optional timestamp and the digests to sign.
+     * @return The Base64 CMS signature of each digest, keyed by the digest's id.
+     * @throws IllegalArgumentException if a digest is malformed or two digests share an id.
+     */
+    public HashMap<String, String> signHashes(HashSigningModel hashSigningModel) throws IOException, GeneralSecurityException {
+        validate(hashSigningModel);
+        List<HashSigningModel.Hash> hashes = hashSigningModel.getHashes();
+        String digestAlgorithm = PdfSigning.getDigestAlgorithm(hashSigningModel.getDigestAlgorithm());
+        int digestLength = new BouncyCastleDigest().getMessageDigest(digestAlgorithm).getDigestLength();
+        // Reject a malformed digest or a repeated id before anything is signed or timestamped.
+        byte[][] documentDigests = new byte[hashes.size()][];
+        Set<String> ids = new HashSet<>();
+        for (int k = 0; k < documentDigests.length; k++) {
+            if (!ids.add(hashes.get(k).getId())) {
+                throw new IllegalArgumentException("Duplicate hash id '" + hashes.get(k).getId() + "'. Every digest needs its own id.");
+            }
+            String message = "Invalid digest for '" + hashes.get(k).getId() + "'. Expected a Base64 " + digestAlgorithm + " digest.";
+            documentDigests[k] = decodeBase64(hashes.get(k).getDigest(), message);
+            if (documentDigests[k].length != digestLength) {
+                throw new IllegalArgumentException(message);
+            }
+        }
+
+        SignatureModel.CertInfo certInfo = hashSigningModel.getCertInfo();
+        KeyStoreManager keyStoreManager = KeyStoreManager.getInstance(certInfo);
+        Certificate[] certChain = keyStoreManager.getCertificateChain();
+
+        SignatureModel.Timestamp timestamp = hashSigningModel.getTimestamp();
+        boolean isTimestamp = timestamp != null && timestamp.isEnabled() && timestamp.getUrl() != null && !timestamp.getUrl().isEmpty();
+        TSAClient tsaClient = isTimestamp ? PdfSigning.createTsaClient(timestamp) : null;
+
+        ExternalDigest digest = new BouncyCastleDigest();
+        ExternalSignature signature = keyStoreManager.getSignature(digestAlgorithm);
+
+        HashMap<String, String> signatures = new HashMap<>();
+        for (int k = 0; k < documentDigests.length; k++) {
+            byte[] documentDigest = documentDigests[k];
+
+            // Mirrors MakeSignature.signDetached, starting from the digest instead of the document.
+            PdfPKCS7 pkcs7 = new PdfPKCS7(null, certChain, digestAlgorithm, null, digest, false);
+            byte[] attributes = pkcs7.getAuthenticatedAttributeBytes(documentDigest, null, null, MakeSignature.CryptoStandard.CADES);
+            pkcs7.setExternalDigest(signature.sign(attributes), null, signature.getEncryptionAlgorithm());
+            byte[] cms = pkcs7.getEncodedPKCS7(documentDigest, tsaClient, null, null, MakeSignature.CryptoStandard.CADES);
+            signatures.put(hashes.get(k).getId(), Base64.getEncoder().encodeToString(cms));
+        }
+        return signatures;
+    }
+
+    /**
+     * Injects a CMS signature into the placeholder PDF written by {@link #prepare}. The signature is verified
+     * against the placeholder's byte range first, so a signature for another document is rejected.
+     *
+     * @param finalizeModel Placeholder PDF, field name and CMS signature.
+     * @return Response data with {@code fileName} and {@code filePath} of the signed PDF.
+     */
+    public HashMap<String, String> finalizeSignature(FinalizeModel finalizeModel) throws IOException, GeneralSecurityException {
+        validate(finalizeModel);
+        Path preparedPath = Paths.get(finalizeModel.getPreparedPath());
+        if (Files.notExists(preparedPath)) {
+            throw new FileNotFoundException("Prepared PDF path is incorrect or the file does not exist.");
+        }
+        byte[] cms = decodeBase64(finalizeModel.getSignature(), "Invalid signature. Expected a Base64 CMS signature.");
+        String password = finalizeModel.getPassword();
+
+        Path outputPath;
+        PdfReader reader = PdfSigning.openReader(preparedPath, password == null ? new byte[0] : password.getBytes());
+        try (OutputStore.Pending output = OutputStore.getInstance().create(Paths.get(outDir), signedFileName(preparedPath))) {
+            try (OutputStream signedPdfOutputStream = new BufferedOutputStream(Files.newOutputStream(output.getTempPath()))) {
+                MakeSignature.signDeferred(reader, finalizeModel.getFieldName(), signedPdfOutputStream, new VerifiedSignature(cms));
+            } catch (DocumentException e) {
+                throw new IOException("ERROR: " + e.getMessage(), e);
+            } finally {
+                reader.close();
+            }
+            outputPath = output.commit();
+        }
+        String fileName = outputPath.getFileName().toString();
+
+        HashMap<String, String> signDataMap = new HashMap<>();
+        signDataMap.put("fileName", fileName.substring(0, fileName.length() - ".pdf".length()));
+        signDataMap.put("filePath", outputPath.toString());
+        return signDataMap;
+    }
+
+    private static void validate(Object payload) {
+        List<ConstraintViolation> violations = new Validator().validate(payload);
+        if (!violations.isEmpty()) {
+            List<String> errors = violations.stream().map(ConstraintViolation::getMessage).collect(Collectors.toList());
+            throw new IllegalArgumentException(String.valueOf(errors));
+        }
+    }
+
+    private static byte[] decodeBase64(String content, String message) {
+        if (content == null) {
+            throw new IllegalArgumentException(message);
+        }
+        try {
+            return Base64.getDecoder().decode(content);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    private static Certificate[] readCertificateChain(Path certificatePath) throws IOException, GeneralSecurityException {
+        if (Files.notExists(certificatePath)) {
+            throw new IOException("Certificate path is incorrect or the file does not exist.");
+        }
+        Collection<? extends Certificate> certificates;
+        try (InputStream in = Files.newInputStream(certificatePath)) {
+            certificates = CertificateFactory.getInstance("X.509").generateCertificates(in);
+        }
+        if (certificates.isEmpty()) {
+            throw new IllegalArgumentException("The certificate file does not contain a certificate: " + certificatePath);
+        }
+        return certificates.toArray(new Certificate[0]);
+    }
+
+    private static String signedFileName(Path preparedPath) {
+        String name = preparedPath.getFileName().toString();
+        if (name.endsWith(PREPARED_SUFFIX)) {
+            return name.substring(0, name.length() - PREPARED_SUFFIX.length());
+        }
+        int extension = name.toLowerCase().lastIndexOf(".pdf");
+        return (extension > 0 ? name.substring(0, extension) : name) + "_signed";
+    }
+
+    /**
+     * Leaves the signature empty and keeps the digest of the byte range it covers.
+     */
+    private static class ByteRangeDigest implements ExternalSignatureContainer {
+        private final String algorithm;
+        private byte[] digest;
+
+        ByteRangeDigest(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public byte[] sign(InputStream data) throws GeneralSecurityException {
+            try {
+                digest = DigestAlgorithms.digest(data, new BouncyCastleDigest().getMessageDigest(algorithm));
+            } catch (IOException e) {
+                throw new GeneralSecurityException("Could not read the prepared document.", e);
+            }
+            return new byte[0];
+        }
+
+        @Override
+        public void modifySigningDictionary(PdfDictionary signDic) {
+            signDic.put(PdfName.FILTER, PdfName.ADOBE_PPKLITE);
+            signDic.put(PdfName.SUBFILTER, PdfName.ETSI_CADES_DETACHED);
+        }
+    }
+
+    /**
+     * Supplies a CMS signature computed elsewhere, after checking that it signs the byte range it is injected into.
+     */
+    private static class VerifiedSignature implements ExternalSignatureContainer {
+        private final byte[] cms;
+
+        VerifiedSignature(byte[] cms) {
+            this.cms = cms;
+        }
+
+        @Override
+        public byte[] sign(InputStream data) throws GeneralSecurityException {
+            PdfPKCS7 pkcs7;
+            try {
+                // iText matches the signer certificate only with BouncyCastle's certificate parser.
+                pkcs7 = new PdfPKCS7(cms, PdfName.ETSI_CADES_DETACHED, PfxProcessor.BC_PROVIDER.getName());
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = data.read(buffer)) > 0) {
+                    pkcs7.update(buffer, 0, read);
+                }
+            } catch (IOException | RuntimeException e) {
+                throw new GeneralSecurityException("Invalid signature: " + e.getMessage(), e);
+            }
+            if (!pkcs7.verify()) {
+                throw new GeneralSecurityException("The signature does not match the prepared document.");
+            }
+            return cms;
+        }
+
+        @Override
+        public void modifySigningDictionary(PdfDictionary signDic) {
+        }
+    }
+}
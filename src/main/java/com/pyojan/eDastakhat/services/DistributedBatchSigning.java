@@ -0,0 +1,536 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.Gson;
+import com.pyojan.eDastakhat.libs.JsonLineWriter;
+import com.pyojan.eDastakhat.libs.KeyStoreManager;
+import com.pyojan.eDastakhat.models.BatchManifestModel;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs one batch manifest with several worker processes, on one machine or many, that share nothing but a directory.
+ * <p>
+ * The documents are split into shards of {@code eDastakhat.cluster.shardSize} (default 100). The run directory,
+ * {@code <manifest>.run} unless {@code eDastakhat.cluster.dir} names another, holds:
+ * <ul>
+ *     <li>{@code plan.json}: the document count and shard size, written by the first worker to start, which acts as
+ *     the coordinator, and read by all the others.</li>
+ *     <li>{@code leases/shard-N.lease}: the worker signing shard N, created exclusively. Its worker touches it every
+ *     third of {@code eDastakhat.cluster.leaseSeconds} (default 60); a lease left alone for that long belongs to a
+ *     dead worker and is taken over.</li>
+ *     <li>{@code journal/shard-N.json}: the counts of a finished shard. Journaled shards are never signed again, so a
+ *     restarted run only signs what is left.</li>
+ *     <li>{@code journal/shard-N.progress}: a line per document of an unfinished shard that was signed, written once
+ *     its output file is in place. A shard claimed again after its worker died or the run was restarted skips those
+ *     documents, since the output store would keep a second signed copy of each beside the first.</li>
+ * </ul>
+ * A worker claims its next shard as soon as every document of the current one is queued, so its threads never idle at
+ * the end of a shard, and it stays until every shard is journaled to report the throughput of the whole run. Shards
+ * are signed at least once: a worker that stalls for longer than the lease can finish a shard that was taken over, and
+ * a document being signed when its worker died is signed again.
+ */
+public class DistributedBatchSigning {
+
+    private static final Gson gson = new Gson();
+    private static final int QUEUE_PER_WORKER = 4;
+    private static final int SHARD_SIZE = Math.max(Integer.getInteger("eDastakhat.cluster.shardSize", 100), 1);
+    private static final long LEASE_MILLIS = TimeUnit.SECONDS.toMillis(Math.max(Long.getLong("eDastakhat.cluster.leaseSeconds", 60L), 3L));
+    // How often a worker without a shard to claim looks for leases that expired or were journaled.
+    private static final long POLL_MILLIS = Math.min(LEASE_MILLIS / 4, 5000);
+
+    private final BatchSigning batch;
+    private final Path runDir;
+    private final Path leaseDir;
+    private final Path journalDir;
+    private final String workerId;
+    private final JsonLineWriter out = JsonLineWriter.stdout();
+
+    // Shards this worker is signing, and the token of its lease on each until it is lost.
+    private final Set<Integer> active = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, String> leases = new ConcurrentHashMap<>();
+    private final BitSet journaled = new BitSet();
+    private int cursor;
+
+    private final AtomicLong shardsSigned = new AtomicLong();
+    private final AtomicLong takeovers = new AtomicLong();
+    private final AtomicLong leasesLost = new AtomicLong();
+    private final AtomicLong documentsResumed = new AtomicLong();
+
+    /**
+     * @param manifestFilePath Path to the batch manifest JSON file, the same for every worker.
+     * @param outRootDir       Directory for the signed files, or {@code null} to use the manifest's directory.
+     */
+    public DistributedBatchSigning(String manifestFilePath, String outRootDir) {
+        this.batch = new BatchSigning(manifestFilePath, outRootDir);
+        String dir = System.getProperty("eDastakhat.cluster.dir");
+        this.runDir = dir != null ? Paths.get(dir) : Paths.get(Paths.get(manifestFilePath).toAbsolutePath() + ".run");
+        this.leaseDir = runDir.resolve("leases");
+        this.journalDir = runDir.resolve("journal");
+        this.workerId = System.getProperty("eDastakhat.cluster.workerId", ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * Signs shards until every shard of the run is journaled, by this worker or others.
+     */
+    public void execute() throws IOException, GeneralSecurityException, InterruptedException {
+        BatchManifestModel manifest = batch.loadManifest();
+        List<BatchManifestModel.Document> documents = manifest.getDocuments();
+        List<String> outputNames = BatchSigning.outputNames(manifest);
+        Plan plan = loadPlan(documents.size());
+        int shards = plan.shards();
+        KeyStoreManager keyStoreManager = KeyStoreManager.getInstance(manifest.getCertInfo());
+
+        int threads = manifest.getThreads() > 0 ? manifest.getThreads() : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore slots = new Semaphore(threads * QUEUE_PER_WORKER);
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "eDastakhat-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::renewLeases, LEASE_MILLIS / 3, LEASE_MILLIS / 3, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        try {
+            int index;
+            while ((index = claimNext(shards)) >= 0) {
+                int from = index * plan.getShardSize();
+                Shard shard = new Shard(index, Math.min(from + plan.getShardSize(), documents.size()) - from);
+                Map<Integer, Long> signedBefore = readProgress(index);
+                for (int i = from; i < from + shard.documents; i++) {
+                    BatchManifestModel.Document document = documents.get(i);
+                    String documentId = BatchSigning.documentId(document, i);
+                    Long bytes = signedBefore.get(i);
+                    if (bytes != null) {
+                        // Signed by a worker that held the shard before; its output file is already there.
+                        documentsResumed.incrementAndGet();
+                        shard.signed(i, documentId, bytes, false);
+                        continue;
+                    }
+                    String outputName = outputNames.get(i);
+                    int position = i;
+                    slots.acquire();
+                    executor.execute(() -> {
+                        try {
+                            shard.signed(position, documentId, batch.signDocument(documentId, document, outputName, manifest, keyStoreManager), true);
+                        } finally {
+                            slots.release();
+                        }
+                    });
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            heartbeat.shutdownNow();
+        }
+
+        HashMap<String, String> summary = batch.summarize(threads, System.nanoTime() - start);
+        summary.put("worker", workerId);
+        summary.put("shards", String.valueOf(shardsSigned.get()));
+        summary.put("leaseTakeovers", String.valueOf(takeovers.get()));
+        summary.put("leasesLost", String.valueOf(leasesLost.get()));
+        summary.put("documentsResumed", String.valueOf(documentsResumed.get()));
+        out.success("summary", summary);
+        out.success("cluster", clusterStatus(plan));
+    }
+
+    /**
+     * Prints the progress and throughput of the run across all workers, without signing anything.
+     */
+    public void status() throws IOException {
+        Path planFile = runDir.resolve("plan.json");
+        if (!Files.exists(planFile)) {
+            throw new NoSuchFileException(planFile.toString(), null, "No distributed batch has been started for this manifest.");
+        }
+        out.success("cluster", clusterStatus(readJson(planFile, Plan.class)));
+    }
+
+    /**
+     * Reads the shard plan of the run, writing it first if this worker is the first to start.
+     */
+    private Plan loadPlan(int documents) throws IOException {
+        Files.createDirectories(leaseDir);
+        Files.createDirectories(journalDir);
+        Path planFile = runDir.resolve("plan.json");
+        if (!Files.exists(planFile)) {
+            Path temp = runDir.resolve("plan.json." + UUID.randomUUID() + ".tmp");
+            Files.write(temp, gson.toJson(new Plan(documents, SHARD_SIZE, System.currentTimeMillis())).getBytes(StandardCharsets.UTF_8));
+            try {
+                // Linking fails if the file exists, so of several workers starting together exactly one plans the run.
+                Files.createLink(planFile, temp);
+            } catch (FileAlreadyExistsException e) {
+                // Planned by another worker.
+            } catch (UnsupportedOperationException e) {
+                Files.move(temp, planFile, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        Plan plan = readJson(planFile, Plan.class);
+        if (plan.getDocuments() != documents) {
+            throw new IllegalArgumentException("The manifest lists " + documents + " documents, but " + runDir + " was planned for "
+                    + plan.getDocuments() + "; delete it to start the run over.");
+        }
+        return plan;
+    }
+
+    /**
+     * Claims the next shard that is neither journaled nor leased, waiting for the leases of other workers to be
+     * journaled or to expire when there is none left.
+     *
+     * @return The claimed shard, or {@code -1} once every shard is journaled or being signed by this worker.
+     */
+    private int claimNext(int shards) throws IOException, InterruptedException {
+        boolean leasedElsewhere = false;
+        while (true) {
+            while (cursor < shards) {
+                int shard = cursor++;
+                if (isJournaled(shard) || active.contains(shard)) {
+                    continue;
+                }
+                if (Files.exists(journalFile(shard))) {
+                    markJournaled(shard);
+                    continue;
+                }
+                if (claim(shard)) {
+                    return shard;
+                }
+                leasedElsewhere = true;
+            }
+            if (!leasedElsewhere) {
+                return -1;
+            }
+            Thread.sleep(POLL_MILLIS);
+            cursor = 0;
+            leasedElsewhere = false;
+        }
+    }
+
+    private boolean claim(int shard) throws IOException {
+        Path lease = leaseFile(shard);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            String token = workerId + ' ' + UUID.randomUUID();
+            try {
+                Files.write(lease, token.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                if (!expire(lease)) {
+                    return false;
+                }
+                continue;
+            }
+            // The previous holder may have journaled the shard and released its lease just before.
+            if (Files.exists(journalFile(shard))) {
+                Files.deleteIfExists(lease);
+                markJournaled(shard);
+                return false;
+            }
+            active.add(shard);
+            leases.put(shard, token);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a lease that its worker stopped renewing.
+     *
+     * @return Whether the lease is gone.
+     */
+    private boolean expire(Path lease) throws IOException {
+        String holder;
+        try {
+            if (System.currentTimeMillis() - Files.getLastModifiedTime(lease).toMillis() < LEASE_MILLIS) {
+                return false;
+            }
+            holder = readString(lease);
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        // A file can be moved away only once, so only one of the workers that saw the lease expire gets it; that
+        // worker then checks it really moved the lease it saw expire, and not one renewed or re-created meanwhile.
+        Path expired = lease.resolveSibling(lease.getFileName() + "." + UUID.randomUUID() + ".expired");
+        try {
+            Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!readString(expired).equals(holder) || System.currentTimeMillis() - Files.getLastModifiedTime(expired).toMillis() < LEASE_MILLIS) {
+            try {
+                Files.move(expired, lease);
+            } catch (FileAlreadyExistsException e) {
+                Files.delete(expired);
+            }
+            return false;
+        }
+        Files.delete(expired);
+        takeovers.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Touches the lease of every shard this worker is signing, and gives up those taken over by another worker.
+     */
+    private void renewLeases() {
+        for (Map.Entry<Integer, String> lease : leases.entrySet()) {
+            Path file = leaseFile(lease.getKey());
+            try {
+                if (readString(file).equals(lease.getValue())) {
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                    continue;
+                }
+            } catch (NoSuchFileException e) {
+                // Expired and removed by another worker.
+            } catch (IOException e) {
+                // The shared directory may be briefly unavailable; the lease outlives a few missed renewals.
+                continue;
+            }
+            if (leases.remove(lease.getKey(), lease.getValue())) {
+                leasesLost.incrementAndGet();
+            }
+        }
+    }
+
+    private void finish(Shard shard) {
+        try {
+            ShardRecord record = new ShardRecord(shard.index, workerId, shard.documents, shard.succeeded.get(), shard.failed.get(),
+                    shard.bytes.get(), shard.startedMillis, System.currentTimeMillis(), new ArrayList<>(shard.failedIds));
+            Path journal = journalFile(shard.index);
+            Path temp = journalDir.resolve(journal.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            Files.write(temp, gson.toJson(record).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, journal, StandardCopyOption.ATOMIC_MOVE);
+            markJournaled(shard.index);
+            shardsSigned.incrementAndGet();
+            Files.deleteIfExists(progressFile(shard.index));
+
+            String token = leases.remove(shard.index);
+            Path lease = leaseFile(shard.index);
+            if (token != null && readString(lease).equals(token)) {
+                Files.deleteIfExists(lease);
+            }
+        } catch (NoSuchFileException e) {
+            // The lease was taken over; the other worker finds the journal entry when it is done.
+        } catch (IOException e) {
+            // Unjournaled, the shard is signed again once its lease expires.
+            out.error("shard-" + shard.index, e);
+        } finally {
+            active.remove(shard.index);
+        }
+    }
+
+    /**
+     * Records a signed document of a shard that is not journaled yet. A document that fails to be recorded is only
+     * signed again if the shard is claimed again.
+     */
+    private void recordProgress(int shard, int document, long bytes) {
+        try {
+            // One append of one short line, so lines of several threads or workers never interleave.
+            Files.write(progressFile(shard), (document + " " + bytes + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            out.error("shard-" + shard, e);
+        }
+    }
+
+    /**
+     * @return The documents of a shard signed by the workers that held it before, with their sizes, by position in
+     * the manifest.
+     */
+    private Map<Integer, Long> readProgress(int shard) throws IOException {
+        Map<Integer, Long> signed = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(progressFile(shard), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                try {
+                    signed.put(Integer.parseInt(fields[0]), Long.parseLong(fields[1]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    // The last line of a worker that died while writing it.
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing signed yet.
+        }
+        return signed;
+    }
+
+    private HashMap<String, String> clusterStatus(Plan plan) throws IOException {
+        long documents = 0, succeeded = 0, failed = 0, bytes = 0;
+        long started = Long.MAX_VALUE, finished = 0;
+        int shardsJournaled = 0, shardsLeased = 0;
+        Set<String> workers = new HashSet<>();
+        try (DirectoryStream<Path> journal = Files.newDirectoryStream(journalDir, "shard-*.json")) {
+            for (Path file : journal) {
+                ShardRecord record = readJson(file, ShardRecord.class);
+                shardsJournaled++;
+                documents += record.getDocuments();
+                succeeded += record.getSucceeded();
+                failed += record.getFailed();
+                bytes += record.getBytes();
+                started = Math.min(started, record.getStartedMillis());
+                finished = Math.max(finished, record.getFinishedMillis());
+                workers.add(record.getWorker());
+            }
+        }
+        try (DirectoryStream<Path> leased = Files.newDirectoryStream(leaseDir, "shard-*.lease")) {
+            for (Path ignored : leased) {
+                shardsLeased++;
+            }
+        }
+        double seconds = Math.max(finished - started, 1) / 1e3;
+
+        HashMap<String, String> status = new HashMap<>();
+        status.put("shards", String.valueOf(plan.shards()));
+        status.put("shardsJournaled", String.valueOf(shardsJournaled));
+        status.put("shardsLeased", String.valueOf(shardsLeased));
+        status.put("documents", String.valueOf(plan.getDocuments()));
+        status.put("documentsSigned", String.valueOf(documents));
+        status.put("succeeded", String.valueOf(succeeded));
+        status.put("failed", String.valueOf(failed));
+        status.put("workers", String.valueOf(workers.size()));
+        if (shardsJournaled > 0) {
+            status.put("elapsedMillis", String.valueOf(finished - started));
+            status.put("documentsPerSecond", String.format("%.2f", documents / seconds));
+            status.put("megabytesPerSecond", String.format("%.2f", bytes / 1048576.0 / seconds));
+        }
+        return status;
+    }
+
+    private boolean isJournaled(int shard) {
+        synchronized (journaled) {
+            return journaled.get(shard);
+        }
+    }
+
+    private void markJournaled(int shard) {
+        synchronized (journaled) {
+            journaled.set(shard);
+        }
+    }
+
+    private Path leaseFile(int shard) {
+        return leaseDir.resolve(String.format("shard-%06d.lease", shard));
+    }
+
+    private Path journalFile(int shard) {
+        return journalDir.resolve(String.format("shard-%06d.json", shard));
+    }
+
+    private Path progressFile(int shard) {
+        return journalDir.resolve(String.format("shard-%06d.progress", shard));
+    }
+
+    private static String readString(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static <T> T readJson(Path file, Class<T> type) throws IOException {
+        T value = gson.fromJson(readString(file), type);
+        if (value == null) {
+            throw new IOException("Empty distributed batch file: " + file);
+        }
+        return value;
+    }
+
+    private class Shard {
+        private final int index;
+        private final int documents;
+        private final long startedMillis = System.currentTimeMillis();
+        private final AtomicInteger remaining;
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final ConcurrentLinkedQueue<String> failedIds = new ConcurrentLinkedQueue<>();
+
+        Shard(int index, int documents) {
+            this.index = index;
+            this.documents = documents;
+            this.remaining = new AtomicInteger(documents);
+        }
+
+        /**
+         * Counts a signed document, journaling the shard with its last one.
+         *
+         * @param document Position of the document in the manifest.
+         * @param bytes    Size of the document, or {@code -1} if it failed.
+         * @param record   Whether the document was signed now and must be recorded as progress.
+         */
+        void signed(int document, String documentId, long bytes, boolean record) {
+            if (bytes >= 0) {
+                if (record) {
+                    recordProgress(index, document, bytes);
+                }
+                succeeded.incrementAndGet();
+                this.bytes.addAndGet(bytes);
+            } else {
+                failed.incrementAndGet();
+                failedIds.add(documentId);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                finish(this);
+            }
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    private static class Plan {
+        private int documents;
+        private int shardSize;
+        private long createdMillis;
+
+        int shards() {
+            return (documents + shardSize - 1) / shardSize;
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    private static class ShardRecord {
+        private int shard;
+        private String worker;
+        private int documents;
+        private long succeeded;
+        private long failed;
+        private long bytes;
+        private long startedMillis;
+        private long finishedMillis;
+        // Documents that failed, by id, to be signed again by hand or by deleting the shard's journal entry.
+        private List<String> failedIds;
+    }
+}
@@ -0,0 +1,130 @@
+package com.pyojan.eDastakhat.services;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Utilities;
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDeveloperExtension;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.pyojan.eDastakhat.libs.RevocationCache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Writes the PAdES document security store (DSS) that makes signatures verifiable after their certificates expire.
+ * <p>
+ * iText's {@code LtvVerification} writes a separate copy of every response, CRL and certificate for each signature.
+ * Here each one is written once and every signature's VRI entry points at the same arrays, so signing all pages of
+ * a document adds the revocation data once rather than once per page.
+ */
+final class DocumentSecurityStore {
+
+    private DocumentSecurityStore() {
+    }
+
+    /**
+     * Appends an incremental revision holding the revocation data of the given signatures.
+     *
+     * @param reader     The signed document.
+     * @param out        Destination of the document with the new revision.
+     * @param data       Revocation data of the signer's certificate chain.
+     * @param fieldNames Signature fields the data applies to.
+     */
+    static void append(PdfReader reader, OutputStream out, RevocationCache.RevocationData data, List<String> fieldNames) throws IOException, GeneralSecurityException {
+        try {
+            PdfStamper stamper = new PdfStamper(reader, out, '\0', true);
+            PdfWriter writer = stamper.getWriter();
+            writer.addDeveloperExtension(PdfDeveloperExtension.ESIC_1_7_EXTENSIONLEVEL5);
+
+            PdfArray ocsps = writeAll(writer, data.getOcspResponses());
+            PdfArray crls = writeAll(writer, data.getCrls());
+            PdfArray certs = writeAll(writer, data.getCertificates());
+            PdfDictionary vriEntry = new PdfDictionary();
+            if (ocsps.size() > 0) {
+                vriEntry.put(PdfName.OCSP, writer.addToBody(ocsps, false).getIndirectReference());
+            }
+            if (crls.size() > 0) {
+                vriEntry.put(PdfName.CRL, writer.addToBody(crls, false).getIndirectReference());
+            }
+            if (certs.size() > 0) {
+                vriEntry.put(PdfName.CERT, writer.addToBody(certs, false).getIndirectReference());
+            }
+            PdfIndirectReference vriReference = writer.addToBody(vriEntry, false).getIndirectReference();
+
+            PdfDictionary catalog = reader.getCatalog();
+            stamper.markUsed(catalog);
+            PdfDictionary dss = catalog.getAsDict(PdfName.DSS);
+            if (dss == null) {
+                dss = new PdfDictionary();
+            }
+            PdfDictionary vri = dss.getAsDict(PdfName.VRI);
+            if (vri == null) {
+                vri = new PdfDictionary();
+            }
+            AcroFields acroFields = reader.getAcroFields();
+            for (String fieldName : fieldNames) {
+                vri.put(signatureKey(reader, acroFields, fieldName), vriReference);
+            }
+
+            dss.put(PdfName.VRI, writer.addToBody(vri, false).getIndirectReference());
+            putMerged(writer, dss, PdfName.OCSPS, ocsps);
+            putMerged(writer, dss, PdfName.CRLS, crls);
+            putMerged(writer, dss, PdfName.CERTS, certs);
+            catalog.put(PdfName.DSS, writer.addToBody(dss, false).getIndirectReference());
+
+            stamper.close();
+        } catch (DocumentException e) {
+            throw new IOException("ERROR: " + e.getMessage(), e);
+        }
+    }
+
+    private static PdfArray writeAll(PdfWriter writer, List<byte[]> items) throws IOException {
+        PdfArray references = new PdfArray();
+        for (byte[] item : items) {
+            PdfStream stream = new PdfStream(item);
+            stream.flateCompress();
+            references.add(writer.addToBody(stream, false).getIndirectReference());
+        }
+        return references;
+    }
+
+    /**
+     * Adds the new references to an existing DSS array, keeping the entries of earlier signers.
+     */
+    private static void putMerged(PdfWriter writer, PdfDictionary dss, PdfName key, PdfArray added) throws IOException {
+        PdfArray existing = dss.getAsArray(key);
+        if (existing != null) {
+            for (int i = 0; i < added.size(); i++) {
+                existing.add(added.getPdfObject(i));
+            }
+            added = existing;
+        }
+        if (added.size() > 0) {
+            dss.put(key, writer.addToBody(added, false).getIndirectReference());
+        }
+    }
+
+    /**
+     * The VRI key of a signature: the upper-case hex SHA-1 of its {@code /Contents}.
+     */
+    static PdfName signatureKey(PdfReader reader, AcroFields acroFields, String fieldName) throws GeneralSecurityException {
+        PdfDictionary signature = acroFields.getSignatureDictionary(fieldName);
+        if (signature == null) {
+            throw new IllegalStateException("Signature field '" + fieldName + "' was not found in the signed document.");
+        }
+        PdfString contents = signature.getAsString(PdfName.CONTENTS);
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(reader.isEncrypted() ? contents.getBytes() : contents.getOriginalBytes());
+        return new PdfName(Utilities.convertToHex(hash));
+    }
+}
@@ -0,0 +1,477 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.Gson;
+import com.pyojan.eDastakhat.libs.AppearanceTemplateCache;
+import com.pyojan.eDastakhat.libs.JsonLineWriter;
+import com.pyojan.eDastakhat.libs.KeyStoreCache;
+import com.pyojan.eDastakhat.libs.KeyStoreManager;
+import com.pyojan.eDastakhat.libs.LatencyHistogram;
+import com.pyojan.eDastakhat.libs.OutputStore;
+import com.pyojan.eDastakhat.libs.Pkcs11KeyStoreManager;
+import com.pyojan.eDastakhat.libs.RevocationCache;
+import com.pyojan.eDastakhat.libs.SigningMetrics;
+import com.pyojan.eDastakhat.libs.TsaClientRegistry;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import com.pyojan.eDastakhat.models.WatchModel;
+import net.sf.oval.ConstraintViolation;
+import net.sf.oval.Validator;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Signs every PDF dropped into a folder, for systems that can only write files.
+ * <p>
+ * A scanner thread learns of new files from a {@link WatchService}, or by listing the folder every
+ * {@code eDastakhat.watch.pollMillis} where change events are not delivered, such as network mounts
+ * ({@code eDastakhat.watch.poll=true}, and whenever the folder cannot be watched). A file is complete once its size and
+ * modification time have not changed for {@code eDastakhat.watch.stableMillis} or, with {@code eDastakhat.watch.marker}
+ * set to a suffix such as {@code .ready}, once {@code <file><suffix>} exists. Complete files go into a bounded queue
+ * taken by a pool of workers that all sign with the one key unlocked at start. Sources are then moved to the
+ * {@code done} or {@code failed} subfolder. A file dropped again under a name already signed gets a numbered signed
+ * file, as the output store never replaces one, and a name that shows up again while its first file is still being
+ * signed is looked at again once that job is finished.
+ * <p>
+ * Memory stays bounded however many files arrive at once: the scanner waits while the queue is full, and tracks at
+ * most {@code eDastakhat.watch.maxTracked} files that are not queued yet. Files beyond that stay on disk until a later
+ * listing of the folder finds them.
+ */
+public class HotFolderSigning {
+
+    private static final Gson gson = new Gson();
+    private static final boolean POLL = Boolean.getBoolean("eDastakhat.watch.poll");
+    private static final long POLL_MILLIS = Math.max(Long.getLong("eDastakhat.watch.pollMillis", 2000L), 10L);
+    private static final long STABLE_MILLIS = Math.max(Long.getLong("eDastakhat.watch.stableMillis", 1000L), 0L);
+    private static final String MARKER = System.getProperty("eDastakhat.watch.marker", "");
+    private static final int MAX_TRACKED = Math.max(Integer.getInteger("eDastakhat.watch.maxTracked", 10000), 1);
+    private static final long STATS_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("eDastakhat.watch.statsSeconds", 60L));
+    // How often tracked files are checked for completion.
+    private static final long CHECK_MILLIS = Math.max(Math.min(POLL_MILLIS, STABLE_MILLIS / 4), 10L);
+    private static final Job STOP = new Job(null, 0);
+
+    private final Path inbox;
+    private final Path doneDir;
+    private final Path failedDir;
+    private final String outDir;
+    private final WatchModel model;
+    private final KeyStoreManager keyStoreManager;
+    private final int workers;
+    private final BlockingQueue<Job> queue;
+    private final ExecutorService executor;
+    private final JsonLineWriter out = JsonLineWriter.stdout();
+
+    // Files seen but not complete yet, touched by the scanner thread only.
+    private final Map<Path, Candidate> tracked = new LinkedHashMap<>();
+    // Files queued or being signed, which the scanner must not pick up again.
+    private final Set<Path> inProgress = ConcurrentHashMap.newKeySet();
+    // Files moved out by a finished job, for the scanner to look at again: a new file of the same name may have
+    // arrived while the job ran, and its events were ignored then.
+    private final Queue<Path> finished = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+    private volatile boolean polling;
+    private Thread scanner;
+
+    private final AtomicLong detected = new AtomicLong();
+    private final AtomicLong signed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicInteger trackedCount = new AtomicInteger();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Unlocks the key; nothing is watched before {@link #start()}.
+     *
+     * @param inboxDir Folder the files are dropped into.
+     * @param model    Key and signing options for every file.
+     * @param outRootDir Directory for the signed files, or {@code null} for the {@code signed} subfolder.
+     * @param workers  Documents signed concurrently.
+     * @param queue    Complete files waiting for a worker at most.
+     */
+    public HotFolderSigning(String inboxDir, WatchModel model, String outRootDir, int workers, int queue) throws IOException, GeneralSecurityException {
+        if (workers < 1 || queue < 1) {
+            throw new IllegalArgumentException("Hot folder workers and queue must be at least 1.");
+        }
+        this.inbox = Paths.get(inboxDir).toAbsolutePath().normalize();
+        if (!Files.isDirectory(inbox)) {
+            throw new NoSuchFileException(inboxDir, null, "The folder to watch does not exist.");
+        }
+        Path out = outRootDir != null ? Paths.get(outRootDir).toAbsolutePath().normalize() : inbox.resolve("signed");
+        if (out.equals(inbox)) {
+            // Signed files would be picked up and signed again.
+            throw new IllegalArgumentException("The signed files cannot be written to the watched folder itself.");
+        }
+        List<ConstraintViolation> violations = new Validator().validate(model);
+        if (!violations.isEmpty()) {
+            List<String> errors = violations.stream().map(ConstraintViolation::getMessage).collect(Collectors.toList());
+            throw new IllegalArgumentException(String.valueOf(errors));
+        }
+        KeyStoreManager.check(model.getCertInfo());
+
+        this.doneDir = Files.createDirectories(inbox.resolve("done"));
+        this.failedDir = Files.createDirectories(inbox.resolve("failed"));
+        this.outDir = Files.createDirectories(out).toString();
+        this.model = model;
+        this.keyStoreManager = KeyStoreManager.getInstance(model.getCertInfo());
+        this.workers = workers;
+        this.queue = new ArrayBlockingQueue<>(queue);
+        this.executor = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "eDastakhat-watch-sign");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Signs the files already in the folder and every file dropped later, until {@link #stop()} or the process ends.
+     */
+    public void start() throws IOException {
+        WatchService watcher = null;
+        if (!POLL) {
+            try {
+                watcher = inbox.getFileSystem().newWatchService();
+                inbox.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException e) {
+                if (watcher != null) {
+                    watcher.close();
+                }
+                watcher = null;
+            }
+        }
+        polling = watcher == null;
+        running = true;
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::work);
+        }
+        WatchService events = watcher;
+        scanner = new Thread(() -> scan(events), "eDastakhat-watch");
+        scanner.start();
+    }
+
+    /**
+     * Stops watching and waits for the documents being signed; queued files stay in the folder for the next start.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        if (scanner != null) {
+            scanner.interrupt();
+            scanner.join();
+        }
+        queue.clear();
+        for (int i = 0; i < workers; i++) {
+            queue.put(STOP);
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Whether the folder is listed periodically instead of watched.
+     */
+    public boolean isPolling() {
+        return polling;
+    }
+
+    /**
+     * @return Hot folder counters, queue depth and latency, with the cache counters of the process.
+     */
+    public HashMap<String, String> getStats() {
+        HashMap<String, String> stats = new HashMap<>();
+        stats.put("watchDetected", String.valueOf(detected.get()));
+        stats.put("watchSigned", String.valueOf(signed.get()));
+        stats.put("watchFailed", String.valueOf(failed.get()));
+        stats.put("watchTracked", String.valueOf(trackedCount.get()));
+        stats.put("watchQueueDepth", String.valueOf(queue.size()));
+        stats.put("watchQueueMaxDepth", String.valueOf(maxQueueDepth.get()));
+        stats.put("watchQueueCapacity", String.valueOf(queue.size() + queue.remainingCapacity()));
+        stats.put("watchInProgress", String.valueOf(inProgress.size()));
+        queueWait.addTo(stats, "watch.queueWait");
+        latency.addTo(stats, "watch.latency");
+        stats.putAll(KeyStoreCache.getInstance().getStats());
+        stats.putAll(TsaClientRegistry.getInstance().getStats());
+        stats.putAll(RevocationCache.getInstance().getStats());
+        stats.putAll(AppearanceTemplateCache.getInstance().getStats());
+        stats.putAll(OutputStore.getInstance().getStats());
+        stats.putAll(Pkcs11KeyStoreManager.getStats());
+        return stats;
+    }
+
+    private void scan(WatchService watcher) {
+        // The first listing picks up the files dropped while nothing was watching.
+        boolean rescan = true;
+        long nextListing = 0;
+        long nextStats = System.currentTimeMillis() + STATS_MILLIS;
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                if ((rescan || watcher == null) && now >= nextListing) {
+                    rescan = list();
+                    nextListing = now + POLL_MILLIS;
+                }
+                long wait = tracked.isEmpty() ? POLL_MILLIS : CHECK_MILLIS;
+                if (watcher == null) {
+                    Thread.sleep(Math.min(wait, Math.max(nextListing - now, 1)));
+                } else {
+                    WatchKey key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+                    while (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                rescan = true;
+                            } else if (!track(inbox.resolve((Path) event.context()))) {
+                                rescan = true;
+                            }
+                        }
+                        if (!key.reset()) {
+                            // The folder went away or stopped being watchable; carry on by listing it.
+                            watcher = null;
+                            polling = true;
+                            break;
+                        }
+                        key = watcher.poll();
+                    }
+                }
+                if (!trackFinished()) {
+                    rescan = true;
+                }
+                queueComplete();
+                if (System.currentTimeMillis() >= nextStats) {
+                    out.success("stats", getStats());
+                    nextStats = System.currentTimeMillis() + STATS_MILLIS;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException e) {
+                    // Nothing left to watch.
+                }
+            }
+        }
+    }
+
+    /**
+     * Tracks every PDF in the folder that is not tracked or in progress yet.
+     *
+     * @return Whether the folder must be listed again because more files are waiting than can be tracked.
+     */
+    private boolean list() {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inbox)) {
+            for (Path file : files) {
+                if (!track(file)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            // A network mount may be briefly unavailable; the next listing tries again.
+            out.error("watch", e);
+            return false;
+        }
+    }
+
+    /**
+     * Tracks the files that are back in the folder under the name of a finished job.
+     *
+     * @return Whether all of them could be tracked.
+     */
+    private boolean trackFinished() {
+        boolean all = true;
+        for (Path file = finished.poll(); file != null; file = finished.poll()) {
+            if (Files.exists(file) && !track(file)) {
+                all = false;
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return {@code false} if the file is a PDF that could not be tracked because too many are already.
+     */
+    private boolean track(Path file) {
+        if (!file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".pdf") || tracked.containsKey(file) || inProgress.contains(file)) {
+            return true;
+        }
+        if (tracked.size() >= MAX_TRACKED) {
+            return false;
+        }
+        tracked.put(file, new Candidate());
+        trackedCount.set(tracked.size());
+        return true;
+    }
+
+    /**
+     * Moves the tracked files that are complete into the queue, waiting for room while it is full.
+     */
+    private void queueComplete() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Candidate>> entries = tracked.entrySet().iterator();
+        while (entries.hasNext() && running) {
+            Map.Entry<Path, Candidate> entry = entries.next();
+            Path file = entry.getKey();
+            Candidate candidate = entry.getValue();
+            boolean complete;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    entries.remove();
+                    continue;
+                }
+                if (!MARKER.isEmpty()) {
+                    complete = Files.exists(markerOf(file));
+                } else if (attributes.size() != candidate.size || attributes.lastModifiedTime().toMillis() != candidate.modified) {
+                    candidate.size = attributes.size();
+                    candidate.modified = attributes.lastModifiedTime().toMillis();
+                    candidate.unchangedSince = now;
+                    complete = false;
+                } else {
+                    complete = now - candidate.unchangedSince >= STABLE_MILLIS;
+                }
+            } catch (IOException e) {
+                // Deleted or moved away by whoever dropped it.
+                entries.remove();
+                continue;
+            }
+            if (complete) {
+                entries.remove();
+                inProgress.add(file);
+                detected.incrementAndGet();
+                queue.put(new Job(file, candidate.seenNanos));
+                int depth = queue.size();
+                maxQueueDepth.accumulateAndGet(depth, Math::max);
+            }
+        }
+        trackedCount.set(tracked.size());
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == STOP) {
+                return;
+            }
+            sign(job);
+        }
+    }
+
+    private void sign(Job job) {
+        long start = System.nanoTime();
+        queueWait.record(start - job.queuedNanos);
+        Path file = job.file;
+        String fileName = file.getFileName().toString();
+        boolean moved = false;
+        try {
+            // Options are copied for every document, as the signing may adjust them.
+            SignatureModel.Options options = gson.fromJson(gson.toJsonTree(model.getOptions()), SignatureModel.Options.class);
+            SignatureModel signatureModel = new SignatureModel(model.getCertInfo(), options, new SignatureModel.Pdf(null, "", file.toString()));
+            PdfSigning pdfSigning = new PdfSigning(signatureModel, keyStoreManager, outDir, BatchSigning.signedFileName(file));
+            HashMap<String, String> result = pdfSigning.signDocument();
+            result.put("source", moveTo(doneDir, file).toString());
+            moved = true;
+            result.put("elapsedMillis", BatchSigning.formatMillis(System.nanoTime() - start));
+            signed.incrementAndGet();
+            out.success(fileName, result, pdfSigning.getMetrics());
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            try {
+                moveTo(failedDir, file);
+                moved = true;
+            } catch (IOException moveFailure) {
+                e.addSuppressed(moveFailure);
+            }
+            out.error(fileName, e);
+        } finally {
+            if (!MARKER.isEmpty()) {
+                try {
+                    Files.deleteIfExists(markerOf(file));
+                } catch (IOException e) {
+                    // A leftover marker without its PDF is ignored.
+                }
+            }
+            inProgress.remove(file);
+            if (moved) {
+                // Whatever is at the name now is a new file.
+                finished.add(file);
+            }
+            latency.record(System.nanoTime() - job.seenNanos);
+            SigningMetrics.clear();
+        }
+    }
+
+    /**
+     * Moves a source file into a subfolder, numbering the name if a file of that name was moved there before.
+     */
+    private static Path moveTo(Path directory, Path file) throws IOException {
+        String name = file.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        for (int n = 1; ; n++) {
+            Path target = directory.resolve(n == 1 ? name : name.substring(0, extension) + "_" + n + name.substring(extension));
+            if (Files.exists(target)) {
+                continue;
+            }
+            try {
+                return Files.move(file, target);
+            } catch (FileAlreadyExistsException e) {
+                // Taken in the meantime; try the next number.
+            }
+        }
+    }
+
+    private static Path markerOf(Path file) {
+        return file.resolveSibling(file.getFileName() + MARKER);
+    }
+
+    private static class Candidate {
+        private final long seenNanos = System.nanoTime();
+        private long size = -1;
+        private long modified = -1;
+        private long unchangedSince;
+    }
+
+    private static class Job {
+        private final Path file;
+        private final long seenNanos;
+        private final long queuedNanos = System.nanoTime();
+
+        Job(Path file, long seenNanos) {
+            this.file = file;
+            this.seenNanos = seenNanos;
+        }
+    }
+}
@@ -0,0 +1,558 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.pyojan.eDastakhat.libs.AppearanceTemplateCache;
+import com.pyojan.eDastakhat.libs.ErrorCode;
+import com.pyojan.eDastakhat.libs.JsonLineWriter;
+import com.pyojan.eDastakhat.libs.KeyStoreCache;
+import com.pyojan.eDastakhat.libs.LatencyHistogram;
+import com.pyojan.eDastakhat.libs.MultipartReader;
+import com.pyojan.eDastakhat.libs.Pkcs11KeyStoreManager;
+import com.pyojan.eDastakhat.libs.RevocationCache;
+import com.pyojan.eDastakhat.libs.SigningMetrics;
+import com.pyojan.eDastakhat.libs.TsaClientRegistry;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs PDF documents sent over HTTP and streams them back signed, keeping the JVM and the caches warm like
+ * {@link SigningDaemon}, for callers that would otherwise write a payload file and start the application per document.
+ * <p>
+ * {@code POST /sign} takes either a {@code multipart/form-data} body with a {@code payload} part (the signing payload
+ * JSON without {@code pdf.base64Content} and {@code pdf.path}) and a {@code pdf} part, or the raw document as
+ * {@code application/pdf} with the payload JSON in the {@code X-eDastakhat-Payload} header. The document is read into
+ * memory, signed there and written straight into the response as {@code application/pdf}; nothing goes to disk.
+ * Failures answer with the usual JSON error line and a status that follows its {@code code}.
+ * <p>
+ * Requests are admitted up to the number of workers plus the queue. A request beyond that is answered with {@code 429}
+ * and {@code Retry-After} as soon as a connection thread takes it, without its body being read, and its connection is
+ * closed; a client backs off rather than piling up documents in memory. Connections are served by a fixed number of
+ * threads, one per admitted request plus a few spare for rejections, health checks and metrics; further connections
+ * wait for a thread. {@code GET /health} reports whether the service is up and how full it is, and {@code GET /metrics} gives
+ * the request counters, the latency histogram and the cache counters in the Prometheus text format.
+ * <p>
+ * The payload comes from the network, so it may not name arbitrary files: a key is a vault entry by {@code serial}
+ * or {@code alias} in the default vault, and {@code pfxPath}, {@code vaultPath} and {@code pkcs11Library} are
+ * accepted only inside the allowed key paths. Anything else is answered with {@code 400}.
+ */
+public class HttpSigningService {
+
+    private static final Gson gson = new Gson();
+    private static final String PAYLOAD_HEADER = "X-eDastakhat-Payload";
+    private static final String REQUEST_ID_HEADER = "X-Request-Id";
+    private static final int MAX_PAYLOAD_BYTES = 1024 * 1024;
+    private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Connection threads beyond the admitted requests, which answer rejections, health checks and metrics.
+     */
+    private static final int SPARE_CONNECTION_THREADS = 8;
+
+    private final int workers;
+    private final int capacity;
+    private final long maxDocumentBytes;
+    private final List<Path> allowedKeyPaths;
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor connectionExecutor;
+    private final Semaphore admissions;
+    private final AtomicInteger signing = new AtomicInteger();
+    private final AtomicLong signed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private HttpServer server;
+
+    /**
+     * @param workers          Number of documents signed concurrently.
+     * @param queue            Number of admitted documents that may wait for a worker.
+     * @param maxDocumentBytes Largest document accepted, since every admitted one is held in memory.
+     * @param allowedKeyPaths  Files and directories a request may name as its PFX, vault or PKCS#11 library; empty
+     *                         to allow vault entries of the default vault only.
+     */
+    public HttpSigningService(int workers, int queue, long maxDocumentBytes, List<Path> allowedKeyPaths) throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException("HTTP worker count must be at least 1.");
+        }
+        if (queue < 0) {
+            throw new IllegalArgumentException("HTTP queue length cannot be negative.");
+        }
+        this.workers = workers;
+        this.capacity = workers + queue;
+        this.maxDocumentBytes = maxDocumentBytes;
+        this.allowedKeyPaths = new ArrayList<>();
+        for (Path allowed : allowedKeyPaths) {
+            this.allowedKeyPaths.add(realPath(allowed));
+        }
+        this.executor = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "eDastakhat-http-sign");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Each admitted request holds its connection thread until it is answered. Connections beyond the threads
+        // wait in the queue, where they hold a socket but no document.
+        int connectionThreads = capacity + SPARE_CONNECTION_THREADS;
+        this.connectionExecutor = new ThreadPoolExecutor(connectionThreads, connectionThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, "eDastakhat-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.connectionExecutor.allowCoreThreadTimeOut(true);
+        this.admissions = new Semaphore(capacity);
+    }
+
+    /**
+     * Starts serving on the given address and returns; the service runs until {@link #stop()} or the process ends.
+     *
+     * @param address Address to listen on.
+     * @return The address listened on, with the actual port when port 0 was asked for.
+     */
+    public InetSocketAddress start(InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/sign", this::handleSign);
+        server.createContext("/health", this::handleHealth);
+        server.createContext("/metrics", this::handleMetrics);
+        // Connections only read uploads and wait for their document; the signing itself runs on the workers.
+        server.setExecutor(connectionExecutor);
+        server.start();
+        return server.getAddress();
+    }
+
+    /**
+     * Stops accepting requests, gives those in progress a second to finish and stops the workers.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+        }
+        connectionExecutor.shutdown();
+        executor.shutdown();
+    }
+
+    private void handleSign(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        String requestId = exchange.getRequestHeaders().getFirst(REQUEST_ID_HEADER);
+        if (requestId == null) {
+            requestId = String.valueOf(sequence.incrementAndGet());
+        }
+        exchange.getResponseHeaders().set(REQUEST_ID_HEADER, requestId);
+        try {
+            if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                exchange.getResponseHeaders().set("Connection", "close");
+                sendError(exchange, requestId, 405, new IllegalArgumentException("Use POST to sign a document."));
+                return;
+            }
+            if (!admissions.tryAcquire()) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                // The body is left unread, so the connection cannot carry another request.
+                exchange.getResponseHeaders().set("Connection", "close");
+                sendError(exchange, requestId, 429, new RejectedExecutionException("The signing service is busy; " + capacity + " documents are already admitted."));
+                return;
+            }
+            try {
+                signRequest(exchange, requestId);
+            } finally {
+                admissions.release();
+                latency.record(System.nanoTime() - start);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void signRequest(HttpExchange exchange, String requestId) throws IOException {
+        ResponseBody responseBody = new ResponseBody(exchange);
+        try {
+            Upload upload = readUpload(exchange);
+            Future<?> job = executor.submit(() -> {
+                signing.incrementAndGet();
+                try {
+                    sign(upload, responseBody);
+                } finally {
+                    signing.decrementAndGet();
+                }
+                return null;
+            });
+            try {
+                job.get();
+            } catch (InterruptedException e) {
+                job.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while signing request " + requestId + ".");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw (Exception) e.getCause();
+            }
+            responseBody.finish();
+            signed.incrementAndGet();
+            bytesOut.addAndGet(responseBody.getCount());
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            if (responseBody.isStarted()) {
+                // The document is written only once it is signed, so this is the client's connection failing.
+                return;
+            }
+            if (e instanceof JsonSyntaxException || e instanceof IllegalStateException) {
+                e = new IllegalArgumentException("Invalid JSON payload: " + e.getMessage(), e);
+            }
+            sendError(exchange, requestId, statusOf(e), e);
+        }
+    }
+
+    private void sign(Upload upload, OutputStream out) throws IOException, GeneralSecurityException {
+        SignatureModel signatureModel;
+        try (SigningMetrics.Phase phase = SigningMetrics.start().phase("payloadParse")) {
+            phase.addBytes(upload.payload.length());
+            signatureModel = gson.fromJson(upload.payload, SignatureModel.class);
+        }
+        if (signatureModel == null) {
+            throw new IllegalArgumentException("The signing payload is empty.");
+        }
+        checkKeyReferences(signatureModel);
+        SignatureModel.Pdf pdf = signatureModel.getPdf();
+        if (pdf == null) {
+            signatureModel.setPdf(new SignatureModel.Pdf(null, "", null));
+        } else if (pdf.getBase64Content() != null || pdf.getPath() != null) {
+            throw new IllegalArgumentException("The document is the upload; leave pdf.base64Content and pdf.path out of the payload.");
+        } else if (pdf.getPassword() == null) {
+            pdf.setPassword("");
+        }
+        new PdfSigning(signatureModel, upload.pdf).signDocument(out);
+    }
+
+    /**
+     * Rejects a payload whose keys name a file outside the allowed key paths, before anything is opened.
+     */
+    private void checkKeyReferences(SignatureModel signatureModel) throws IOException {
+        List<SignatureModel.CertInfo> certInfos = new ArrayList<>();
+        certInfos.add(signatureModel.getCertInfo());
+        if (signatureModel.getSigners() != null) {
+            for (SignatureModel.Signer signer : signatureModel.getSigners()) {
+                certInfos.add(signer == null ? null : signer.getCertInfo());
+            }
+        }
+        for (SignatureModel.CertInfo certInfo : certInfos) {
+            if (certInfo != null) {
+                checkAllowed("pfxPath", certInfo.getPfxPath());
+                checkAllowed("vaultPath", certInfo.getVaultPath());
+                checkAllowed("pkcs11Library", certInfo.getPkcs11Library());
+            }
+        }
+    }
+
+    private void checkAllowed(String field, String value) throws IOException {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        if (value.chars().noneMatch(Character::isISOControl)) {
+            Path path = realPath(Paths.get(value));
+            for (Path allowed : allowedKeyPaths) {
+                if (path.startsWith(allowed)) {
+                    return;
+                }
+            }
+        }
+        throw new IllegalArgumentException("certInfo." + field + " is not allowed over HTTP. Name a vault entry by serial or alias, "
+                + "or a file under -DeDastakhat.http.allowedKeyPaths.");
+    }
+
+    /**
+     * @return The absolute path with symbolic links resolved as far as it exists, so that a link cannot lead out of
+     * an allowed directory.
+     */
+    private static Path realPath(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath().normalize();
+        Path existing = absolute;
+        while (existing != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        return existing == null ? absolute : existing.toRealPath().resolve(existing.relativize(absolute));
+    }
+
+    /**
+     * @param property {@link File#pathSeparator}-separated files and directories, or {@code null}.
+     * @return The paths of the list, empty for {@code null}.
+     */
+    public static List<Path> parseAllowedKeyPaths(String property) {
+        if (property == null || property.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Path> paths = new ArrayList<>();
+        for (String part : property.split(File.pathSeparator)) {
+            if (!part.trim().isEmpty()) {
+                paths.add(Paths.get(part.trim()));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the payload and the document of a request, either from its parts or from its header and raw body.
+     */
+    private Upload readUpload(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String mediaType = contentType == null ? "" : contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        InputStream in = exchange.getRequestBody();
+        Upload upload = new Upload();
+
+        if ("multipart/form-data".equals(mediaType)) {
+            MultipartReader multipart = new MultipartReader(in, contentType);
+            while (multipart.next()) {
+                if ("payload".equals(multipart.getName())) {
+                    upload.payload = new String(readAll(multipart.getBody(), MAX_PAYLOAD_BYTES, "payload"), StandardCharsets.UTF_8);
+                } else if ("pdf".equals(multipart.getName())) {
+                    upload.pdf = readAll(multipart.getBody(), maxDocumentBytes, "document");
+                }
+            }
+        } else if ("application/pdf".equals(mediaType) || "application/octet-stream".equals(mediaType)) {
+            upload.payload = exchange.getRequestHeaders().getFirst(PAYLOAD_HEADER);
+            upload.pdf = readAll(in, maxDocumentBytes, "document");
+        } else {
+            throw new RequestException(415, "Send the document as multipart/form-data with payload and pdf parts, or as application/pdf with the payload in the " + PAYLOAD_HEADER + " header.");
+        }
+
+        if (upload.payload == null || upload.payload.trim().isEmpty()) {
+            throw new IllegalArgumentException("The signing payload is missing.");
+        }
+        if (upload.pdf == null || upload.pdf.length == 0) {
+            throw new IllegalArgumentException("The PDF document is missing.");
+        }
+        bytesIn.addAndGet(upload.pdf.length);
+        return upload;
+    }
+
+    private static byte[] readAll(InputStream in, long maxBytes, String what) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (out.size() + (long) read > maxBytes) {
+                throw new RequestException(413, "The " + what + " is larger than " + maxBytes + " bytes.");
+            }
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try {
+            HashMap<String, String> health = new HashMap<>();
+            health.put("health", "UP");
+            health.put("workers", String.valueOf(workers));
+            health.put("capacity", String.valueOf(capacity));
+            health.put("admitted", String.valueOf(capacity - admissions.availablePermits()));
+            health.put("signing", String.valueOf(signing.get()));
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            new JsonLineWriter(exchange.getResponseBody()).success(null, health);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = getPrometheusMetrics().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return The service and cache counters in the Prometheus text exposition format.
+     */
+    public String getPrometheusMetrics() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP edastakhat_http_requests_total Signing requests by outcome.\n");
+        out.append("# TYPE edastakhat_http_requests_total counter\n");
+        out.append("edastakhat_http_requests_total{outcome=\"signed\"} ").append(signed.get()).append('\n');
+        out.append("edastakhat_http_requests_total{outcome=\"failed\"} ").append(failed.get()).append('\n');
+        out.append("edastakhat_http_requests_total{outcome=\"rejected\"} ").append(rejected.get()).append('\n');
+        appendGauge(out, "edastakhat_http_admitted", "Requests admitted and not yet answered.", capacity - admissions.availablePermits());
+        appendGauge(out, "edastakhat_http_signing", "Documents being signed.", signing.get());
+        appendGauge(out, "edastakhat_http_capacity", "Requests admitted at most.", capacity);
+        out.append("# HELP edastakhat_http_bytes_total Document bytes received and signed document bytes sent.\n");
+        out.append("# TYPE edastakhat_http_bytes_total counter\n");
+        out.append("edastakhat_http_bytes_total{direction=\"in\"} ").append(bytesIn.get()).append('\n');
+        out.append("edastakhat_http_bytes_total{direction=\"out\"} ").append(bytesOut.get()).append('\n');
+        latency.appendPrometheus(out, "edastakhat_http_request_duration_seconds", "Time from request to response of admitted signing requests.");
+
+        Map<String, String> stats = new TreeMap<>(KeyStoreCache.getInstance().getStats());
+        stats.putAll(TsaClientRegistry.getInstance().getStats());
+        stats.putAll(RevocationCache.getInstance().getStats());
+        stats.putAll(AppearanceTemplateCache.getInstance().getStats());
+        stats.putAll(Pkcs11KeyStoreManager.getStats());
+        for (Map.Entry<String, String> stat : stats.entrySet()) {
+            // Per-TSA entries are keyed by URL, which is no metric name.
+            if (stat.getKey().matches("[A-Za-z]+")) {
+                appendGauge(out, "edastakhat_" + snakeCase(stat.getKey()), stat.getKey() + " counter.", Long.parseLong(stat.getValue()));
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendGauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String snakeCase(String name) {
+        return name.replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Sends the error and completes the response at once. Closing the exchange would first read away up to the
+     * server's drain amount of an unread request body before the response ends.
+     */
+    private void sendError(HttpExchange exchange, String requestId, int status, Throwable e) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            new JsonLineWriter(out).error(requestId, e);
+        }
+    }
+
+    /**
+     * @return The HTTP status for a failure, following its {@link ErrorCode}.
+     */
+    static int statusOf(Throwable e) {
+        if (e instanceof RequestException) {
+            return ((RequestException) e).status;
+        }
+        switch (ErrorCode.of(e)) {
+            case INVALID_ARGUMENT:
+            case FILE_NOT_FOUND:
+            case INVALID_PDF:
+            case PDF_PASSWORD:
+            case PFX_PASSWORD:
+                return 400;
+            case CERTIFICATE_EXPIRED:
+            case CERTIFICATE_INVALID:
+            case CERTIFICATE_REVOKED:
+                return 422;
+            case REVOCATION_UNAVAILABLE:
+            case TSA_UNAVAILABLE:
+                return 502;
+            case BUSY:
+                return 429;
+            case INTERRUPTED:
+                return 503;
+            default:
+                return 500;
+        }
+    }
+
+    private static class Upload {
+        private String payload;
+        private byte[] pdf;
+    }
+
+    /**
+     * A client error with its own HTTP status.
+     */
+    private static class RequestException extends IllegalArgumentException {
+        private final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * The response body of a signed document. The status line and headers are sent with the first byte, which
+     * {@link PdfSigning} writes only once the signature is complete, so a failure before that can still be answered
+     * with an error status.
+     */
+    private static class ResponseBody extends OutputStream {
+        private final HttpExchange exchange;
+        private OutputStream out;
+        private long count;
+
+        ResponseBody(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out == null) {
+                exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+                exchange.sendResponseHeaders(200, 0);
+                out = new BufferedOutputStream(exchange.getResponseBody(), RESPONSE_BUFFER_SIZE);
+            }
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        void finish() throws IOException {
+            if (out == null) {
+                throw new IOException("The signed document is empty.");
+            }
+            out.close();
+        }
+
+        boolean isStarted() {
+            return out != null;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -2,27 +2,53 @@ package com.pyojan.eDastakhat.services;
 
 import com.itextpdf.text.DocumentException;
 import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.io.RandomAccessSource;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.io.WindowRandomAccessSource;
 import com.itextpdf.text.pdf.*;
 import com.itextpdf.text.pdf.security.*;
+import com.pyojan.eDastakhat.libs.AppearanceTemplateCache;
+import com.pyojan.eDastakhat.libs.KeyStoreCache;
 import com.pyojan.eDastakhat.libs.KeyStoreManager;
+import com.pyojan.eDastakhat.libs.MemoryTracker;
+import com.pyojan.eDastakhat.libs.OutputStore;
+import com.pyojan.eDastakhat.libs.PipelinedDigest;
+import com.pyojan.eDastakhat.libs.Response;
+import com.pyojan.eDastakhat.libs.RevocationCache;
 import com.pyojan.eDastakhat.libs.SignValidator;
+import com.pyojan.eDastakhat.libs.SigningMetrics;
+import com.pyojan.eDastakhat.libs.TsaClientRegistry;
 import com.pyojan.eDastakhat.models.SignatureModel;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
-import java.security.PrivateKey;
+import java.security.MessageDigest;
+import java.security.PublicKey;
 import java.security.cert.Certificate;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Base64;
+import java.security.cert.CertificateEncodingException;
+import java.security.interfaces.RSAKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.pyojan.eDastakhat.libs.Response.generateErrorResponse;
 import static com.pyojan.eDastakhat.libs.Response.generateSuccessResponse;
@@ -32,14 +58,79 @@ import static com.pyojan.eDastakhat.libs.Response.generateSuccessResponse;
  */
 public class PdfSigning {
 
-    private final Random random = new Random();
+    /**
+     * Documents of at least this size are signed from disk to disk instead of through in-memory buffers.
+     */
+    static final long SPILL_THRESHOLD_BYTES = Long.getLong("eDastakhat.spill.thresholdBytes", 16L * 1024 * 1024);
+    /**
+     * Provider that hashes the document, or {@code null} for the JDK's own, whose SHA-2 code the JIT replaces with
+     * the processor's SHA instructions where it has them.
+     */
+    private static final String DIGEST_PROVIDER = System.getProperty("eDastakhat.digest.provider");
+
+    private static final Random random = new Random();
     private SignatureModel signatureModel;
+    private byte[] pdfBytes;
+    private Path pdfPath;
+    // Whether pdfPath holds the decoded base64Content of the payload, to be deleted once signed.
+    private boolean temporaryPdf;
     private String outDir;
+    private KeyStoreManager keyStoreManager;
+    private String fileName;
+    private SigningMetrics metrics;
+    // Stream the signed document goes to instead of the output directory.
+    private OutputStream target;
+    private final List<String> signedFieldNames = new ArrayList<>();
 
     public PdfSigning(String pdfContentJSONFilePath, String outRootDir) {
         constructorProcess(pdfContentJSONFilePath, outRootDir);
     }
 
+    /**
+     * Creates a signing job from an already parsed signature model.
+     *
+     * @param signatureModel Signature payload to validate and sign.
+     * @param outRootDir     Root directory for storing signed PDF files.
+     * @throws IOException if the payload is invalid or the PFX file does not exist.
+     */
+    public PdfSigning(SignatureModel signatureModel, String outRootDir) throws IOException {
+        this.metrics = SigningMetrics.join();
+        this.outDir = outRootDir;
+        SignValidator signValidator = new SignValidator(signatureModel);
+        this.signatureModel = signValidator.validateSignatureModel();
+        this.pdfBytes = signValidator.getPdfBytes();
+        this.pdfPath = signValidator.getPdfPath();
+    }
+
+    /**
+     * Creates a signing job that uses an already unlocked key.
+     *
+     * @param signatureModel  Signature payload.
+     * @param keyStoreManager Unlocked key shared between jobs.
+     * @param outRootDir      Root directory for storing signed PDF files.
+     * @param fileName        Name of the signed file without extension, or {@code null} to generate one.
+     * @throws IOException if the payload is invalid or the PFX or PDF file does not exist.
+     */
+    public PdfSigning(SignatureModel signatureModel, KeyStoreManager keyStoreManager, String outRootDir, String fileName) throws IOException {
+        this(signatureModel, outRootDir);
+        this.keyStoreManager = keyStoreManager;
+        this.fileName = fileName;
+    }
+
+    /**
+     * Creates a signing job for a document that arrived on its own, to be signed with {@link #signDocument(OutputStream)}.
+     *
+     * @param signatureModel Signature payload; its {@code pdf} holds only the password.
+     * @param pdfBytes       The document.
+     * @throws IOException if the payload is invalid or the PFX file does not exist.
+     */
+    public PdfSigning(SignatureModel signatureModel, byte[] pdfBytes) throws IOException {
+        this.metrics = SigningMetrics.join();
+        SignValidator signValidator = new SignValidator(signatureModel, pdfBytes);
+        this.signatureModel = signValidator.validateSignatureModel();
+        this.pdfBytes = signValidator.getPdfBytes();
+    }
+
     /**
      * Processes the constructor arguments and initializes the signature model.
      *
@@ -48,13 +139,18 @@ public class PdfSigning {
      */
     private void constructorProcess(String pdfContentJSONFilePath, String outRootDir) {
         try {
+            metrics = SigningMetrics.join();
 
             Path path = Paths.get(pdfContentJSONFilePath);
             if (outRootDir == null || outRootDir.isEmpty()) {
                 outRootDir = path.getParent().toString();
             }
             this.outDir = outRootDir;
-            signatureModel = new SignValidator(path).validateSignatureModel();
+            SignValidator signValidator = new SignValidator(path, SPILL_THRESHOLD_BYTES, Paths.get(outRootDir));
+            signatureModel = signValidator.validateSignatureModel();
+            pdfBytes = signValidator.getPdfBytes();
+            pdfPath = signValidator.getPdfPath();
+            temporaryPdf = signValidator.isTemporaryPdf();
         } catch (IOException e) {
             generateErrorResponse(e);
         }
@@ -66,80 +162,285 @@ public class PdfSigning {
     public void executeSign() {
         try {
             if (signatureModel != null) {
+                HashMap<String, String> result = signDocument();
+                if (Response.INLINE_SIGNED_PDF) {
+                    generateSuccessResponse(result, getMetrics(), "signedPdf", Paths.get(result.get("filePath")));
+                } else {
+                    generateSuccessResponse(result, getMetrics());
+                }
+            }
 
-                String signData;
+        } catch (GeneralSecurityException | IOException e) {
+            generateErrorResponse(e);
+        }
+    }
 
-                if (signatureModel.getPdf().getBase64Content() == null)
-                    throw new IllegalArgumentException("Expected a base64 encoded PDF content. Please ensure that the provided base64 content represents a valid PDF document.");
-                SignatureModel.Pdf pdf = signatureModel.getPdf();
+    /**
+     * Signs the document described by the signature model and writes it to the output directory.
+     *
+     * @return Response data describing the signed file.
+     * @throws GeneralSecurityException if the key could not be unlocked or the signature could not be created.
+     * @throws IOException              if the document could not be read or written.
+     */
+    public HashMap<String, String> signDocument() throws GeneralSecurityException, IOException {
+        if (metrics == null) {
+            metrics = SigningMetrics.join();
+        }
+        try {
+            return signDocumentOnThisThread();
+        } finally {
+            SigningMetrics.clear();
+            if (temporaryPdf) {
+                Files.deleteIfExists(pdfPath);
+            }
+        }
+    }
 
-                if (signatureModel.getOptions() == null)
-                    throw new IllegalArgumentException("Expected a signature options object. Please ensure that the provided options are valid.");
-                SignatureModel.Options options = signatureModel.getOptions();
+    /**
+     * Signs the document into the given stream instead of a file. The document is signed in memory whatever its
+     * size, nothing is written to disk, and the stream is written to only once the signature is complete.
+     *
+     * @param out Stream for the signed document, left open.
+     * @return Response data describing the signature, without {@code fileName} and {@code filePath}.
+     * @throws GeneralSecurityException if the key could not be unlocked or the signature could not be created.
+     * @throws IOException              if the document could not be read or written.
+     */
+    public HashMap<String, String> signDocument(OutputStream out) throws GeneralSecurityException, IOException {
+        this.target = out;
+        return signDocument();
+    }
+
+    /**
+     * @return The timings of the latest signing job as a response {@code metrics} block, or {@code null} if
+     * metrics are not enabled for responses.
+     */
+    public Map<String, Object> getMetrics() {
+        return SigningMetrics.RESPONSE_ENABLED && metrics != null ? metrics.toResponse() : null;
+    }
+
+    private HashMap<String, String> signDocumentOnThisThread() throws GeneralSecurityException, IOException {
+        try (MemoryTracker memoryTracker = MemoryTracker.start()) {
+            return signDocumentOnThisThread(memoryTracker);
+        }
+    }
 
-                byte[] decodePdf = Base64.getDecoder().decode(pdf.getBase64Content());
-                byte[] password = pdf.getPassword() == null ? "".getBytes() : pdf.getPassword().getBytes();
+    private HashMap<String, String> signDocumentOnThisThread(MemoryTracker memoryTracker) throws GeneralSecurityException, IOException {
+        if (pdfBytes == null && pdfPath == null)
+            throw new IllegalArgumentException("Expected a base64 encoded PDF content. Please ensure that the provided base64 content represents a valid PDF document.");
+        SignatureModel.Pdf pdf = signatureModel.getPdf();
 
-                PdfReader pdfReader = new PdfReader(decodePdf, password);
+        if (signatureModel.getOptions() == null)
+            throw new IllegalArgumentException("Expected a signature options object. Please ensure that the provided options are valid.");
+        SignatureModel.Options options = signatureModel.getOptions();
 
-                int totalPages = pdfReader.getNumberOfPages();
-                Rectangle rectangle = getSignatureRectangle(options.getCoord());
-                boolean changesAllowed = options.isChangesAllowed();
-                boolean isTimestamp = options.getTimestamp().isEnabled() && (options.getTimestamp().getUrl() != null && !options.getTimestamp().getUrl().isEmpty());
+        byte[] password = pdf.getPassword() == null ? "".getBytes() : pdf.getPassword().getBytes();
+
+        long documentSize = pdfBytes != null ? pdfBytes.length : Files.size(pdfPath);
+        boolean spill = target == null && documentSize >= SPILL_THRESHOLD_BYTES;
+        PdfReader pdfReader;
+        int totalPages;
+        try (SigningMetrics.Phase phase = metrics.phase("pdfParse")) {
+            phase.addBytes(documentSize);
+            pdfReader = pdfBytes != null ? openReader(pdfBytes, password) : openReader(pdfPath, password);
+            totalPages = pdfReader.getNumberOfPages();
+        }
 
-                Path pfxPath = Paths.get(signatureModel.getCertInfo().getPfxPath());
-                KeyStoreManager keyStoreManager = new KeyStoreManager(pfxPath, signatureModel.getCertInfo().getPassword());
+        Rectangle rectangle = getSignatureRectangle(options.getCoord());
+        boolean changesAllowed = options.isChangesAllowed();
+        List<SignatureModel.Signer> signers = getSigners();
+        TSAClient[] tsaClients = new TSAClient[signers.size()];
+        int[] pageNumbers = new int[signers.size()];
+        for (int i = 0; i < signers.size(); i++) {
+            SignatureModel.Options signerOptions = signers.get(i).getOptions();
+            SignatureModel.Timestamp timestamp = signerOptions.getTimestamp();
+            if (timestamp.isEnabled() && timestamp.getUrl() != null && !timestamp.getUrl().isEmpty()) {
+                try (SigningMetrics.Phase ignored = metrics.phase("tsaCheck")) {
+                    tsaClients[i] = createTsaClient(timestamp);
+                }
+            }
+            if (!"A".equalsIgnoreCase(signerOptions.getPage())) {
+                pageNumbers[i] = getSignaturePageNumber(signerOptions.getPage(), totalPages);
+            }
+        }
+
+        List<KeyStoreManager> keyStoreManagers = unlockKeys(signers);
+        keyStoreManager = keyStoreManagers.get(0);
+
+        // With several signers the revocation data of every chain goes into one DSS, listed for the signatures that
+        // asked for LTV.
+        RevocationCache.RevocationData revocationData = null;
+        List<Integer> ltvSigners = new ArrayList<>();
+        for (int i = 0; i < signers.size(); i++) {
+            if (signers.get(i).getOptions().isEnableLtv()) {
+                try (SigningMetrics.Phase ignored = metrics.phase("revocation")) {
+                    RevocationCache.RevocationData signerData = RevocationCache.getInstance().collect(keyStoreManagers.get(i).getCertificateChain());
+                    revocationData = revocationData == null ? signerData : merge(revocationData, signerData);
+                }
+                ltvSigners.add(i);
+            }
+        }
+
+        Path outputPath = null;
+        long[] pageNanos = null;
+        long[] signerNanos = null;
+        String[] fieldNames = new String[signers.size()];
+
+        // The document is signed into a temporary file that gets its name and place only once it is complete.
+        // Small documents are signed in memory and written out once. Large ones are written straight into the output
+        // file, which iText then patches in place, so the signed revision is never held on the heap. With LTV the
+        // signed document goes to an intermediate revision first and the output gets it with the DSS appended.
+        // A document signed into a stream skips all of that and goes to the stream the way it would go to the file.
+        try (OutputStore.Pending output = target != null ? null : OutputStore.getInstance().create(Paths.get(outDir), this.fileName)) {
+            Path tempPath = output == null ? null : output.getTempPath();
+            File outputFile = spill ? tempPath.toFile() : null;
+            try (OutputStream outputStream = spill ? null : target != null ? new UnclosedOutputStream(target) : new BufferedOutputStream(Files.newOutputStream(tempPath));
+                 Revision signedRevision = revocationData == null ? null : spill ? new RevisionFile(tempPath.toAbsolutePath().getParent()) : new RevisionBuffer()) {
+                File signedPdfFile = signedRevision == null ? outputFile : signedRevision.getFile();
+                OutputStream signedPdfOutputStream = signedRevision == null ? outputStream : signedPdfFile == null ? signedRevision.openOutputStream() : null;
 
                 if ("A".equalsIgnoreCase(signatureModel.getOptions().getPage())) {
                     if (changesAllowed)
                         throw new IllegalArgumentException("Signing all pages with Changes Not Allowed [ changesAllowed: false ] is currently under development.");
 
-                    signData = signAllPages(pdfReader, keyStoreManager.getPrivateKey(), keyStoreManager.getProvider().getName(), keyStoreManager.getCertificateChain(), rectangle, signatureModel.getPdf().getPassword(), isTimestamp);
+                    pageNanos = signAllPages(pdfReader, options, keyStoreManager, keyStoreManager.getCertificateChain(), rectangle, password, tsaClients[0], signedPdfOutputStream, signedPdfFile);
                 } else {
-                    int signaturePageNumber = getSignaturePageNumber(options.getPage(), totalPages);
-                    signData = sign(pdfReader, keyStoreManager.getPrivateKey(), keyStoreManager.getProvider().getName(), keyStoreManager.getCertificateChain(), signaturePageNumber, isTimestamp, changesAllowed, rectangle);
+                    for (int i = 0; i < signers.size(); i++) {
+                        do {
+                            fieldNames[i] = newFieldName(pageNumbers[i]);
+                        } while (Arrays.asList(fieldNames).subList(0, i).contains(fieldNames[i]));
+                    }
+                    signerNanos = signInSequence(pdfReader, signers, keyStoreManagers, tsaClients, pageNumbers, fieldNames, password, signedPdfOutputStream, signedPdfFile);
                 }
 
-                String fileName = generateFileName();
-                HashMap<String, String> signDataMap = new HashMap<>();
+                if (signedRevision != null) {
+                    List<String> ltvFieldNames = signedFieldNames;
+                    if (signers.size() > 1) {
+                        ltvFieldNames = new ArrayList<>();
+                        for (int i : ltvSigners) {
+                            ltvFieldNames.add(fieldNames[i]);
+                        }
+                    }
+                    try (SigningMetrics.Phase ignored = metrics.phase("dssWrite");
+                         OutputStream ltvOutputStream = spill ? new BufferedOutputStream(Files.newOutputStream(tempPath)) : outputStream) {
+                        DocumentSecurityStore.append(signedRevision.toReader(password), ltvOutputStream, revocationData, ltvFieldNames);
+                    }
+                }
+            } finally {
+                pdfReader.close();
+            }
+            if (output != null) {
+                try (SigningMetrics.Phase ignored = metrics.phase("outputCommit")) {
+                    outputPath = output.commit();
+                }
+            }
+        }
 
-                String savedPath = writePdfToDisk(outDir + "/" + fileName + ".pdf", signData);
-                signDataMap.put("fileName", fileName);
-                signDataMap.put("filePath", savedPath);
+        HashMap<String, String> signDataMap = new HashMap<>();
+        if (outputPath != null) {
+            String fileName = outputPath.getFileName().toString();
+            signDataMap.put("fileName", fileName.substring(0, fileName.length() - ".pdf".length()));
+            signDataMap.put("filePath", outputPath.toString());
+        }
+        signDataMap.put("spilledToDisk", String.valueOf(spill));
+        signDataMap.put("digestAlgorithm", getDigestAlgorithm(options));
+        if (revocationData != null) {
+            signDataMap.put("ltv", "true");
+            signDataMap.put("ocspResponses", String.valueOf(revocationData.getOcspResponses().size()));
+            signDataMap.put("crls", String.valueOf(revocationData.getCrls().size()));
+        }
+        if (signers.size() > 1) {
+            addSignerDetails(signDataMap, signers, pageNumbers, fieldNames, signerNanos);
+        }
+        memoryTracker.addTo(signDataMap);
+        if (pageNanos != null) {
+            addPageTimings(signDataMap, pageNanos);
+        }
 
-                generateSuccessResponse(signDataMap);
-            }
+        return signDataMap;
+    }
 
-        } catch (GeneralSecurityException | IOException e) {
-            generateErrorResponse(e);
+    /**
+     * @return The digest algorithm of the signature in the form iText names it, such as {@code SHA-384}.
+     */
+    static String getDigestAlgorithm(SignatureModel.Options options) {
+        return getDigestAlgorithm(options.getDigestAlgorithm());
+    }
+
+    static String getDigestAlgorithm(String algorithm) {
+        if (algorithm == null) {
+            return DigestAlgorithms.SHA256;
         }
+        return "SHA-" + algorithm.substring(algorithm.length() - 3);
     }
 
-    private Rectangle getSignatureRectangle(int[] coordinates) {
+    static Rectangle getSignatureRectangle(int[] coordinates) {
         return new Rectangle(coordinates[0], coordinates[1], coordinates[2], coordinates[3]);
     }
-    private String sign(PdfReader reader, PrivateKey privateKey, String provider, Certificate[] certChain, int pageNumber, boolean isTimestamp, boolean isChangesAllowed, Rectangle rectangle) {
-        ByteArrayOutputStream signedPdfOutputStream = new ByteArrayOutputStream();
-        PdfStamper stamper = null;
-        TSAClient tsaClient = null;
-        String tsaUrl;
-        String errorMessage = null;
+    /**
+     * Opens a reader that parses objects on demand over the given bytes instead of loading the whole document.
+     */
+    static PdfReader openReader(byte[] pdf, byte[] password) throws IOException {
+        RandomAccessSource source = new RandomAccessSourceFactory().createSource(pdf);
+        return new PdfReader(new RandomAccessFileOrArray(source), password);
+    }
+
+    /**
+     * Opens a reader that parses objects on demand from a memory-mapped file, so the document is never copied onto
+     * the heap. The reader must be closed to release the mapping.
+     */
+    static PdfReader openReader(Path pdf, byte[] password) throws IOException {
+        RandomAccessSource source = new RandomAccessSourceFactory().createBestSource(pdf.toString());
+        return new PdfReader(new RandomAccessFileOrArray(source), password);
+    }
+
+    /**
+     * Starts a signature revision. With a file, iText writes the revision to it and patches the signature in place;
+     * otherwise the revision is buffered in memory and written to the stream when the signature is closed.
+     */
+    static PdfStamper createSignatureStamper(PdfReader reader, OutputStream outputStream, File outputFile) throws IOException, DocumentException {
+        return PdfStamper.createSignature(reader, outputFile == null ? outputStream : null, '\0', outputFile, true);
+    }
+
+    /**
+     * Returns the process-wide client of the TSA, which reuses its connections and health across documents.
+     */
+    static TSAClient createTsaClient(SignatureModel.Timestamp timestamp) throws IOException {
+        if (timestamp.getUrl() == null) {
+            throw new IllegalArgumentException("The TSA URL cannot be null.");
+        }
 
         try {
-            SignatureModel.Options options = signatureModel.getOptions();
-            stamper = PdfStamper.createSignature(reader, signedPdfOutputStream, '\0', null, true);
+            new URL(timestamp.getUrl());
+            return TsaClientRegistry.getInstance().getClient(timestamp);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("TSA URL is not valid or not accessible.", e);
+        }
+    }
 
-            if (isTimestamp) {
-                tsaUrl = validateTsaUrl(options.getTimestamp().getUrl());
-                tsaClient = new TSAClientBouncyCastle(tsaUrl, options.getTimestamp().getUsername(), options.getTimestamp().getPassword(), 8192, "SHA-256");
+    /**
+     * Signs one page in a new incremental revision.
+     *
+     * @param fieldName     Name of an existing empty signature field to fill, or {@code null} to create a new field on the page.
+     * @param signedPdfFile File to write the revision to, or {@code null} to write it to {@code signedPdfOutputStream}.
+     */
+    private void sign(PdfReader reader, SignatureModel.Options options, KeyStoreManager signerKey, Certificate[] certChain, int pageNumber, String fieldName, TSAClient tsaClient, boolean isChangesAllowed, Rectangle rectangle, OutputStream signedPdfOutputStream, File signedPdfFile) throws IOException, GeneralSecurityException {
+        PdfStamper stamper = null;
+        CountingOutputStream countingOutputStream = signedPdfOutputStream == null ? null : new CountingOutputStream(signedPdfOutputStream);
+
+        try (SigningMetrics.Phase phase = metrics.phase("pdfWrite")) {
+            stamper = createSignatureStamper(reader, countingOutputStream, signedPdfFile);
+
+            if (fieldName == null) {
+                fieldName = newFieldName(pageNumber);
             }
+            signedFieldNames.add(fieldName);
 
             PdfSignatureAppearance appearance = getPdfSignatureAppearance(stamper, rectangle, pageNumber,
-                    String.format("eDastakhat__P_%d_%d", pageNumber, random.nextInt(900000)), isChangesAllowed,
-                    options.getReason(), options.getLocation(), options.isGreenTick());
+                    fieldName, isChangesAllowed,
+                    options.getReason(), options.getLocation(), options.isGreenTick(), certChain[0]);
 
-            ExternalDigest digest = new BouncyCastleDigest();
-            ExternalSignature signature = new PrivateKeySignature(privateKey, DigestAlgorithms.SHA256, provider);
+            ExternalDigest digest = new MeteredDigest(new PipelinedDigest(new ProviderDigest(DIGEST_PROVIDER), reader.getFileLength()), metrics);
+            ExternalSignature signature = new MeteredSignature(signerKey.getSignature(getDigestAlgorithm(options)), metrics);
 
             MakeSignature.signDetached(
                     appearance,
@@ -148,48 +449,291 @@ public class PdfSigning {
                     certChain,
                     null,
                     null,
-                    tsaClient,
-                    0,
+                    tsaClient == null ? null : new MeteredTsaClient(tsaClient, metrics),
+                    estimateSignatureSize(certChain, tsaClient == null ? 0 : tsaClient.getTokenSizeEstimate()),
                     MakeSignature.CryptoStandard.CADES
             );
+            phase.addBytes(countingOutputStream != null ? countingOutputStream.count : signedPdfFile.length());
 
-        } catch (DocumentException | IOException | GeneralSecurityException e) {
-            errorMessage = "ERROR: " + e.getMessage();
+        } catch (DocumentException e) {
+            throw new IOException("ERROR: " + e.getMessage(), e);
         } finally {
             if (stamper != null) {
                 try {
                     stamper.close();
-                } catch (DocumentException | IOException e) {
-                    errorMessage = "ERROR: " + e.getMessage();
+                } catch (DocumentException | IOException ignored) {
+                    // signDetached closes the stamper; this only fails when signing already failed.
                 }
             }
         }
+    }
 
-        if (errorMessage != null) {
-            generateErrorResponse(new Exception(errorMessage));
+    /**
+     * Estimates the bytes to reserve for the CMS container from the certificate chain, key and timestamp token.
+     * iText's default reserves 8 KB regardless of the key; every later revision of a multi-page signature
+     * re-reads and re-hashes that padding, so it is kept close to the real size.
+     *
+     * @param tokenSizeEstimate Bytes to reserve for the timestamp token, or 0 without a timestamp.
+     */
+    static int estimateSignatureSize(Certificate[] certChain, int tokenSizeEstimate) throws CertificateEncodingException {
+        int size = 2048;
+        for (Certificate certificate : certChain) {
+            size += certificate.getEncoded().length;
         }
+        PublicKey publicKey = certChain[0].getPublicKey();
+        size += (publicKey instanceof RSAKey) ? (((RSAKey) publicKey).getModulus().bitLength() + 7) / 8 : 512;
+        return size + tokenSizeEstimate;
+    }
+
+    /**
+     * Signs every page of the document.
+     * <p>
+     * All empty signature fields are created up front in a single stamper session. Each page is then signed as an
+     * incremental revision that only fills its prepared field, so a revision never re-creates fields or re-reads the
+     * whole document. Revisions alternate between two buffers that are reused for the whole run: in memory, or as
+     * temporary files next to the output when the document is spilled to disk. The last revision is written straight
+     * to the output.
+     *
+     * @return The time spent signing each page, in nanoseconds.
+     */
+    private long[] signAllPages(PdfReader reader, SignatureModel.Options options, KeyStoreManager signerKey, Certificate[] certChain, Rectangle rectangle, byte[] pdfPassword, TSAClient tsaClient, OutputStream signedPdfOutputStream, File signedPdfFile) throws IOException, GeneralSecurityException {
+        int totalPages = reader.getNumberOfPages();
+        long[] pageNanos = new long[totalPages];
+
+        Path spillDir = signedPdfFile == null ? null : signedPdfFile.getAbsoluteFile().getParentFile().toPath();
+        try (Revision first = spillDir == null ? new RevisionBuffer() : new RevisionFile(spillDir);
+             Revision second = spillDir == null ? new RevisionBuffer() : new RevisionFile(spillDir)) {
+            Revision current = first;
+            Revision next = second;
+            String[] fieldNames;
+            try (OutputStream preparedPdfOutputStream = current.openOutputStream()) {
+                fieldNames = prepareSignatureFields(reader, rectangle, preparedPdfOutputStream);
+            }
 
-        return Base64.getEncoder().encodeToString(signedPdfOutputStream.toByteArray());
+            for (int page = 1; page <= totalPages; page++) {
+                long start = System.nanoTime();
+                PdfReader revisionReader = current.toReader(pdfPassword);
+                if (page == totalPages) {
+                    sign(revisionReader, options, signerKey, certChain, page, fieldNames[page - 1], tsaClient, true, rectangle, signedPdfOutputStream, signedPdfFile);
+                } else {
+                    next.reset();
+                    File nextFile = next.getFile();
+                    sign(revisionReader, options, signerKey, certChain, page, fieldNames[page - 1], tsaClient, true, rectangle, nextFile == null ? next.openOutputStream() : null, nextFile);
+                    Revision swap = current;
+                    current = next;
+                    next = swap;
+                }
+                pageNanos[page - 1] = System.nanoTime() - start;
+            }
+        }
+        return pageNanos;
     }
 
-    private String signAllPages(PdfReader reader, PrivateKey privateKey, String provider, Certificate[] certChain, Rectangle rectangle, String pdfPassword, boolean isTimestamp) throws IOException {
-        String tempSignedPdf = null;
+    /**
+     * Signs the document once per signer, in order, each signature as an incremental revision of the one before.
+     * <p>
+     * Like {@link #signAllPages}, the revisions alternate between two buffers, in memory or as temporary files next to
+     * the output, so the document is held once whatever the number of signers. The last signature is written straight
+     * to the output; a single signer signs the document as is.
+     *
+     * @return The time spent on each signature, in nanoseconds.
+     */
+    private long[] signInSequence(PdfReader reader, List<SignatureModel.Signer> signers, List<KeyStoreManager> keyStoreManagers, TSAClient[] tsaClients, int[] pageNumbers, String[] fieldNames, byte[] pdfPassword, OutputStream signedPdfOutputStream, File signedPdfFile) throws IOException, GeneralSecurityException {
+        int last = signers.size() - 1;
+        long[] signerNanos = new long[signers.size()];
+        Path spillDir = signedPdfFile == null ? null : signedPdfFile.getAbsoluteFile().getParentFile().toPath();
+        Revision current = null;
+        Revision next = null;
+        try {
+            PdfReader revisionReader = reader;
+            for (int i = 0; i <= last; i++) {
+                long start = System.nanoTime();
+                SignatureModel.Options options = signers.get(i).getOptions();
+                KeyStoreManager signerKey = keyStoreManagers.get(i);
+                Rectangle rectangle = getSignatureRectangle(options.getCoord());
+                if (i == last) {
+                    sign(revisionReader, options, signerKey, signerKey.getCertificateChain(), pageNumbers[i], fieldNames[i], tsaClients[i], options.isChangesAllowed(), rectangle, signedPdfOutputStream, signedPdfFile);
+                } else {
+                    if (next == null) {
+                        next = spillDir == null ? new RevisionBuffer() : new RevisionFile(spillDir);
+                    }
+                    next.reset();
+                    File nextFile = next.getFile();
+                    sign(revisionReader, options, signerKey, signerKey.getCertificateChain(), pageNumbers[i], fieldNames[i], tsaClients[i], options.isChangesAllowed(), rectangle, nextFile == null ? next.openOutputStream() : null, nextFile);
+                    Revision swap = current;
+                    current = next;
+                    next = swap;
+                    revisionReader = current.toReader(pdfPassword);
+                }
+                signerNanos[i] = System.nanoTime() - start;
+            }
+        } finally {
+            closeQuietly(current);
+            closeQuietly(next);
+        }
+        return signerNanos;
+    }
 
-        PdfReader readerHolder = reader;
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Only temporary files are left behind.
+            }
+        }
+    }
 
-        for (int page = 1; page <= reader.getNumberOfPages(); page++) {
-            tempSignedPdf = sign(readerHolder, privateKey, provider, certChain, page, isTimestamp, true, rectangle);
+    /**
+     * @return The signers of the request in order: its {@code signers}, or its {@code certInfo} and {@code options}.
+     */
+    private List<SignatureModel.Signer> getSigners() {
+        List<SignatureModel.Signer> signers = signatureModel.getSigners();
+        if (signers == null || signers.isEmpty()) {
+            return Collections.singletonList(new SignatureModel.Signer(signatureModel.getCertInfo(), signatureModel.getOptions()));
+        }
+        return signers;
+    }
 
-            byte[] decode = Base64.getDecoder().decode(tempSignedPdf);
-            readerHolder = new PdfReader(decode, pdfPassword.getBytes());
+    /**
+     * Loads and unlocks the key of every signer before the document is touched. Several keys are unlocked in
+     * parallel, as a PKCS#12 unlock is a deliberately slow key derivation; each key comes from {@link KeyStoreCache}
+     * when it is cached. The key given to the constructor is the first signer's.
+     */
+    private List<KeyStoreManager> unlockKeys(List<SignatureModel.Signer> signers) throws IOException, GeneralSecurityException {
+        if (signers.size() == 1) {
+            if (keyStoreManager == null) {
+                SignatureModel.CertInfo certInfo = signers.get(0).getCertInfo();
+                return Collections.singletonList(KeyStoreManager.getInstance(certInfo));
+            }
+            return Collections.singletonList(keyStoreManager);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(signers.size());
+        try (SigningMetrics.Phase ignored = metrics.phase("keyUnlock")) {
+            List<Future<KeyStoreManager>> futures = new ArrayList<>();
+            for (int i = 0; i < signers.size(); i++) {
+                KeyStoreManager preset = i == 0 ? keyStoreManager : null;
+                SignatureModel.CertInfo certInfo = signers.get(i).getCertInfo();
+                futures.add(executor.submit(() -> {
+                    KeyStoreManager signerKey = preset != null ? preset : KeyStoreManager.getInstance(certInfo);
+                    signerKey.getPrivateKey();
+                    return signerKey;
+                }));
+            }
+            List<KeyStoreManager> keyStoreManagers = new ArrayList<>();
+            for (Future<KeyStoreManager> future : futures) {
+                keyStoreManagers.add(future.get());
+            }
+            return keyStoreManagers;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("ERROR: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while unlocking the signers' keys.");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The revocation data of two chains, with what they share listed once.
+     */
+    private static RevocationCache.RevocationData merge(RevocationCache.RevocationData first, RevocationCache.RevocationData second) {
+        RevocationCache.RevocationData merged = new RevocationCache.RevocationData();
+        for (RevocationCache.RevocationData data : Arrays.asList(first, second)) {
+            addDistinct(merged.getOcspResponses(), data.getOcspResponses());
+            addDistinct(merged.getCrls(), data.getCrls());
+            addDistinct(merged.getCertificates(), data.getCertificates());
+        }
+        return merged;
+    }
+
+    private static void addDistinct(List<byte[]> target, List<byte[]> items) {
+        for (byte[] item : items) {
+            if (target.stream().noneMatch(existing -> Arrays.equals(existing, item))) {
+                target.add(item);
+            }
+        }
+    }
+
+    private void addSignerDetails(HashMap<String, String> signDataMap, List<SignatureModel.Signer> signers, int[] pageNumbers, String[] fieldNames, long[] signerNanos) {
+        signDataMap.put("signers", String.valueOf(signers.size()));
+        for (int i = 0; i < signers.size(); i++) {
+            String key = "signer[" + (i + 1) + "]";
+            signDataMap.put(key + ".fieldName", fieldNames[i]);
+            signDataMap.put(key + ".page", String.valueOf(pageNumbers[i]));
+            signDataMap.put(key + ".digestAlgorithm", getDigestAlgorithm(signers.get(i).getOptions()));
+            signDataMap.put(key + ".millis", String.format("%.3f", signerNanos[i] / 1e6));
         }
-        return tempSignedPdf;
     }
 
-    private PdfSignatureAppearance getPdfSignatureAppearance(PdfStamper stamper, Rectangle rectangle, int pageNumber, String fieldName, boolean isChangesAllowed, String reason, String location, boolean isGreenTrick) {
+    /**
+     * Adds an empty signature field to every page in one incremental revision.
+     *
+     * @return The field names, indexed by page number - 1.
+     */
+    private String[] prepareSignatureFields(PdfReader reader, Rectangle rectangle, OutputStream preparedPdfOutputStream) throws IOException {
+        int totalPages = reader.getNumberOfPages();
+        String[] fieldNames = new String[totalPages];
+
+        try (SigningMetrics.Phase ignored = metrics.phase("prepareFields")) {
+            PdfStamper stamper = new PdfStamper(reader, preparedPdfOutputStream, '\0', true);
+            for (int page = 1; page <= totalPages; page++) {
+                fieldNames[page - 1] = newFieldName(page);
+
+                PdfFormField field = PdfFormField.createSignature(stamper.getWriter());
+                field.setFieldName(fieldNames[page - 1]);
+                field.setWidget(rectangle, null);
+                field.setFlags(PdfAnnotation.FLAGS_PRINT);
+                field.setPage(page);
+                stamper.addAnnotation(field, page);
+            }
+            stamper.close();
+        } catch (DocumentException e) {
+            throw new IOException("ERROR: " + e.getMessage(), e);
+        }
+        return fieldNames;
+    }
+
+    static String newFieldName(int pageNumber) {
+        return String.format("eDastakhat__P_%d_%d", pageNumber, random.nextInt(900000));
+    }
+
+    private void addPageTimings(HashMap<String, String> signDataMap, long[] pageNanos) {
+        long total = 0;
+        long max = 0;
+        for (long nanos : pageNanos) {
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+        signDataMap.put("pagesSigned", String.valueOf(pageNanos.length));
+        signDataMap.put("avgPageMillis", String.format("%.3f", total / 1e6 / pageNanos.length));
+        signDataMap.put("maxPageMillis", String.format("%.3f", max / 1e6));
+        signDataMap.put("firstPageMillis", String.format("%.3f", pageNanos[0] / 1e6));
+        signDataMap.put("lastPageMillis", String.format("%.3f", pageNanos[pageNanos.length - 1] / 1e6));
+    }
+
+    /**
+     * Sets up the appearance of a new signature. Its layers come from {@link AppearanceTemplateCache} when an
+     * identical appearance has been rendered before.
+     *
+     * @param certificate The signing certificate, whose name is rendered in the appearance.
+     */
+    static PdfSignatureAppearance getPdfSignatureAppearance(PdfStamper stamper, Rectangle rectangle, int pageNumber, String fieldName, boolean isChangesAllowed, String reason, String location, boolean isGreenTrick, Certificate certificate) {
         PdfSignatureAppearance appearance = stamper.getSignatureAppearance();
 
-        if (rectangle != null) {
+        if (stamper.getAcroFields().doesSignatureFieldExist(fieldName)) {
+            appearance.setVisibleSignature(fieldName);
+        } else if (rectangle != null) {
             appearance.setVisibleSignature(rectangle, pageNumber, fieldName);
         }
 
@@ -202,11 +746,14 @@ public class PdfSigning {
 
         appearance.setReason(reason);
         appearance.setLocation(location);
+        // signDetached sets the certificate itself, but the appearance is prepared before that.
+        appearance.setCertificate(certificate);
+        AppearanceTemplateCache.getInstance().apply(appearance, certificate);
 
         return appearance;
     }
 
-    private int getSignaturePageNumber(String page, int totalPages) {
+    static int getSignaturePageNumber(String page, int totalPages) {
         int pageNumber;
 
         if ("L".equalsIgnoreCase(page)) {
@@ -229,62 +776,276 @@ public class PdfSigning {
         return pageNumber;
     }
 
-    private String generateFileName() {
-        LocalDateTime now = LocalDateTime.now();
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy'T'HH-mm-ss");
-        return now.format(formatter) + ".pdf";
+    /**
+     * Checks if the given TSA URL is valid and accessible.
+     *
+     * @param tsaUrl The TSA URL to check.
+     * @return The TSA URL if it is valid and accessible.
+     * @throws IllegalArgumentException if tsaUrl is null or malformed.
+     * @throws IOException if an I/O error occurs while checking the TSA URL.
+     */
+    public String validateTsaUrl (String tsaUrl) throws IllegalArgumentException, IOException {
+        // Probes through the shared client, so a recently healthy TSA is not probed again.
+        createTsaClient(new SignatureModel.Timestamp(true, tsaUrl, null, null));
+
+        // If no errors occurred, return the valid URL
+        return tsaUrl;
     }
 
-    private String writePdfToDisk(String filePath, String base64Content) throws IOException {
-        // Convert the file path string to a Path object
-        Path path = Paths.get(filePath);
+    /**
+     * Intermediate revision of a multi-page signature that can be re-read as a PDF.
+     */
+    private interface Revision extends Closeable {
+        OutputStream openOutputStream() throws IOException;
+
+        /**
+         * @return The file to sign the revision into, or {@code null} to sign it into {@link #openOutputStream()}.
+         */
+        File getFile();
+
+        PdfReader toReader(byte[] password) throws IOException;
+
+        /**
+         * Discards the contents so the revision can be written again.
+         */
+        void reset() throws IOException;
+    }
 
-        // Create parent directories if they don't exist
-        Path parentDirectory = path.getParent();
-        if (parentDirectory != null && !Files.exists(parentDirectory)) {
-            Files.createDirectories(parentDirectory);
+    /**
+     * Output buffer that can be re-read as a PDF without copying its contents.
+     */
+    private static class RevisionBuffer extends ByteArrayOutputStream implements Revision {
+        RevisionBuffer() {
+            super(64 * 1024);
         }
 
-        // Decode the Base64 content
-        byte[] decodedBytes = Base64.getDecoder().decode(base64Content);
+        @Override
+        public OutputStream openOutputStream() {
+            return this;
+        }
 
-        // Write the decoded bytes to the specified file path
-        Files.write(path, decodedBytes);
+        @Override
+        public File getFile() {
+            return null;
+        }
 
-        // Return the path as a string
-        return path.toString();
+        @Override
+        public PdfReader toReader(byte[] password) throws IOException {
+            RandomAccessSource source = new WindowRandomAccessSource(new RandomAccessSourceFactory().createSource(buf), 0, count);
+            return new PdfReader(new RandomAccessFileOrArray(source), password);
+        }
     }
 
     /**
-     * Checks if the given TSA URL is valid and accessible.
-     *
-     * @param tsaUrl The TSA URL to check.
-     * @return The TSA URL if it is valid and accessible.
-     * @throws IllegalArgumentException if tsaUrl is null or malformed.
-     * @throws IOException if an I/O error occurs while checking the TSA URL.
+     * Temporary file that is re-read through a memory mapping, used when a document is too large to buffer.
      */
-    public String validateTsaUrl (String tsaUrl) throws IllegalArgumentException, IOException {
-        if (tsaUrl == null) {
-            throw new IllegalArgumentException("The TSA URL cannot be null.");
+    private static class RevisionFile implements Revision {
+        private final Path path;
+        private PdfReader reader;
+
+        RevisionFile(Path directory) throws IOException {
+            this.path = Files.createTempFile(directory, ".eDastakhat-", ".pdf.tmp");
         }
 
-        try {
-            URL url = new URL(tsaUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("HEAD"); // Use HEAD method to check URL availability without downloading the content
-            connection.setConnectTimeout(5000); // Set timeout for connection
-            connection.setReadTimeout(5000); // Set timeout for reading response
-
-            int responseCode = connection.getResponseCode();
-            // Check if the response code is in the range of 200-299 (HTTP OK range)
-            if (responseCode < HttpURLConnection.HTTP_OK || responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
-                throw new IOException("TSA URL is not valid or not accessible.");
+        @Override
+        public OutputStream openOutputStream() throws IOException {
+            return new BufferedOutputStream(Files.newOutputStream(path));
+        }
+
+        @Override
+        public File getFile() {
+            return path.toFile();
+        }
+
+        @Override
+        public PdfReader toReader(byte[] password) throws IOException {
+            reader = openReader(path, password);
+            return reader;
+        }
+
+        @Override
+        public void reset() {
+            // The file is overwritten by the next revision; only the mapping of the previous one has to go.
+            if (reader != null) {
+                reader.close();
             }
-        } catch (Exception e) {
-            throw new IllegalArgumentException("TSA URL is not valid or not accessible.");
         }
 
-        // If no errors occurred, return the valid URL
-        return tsaUrl;
+        @Override
+        public void close() throws IOException {
+            reset();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Leaves the caller's stream open when iText closes the signed document, flushing it instead.
+     */
+    private static class UnclosedOutputStream extends FilterOutputStream {
+        UnclosedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Counts the bytes of the signed revision written to a stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Times the digest stage: reading the signed byte ranges and hashing them, from the first update to the hash.
+     * The reads are part of it because a pipelined digest hashes while the next range is read, so only the stage as
+     * a whole shows what pipelining saves.
+     */
+    private static class MeteredDigest implements ExternalDigest {
+        private final ExternalDigest digest;
+        private final SigningMetrics metrics;
+
+        MeteredDigest(ExternalDigest digest, SigningMetrics metrics) {
+            this.digest = digest;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public MessageDigest getMessageDigest(String hashAlgorithm) throws GeneralSecurityException {
+            final MessageDigest messageDigest = digest.getMessageDigest(hashAlgorithm);
+            return new MessageDigest(messageDigest.getAlgorithm()) {
+                private long start = -1;
+                private long bytes;
+
+                @Override
+                protected void engineUpdate(byte input) {
+                    if (start < 0) {
+                        start = System.nanoTime();
+                    }
+                    messageDigest.update(input);
+                    bytes++;
+                }
+
+                @Override
+                protected void engineUpdate(byte[] input, int offset, int len) {
+                    if (start < 0) {
+                        start = System.nanoTime();
+                    }
+                    messageDigest.update(input, offset, len);
+                    bytes += len;
+                }
+
+                @Override
+                protected byte[] engineDigest() {
+                    if (start < 0) {
+                        start = System.nanoTime();
+                    }
+                    byte[] hash = messageDigest.digest();
+                    metrics.record("digest", System.nanoTime() - start, bytes);
+                    start = -1;
+                    bytes = 0;
+                    return hash;
+                }
+
+                @Override
+                protected void engineReset() {
+                    messageDigest.reset();
+                    start = -1;
+                    bytes = 0;
+                }
+
+                @Override
+                protected int engineGetDigestLength() {
+                    return messageDigest.getDigestLength();
+                }
+            };
+        }
+    }
+
+    /**
+     * Times the private key operation.
+     */
+    private static class MeteredSignature implements ExternalSignature {
+        private final ExternalSignature signature;
+        private final SigningMetrics metrics;
+
+        MeteredSignature(ExternalSignature signature, SigningMetrics metrics) {
+            this.signature = signature;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public String getHashAlgorithm() {
+            return signature.getHashAlgorithm();
+        }
+
+        @Override
+        public String getEncryptionAlgorithm() {
+            return signature.getEncryptionAlgorithm();
+        }
+
+        @Override
+        public byte[] sign(byte[] message) throws GeneralSecurityException {
+            try (SigningMetrics.Phase phase = metrics.phase("privateKey")) {
+                phase.addBytes(message.length);
+                return signature.sign(message);
+            }
+        }
+    }
+
+    /**
+     * Times the timestamp request, including the wait for a free connection to the TSA.
+     */
+    private static class MeteredTsaClient implements TSAClient {
+        private final TSAClient tsaClient;
+        private final SigningMetrics metrics;
+
+        MeteredTsaClient(TSAClient tsaClient, SigningMetrics metrics) {
+            this.tsaClient = tsaClient;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int getTokenSizeEstimate() {
+            return tsaClient.getTokenSizeEstimate();
+        }
+
+        @Override
+        public MessageDigest getMessageDigest() throws GeneralSecurityException {
+            return tsaClient.getMessageDigest();
+        }
+
+        @Override
+        public byte[] getTimeStampToken(byte[] imprint) throws Exception {
+            try (SigningMetrics.Phase phase = metrics.phase("timestamp")) {
+                byte[] token = tsaClient.getTimeStampToken(imprint);
+                phase.addBytes(token.length);
+                return token;
+            }
+        }
     }
 }
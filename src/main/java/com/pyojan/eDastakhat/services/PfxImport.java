@@ -0,0 +1,231 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.pyojan.eDastakhat.libs.JsonLineWriter;
+import com.pyojan.eDastakhat.libs.VaultIndex;
+import com.pyojan.eDastakhat.models.PfxImportManifestModel;
+import net.sf.oval.ConstraintViolation;
+import net.sf.oval.Validator;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Imports many PFX files into the vault at once, the bulk form of {@link PfxProcessor#readPfx}.
+ * <p>
+ * Files are imported concurrently and each one fails on its own. A certificate whose fingerprint is already in the
+ * vault, or earlier in the same run, is skipped; another certificate with the serial number of one in the vault
+ * fails, as key stores are named and found by serial. The vault index is written once, after the last file,
+ * instead of once per file; {@code -vault reindex} recovers the index of an interrupted run.
+ * One JSON line is written per file as soon as it finishes, followed by a summary line with the import rate.
+ */
+public class PfxImport {
+
+    private static final Gson gson = new Gson();
+    private static final int QUEUE_PER_WORKER = 4;
+
+    private final List<PfxImportManifestModel.Pfx> files;
+    private final int threads;
+    private final Path vaultDir;
+    private final PfxProcessor pfxProcessor = new PfxProcessor();
+    private final JsonLineWriter out = JsonLineWriter.stdout();
+
+    private final Set<String> fingerprints = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, String> serials = new ConcurrentHashMap<>();
+    private final List<VaultIndex.Entry> importedEntries = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private PfxImport(List<PfxImportManifestModel.Pfx> files, int threads, Path sourceDir, String vaultRootDir) {
+        this.files = files;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        Path root = (vaultRootDir == null || vaultRootDir.isEmpty()) ? sourceDir : Paths.get(vaultRootDir);
+        this.vaultDir = root.resolve(VaultIndex.DIRECTORY_NAME).toAbsolutePath().normalize();
+    }
+
+    /**
+     * @param pfxDir       Directory whose {@code .pfx} and {@code .p12} files are imported.
+     * @param password     Password of every PFX file.
+     * @param vaultRootDir Directory that holds the vault, or {@code null} to use {@code pfxDir}.
+     */
+    public static PfxImport fromDirectory(String pfxDir, String password, String vaultRootDir) throws IOException {
+        Path dir = Paths.get(pfxDir);
+        List<PfxImportManifestModel.Pfx> files;
+        try (Stream<Path> listing = Files.list(dir)) {
+            files = listing.filter(PfxImport::isPfxFile)
+                    .sorted()
+                    .map(file -> new PfxImportManifestModel.Pfx(file.toString(), password))
+                    .collect(Collectors.toList());
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No .pfx or .p12 files to import in: " + pfxDir);
+        }
+        return new PfxImport(files, 0, dir.toAbsolutePath(), vaultRootDir);
+    }
+
+    /**
+     * @param manifestFilePath Path to the import manifest listing PFX files and their passwords.
+     * @param vaultRootDir     Directory that holds the vault, or {@code null} to use the manifest's directory.
+     */
+    public static PfxImport fromManifest(String manifestFilePath, String vaultRootDir) throws IOException {
+        Path manifestPath = Paths.get(manifestFilePath);
+        PfxImportManifestModel manifest;
+        try (Reader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            manifest = gson.fromJson(reader, PfxImportManifestModel.class);
+        } catch (JsonSyntaxException e) {
+            throw new IllegalArgumentException("Invalid import manifest JSON: " + e.getMessage(), e);
+        }
+        if (manifest == null) {
+            throw new IllegalArgumentException("The import manifest is empty: " + manifestPath);
+        }
+
+        List<ConstraintViolation> violations = new Validator().validate(manifest);
+        if (!violations.isEmpty()) {
+            List<String> errors = violations.stream().map(ConstraintViolation::getMessage).collect(Collectors.toList());
+            throw new IllegalArgumentException(String.valueOf(errors));
+        }
+        for (PfxImportManifestModel.Pfx pfx : manifest.getFiles()) {
+            if (pfx.getPassword() == null) {
+                pfx.setPassword(manifest.getPassword());
+            }
+        }
+        return new PfxImport(manifest.getFiles(), manifest.getThreads(), manifestPath.toAbsolutePath().getParent(), vaultRootDir);
+    }
+
+    /**
+     * Imports every file and blocks until all of them have been processed and indexed.
+     */
+    public void execute() throws IOException, InterruptedException {
+        Files.createDirectories(vaultDir);
+        for (VaultIndex.Entry entry : VaultIndex.open(vaultDir).list()) {
+            fingerprints.add(entry.getFingerprint());
+            serials.put(entry.getSerial(), entry.getFingerprint());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Semaphore slots = new Semaphore(threads * QUEUE_PER_WORKER);
+
+        long start = System.nanoTime();
+        for (PfxImportManifestModel.Pfx pfx : files) {
+            slots.acquire();
+            executor.execute(() -> {
+                try {
+                    importFile(pfx);
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (!importedEntries.isEmpty()) {
+            VaultIndex.put(vaultDir, importedEntries);
+        }
+
+        out.success("summary", summarize(System.nanoTime() - start));
+    }
+
+    private void importFile(PfxImportManifestModel.Pfx pfx) {
+        String fileId = pfx.getPath();
+        try {
+            if (pfx.getPassword() == null) {
+                throw new IllegalArgumentException("No password for " + pfx.getPath());
+            }
+            Path path = Paths.get(pfx.getPath());
+            char[] password = pfx.getPassword().toCharArray();
+            KeyStore keyStore = pfxProcessor.loadPfx(path, password);
+            X509Certificate certificate = pfxProcessor.getX509Certificate(keyStore);
+
+            String serial = certificate.getSerialNumber().toString(16).toUpperCase();
+            VaultIndex.Entry entry = VaultIndex.describe(serial, keyStore.getCertificateAlias(certificate), certificate);
+            HashMap<String, String> result = entry.toResponse(vaultDir);
+            result.put("source", pfx.getPath());
+            if (!fingerprints.add(entry.getFingerprint())) {
+                skipped.incrementAndGet();
+                result.put("result", "SKIPPED");
+                result.put("reason", "The certificate is already in the vault.");
+                out.success(fileId, result);
+                return;
+            }
+
+            try {
+                claimSerial(entry);
+                try {
+                    pfxProcessor.copyPfxToJks(keyStore, pfx.getPassword(), vaultDir.resolve(serial).toString());
+                } catch (Exception e) {
+                    serials.remove(serial, entry.getFingerprint());
+                    throw e;
+                }
+            } catch (Exception e) {
+                // Let a later copy of the same certificate try again.
+                fingerprints.remove(entry.getFingerprint());
+                throw e;
+            }
+            importedEntries.add(entry);
+            imported.incrementAndGet();
+            result.put("result", "IMPORTED");
+            out.success(fileId, result);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            out.error(fileId, e);
+        }
+    }
+
+    /**
+     * Reserves the key store file of the entry, which is named by serial number. Serials are unique per issuer
+     * only, and the vault finds entries by serial, so a serial already used by another certificate is refused
+     * rather than overwriting that certificate's key store.
+     */
+    private void claimSerial(VaultIndex.Entry entry) {
+        String owner = serials.putIfAbsent(entry.getSerial(), entry.getFingerprint());
+        if (owner != null) {
+            throw new IllegalArgumentException("Serial number " + entry.getSerial() + " is already used in the vault by another certificate. Certificates with the same serial number cannot share a vault.");
+        }
+        if (Files.exists(vaultDir.resolve(entry.getSerial()))) {
+            serials.remove(entry.getSerial(), entry.getFingerprint());
+            throw new IllegalArgumentException("The vault already has a key store named " + entry.getSerial() + " that is not in its index. Run -vault reindex first.");
+        }
+    }
+
+    private static boolean isPfxFile(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return Files.isRegularFile(file) && (name.endsWith(".pfx") || name.endsWith(".p12"));
+    }
+
+    private HashMap<String, String> summarize(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long processed = imported.get() + skipped.get() + failed.get();
+
+        HashMap<String, String> summary = new HashMap<>();
+        summary.put("files", String.valueOf(processed));
+        summary.put("imported", String.valueOf(imported.get()));
+        summary.put("skipped", String.valueOf(skipped.get()));
+        summary.put("failed", String.valueOf(failed.get()));
+        summary.put("threads", String.valueOf(threads));
+        summary.put("elapsedMillis", String.format("%.3f", elapsedNanos / 1e6));
+        summary.put("filesPerSecond", String.format("%.2f", processed / seconds));
+        summary.put("vaultPath", vaultDir.toString());
+        return summary;
+    }
+}
@@ -2,6 +2,7 @@ package com.pyojan.eDastakhat.services;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.pyojan.eDastakhat.libs.VaultIndex;
 import com.pyojan.eDastakhat.models.PfxJSONContentModel;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
@@ -12,6 +13,7 @@ import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.*;
 import java.security.cert.Certificate;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -21,15 +23,23 @@ import static com.pyojan.eDastakhat.libs.Response.*;
 public class PfxProcessor {
     private static final Gson jsonPrinter = new GsonBuilder().setPrettyPrinting().create();
 
+    /**
+     * Single BouncyCastle provider shared by the whole JVM. Building the provider is expensive,
+     * so it is created and registered once instead of on every instantiation.
+     */
+    protected static final BouncyCastleProvider BC_PROVIDER = registerProvider();
 
     public PfxProcessor() {
-        try {
-            BouncyCastleProvider provider = new BouncyCastleProvider();
-            Security.addProvider(provider);
-            KeyStore keyStore = KeyStore.getInstance("PKCS12");
-        } catch (KeyStoreException e) {
-            generateErrorResponse(e);
+    }
+
+    private static BouncyCastleProvider registerProvider() {
+        Provider registered = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+        if (registered instanceof BouncyCastleProvider) {
+            return (BouncyCastleProvider) registered;
         }
+        BouncyCastleProvider provider = new BouncyCastleProvider();
+        Security.addProvider(provider);
+        return provider;
     }
 
     public void readPfx(String pfxFilePath, String pfxPass, String vaultRootDir) {
@@ -46,11 +56,10 @@ public class PfxProcessor {
 
         String vaultPath = path.getParent().resolve("eDastkhatVault").toString();
 
-        try (InputStream pfxInputStream = Files.newInputStream(path)) {
+        try {
             // Load the PFX file into a new KeyStore instance
             char[] pass = pfxPass.toCharArray();
-            KeyStore keyStore = KeyStore.getInstance("PKCS12");
-            keyStore.load(pfxInputStream, pass);
+            KeyStore keyStore = loadPfx(path, pass);
 
             // Get the X509 Certificate from the KeyStore
             X509Certificate x509Certificate = getX509Certificate(keyStore);
@@ -58,8 +67,14 @@ public class PfxProcessor {
             String certSerialNumber = x509Certificate.getSerialNumber().toString(16).toUpperCase();
             String rootDir = (vaultRootDir == null) ? String.format("%s/%s", vaultPath, certSerialNumber) : vaultRootDir + "/eDastkhatVault/" + certSerialNumber;
 
+            Path keyStorePath = Paths.get(rootDir);
+            VaultIndex.Entry entry = VaultIndex.describe(certSerialNumber, keyStore.getCertificateAlias(x509Certificate), x509Certificate);
+            checkSerialIsFree(keyStorePath.getParent(), entry);
+
             copyPfxToJks(keyStore, new String(pass), rootDir);  // Pass keyStore instance here
 
+            VaultIndex.put(keyStorePath.getParent(), Collections.singletonList(entry));
+
             generateStdoutResponseOfPfx(x509Certificate);
 
         } catch (IllegalArgumentException | IOException | NoSuchAlgorithmException | CertificateException |
@@ -68,7 +83,29 @@ public class PfxProcessor {
         }
     }
 
-    private void copyPfxToJks(KeyStore keyStore, String pfxPassword, String filePath) throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, CertificateException {
+    /**
+     * Key stores are named and found by serial number, which is unique per issuer only. Processing the same
+     * certificate again replaces its key store, but another certificate with the same serial is refused.
+     */
+    private static void checkSerialIsFree(Path vaultDir, VaultIndex.Entry entry) throws IOException {
+        if (!Files.isDirectory(vaultDir)) {
+            return;
+        }
+        VaultIndex.Entry existing = VaultIndex.open(vaultDir).findBySerial(entry.getSerial());
+        if (existing != null && !existing.getFingerprint().equals(entry.getFingerprint())) {
+            throw new IllegalArgumentException("Serial number " + entry.getSerial() + " is already used in the vault by another certificate, issued by '" + existing.getIssuer() + "'.");
+        }
+    }
+
+    KeyStore loadPfx(Path path, char[] password) throws IOException, KeyStoreException, NoSuchAlgorithmException, CertificateException {
+        try (InputStream pfxInputStream = Files.newInputStream(path)) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(pfxInputStream, password);
+            return keyStore;
+        }
+    }
+
+    void copyPfxToJks(KeyStore keyStore, String pfxPassword, String filePath) throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, CertificateException {
         // Ensure directory exists
         File directory = new File(filePath).getParentFile();
         if (!directory.exists() && !directory.mkdirs()) {
@@ -0,0 +1,371 @@
+package com.pyojan.eDastakhat.services;
+
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.pdf.security.PdfPKCS7;
+import com.pyojan.eDastakhat.libs.ChainValidationCache;
+import com.pyojan.eDastakhat.libs.JsonLineWriter;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampToken;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Verifies every signature of one or more signed PDFs and prints one JSON line per document.
+ * <p>
+ * Each signature is checked for an intact digest over its byte range, a byte range that leaves out exactly its
+ * {@code /Contents}, a certificate chain that leads to a trusted root (see {@link ChainValidationCache}) and was
+ * valid at signing time, and, when it carries one, a timestamp token whose imprint, signature and chain are
+ * valid. A document is valid when it has at least one signature and all of them pass. Documents are verified
+ * concurrently; the number of threads is read from the {@code eDastakhat.verify.threads} system property.
+ * Verifying a list of documents ends with a summary line.
+ */
+public class SignatureVerification {
+
+    private static final int QUEUE_PER_WORKER = 4;
+
+    private final List<Path> documents;
+    private final boolean summary;
+    private final JsonLineWriter out = JsonLineWriter.stdout();
+
+    private final AtomicLong valid = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytesVerified = new AtomicLong();
+
+    private SignatureVerification(List<Path> documents, boolean summary) {
+        this.documents = documents;
+        this.summary = summary;
+    }
+
+    /**
+     * @param pdfFilePath Path to the signed PDF file.
+     */
+    public static SignatureVerification forDocument(String pdfFilePath) throws IOException {
+        Path pdf = Paths.get(pdfFilePath);
+        if (!Files.isRegularFile(pdf)) {
+            throw new FileNotFoundException("PDF path is incorrect or the file does not exist: " + pdfFilePath);
+        }
+        List<Path> documents = new ArrayList<>();
+        documents.add(pdf);
+        return new SignatureVerification(documents, false);
+    }
+
+    /**
+     * @param listPath A directory whose PDF files are verified, or a text file listing one PDF path per line.
+     *                 Relative paths in the list are resolved against the list's directory.
+     */
+    public static SignatureVerification forBatch(String listPath) throws IOException {
+        Path path = Paths.get(listPath);
+        List<Path> documents;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                documents = files.filter(file -> file.getFileName().toString().toLowerCase().endsWith(".pdf"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        } else if (Files.isRegularFile(path)) {
+            Path base = path.toAbsolutePath().getParent();
+            documents = Files.readAllLines(path, StandardCharsets.UTF_8).stream()
+                    .map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(base::resolve)
+                    .collect(Collectors.toList());
+        } else {
+            throw new IOException("Verification list path is incorrect or does not exist: " + listPath);
+        }
+        if (documents.isEmpty()) {
+            throw new IllegalArgumentException("No PDF files to verify in: " + listPath);
+        }
+        return new SignatureVerification(documents, true);
+    }
+
+    /**
+     * Verifies the documents and blocks until every report has been written.
+     */
+    public void execute() throws IOException, GeneralSecurityException, InterruptedException {
+        // Load the trust store before the workers start so a bad configuration fails once, not once per document.
+        ChainValidationCache chainValidationCache = ChainValidationCache.getInstance();
+
+        int threads = Math.min(documents.size(), Integer.getInteger("eDastakhat.verify.threads", Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        Semaphore slots = new Semaphore(Math.max(threads, 1) * QUEUE_PER_WORKER);
+
+        long start = System.nanoTime();
+        for (Path document : documents) {
+            slots.acquire();
+            executor.execute(() -> {
+                try {
+                    verifyDocument(document, chainValidationCache);
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        if (summary) {
+            out.success("summary", summarize(threads, System.nanoTime() - start, chainValidationCache));
+        }
+    }
+
+    private void verifyDocument(Path document, ChainValidationCache chainValidationCache) {
+        String documentId = document.toString();
+        try {
+            HashMap<String, String> report = verify(document, chainValidationCache);
+            bytesVerified.addAndGet(Files.size(document));
+            if (Boolean.parseBoolean(report.get("valid"))) {
+                valid.incrementAndGet();
+            } else {
+                invalid.incrementAndGet();
+            }
+            out.success(documentId, report);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            out.error(documentId, e);
+        }
+    }
+
+    /**
+     * Verifies every signature of one document.
+     *
+     * @return The report: {@code path}, {@code signatures}, {@code valid} and, per signature field, entries named
+     * {@code signature[<field>].<check>}.
+     */
+    public static HashMap<String, String> verify(Path pdf, ChainValidationCache chainValidationCache) throws IOException, GeneralSecurityException {
+        PdfReader reader = PdfSigning.openReader(pdf, null);
+        try {
+            AcroFields acroFields = reader.getAcroFields();
+            List<String> names = acroFields.getSignatureNames();
+
+            HashMap<String, String> report = new HashMap<>();
+            report.put("path", pdf.toString());
+            report.put("signatures", String.valueOf(names.size()));
+            report.put("revisions", String.valueOf(acroFields.getTotalRevisions()));
+
+            boolean allValid = !names.isEmpty();
+            for (String name : names) {
+                allValid &= verifySignature(reader, acroFields, name, chainValidationCache, report);
+            }
+            report.put("valid", String.valueOf(allValid));
+            return report;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean verifySignature(PdfReader reader, AcroFields acroFields, String name, ChainValidationCache chainValidationCache, HashMap<String, String> report) throws IOException, GeneralSecurityException {
+        String prefix = "signature[" + name + "]";
+        report.put(prefix + ".revision", String.valueOf(acroFields.getRevision(name)));
+        report.put(prefix + ".coversWholeDocument", String.valueOf(acroFields.signatureCoversWholeDocument(name)));
+
+        String byteRangeError = checkByteRange(reader, acroFields.getSignatureDictionary(name));
+        report.put(prefix + ".byteRange", byteRangeError == null ? "VALID" : "INVALID");
+        if (byteRangeError != null) {
+            report.put(prefix + ".byteRangeError", byteRangeError);
+            report.put(prefix + ".valid", "false");
+            return false;
+        }
+
+        PdfPKCS7 pkcs7 = acroFields.verifySignature(name, PfxProcessor.BC_PROVIDER.getName());
+        boolean integrity = pkcs7.verify();
+        report.put(prefix + ".integrity", integrity ? "VALID" : "INVALID");
+
+        X509Certificate signer = pkcs7.getSigningCertificate();
+        report.put(prefix + ".signer", signer.getSubjectX500Principal().getName());
+        report.put(prefix + ".serialNumber", signer.getSerialNumber().toString(16));
+
+        boolean timestampValid = verifyTimestamp(pkcs7, chainValidationCache, report, prefix + ".timestamp");
+
+        // The signing date in the signature is only the signer's claim. Without a valid timestamp to vouch for
+        // the time, the certificates must still be within their validity period now.
+        boolean trustedTime = pkcs7.getTimeStampToken() != null && timestampValid;
+        Date signingTime = trustedTime ? pkcs7.getTimeStampDate().getTime() : pkcs7.getSignDate().getTime();
+        Date validityTime = trustedTime ? signingTime : new Date();
+        report.put(prefix + ".signingTime", formatDate(signingTime));
+        report.put(prefix + ".signingTimeSource", trustedTime ? "TIMESTAMP" : "CLAIMED");
+        report.put(prefix + ".validityCheckedAt", formatDate(validityTime));
+
+        Certificate[] chain = pkcs7.getSignCertificateChain();
+        boolean chainTrusted = putChain(report, prefix + ".chain", chainValidationCache.validate(chain));
+        boolean validAtSigningTime = ChainValidationCache.isValidAt(chain, validityTime);
+        report.put(prefix + ".validAtSigningTime", String.valueOf(validAtSigningTime));
+
+        report.put(prefix + ".ltv", String.valueOf(hasVri(reader, DocumentSecurityStore.signatureKey(reader, acroFields, name))));
+
+        boolean signatureValid = integrity && chainTrusted && validAtSigningTime && timestampValid;
+        report.put(prefix + ".valid", String.valueOf(signatureValid));
+        return signatureValid;
+    }
+
+    /**
+     * Checks that the byte range starts at the beginning of the file, stays inside it, and skips exactly the
+     * hex string holding {@code /Contents}, so no unsigned bytes can hide in the gap.
+     *
+     * @return Why the byte range is wrong, or {@code null} when it is sound.
+     */
+    private static String checkByteRange(PdfReader reader, PdfDictionary signature) throws IOException {
+        PdfArray byteRange = signature.getAsArray(PdfName.BYTERANGE);
+        PdfString contents = signature.getAsString(PdfName.CONTENTS);
+        if (byteRange == null || byteRange.size() != 4 || contents == null) {
+            return "The signature has no /ByteRange of four numbers or no /Contents.";
+        }
+        long[] range = new long[4];
+        for (int i = 0; i < 4; i++) {
+            range[i] = byteRange.getAsNumber(i).longValue();
+        }
+
+        RandomAccessFileOrArray file = reader.getSafeFile();
+        long gapStart = range[1];
+        long gapEnd = range[2];
+        if (range[0] != 0 || gapStart <= 0 || gapEnd <= gapStart || range[3] < 0 || gapEnd + range[3] > file.length()) {
+            return "The /ByteRange does not start at 0 or points outside the file.";
+        }
+        if (gapEnd - gapStart != contents.getOriginalBytes().length * 2L + 2) {
+            return "The /ByteRange gap is not exactly the /Contents string.";
+        }
+        file.seek(gapStart);
+        int open = file.read();
+        file.seek(gapEnd - 1);
+        int close = file.read();
+        if (open != '<' || close != '>') {
+            return "The /ByteRange gap does not enclose the /Contents string.";
+        }
+        return null;
+    }
+
+    /**
+     * Checks the timestamp token: its imprint must match the signature, its own signature must verify with the
+     * TSA certificate, and the TSA chain must lead to a trusted root with every certificate valid at the time the
+     * token was generated.
+     *
+     * @return {@code true} when the signature has no timestamp or the timestamp is valid.
+     */
+    private static boolean verifyTimestamp(PdfPKCS7 pkcs7, ChainValidationCache chainValidationCache, HashMap<String, String> report, String prefix) throws GeneralSecurityException {
+        TimeStampToken token = pkcs7.getTimeStampToken();
+        if (token == null) {
+            report.put(prefix, "NONE");
+            return true;
+        }
+        report.put(prefix + "Time", formatDate(token.getTimeStampInfo().getGenTime()));
+
+        if (!pkcs7.verifyTimestampImprint()) {
+            report.put(prefix, "INVALID");
+            report.put(prefix + "Error", "The timestamp imprint does not match the signature.");
+            return false;
+        }
+
+        List<X509Certificate> tsaChain = timestampChain(token);
+        if (tsaChain.isEmpty()) {
+            report.put(prefix, "INVALID");
+            report.put(prefix + "Error", "The timestamp token does not carry the TSA certificate.");
+            return false;
+        }
+        try {
+            token.validate(new JcaSimpleSignerInfoVerifierBuilder().setProvider(PfxProcessor.BC_PROVIDER).build(tsaChain.get(0)));
+        } catch (TSPException | OperatorCreationException e) {
+            report.put(prefix, "INVALID");
+            report.put(prefix + "Error", e.getMessage());
+            return false;
+        }
+        report.put(prefix, "VALID");
+        Certificate[] tsaCertificates = tsaChain.toArray(new Certificate[0]);
+        boolean tsaChainTrusted = putChain(report, prefix + "Chain", chainValidationCache.validate(tsaCertificates));
+        boolean tsaChainValidAtGenTime = ChainValidationCache.isValidAt(tsaCertificates, token.getTimeStampInfo().getGenTime());
+        report.put(prefix + "ChainValidAtTime", String.valueOf(tsaChainValidAtGenTime));
+        return tsaChainTrusted && tsaChainValidAtGenTime;
+    }
+
+    /**
+     * @return The TSA certificate followed by the other certificates carried in the token, or an empty list when
+     * the TSA certificate is missing.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<X509Certificate> timestampChain(TimeStampToken token) throws GeneralSecurityException {
+        JcaX509CertificateConverter converter = new JcaX509CertificateConverter().setProvider(PfxProcessor.BC_PROVIDER);
+        List<X509Certificate> chain = new ArrayList<>();
+        X509Certificate tsaCertificate = null;
+        for (X509CertificateHolder holder : (Collection<X509CertificateHolder>) token.getCertificates().getMatches(null)) {
+            X509Certificate certificate = converter.getCertificate(holder);
+            if (tsaCertificate == null && token.getSID().match(holder)) {
+                tsaCertificate = certificate;
+            } else {
+                chain.add(certificate);
+            }
+        }
+        if (tsaCertificate == null) {
+            return new ArrayList<>();
+        }
+        chain.add(0, tsaCertificate);
+        return chain;
+    }
+
+    private static boolean putChain(HashMap<String, String> report, String key, ChainValidationCache.Result result) {
+        report.put(key, result.isTrusted() ? "TRUSTED" : "UNTRUSTED");
+        if (!result.isTrusted()) {
+            report.put(key + "Error", result.getReason());
+        }
+        return result.isTrusted();
+    }
+
+    private static boolean hasVri(PdfReader reader, PdfName vriKey) {
+        PdfDictionary dss = reader.getCatalog().getAsDict(PdfName.DSS);
+        PdfDictionary vri = dss == null ? null : dss.getAsDict(PdfName.VRI);
+        return vri != null && vri.contains(vriKey);
+    }
+
+    private static String formatDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private HashMap<String, String> summarize(int threads, long elapsedNanos, ChainValidationCache chainValidationCache) {
+        double seconds = elapsedNanos / 1e9;
+        long documents = valid.get() + invalid.get() + failed.get();
+
+        HashMap<String, String> summary = new HashMap<>();
+        summary.put("documents", String.valueOf(documents));
+        summary.put("valid", String.valueOf(valid.get()));
+        summary.put("invalid", String.valueOf(invalid.get()));
+        summary.put("failed", String.valueOf(failed.get()));
+        summary.put("threads", String.valueOf(threads));
+        summary.put("elapsedMillis", String.format("%.3f", elapsedNanos / 1e6));
+        summary.put("documentsPerSecond", String.format("%.2f", documents / seconds));
+        summary.put("megabytesPerSecond", String.format("%.2f", bytesVerified.get() / 1048576.0 / seconds));
+        summary.putAll(chainValidationCache.getStats());
+        return summary;
+    }
+}
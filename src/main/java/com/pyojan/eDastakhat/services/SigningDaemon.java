@@ -0,0 +1,229 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.pyojan.eDastakhat.libs.AppearanceTemplateCache;
+import com.pyojan.eDastakhat.libs.ChainValidationCache;
+import com.pyojan.eDastakhat.libs.JsonLineWriter;
+import com.pyojan.eDastakhat.libs.KeyStoreCache;
+import com.pyojan.eDastakhat.libs.OutputStore;
+import com.pyojan.eDastakhat.libs.Pkcs11KeyStoreManager;
+import com.pyojan.eDastakhat.libs.Response;
+import com.pyojan.eDastakhat.libs.RevocationCache;
+import com.pyojan.eDastakhat.libs.SigningMetrics;
+import com.pyojan.eDastakhat.libs.TsaClientRegistry;
+import com.pyojan.eDastakhat.models.FinalizeModel;
+import com.pyojan.eDastakhat.models.HashSigningModel;
+import com.pyojan.eDastakhat.models.PrepareModel;
+import com.pyojan.eDastakhat.models.SignatureModel;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running signing process that keeps the JVM, BouncyCastle and iText warm between documents.
+ * <p>
+ * Every input line is a {@link SignatureModel} JSON payload with an optional top-level {@code requestId}.
+ * Every job produces exactly one compact response line carrying the same request id. Lines are read from
+ * stdin, or from clients connected to a loopback TCP port when one is configured.
+ * <p>
+ * A line with a {@code command} field controls the daemon instead of signing: {@code "stats"} returns the key cache,
+ * TSA and revocation cache counters and {@code "invalidate"} drops cached keys, either for the given {@code pfxPath}
+ * or all of them.
+ * The {@code "prepare"}, {@code "signHashes"} and {@code "finalize"} commands run the steps of {@link DeferredSigning}
+ * with the rest of the line as their payload, and {@code "verify"} returns the {@link SignatureVerification} report
+ * of the PDF at {@code path}.
+ */
+public class SigningDaemon {
+
+    private static final Gson gson = new Gson();
+    private static final int QUEUE_PER_WORKER = 4;
+
+    private final String outDir;
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param outDir  Directory where signed PDF files are written.
+     * @param workers Number of documents signed concurrently.
+     */
+    public SigningDaemon(String outDir, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Daemon worker count must be at least 1.");
+        }
+        this.outDir = outDir;
+        this.executor = Executors.newFixedThreadPool(workers);
+        // Bounds the number of accepted-but-unfinished jobs so a fast producer blocks instead of filling the heap.
+        this.slots = new Semaphore(workers * QUEUE_PER_WORKER);
+    }
+
+    /**
+     * Serves jobs from stdin until it is closed, then waits for the in-flight jobs to finish.
+     */
+    public void serveStdin() throws IOException, InterruptedException {
+        serve(System.in, System.out);
+        shutdown();
+    }
+
+    /**
+     * Serves jobs from clients connected to the given loopback port. Each connection receives the
+     * responses of the jobs it submitted. Runs until the process is stopped.
+     *
+     * @param port TCP port bound on the loopback interface.
+     */
+    public void serveTcp(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> serveConnection(socket), "eDastakhat-daemon-" + socket.getPort());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try (Socket client = socket) {
+            serve(client.getInputStream(), client.getOutputStream());
+        } catch (IOException | InterruptedException e) {
+            // The client went away; its pending jobs complete and their responses are dropped.
+        }
+    }
+
+    private void serve(InputStream in, OutputStream out) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        JsonLineWriter writer = new JsonLineWriter(out);
+        Semaphore connectionJobs = new Semaphore(0);
+        long submitted = 0;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            slots.acquire();
+            final String payload = line;
+            submitted++;
+            executor.execute(() -> {
+                try {
+                    process(payload, writer);
+                } finally {
+                    slots.release();
+                    connectionJobs.release();
+                }
+            });
+        }
+
+        // Responses of this connection must be flushed before its stream is closed.
+        connectionJobs.acquire((int) Math.min(submitted, Integer.MAX_VALUE));
+    }
+
+    private void process(String payload, JsonLineWriter writer) {
+        String requestId = null;
+        try {
+            JsonElement parsed = JsonParser.parseString(payload);
+            if (!parsed.isJsonObject()) {
+                throw new JsonParseException("the payload is not a JSON object");
+            }
+            JsonObject request = parsed.getAsJsonObject();
+            requestId = readRequestId(request);
+            if (request.has("command")) {
+                writer.success(requestId, runCommand(request));
+                return;
+            }
+            SignatureModel signatureModel;
+            try (SigningMetrics.Phase phase = SigningMetrics.start().phase("payloadParse")) {
+                phase.addBytes(payload.length());
+                signatureModel = gson.fromJson(request, SignatureModel.class);
+            }
+            PdfSigning pdfSigning = new PdfSigning(signatureModel, outDir);
+            HashMap<String, String> result = pdfSigning.signDocument();
+            if (Response.INLINE_SIGNED_PDF) {
+                writer.success(requestId, result, pdfSigning.getMetrics(), "signedPdf", Paths.get(result.get("filePath")));
+            } else {
+                writer.success(requestId, result, pdfSigning.getMetrics());
+            }
+        } catch (Exception e) {
+            if (requestId == null) {
+                requestId = String.valueOf(sequence.incrementAndGet());
+            }
+            if (e instanceof JsonParseException) {
+                writer.error(requestId, new IllegalArgumentException("Invalid JSON payload: " + e.getMessage(), e));
+                return;
+            }
+            writer.error(requestId, e);
+        } finally {
+            SigningMetrics.clear();
+        }
+    }
+
+    private HashMap<String, String> runCommand(JsonObject request) throws IOException, GeneralSecurityException {
+        String command = request.get("command").getAsString();
+        KeyStoreCache keyStoreCache = KeyStoreCache.getInstance();
+
+        if ("stats".equalsIgnoreCase(command)) {
+            HashMap<String, String> stats = keyStoreCache.getStats();
+            stats.putAll(TsaClientRegistry.getInstance().getStats());
+            stats.putAll(RevocationCache.getInstance().getStats());
+            stats.putAll(AppearanceTemplateCache.getInstance().getStats());
+            stats.putAll(OutputStore.getInstance().getStats());
+            stats.putAll(Pkcs11KeyStoreManager.getStats());
+            return stats;
+        } else if ("invalidate".equalsIgnoreCase(command)) {
+            JsonElement pfxPath = request.get("pfxPath");
+            int removed = (pfxPath == null || pfxPath.isJsonNull())
+                    ? keyStoreCache.invalidateAll()
+                    : keyStoreCache.invalidate(Paths.get(pfxPath.getAsString()));
+            HashMap<String, String> result = new HashMap<>();
+            result.put("invalidated", String.valueOf(removed));
+            return result;
+        } else if ("prepare".equalsIgnoreCase(command)) {
+            return new DeferredSigning(outDir).prepare(gson.fromJson(request, PrepareModel.class));
+        } else if ("signHashes".equalsIgnoreCase(command)) {
+            return new DeferredSigning(outDir).signHashes(gson.fromJson(request, HashSigningModel.class));
+        } else if ("finalize".equalsIgnoreCase(command)) {
+            return new DeferredSigning(outDir).finalizeSignature(gson.fromJson(request, FinalizeModel.class));
+        } else if ("verify".equalsIgnoreCase(command)) {
+            JsonElement path = request.get("path");
+            if (path == null || path.isJsonNull()) {
+                throw new IllegalArgumentException("The verify command needs the \"path\" of a signed PDF.");
+            }
+            return SignatureVerification.verify(Paths.get(path.getAsString()), ChainValidationCache.getInstance());
+        }
+        throw new IllegalArgumentException("Invalid daemon command: " + command);
+    }
+
+    private String readRequestId(JsonObject request) {
+        JsonElement requestId = request.get("requestId");
+        if (requestId == null || requestId.isJsonNull()) {
+            return String.valueOf(sequence.incrementAndGet());
+        }
+        return requestId.getAsString();
+    }
+
+    private void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,185 @@
+package com.pyojan.eDastakhat.services;
+
+import com.pyojan.eDastakhat.libs.JsonLineWriter;
+import com.pyojan.eDastakhat.libs.VaultIndex;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists or searches the certificates of a PFX vault using its {@link VaultIndex}, without opening any key store,
+ * or rebuilds the index after key stores were added or removed by hand.
+ * <p>
+ * One JSON line is printed per matching entry, tagged with its serial number, followed by a summary line.
+ * A query is a list of {@code key=value} terms separated by {@code ;}, all of which must match:
+ * {@code serial} and {@code alias} are looked up directly in the index, {@code cn} and {@code issuer} match
+ * part of the name ignoring case, {@code validAt} takes {@code now} or a {@code yyyy-MM-dd} date, and
+ * {@code expiresWithinDays} keeps certificates that expire within that many days from now.
+ */
+public class VaultQuery {
+
+    private final Path vaultDir;
+    private final JsonLineWriter out = JsonLineWriter.stdout();
+
+    /**
+     * @param vaultDir The {@code eDastkhatVault} directory, or {@code null} for the {@code eDastakhat.vault.dir}
+     *                 system property or {@code eDastkhatVault} in the working directory.
+     */
+    public VaultQuery(String vaultDir) {
+        this.vaultDir = Paths.get(vaultDir != null && !vaultDir.isEmpty()
+                ? vaultDir
+                : System.getProperty("eDastakhat.vault.dir", VaultIndex.DIRECTORY_NAME));
+    }
+
+    /**
+     * Prints every entry of the vault.
+     */
+    public void list() throws IOException {
+        VaultIndex index = VaultIndex.open(vaultDir);
+        print(index, index.list());
+    }
+
+    /**
+     * Rebuilds the index from the key stores in the vault, then prints every entry.
+     */
+    public void reindex() throws IOException {
+        VaultIndex.rebuild(vaultDir);
+        list();
+    }
+
+    /**
+     * Prints the entries matching every term of the query.
+     *
+     * @param query Terms such as {@code cn=John;validAt=now}.
+     */
+    public void find(String query) throws IOException {
+        VaultIndex index = VaultIndex.open(vaultDir);
+        List<Term> terms = parse(query);
+
+        // A serial or alias term names at most one entry, so only that entry is checked against the other terms.
+        List<VaultIndex.Entry> candidates = null;
+        for (Term term : terms) {
+            if (term.key.equals("serial") || term.key.equals("alias")) {
+                VaultIndex.Entry entry = term.key.equals("serial") ? index.findBySerial(term.value) : index.findByAlias(term.value);
+                candidates = entry == null ? Collections.<VaultIndex.Entry>emptyList() : Collections.singletonList(entry);
+                break;
+            }
+        }
+        if (candidates == null) {
+            candidates = index.list();
+        }
+
+        List<VaultIndex.Entry> matches = new ArrayList<>();
+        for (VaultIndex.Entry entry : candidates) {
+            if (terms.stream().allMatch(term -> term.matches(entry))) {
+                matches.add(entry);
+            }
+        }
+        print(index, matches);
+    }
+
+    private void print(VaultIndex index, List<VaultIndex.Entry> entries) {
+        for (VaultIndex.Entry entry : entries) {
+            out.success(entry.getSerial(), entry.toResponse(index.getVaultDir()));
+        }
+        HashMap<String, String> summary = new HashMap<>();
+        summary.put("entries", String.valueOf(entries.size()));
+        summary.put("vaultPath", index.getVaultDir().toString());
+        out.success("summary", summary);
+    }
+
+    private static List<Term> parse(String query) {
+        List<Term> terms = new ArrayList<>();
+        for (String part : query.split(";")) {
+            if (part.trim().isEmpty()) {
+                continue;
+            }
+            String[] pair = part.split("=", 2);
+            if (pair.length != 2 || pair[1].trim().isEmpty()) {
+                throw new IllegalArgumentException("Invalid vault query term '" + part + "'. Expected key=value.");
+            }
+            terms.add(new Term(pair[0].trim(), pair[1].trim()));
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("The vault query is empty.");
+        }
+        return terms;
+    }
+
+    private static class Term {
+        private final String key;
+        private final String value;
+        private final Date date;
+
+        Term(String key, String value) {
+            this.key = key;
+            this.value = value;
+            switch (key) {
+                case "serial":
+                case "alias":
+                case "cn":
+                case "issuer":
+                    date = null;
+                    break;
+                case "validAt":
+                    date = parseDate(value);
+                    break;
+                case "expiresWithinDays":
+                    try {
+                        date = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(Long.parseLong(value)));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("expiresWithinDays must be a number of days: " + value);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid vault query key '" + key + "'. Valid keys are: serial, alias, cn, issuer, validAt, expiresWithinDays");
+            }
+        }
+
+        boolean matches(VaultIndex.Entry entry) {
+            switch (key) {
+                case "serial":
+                    return entry.getSerial().equalsIgnoreCase(value);
+                case "alias":
+                    return entry.getAlias().equalsIgnoreCase(value);
+                case "cn":
+                    return contains(entry.getCommonName(), value);
+                case "issuer":
+                    return contains(entry.getIssuer(), value);
+                case "validAt":
+                    return entry.isValidAt(date);
+                default:
+                    return entry.getNotAfter() >= System.currentTimeMillis() && entry.getNotAfter() <= date.getTime();
+            }
+        }
+
+        private static boolean contains(String text, String part) {
+            return text.toLowerCase(Locale.ROOT).contains(part.toLowerCase(Locale.ROOT));
+        }
+
+        private static Date parseDate(String value) {
+            if (value.equalsIgnoreCase("now")) {
+                return new Date();
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            format.setLenient(false);
+            try {
+                return format.parse(value);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("validAt must be 'now' or a yyyy-MM-dd date: " + value);
+            }
+        }
+    }
+}
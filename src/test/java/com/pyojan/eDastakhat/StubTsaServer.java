@@ -0,0 +1,126 @@
+package com.pyojan.eDastakhat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process RFC 3161 responder on a loopback port, standing in for a remote TSA. It can be told to fail, and
+ * counts the probes and timestamp requests it receives.
+ */
+public class StubTsaServer implements Closeable {
+
+    private static final ASN1ObjectIdentifier POLICY = new ASN1ObjectIdentifier("1.3.6.1.4.1.0.1");
+
+    private final HttpServer server;
+    private final TimeStampTokenGenerator tokenGenerator;
+    private final AtomicLong serialNumber = new AtomicLong();
+    private final AtomicInteger probes = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean failing;
+
+    /**
+     * @param chain TSA certificate first, then its issuers, all put in the tokens.
+     */
+    public StubTsaServer(PrivateKey privateKey, X509Certificate... chain) throws Exception {
+        tokenGenerator = new TimeStampTokenGenerator(
+                new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", privateKey, chain[0]),
+                new JcaDigestCalculatorProviderBuilder().build().get(new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256)),
+                POLICY);
+        tokenGenerator.addCertificates(new JcaCertStore(Arrays.asList(chain)));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/tsa";
+    }
+
+    /**
+     * Makes every probe and request fail with HTTP 503, or succeed again.
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public int getProbes() {
+        return probes.get();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = readAll(exchange.getRequestBody());
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                probes.incrementAndGet();
+                exchange.sendResponseHeaders(failing ? 503 : 200, -1);
+                return;
+            }
+            requests.incrementAndGet();
+            if (failing) {
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            byte[] response;
+            synchronized (tokenGenerator) {
+                response = new TimeStampResponseGenerator(tokenGenerator, TSPAlgorithms.ALLOWED)
+                        .generate(new TimeStampRequest(body), BigInteger.valueOf(serialNumber.incrementAndGet()), new Date())
+                        .getEncoded();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/timestamp-reply");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        } catch (Exception e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
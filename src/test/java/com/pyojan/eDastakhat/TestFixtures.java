@@ -0,0 +1,197 @@
+package com.pyojan.eDastakhat;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keys, certificates, PFX files and PDF documents generated for tests, so no fixture has to be checked in.
+ */
+public final class TestFixtures {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static KeyPair keyPair;
+
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    private TestFixtures() {
+    }
+
+    /**
+     * @return One RSA key pair shared by every test, as generating a key is the slow part of a fixture.
+     */
+    public static synchronized KeyPair keyPair() throws GeneralSecurityException {
+        if (keyPair == null) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            keyPair = generator.generateKeyPair();
+        }
+        return keyPair;
+    }
+
+    /**
+     * Issues a certificate for {@code subject}, valid from a day ago for a year.
+     *
+     * @param issuer Issuer name; the certificate is signed with {@code signingKey} whoever the issuer is.
+     */
+    public static X509Certificate certificate(String issuer, String subject, BigInteger serial, KeyPair subjectKeys,
+                                              PrivateKey signingKey) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        return certificate(issuer, subject, serial, subjectKeys, signingKey,
+                new Date(now - TimeUnit.DAYS.toMillis(1)), new Date(now + TimeUnit.DAYS.toMillis(365)), false);
+    }
+
+    /**
+     * @param timestamping Whether the certificate may sign RFC 3161 timestamps, as a TSA's must.
+     */
+    public static X509Certificate certificate(String issuer, String subject, BigInteger serial, KeyPair subjectKeys,
+                                              PrivateKey signingKey, Date notBefore, Date notAfter,
+                                              boolean timestamping) throws GeneralSecurityException {
+        try {
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name(issuer), serial,
+                    notBefore, notAfter, new X500Name(subject), subjectKeys.getPublic());
+            if (timestamping) {
+                builder.addExtension(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+            }
+            return new JcaX509CertificateConverter().setProvider(BouncyCastleProvider.PROVIDER_NAME)
+                    .getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(signingKey)));
+        } catch (OperatorCreationException | IOException e) {
+            throw new GeneralSecurityException("Could not issue the test certificate.", e);
+        }
+    }
+
+    /**
+     * @return A self-signed certificate for {@code subject} with a random serial, on the shared key pair.
+     */
+    public static X509Certificate selfSigned(String subject) throws GeneralSecurityException {
+        return certificate(subject, subject, new BigInteger(64, RANDOM), keyPair(), keyPair().getPrivate());
+    }
+
+    /**
+     * Writes a PKCS#12 file holding the private key and its chain under the alias {@code key}.
+     */
+    public static Path pfx(Path file, String password, PrivateKey privateKey, X509Certificate... chain) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("key", privateKey, password.toCharArray(), chain);
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            keyStore.store(out, password.toCharArray());
+        }
+        return file;
+    }
+
+    /**
+     * Writes a PKCS#12 file with a fresh self-signed certificate for {@code subject} on the shared key pair.
+     */
+    public static Path pfx(Path file, String password, String subject) throws IOException, GeneralSecurityException {
+        return pfx(file, password, keyPair().getPrivate(), selfSigned(subject));
+    }
+
+    /**
+     * @return A trust store holding the given certificates as trust anchors.
+     */
+    public static KeyStore trustStore(Certificate... anchors) throws IOException, GeneralSecurityException {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        for (int i = 0; i < anchors.length; i++) {
+            trustStore.setCertificateEntry("anchor-" + i, anchors[i]);
+        }
+        return trustStore;
+    }
+
+    /**
+     * Writes a one-page PDF followed by an unreferenced stream of {@code paddingBytes} zeros. Written straight to
+     * disk, so documents far larger than the heap can be made.
+     */
+    public static Path pdf(Path file, long paddingBytes) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 20))) {
+            out.write("%PDF-1.4\n%âãÏÓ\n");
+            offsets.add(out.count);
+            out.write("1 0 obj\n<</Type/Catalog/Pages 2 0 R>>\nendobj\n");
+            offsets.add(out.count);
+            out.write("2 0 obj\n<</Type/Pages/Count 1/Kids[3 0 R]>>\nendobj\n");
+            offsets.add(out.count);
+            out.write("3 0 obj\n<</Type/Page/Parent 2 0 R/MediaBox[0 0 595 842]/Resources<<>>/Contents 4 0 R>>\nendobj\n");
+            offsets.add(out.count);
+            out.write("4 0 obj\n<</Length 0>>\nstream\n\nendstream\nendobj\n");
+            offsets.add(out.count);
+            out.write("5 0 obj\n<</Length " + paddingBytes + ">>\nstream\n");
+            byte[] zeros = new byte[1 << 20];
+            for (long left = paddingBytes; left > 0; left -= zeros.length) {
+                out.write(zeros, 0, (int) Math.min(zeros.length, left));
+            }
+            out.write("\nendstream\nendobj\n");
+
+            long xref = out.count;
+            out.write("xref\n0 " + (offsets.size() + 1) + "\n0000000000 65535 f \n");
+            for (long offset : offsets) {
+                out.write(String.format("%010d 00000 n \n", offset));
+            }
+            out.write("trailer\n<</Size " + (offsets.size() + 1) + "/Root 1 0 R>>\nstartxref\n" + xref + "\n%%EOF\n");
+        }
+        return file;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(String text) throws IOException {
+            write(text.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
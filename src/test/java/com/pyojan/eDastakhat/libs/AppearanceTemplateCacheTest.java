@@ -0,0 +1,135 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.security.ExternalSignatureContainer;
+import com.itextpdf.text.pdf.security.MakeSignature;
+import com.pyojan.eDastakhat.TestFixtures;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Signs the same appearance with and without the template cache and checks that the layers the cache writes, on a
+ * miss and on a hit, are byte for byte what iText renders for the same date.
+ */
+class AppearanceTemplateCacheTest {
+
+    // A zone printed with digits and one printed without, so the date text changes length between them.
+    private static final String[] TIME_ZONES = {"GMT+05:45", "UTC"};
+
+    @TempDir
+    Path dir;
+
+    private byte[] pdf;
+    private X509Certificate certificate;
+    private TimeZone defaultTimeZone;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        pdf = Files.readAllBytes(TestFixtures.pdf(dir.resolve("document.pdf"), 0));
+        certificate = TestFixtures.selfSigned("CN=Appearance Signer");
+        defaultTimeZone = TimeZone.getDefault();
+    }
+
+    @AfterEach
+    void restoreTimeZone() {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    @Test
+    void writesTheLayersITextRendersOnAMissAndOnAHit() throws Exception {
+        for (boolean greenTick : new boolean[]{false, true}) {
+            AppearanceTemplateCache cache = new AppearanceTemplateCache(true, 8);
+            for (String zone : TIME_ZONES) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                // Every digit in some position, and fields padded with a zero as well as full ones.
+                Calendar[] dates = {date(2001, 0, 2, 3, 4, 5), date(2099, 11, 31, 23, 59, 58), date(2010, 10, 11, 11, 11, 11)};
+                for (Calendar date : dates) {
+                    String what = "greenTick " + greenTick + ", " + zone + ", " + date.getTime();
+                    List<byte[]> expected = sign(null, greenTick, date);
+                    List<byte[]> actual = sign(cache, greenTick, date);
+
+                    assertEquals(expected.size(), actual.size(), what);
+                    for (int i = 0; i < expected.size(); i++) {
+                        assertArrayEquals(expected.get(i), actual.get(i), what + ", layer " + i);
+                    }
+                }
+            }
+            // One miss per date shape, the other dates of the shape are hits.
+            assertEquals(String.valueOf(TIME_ZONES.length), cache.getStats().get("appearanceCacheMisses"));
+            assertEquals(String.valueOf(TIME_ZONES.length * 2), cache.getStats().get("appearanceCacheHits"));
+            assertEquals("0", cache.getStats().get("appearanceCacheUncacheable"));
+        }
+    }
+
+    /**
+     * Signs the test document with the appearance {@code PdfSigning} makes, through the cache unless it is
+     * {@code null}, and returns the bounding box and content stream of every layer that was drawn.
+     */
+    private List<byte[]> sign(AppearanceTemplateCache cache, boolean greenTick, Calendar date) throws Exception {
+        PdfReader reader = new PdfReader(pdf);
+        PdfStamper stamper = PdfStamper.createSignature(reader, new ByteArrayOutputStream(), '\0');
+        PdfSignatureAppearance appearance = stamper.getSignatureAppearance();
+        appearance.setVisibleSignature(new Rectangle(10, 10, 200, 80), 1, "signature");
+        appearance.setRenderingMode(PdfSignatureAppearance.RenderingMode.NAME_AND_DESCRIPTION);
+        appearance.setAcro6Layers(!greenTick);
+        appearance.setReason("Approved");
+        appearance.setLocation("Lalitpur");
+        appearance.setCertificate(certificate);
+        appearance.setSignDate(date);
+        if (cache != null) {
+            cache.apply(appearance, certificate);
+        }
+        MakeSignature.signExternalContainer(appearance, new EmptySignature(), 8192);
+
+        List<byte[]> layers = new ArrayList<>();
+        for (int number : greenTick ? new int[]{1, 2, 3, 4} : new int[]{2}) {
+            PdfTemplate layer = appearance.getLayer(number);
+            Rectangle box = layer.getBoundingBox();
+            layers.add((box.getLeft() + " " + box.getBottom() + " " + box.getRight() + " " + box.getTop()).getBytes());
+            layers.add(layer.getInternalBuffer().toByteArray());
+        }
+        return layers;
+    }
+
+    private static Calendar date(int year, int month, int day, int hour, int minute, int second) {
+        Calendar date = new GregorianCalendar();
+        date.clear();
+        date.set(year, month, day, hour, minute, second);
+        return date;
+    }
+
+    private static class EmptySignature implements ExternalSignatureContainer {
+        @Override
+        public byte[] sign(InputStream data) {
+            return new byte[0];
+        }
+
+        @Override
+        public void modifySigningDictionary(PdfDictionary signDic) {
+            signDic.put(PdfName.FILTER, PdfName.ADOBE_PPKLITE);
+            signDic.put(PdfName.SUBFILTER, PdfName.ADBE_PKCS7_DETACHED);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.pyojan.eDastakhat.TestFixtures;
+import com.pyojan.eDastakhat.services.PfxProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class KeyStoreCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void refusesACachedKeyOnceItsCertificateHasExpired() throws Exception {
+        KeyPair keys = TestFixtures.keyPair();
+        long now = System.currentTimeMillis();
+        Date notAfter = new Date(now + TimeUnit.SECONDS.toMillis(3));
+        X509Certificate certificate = TestFixtures.certificate("CN=Short Lived", "CN=Short Lived", BigInteger.ONE, keys,
+                keys.getPrivate(), new Date(now - TimeUnit.DAYS.toMillis(1)), notAfter, false);
+        Path pfx = TestFixtures.pfx(dir.resolve("short.pfx"), "secret", keys.getPrivate(), certificate);
+        KeyStoreCache cache = new KeyStoreCache(TimeUnit.HOURS.toNanos(1), TimeUnit.HOURS.toNanos(1), 4);
+
+        KeyStoreManager first = cache.get(pfx, "secret");
+        assertSame(first, cache.get(pfx, "secret"));
+
+        // Certificate times have a resolution of one second.
+        Thread.sleep(notAfter.getTime() + 1000 - System.currentTimeMillis());
+        assertThrows(PfxProcessor.CertificateExpiredException.class, () -> cache.get(pfx, "secret"));
+        assertEquals("0", cache.getStats().get("keyCacheEntries"));
+        assertEquals("1", cache.getStats().get("keyCacheEvictions"));
+    }
+}
@@ -0,0 +1,38 @@
+package com.pyojan.eDastakhat.libs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryTrackerTest {
+
+    @Test
+    void reportsTheHeapPeakOnlyForAJobThatRanAlone() {
+        HashMap<String, String> alone = new HashMap<>();
+        try (MemoryTracker tracker = MemoryTracker.start()) {
+            tracker.addTo(alone);
+        }
+        assertTrue(alone.containsKey("peakHeapBytes"));
+
+        HashMap<String, String> first = new HashMap<>();
+        HashMap<String, String> second = new HashMap<>();
+        try (MemoryTracker firstTracker = MemoryTracker.start()) {
+            try (MemoryTracker secondTracker = MemoryTracker.start()) {
+                secondTracker.addTo(second);
+            }
+            firstTracker.addTo(first);
+        }
+        assertFalse(first.containsKey("peakHeapBytes"));
+        assertFalse(second.containsKey("peakHeapBytes"));
+        assertTrue(first.containsKey("allocatedBytes"));
+
+        HashMap<String, String> after = new HashMap<>();
+        try (MemoryTracker tracker = MemoryTracker.start()) {
+            tracker.addTo(after);
+        }
+        assertTrue(after.containsKey("peakHeapBytes"));
+    }
+}
@@ -0,0 +1,100 @@
+package com.pyojan.eDastakhat.libs;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void numbersAFileWhoseNameIsTakenInsteadOfReplacingIt() throws IOException {
+        OutputStore store = new OutputStore("{name}", 0, OutputStore.Sync.NONE);
+
+        Path first = write(store, "invoice", "first");
+        Path second = write(store, "invoice", "second");
+        Path third = write(store, "invoice", "third");
+
+        assertEquals(dir.resolve("invoice.pdf"), first);
+        assertEquals(dir.resolve("invoice_2.pdf"), second);
+        assertEquals(dir.resolve("invoice_3.pdf"), third);
+        assertEquals("first", read(first));
+        assertEquals("second", read(second));
+        assertEquals(3, pdfCount());
+    }
+
+    @Test
+    void keepsEveryFileWhenManyJobsAskForTheSameNameAtOnce() throws Exception {
+        for (OutputStore.Sync sync : OutputStore.Sync.values()) {
+            OutputStore store = new OutputStore("{name}", 0, sync);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Future<Path>> results = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                String content = sync + "-" + i;
+                results.add(executor.submit(() -> write(store, "same-" + sync, content)));
+            }
+            Set<String> contents = new HashSet<>();
+            for (Future<Path> result : results) {
+                contents.add(read(result.get()));
+            }
+            executor.shutdown();
+
+            assertEquals(50, contents.size());
+        }
+        assertEquals(150, pdfCount());
+    }
+
+    @Test
+    void storesContentAddressedFilesOnce() throws IOException {
+        OutputStore store = new OutputStore("{sha256}", 0, OutputStore.Sync.NONE);
+
+        Path first = write(store, "a", "same bytes");
+        Path second = write(store, "b", "same bytes");
+
+        assertEquals(first, second);
+        assertEquals(1, pdfCount());
+    }
+
+    @Test
+    void parsesTheSyncPropertyAndNamesTheValidValuesOfABadOne() {
+        assertEquals(OutputStore.Sync.GROUP, OutputStore.Sync.parse(" Group "));
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> OutputStore.Sync.parse("fiel"));
+        assertTrue(e.getMessage().contains("none, file, group"), e.getMessage());
+    }
+
+    private Path write(OutputStore store, String name, String content) throws IOException {
+        try (OutputStore.Pending pending = store.create(dir, name)) {
+            Files.write(pending.getTempPath(), content.getBytes(StandardCharsets.UTF_8));
+            return pending.commit();
+        }
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private long pdfCount() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".pdf")).count();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.pyojan.eDastakhat.models.SignatureModel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads hand-written payloads with the streaming scanner and checks them against what the JSON says.
+ */
+class PayloadReaderTest {
+
+    // Base64 characters decoded per chunk by the reader.
+    private static final int CHUNK = 16 * 1024;
+    private static final long NO_SPILL = Long.MAX_VALUE;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsEscapedKeysAndValues() throws Exception {
+        byte[] document = document(100);
+        PayloadReader reader = read("{\"cert\\u0049nfo\":{\"pfxPath\":\"C:\\\\keys\\\\signer \\\"1\\\".pfx\",\"password\":\"p\\u00e4ss\\/\\t\"},"
+                + "\"options\":{\"reason\":\"Line\\nbreak, \\\"quoted\\\" } ]\",\"timestamp\":{\"enabled\":false}},"
+                + "\"p\\u0064f\":{\"base64\\u0043ontent\":\"" + Base64.getEncoder().encodeToString(document) + "\",\"pass\\u0077ord\":\"\\u0041\"}}", NO_SPILL);
+
+        SignatureModel model = reader.getSignatureModel();
+        assertEquals("C:\\keys\\signer \"1\".pfx", model.getCertInfo().getPfxPath());
+        assertEquals("p\u00e4ss/\t", model.getCertInfo().getPassword());
+        assertEquals("Line\nbreak, \"quoted\" } ]", model.getOptions().getReason());
+        assertEquals("A", model.getPdf().getPassword());
+        assertArrayEquals(document, reader.getPdfBytes());
+    }
+
+    @Test
+    void readsNestedObjectsAndArrays() throws Exception {
+        PayloadReader reader = read("{\"certInfo\":{\"pfxPath\":\"a.pfx\",\"password\":\"x\",\"unknown\":{\"deep\":[{\"a\":[1,{\"b\":\"]}\"}]}]}},"
+                + "\"options\":{\"coord\":[10,20,30,40],\"extra\":[[],[1,[{}]],{\"c\":[\"[\"]}],\"timestamp\":{\"enabled\":true,\"url\":\"http://tsa/{x}\"}},"
+                + "\"signers\":[{\"certInfo\":{\"pfxPath\":\"b.pfx\"},\"options\":{\"page\":\"F\",\"coord\":[1,2,3,4]}}],"
+                + "\"pdf\":{\"base64Content\":\"QUJD\",\"password\":\"\"}}", NO_SPILL);
+
+        SignatureModel model = reader.getSignatureModel();
+        assertEquals("a.pfx", model.getCertInfo().getPfxPath());
+        assertArrayEquals(new int[]{10, 20, 30, 40}, model.getOptions().getCoord());
+        assertEquals("http://tsa/{x}", model.getOptions().getTimestamp().getUrl());
+        assertEquals("b.pfx", model.getSigners().get(0).getCertInfo().getPfxPath());
+        assertArrayEquals(new int[]{1, 2, 3, 4}, model.getSigners().get(0).getOptions().getCoord());
+        assertArrayEquals("ABC".getBytes(StandardCharsets.US_ASCII), reader.getPdfBytes());
+    }
+
+    @Test
+    void readsNumbersAndBooleansFollowedByWhitespace() throws Exception {
+        PayloadReader reader = read("{ \"options\" : { \"coord\" : [ 1 , 2\t, 3\r\n, 4 ] , \"greenTick\" : true \n ,"
+                + " \"changesAllowed\" : false\t, \"enableLtv\" : true  } , \"threads\" : 3 \n,"
+                + " \"pdf\" : { \"password\" : \"\" \r\n , \"base64Content\" : \"QUJD\" \t } \n } \n", NO_SPILL);
+
+        SignatureModel.Options options = reader.getSignatureModel().getOptions();
+        assertArrayEquals(new int[]{1, 2, 3, 4}, options.getCoord());
+        assertTrue(options.isGreenTick());
+        assertTrue(options.isEnableLtv());
+        assertEquals("", reader.getSignatureModel().getPdf().getPassword());
+        assertArrayEquals("ABC".getBytes(StandardCharsets.US_ASCII), reader.getPdfBytes());
+    }
+
+    @Test
+    void decodesContentWhosePaddingEndsOrFollowsAChunk() throws Exception {
+        // Base64 lengths from just below one chunk to just above it, with and without padding.
+        for (int size = CHUNK / 4 * 3 - 3; size <= CHUNK / 4 * 3 + 3; size++) {
+            byte[] document = document(size);
+            String base64 = Base64.getEncoder().encodeToString(document);
+
+            assertArrayEquals(document, read(payload(base64), NO_SPILL).getPdfBytes(), "size " + size);
+            // Line breaks and escaped slashes do not count towards the chunk.
+            String wrapped = Base64.getMimeEncoder().encodeToString(document).replace("\r\n", "\\n").replace("/", "\\/");
+            assertArrayEquals(document, read(payload(wrapped), NO_SPILL).getPdfBytes(), "wrapped size " + size);
+        }
+    }
+
+    @Test
+    void decodesContentWithEscapedLineBreaks() throws Exception {
+        byte[] document = document(CHUNK * 2);
+        String base64 = Base64.getEncoder().encodeToString(document);
+        StringBuilder escaped = new StringBuilder();
+        for (int i = 0; i < base64.length(); i += 64) {
+            escaped.append(base64, i, Math.min(base64.length(), i + 64)).append(i % 128 == 0 ? "\\n" : "\\r\\n");
+        }
+
+        assertArrayEquals(document, read(payload(escaped.toString()), NO_SPILL).getPdfBytes());
+    }
+
+    @Test
+    void rejectsPaddingInTheMiddleOfTheContent() throws Exception {
+        // The first chunk ends with padding and more content follows.
+        String base64 = Base64.getEncoder().encodeToString(document(CHUNK / 4 * 3 - 2)) + "QUJD";
+
+        assertThrows(IllegalArgumentException.class, () -> read(payload(base64), NO_SPILL));
+    }
+
+    @Test
+    void spillsALargeDocumentToATemporaryFile() throws Exception {
+        byte[] document = document(CHUNK * 3 + 5);
+        Path spillDir = dir.resolve("spill");
+
+        PayloadReader reader = PayloadReader.read(write(payload(Base64.getEncoder().encodeToString(document))), 1024, spillDir);
+
+        assertNull(reader.getPdfBytes());
+        assertEquals(spillDir, reader.getPdfFile().getParent());
+        assertArrayEquals(document, Files.readAllBytes(reader.getPdfFile()));
+        assertEquals("secret", reader.getSignatureModel().getPdf().getPassword());
+    }
+
+    @Test
+    void deletesTheTemporaryFileWhenThePayloadIsInvalid() throws Exception {
+        String base64 = Base64.getEncoder().encodeToString(document(CHUNK * 3));
+        Path spillDir = dir.resolve("spill");
+        // Invalid Base64 after the first chunks have been written, and invalid JSON after the whole document.
+        String[] payloads = {
+                payload(base64.substring(0, CHUNK * 2) + "*" + base64.substring(CHUNK * 2)),
+                payload(base64).replaceFirst("}$", ""),
+                payload(base64).replaceFirst("}$", ",\"threads\":}"),
+                payload(base64) + "}"
+        };
+
+        for (String payload : payloads) {
+            assertThrows(IllegalArgumentException.class, () -> PayloadReader.read(write(payload), 1024, spillDir));
+            try (Stream<Path> files = Files.list(spillDir)) {
+                assertEquals(0, files.count());
+            }
+        }
+    }
+
+    private PayloadReader read(String payload, long spillThreshold) throws Exception {
+        return PayloadReader.read(write(payload), spillThreshold, dir.resolve("spill"));
+    }
+
+    private Path write(String payload) throws Exception {
+        return Files.write(dir.resolve("payload.json"), payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String payload(String base64Content) {
+        return "{\"certInfo\":{\"pfxPath\":\"signer.pfx\",\"password\":\"x\"},\"options\":{\"coord\":[1,2,3,4]},"
+                + "\"pdf\":{\"base64Content\":\"" + base64Content + "\",\"password\":\"secret\"}}";
+    }
+
+    private static byte[] document(int size) {
+        byte[] document = new byte[size];
+        new Random(size).nextBytes(document);
+        return document;
+    }
+}
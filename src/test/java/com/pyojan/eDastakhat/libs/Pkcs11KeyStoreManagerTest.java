@@ -0,0 +1,284 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.itextpdf.text.pdf.security.ExternalSignature;
+import com.pyojan.eDastakhat.TestFixtures;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks which PKCS#11 modules may be loaded, and signs on a SoftHSM token when {@code libsofthsm2.so} and
+ * {@code softhsm2-util} are installed. The token is created in the token directory of the SoftHSM configuration in
+ * use, {@code SOFTHSM2_CONF} or the system one, and deleted afterwards.
+ */
+class Pkcs11KeyStoreManagerTest {
+
+    private static final String ALLOWED = "eDastakhat.pkcs11.allowedLibraries";
+    private static final String[] SOFTHSM_LIBRARIES = {"/usr/lib/softhsm/libsofthsm2.so",
+            "/usr/lib/x86_64-linux-gnu/softhsm/libsofthsm2.so", "/usr/lib64/pkcs11/libsofthsm2.so",
+            "/usr/local/lib/softhsm/libsofthsm2.so"};
+    private static final String PIN = "1234";
+    private static final int SIGNATURES_PER_THREAD = 5;
+
+    @TempDir
+    Path dir;
+
+    private String tokenLabel;
+
+    @AfterEach
+    void clearAllowed() throws Exception {
+        System.clearProperty(ALLOWED);
+        if (tokenLabel != null) {
+            softHsmUtil("--delete-token", "--token", tokenLabel);
+        }
+    }
+
+    @Test
+    void acceptsOnlyAnAllowedLibrary() throws Exception {
+        Path library = Files.createFile(dir.resolve("libtoken.so"));
+        Path other = Files.createFile(dir.resolve("libother.so"));
+        System.setProperty(ALLOWED, library.toString());
+
+        Pkcs11KeyStoreManager.checkToken(certInfo(library.toString()));
+        assertThrows(IllegalArgumentException.class, () -> Pkcs11KeyStoreManager.checkToken(certInfo(other.toString())));
+        assertThrows(FileNotFoundException.class, () -> Pkcs11KeyStoreManager.checkToken(certInfo(dir.resolve("missing.so").toString())));
+    }
+
+    @Test
+    void refusesEveryLibraryWhenNoneIsAllowed() throws Exception {
+        Path library = Files.createFile(dir.resolve("libtoken.so"));
+
+        assertThrows(IllegalArgumentException.class, () -> Pkcs11KeyStoreManager.checkToken(certInfo(library.toString())));
+    }
+
+    @Test
+    void comparesTheLibraryBehindALink() throws Exception {
+        Path library = Files.createFile(dir.resolve("libtoken.so"));
+        Path other = Files.createFile(dir.resolve("libother.so"));
+        Path linkToOther = Files.createSymbolicLink(dir.resolve("other-link.so"), other);
+        Path linkToAllowed = Files.createSymbolicLink(dir.resolve("token-link.so"), library);
+        System.setProperty(ALLOWED, library.toString());
+
+        assertThrows(IllegalArgumentException.class, () -> Pkcs11KeyStoreManager.checkToken(certInfo(linkToOther.toString())));
+        Pkcs11KeyStoreManager.checkToken(certInfo(linkToAllowed.toString()));
+    }
+
+    @Test
+    void refusesALibraryNameThatWouldChangeTheProviderConfiguration() throws Exception {
+        Path library = Files.createFile(dir.resolve("libtoken.so"));
+        System.setProperty(ALLOWED, library.toString());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> Pkcs11KeyStoreManager.checkToken(certInfo(library + "\nlibrary = /tmp/evil.so")));
+        assertThrows(IllegalArgumentException.class,
+                () -> Pkcs11KeyStoreManager.checkToken(certInfo(library + "\"")));
+    }
+
+    @Test
+    void registersNoProviderWhenATokenCannotBeOpened() throws Exception {
+        Path library = Files.write(dir.resolve("libbroken.so"), new byte[]{0});
+        System.setProperty(ALLOWED, library.toString());
+        int providers = Security.getProviders().length;
+        // The SoftHSM tests leave their pools behind.
+        String pools = Pkcs11KeyStoreManager.getStats().get("pkcs11Pools");
+
+        assertThrows(GeneralSecurityException.class, () -> Pkcs11KeyStoreManager.getInstance(certInfo(library.toString())));
+        assertEquals(providers, Security.getProviders().length);
+        assertEquals(pools, Pkcs11KeyStoreManager.getStats().get("pkcs11Pools"));
+    }
+
+    @Test
+    void signsConcurrentlyOnNoMoreSessionsThanThePoolHolds() throws Exception {
+        SignatureModel.CertInfo certInfo = softHsmToken();
+        long sessions = stat("pkcs11Sessions");
+        long logins = stat("pkcs11Logins");
+        long signatures = stat("pkcs11Signatures");
+        Pkcs11KeyStoreManager manager = Pkcs11KeyStoreManager.getInstance(certInfo);
+
+        int threads = Pkcs11KeyStoreManager.POOL_SIZE * 3;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                byte[] message = ("document " + i).getBytes(StandardCharsets.UTF_8);
+                results.add(executor.submit(() -> {
+                    start.await();
+                    ExternalSignature signature = manager.getSignature("SHA-256");
+                    for (int j = 0; j < SIGNATURES_PER_THREAD; j++) {
+                        assertTrue(verify(manager, message, signature.sign(message)));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads * SIGNATURES_PER_THREAD, stat("pkcs11Signatures") - signatures);
+        long opened = stat("pkcs11Sessions") - sessions;
+        assertTrue(opened >= 1 && opened <= Pkcs11KeyStoreManager.POOL_SIZE, opened + " sessions");
+        assertEquals(opened, stat("pkcs11Logins") - logins);
+    }
+
+    @Test
+    void logsInAgainAndRetriesWhenTheSessionHandleIsInvalid() throws Exception {
+        SignatureModel.CertInfo certInfo = softHsmToken();
+        Pkcs11KeyStoreManager manager = Pkcs11KeyStoreManager.getInstance(certInfo);
+        ExternalSignature signature = manager.getSignature("SHA-256");
+        byte[] message = "document".getBytes(StandardCharsets.UTF_8);
+        assertTrue(verify(manager, message, signature.sign(message)));
+        long reauthentications = stat("pkcs11Reauthentications");
+
+        // Every session handle the pool holds is now CKR_SESSION_HANDLE_INVALID.
+        closeAllSessions(certInfo.getPkcs11Library(), certInfo.getSlot());
+
+        assertTrue(verify(manager, message, signature.sign(message)));
+        assertEquals(reauthentications + 1, stat("pkcs11Reauthentications"));
+        assertTrue(verify(manager, message, signature.sign(message)));
+        assertEquals(reauthentications + 1, stat("pkcs11Reauthentications"));
+    }
+
+    /**
+     * Creates a SoftHSM token holding a key and its certificate, skipping the test when SoftHSM is not installed.
+     *
+     * @return Key details naming the token's module, slot and PIN, with the module allowed.
+     */
+    private SignatureModel.CertInfo softHsmToken() throws Exception {
+        String library = null;
+        for (String candidate : SOFTHSM_LIBRARIES) {
+            if (Files.isRegularFile(Paths.get(candidate))) {
+                library = candidate;
+            }
+        }
+        assumeTrue(library != null, "libsofthsm2.so is not installed");
+        String label = "eDastakhat-" + System.nanoTime();
+        String output = softHsmUtil("--init-token", "--free", "--label", label, "--so-pin", "0000", "--pin", PIN);
+        tokenLabel = label;
+        Matcher slot = Pattern.compile("slot (\\d+)").matcher(output);
+        assertTrue(slot.find(), output);
+
+        SignatureModel.CertInfo certInfo = certInfo(library);
+        certInfo.setSlot(Integer.valueOf(slot.group(1)));
+        KeyPair keys = TestFixtures.keyPair();
+        KeyStore keyStore = KeyStore.getInstance("PKCS11", Pkcs11KeyStoreManager.configure(
+                "name = eDastakhatTest\nlibrary = " + library + "\nslot = " + certInfo.getSlot() + "\n"));
+        keyStore.load(null, PIN.toCharArray());
+        keyStore.setKeyEntry("signer", keys.getPrivate(), null, new Certificate[]{TestFixtures.selfSigned("CN=Token Signer")});
+        System.setProperty(ALLOWED, library);
+        return certInfo;
+    }
+
+    /**
+     * Runs {@code softhsm2-util}, skipping the test when it is not installed or cannot write the token directory.
+     */
+    private static String softHsmUtil(String... arguments) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add("softhsm2-util");
+        for (String argument : arguments) {
+            command.add(argument);
+        }
+        Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            assumeTrue(false, "softhsm2-util is not installed");
+            throw e;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                output.write(buffer, 0, read);
+            }
+        }
+        String text = new String(output.toByteArray(), StandardCharsets.UTF_8);
+        assumeTrue(process.waitFor() == 0, text);
+        return text;
+    }
+
+    /**
+     * Closes every session on the slot through the PKCS#11 wrapper of the JDK, which shares the module with the pool,
+     * as happens when the token is pulled out and put back between two signatures. SoftHSM numbers its handles from
+     * one up, so every session of the slot has a handle below that of a session opened now.
+     */
+    private static void closeAllSessions(String library, int slot) throws Exception {
+        try {
+            Class<?> wrapper = Class.forName("sun.security.pkcs11.wrapper.PKCS11");
+            Object pkcs11 = wrapper.getMethod("getInstance", String.class, String.class,
+                            Class.forName("sun.security.pkcs11.wrapper.CK_C_INITIALIZE_ARGS"), boolean.class)
+                    .invoke(null, library, "C_GetFunctionList", null, false);
+            // CKF_SERIAL_SESSION
+            long last = (Long) wrapper.getMethod("C_OpenSession", long.class, long.class, Object.class,
+                            Class.forName("sun.security.pkcs11.wrapper.CK_NOTIFY"))
+                    .invoke(pkcs11, (long) slot, 4L, null, null);
+            for (long handle = 1; handle <= last; handle++) {
+                Object info;
+                try {
+                    info = wrapper.getMethod("C_GetSessionInfo", long.class).invoke(pkcs11, handle);
+                } catch (InvocationTargetException e) {
+                    // An object handle, or a session that is already closed.
+                    continue;
+                }
+                if (info.getClass().getField("slotID").getLong(info) == slot) {
+                    wrapper.getMethod("C_CloseSession", long.class).invoke(pkcs11, handle);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            assumeTrue(false, "sun.security.pkcs11.wrapper is not exported; run with the pkcs11-wrapper profile");
+        }
+    }
+
+    private static boolean verify(Pkcs11KeyStoreManager manager, byte[] message, byte[] signed) throws GeneralSecurityException {
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(manager.getCertificateChain()[0].getPublicKey());
+        verifier.update(message);
+        return verifier.verify(signed);
+    }
+
+    private static long stat(String name) {
+        return Long.parseLong(Pkcs11KeyStoreManager.getStats().get(name));
+    }
+
+    private static SignatureModel.CertInfo certInfo(String library) {
+        SignatureModel.CertInfo certInfo = new SignatureModel.CertInfo();
+        certInfo.setPkcs11Library(library);
+        certInfo.setPassword("1234");
+        return certInfo;
+    }
+}
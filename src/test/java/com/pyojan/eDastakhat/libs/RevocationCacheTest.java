@@ -0,0 +1,219 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.pyojan.eDastakhat.TestFixtures;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Runs the revocation cache against a local stand-in OCSP responder and a CRL served from a file, with update
+ * periods of a few seconds so expiry can be watched.
+ */
+class RevocationCacheTest {
+
+    private static final long VALIDITY_MILLIS = 2000;
+
+    @TempDir
+    Path dir;
+
+    private KeyPair caKeys;
+    private X509Certificate ca;
+    private HttpServer ocspServer;
+    private final AtomicInteger ocspRequests = new AtomicInteger();
+    private volatile boolean ocspRevoked;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        caKeys = TestFixtures.keyPair();
+        ca = TestFixtures.certificate("CN=Test CA", "CN=Test CA", BigInteger.ONE, caKeys, caKeys.getPrivate());
+
+        ocspServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ocspServer.createContext("/", this::answerOcsp);
+        ocspServer.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ocspServer.stop(0);
+    }
+
+    @Test
+    void sharesAnOcspResponseUntilItsNextUpdate() throws Exception {
+        RevocationCache cache = new RevocationCache(2000, TimeUnit.HOURS.toMillis(1), 16);
+        Certificate[] chain = {signer(ocspUrl(), null), ca};
+
+        RevocationCache.RevocationData first = cache.collect(chain);
+        cache.collect(chain);
+        assertEquals(1, ocspRequests.get());
+        assertEquals(1, first.getOcspResponses().size());
+        assertEquals("1", cache.getStats().get("revocationCacheHits"));
+
+        TimeUnit.MILLISECONDS.sleep(VALIDITY_MILLIS + 1000);
+        cache.collect(chain);
+        assertEquals(2, ocspRequests.get());
+        assertEquals("1", cache.getStats().get("revocationCacheEvictions"));
+    }
+
+    @Test
+    void failsSigningForACertificateTheResponderReportsRevoked() throws Exception {
+        RevocationCache cache = new RevocationCache(2000, TimeUnit.HOURS.toMillis(1), 16);
+        ocspRevoked = true;
+
+        assertThrows(RevocationCache.RevokedException.class, () -> cache.collect(new Certificate[]{signer(ocspUrl(), null), ca}));
+    }
+
+    @Test
+    void keepsACrlUntilItsNextUpdateThenSeesTheRevocation() throws Exception {
+        RevocationCache cache = new RevocationCache(2000, TimeUnit.HOURS.toMillis(1), 16);
+        Path crl = dir.resolve("ca.crl");
+        X509Certificate signer = signer(null, crl.toUri().toString());
+        Certificate[] chain = {signer, ca};
+
+        Files.write(crl, crl(caKeys.getPrivate(), null));
+        assertEquals(1, cache.collect(chain).getCrls().size());
+
+        // The revocation is published, but the cached CRL stays in use until its nextUpdate.
+        Files.write(crl, crl(caKeys.getPrivate(), signer.getSerialNumber()));
+        cache.collect(chain);
+        assertEquals("1", cache.getStats().get("revocationCacheMisses"));
+
+        TimeUnit.MILLISECONDS.sleep(VALIDITY_MILLIS + 1000);
+        assertThrows(RevocationCache.RevokedException.class, () -> cache.collect(chain));
+    }
+
+    @Test
+    void rejectsACrlNotSignedByTheIssuer() throws Exception {
+        RevocationCache cache = new RevocationCache(2000, TimeUnit.HOURS.toMillis(1), 16);
+        Path crl = dir.resolve("forged.crl");
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        Files.write(crl, crl(generator.generateKeyPair().getPrivate(), null));
+
+        assertThrows(GeneralSecurityException.class,
+                () -> cache.collect(new Certificate[]{signer(null, crl.toUri().toString()), ca}));
+        assertEquals("0", cache.getStats().get("revocationCacheEntries"));
+    }
+
+    private String ocspUrl() {
+        return "http://127.0.0.1:" + ocspServer.getAddress().getPort() + "/ocsp";
+    }
+
+    /**
+     * Issues a signer certificate from the test CA that names the given OCSP responder and CRL, either may be null.
+     */
+    private X509Certificate signer(String ocspUrl, String crlUrl) throws Exception {
+        long now = System.currentTimeMillis();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name("CN=Test CA"),
+                BigInteger.valueOf(now), new Date(now - TimeUnit.DAYS.toMillis(1)), new Date(now + TimeUnit.DAYS.toMillis(365)),
+                new X500Name("CN=Test Signer"), caKeys.getPublic());
+        if (ocspUrl != null) {
+            builder.addExtension(Extension.authorityInfoAccess, false, new AuthorityInformationAccess(
+                    AccessDescription.id_ad_ocsp, new GeneralName(GeneralName.uniformResourceIdentifier, ocspUrl)));
+        }
+        if (crlUrl != null) {
+            DistributionPointName name = new DistributionPointName(new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, crlUrl)));
+            builder.addExtension(Extension.cRLDistributionPoints, false,
+                    new CRLDistPoint(new DistributionPoint[]{new DistributionPoint(name, null, null)}));
+        }
+        return new JcaX509CertificateConverter().getCertificate(builder.build(contentSigner(caKeys.getPrivate())));
+    }
+
+    private byte[] crl(PrivateKey signingKey, BigInteger revokedSerial) throws Exception {
+        Date now = new Date();
+        X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        builder.setNextUpdate(new Date(now.getTime() + VALIDITY_MILLIS));
+        if (revokedSerial != null) {
+            builder.addCRLEntry(revokedSerial, now, CRLReason.keyCompromise);
+        }
+        return builder.build(contentSigner(signingKey)).getEncoded();
+    }
+
+    private void answerOcsp(HttpExchange exchange) throws IOException {
+        try {
+            ocspRequests.incrementAndGet();
+            OCSPReq request = new OCSPReq(readAll(exchange.getRequestBody()));
+            Date now = new Date();
+            BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(new JcaX509CertificateHolder(ca).getSubject()));
+            for (Req single : request.getRequestList()) {
+                CertificateID id = single.getCertID();
+                CertificateStatus status = ocspRevoked ? new RevokedStatus(now, CRLReason.keyCompromise) : CertificateStatus.GOOD;
+                builder.addResponse(id, status, now, new Date(now.getTime() + VALIDITY_MILLIS), null);
+            }
+            byte[] response = new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL,
+                    builder.build(contentSigner(caKeys.getPrivate()), new X509CertificateHolder[0], now)).getEncoded();
+            exchange.getResponseHeaders().set("Content-Type", "application/ocsp-response");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        } catch (Exception e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static ContentSigner contentSigner(PrivateKey key) throws Exception {
+        return new JcaContentSignerBuilder("SHA256withRSA").build(key);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,135 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.pyojan.eDastakhat.StubTsaServer;
+import com.pyojan.eDastakhat.TestFixtures;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TimestampClientTest {
+
+    private StubTsaServer tsa;
+
+    @BeforeEach
+    void startTsa() throws Exception {
+        KeyPair keys = TestFixtures.keyPair();
+        long now = System.currentTimeMillis();
+        tsa = new StubTsaServer(keys.getPrivate(), TestFixtures.certificate("CN=Test TSA", "CN=Test TSA", BigInteger.ONE,
+                keys, keys.getPrivate(), new Date(now - TimeUnit.DAYS.toMillis(1)), new Date(now + TimeUnit.DAYS.toMillis(365)), true));
+    }
+
+    @AfterEach
+    void stopTsa() {
+        tsa.close();
+    }
+
+    @Test
+    void returnsATokenForTheImprint() throws Exception {
+        TimestampClient client = new TimestampClient(tsa.getUrl(), null, null, settings(3, TimeUnit.SECONDS.toNanos(30)));
+        byte[] imprint = MessageDigest.getInstance("SHA-256").digest("document".getBytes(StandardCharsets.UTF_8));
+
+        TimeStampToken token = new TimeStampToken(new CMSSignedData(client.getTimeStampToken(imprint)));
+
+        assertArrayEquals(imprint, token.getTimeStampInfo().getMessageImprintDigest());
+        assertEquals(1, tsa.getRequests());
+    }
+
+    @Test
+    void probesAHealthyEndpointOnceWithinTheHealthTtl() throws Exception {
+        TimestampClient client = new TimestampClient(tsa.getUrl(), null, null, settings(3, TimeUnit.SECONDS.toNanos(30)));
+
+        client.ensureAvailable();
+        client.ensureAvailable();
+        client.getTimeStampToken(new byte[32]);
+        client.ensureAvailable();
+
+        assertEquals(1, tsa.getProbes());
+    }
+
+    @Test
+    void opensTheCircuitAfterConsecutiveFailuresAndFailsFast() throws Exception {
+        TimestampClient client = new TimestampClient(tsa.getUrl(), null, null, settings(2, TimeUnit.MINUTES.toNanos(5)));
+        tsa.setFailing(true);
+
+        assertThrows(TimestampClient.TsaException.class, () -> client.getTimeStampToken(new byte[32]));
+        assertThrows(TimestampClient.TsaException.class, () -> client.getTimeStampToken(new byte[32]));
+        tsa.setFailing(false);
+        assertThrows(TimestampClient.TsaException.class, () -> client.getTimeStampToken(new byte[32]));
+        assertThrows(TimestampClient.TsaException.class, client::ensureAvailable);
+
+        assertEquals(2, tsa.getRequests());
+        assertEquals(0, tsa.getProbes());
+        HashMap<String, String> stats = new HashMap<>();
+        client.addTo(stats);
+        assertEquals("OPEN", stats.get("tsa[" + tsa.getUrl() + "].circuit"));
+        assertEquals("2", stats.get("tsa[" + tsa.getUrl() + "].failures"));
+    }
+
+    @Test
+    void closesTheCircuitWhenTheTrialRequestSucceeds() throws Exception {
+        TimestampClient client = new TimestampClient(tsa.getUrl(), null, null, settings(1, TimeUnit.MILLISECONDS.toNanos(100)));
+        tsa.setFailing(true);
+        assertThrows(TimestampClient.TsaException.class, () -> client.getTimeStampToken(new byte[32]));
+        tsa.setFailing(false);
+
+        TimeUnit.MILLISECONDS.sleep(200);
+        client.getTimeStampToken(new byte[32]);
+        client.getTimeStampToken(new byte[32]);
+
+        assertEquals(3, tsa.getRequests());
+        HashMap<String, String> stats = new HashMap<>();
+        client.addTo(stats);
+        assertEquals("CLOSED", stats.get("tsa[" + tsa.getUrl() + "].circuit"));
+    }
+
+    @Test
+    void closesTheCircuitAfterAnInterruptedTrialRequest() throws Exception {
+        TimestampClient client = new TimestampClient(tsa.getUrl(), null, null, settings(1, TimeUnit.MILLISECONDS.toNanos(100)));
+        tsa.setFailing(true);
+        assertThrows(TimestampClient.TsaException.class, () -> client.getTimeStampToken(new byte[32]));
+        tsa.setFailing(false);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        // The trial request is interrupted before it reaches the TSA, as a cancelled HTTP job is.
+        Thread.currentThread().interrupt();
+        assertThrows(InterruptedException.class, () -> client.getTimeStampToken(new byte[32]));
+
+        client.getTimeStampToken(new byte[32]);
+        HashMap<String, String> stats = new HashMap<>();
+        client.addTo(stats);
+        assertEquals("CLOSED", stats.get("tsa[" + tsa.getUrl() + "].circuit"));
+    }
+
+    @Test
+    void sharesOneClientPerUrlUserAndPassword() throws Exception {
+        TsaClientRegistry registry = new TsaClientRegistry(settings(3, TimeUnit.SECONDS.toNanos(30)));
+
+        SignatureModel.Timestamp timestamp = new SignatureModel.Timestamp(true, tsa.getUrl(), "user", "first");
+        SignatureModel.Timestamp sameAgain = new SignatureModel.Timestamp(true, tsa.getUrl(), "user", "first");
+        SignatureModel.Timestamp otherPassword = new SignatureModel.Timestamp(true, tsa.getUrl(), "user", "second");
+
+        assertSame(registry.getClient(timestamp), registry.getClient(sameAgain));
+        assertNotSame(registry.getClient(timestamp), registry.getClient(otherPassword));
+    }
+
+    private static TsaClientRegistry.Settings settings(int failureThreshold, long openNanos) {
+        return new TsaClientRegistry.Settings(4, 2000, TimeUnit.SECONDS.toNanos(60), failureThreshold, openNanos);
+    }
+}
@@ -0,0 +1,105 @@
+package com.pyojan.eDastakhat.libs;
+
+import com.pyojan.eDastakhat.TestFixtures;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class VaultIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void findsEveryEntryAmongCollidingSlotsAndNothingForMissingKeys() throws Exception {
+        List<VaultIndex.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(entry(Integer.toHexString(i * 7919).toUpperCase(), "alias-" + i));
+        }
+        VaultIndex.put(dir, entries);
+        VaultIndex index = VaultIndex.open(dir);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("alias-" + i, index.findBySerial(Integer.toHexString(i * 7919)).getAlias());
+            assertEquals(Integer.toHexString(i * 7919).toUpperCase(), index.findByAlias("ALIAS-" + i).getSerial());
+            assertNull(index.findBySerial(Integer.toHexString(i * 7919 + 1)));
+            assertNull(index.findByAlias("alias-" + (1000 + i)));
+        }
+        assertEquals(1000, index.list().size());
+    }
+
+    @Test
+    void refusesAnAliasSharedBySeveralEntries() throws Exception {
+        VaultIndex.put(dir, Arrays.asList(entry("01", "Signer"), entry("02", "other"), entry("03", "signer")));
+        VaultIndex index = VaultIndex.open(dir);
+
+        assertThrows(IllegalArgumentException.class, () -> index.findByAlias("signer"));
+        assertEquals("02", index.findByAlias("Other").getSerial());
+        assertEquals("Signer", index.findBySerial("01").getAlias());
+        assertEquals("signer", index.findBySerial("03").getAlias());
+        assertNull(index.findByAlias("nobody"));
+    }
+
+    @Test
+    void handlesAnEmptyVault() throws Exception {
+        VaultIndex.put(dir, Collections.emptyList());
+
+        assertNull(VaultIndex.open(dir).findBySerial("01"));
+        assertNull(VaultIndex.open(dir).findByAlias("signer"));
+    }
+
+    @Test
+    void rebuildsFromTheKeyStoresAndReplacesAnOpenIndex() throws Exception {
+        keyStore("1A", "first");
+        keyStore("1B", "second");
+
+        VaultIndex first = VaultIndex.open(dir);
+        assertEquals(2, first.list().size());
+        assertEquals("second", first.findBySerial("1b").getAlias());
+
+        keyStore("1C", "third");
+        VaultIndex.rebuild(dir);
+        VaultIndex second = VaultIndex.open(dir);
+
+        assertNotSame(first, second);
+        assertEquals(3, second.list().size());
+        assertEquals("1C", second.findByAlias("third").getSerial());
+        // The index read before stays usable.
+        assertEquals("first", first.findBySerial("1A").getAlias());
+    }
+
+    private static VaultIndex.Entry entry(String serial, String alias) {
+        return new VaultIndex.Entry(serial, alias, "CN=" + alias, "CN=Test CA", "RSA-2048", serial, serial + ".jks", 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes a JKS key store like the ones the vault holds, with a certificate of the given serial number.
+     */
+    private void keyStore(String serial, String alias) throws Exception {
+        KeyPair keys = TestFixtures.keyPair();
+        X509Certificate certificate = TestFixtures.certificate("CN=Test CA", "CN=" + alias, new BigInteger(serial, 16), keys, keys.getPrivate());
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry(alias, keys.getPrivate(), "secret".toCharArray(), new Certificate[]{certificate});
+        try (OutputStream out = Files.newOutputStream(dir.resolve(serial + ".jks"))) {
+            keyStore.store(out, "secret".toCharArray());
+        }
+    }
+}
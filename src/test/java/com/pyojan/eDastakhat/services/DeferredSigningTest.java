@@ -0,0 +1,118 @@
+package com.pyojan.eDastakhat.services;
+
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.security.PdfPKCS7;
+import com.pyojan.eDastakhat.TestFixtures;
+import com.pyojan.eDastakhat.models.FinalizeModel;
+import com.pyojan.eDastakhat.models.HashSigningModel;
+import com.pyojan.eDastakhat.models.PrepareModel;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the three deferred signing steps against a PFX and checks what each of them accepts and returns.
+ */
+class DeferredSigningTest {
+
+    @TempDir
+    Path dir;
+
+    private Path certificate;
+    private SignatureModel.CertInfo certInfo;
+    private String document;
+    private DeferredSigning deferredSigning;
+
+    @BeforeEach
+    void createSigner() throws Exception {
+        X509Certificate signer = TestFixtures.selfSigned("CN=Deferred Signer");
+        certificate = Files.write(dir.resolve("signer.cer"), signer.getEncoded());
+        Path pfx = TestFixtures.pfx(dir.resolve("signer.pfx"), "secret", TestFixtures.keyPair().getPrivate(), signer);
+        certInfo = new SignatureModel.CertInfo(pfx.toString(), "secret");
+        document = Base64.getEncoder().encodeToString(Files.readAllBytes(TestFixtures.pdf(dir.resolve("document.pdf"), 0)));
+        deferredSigning = new DeferredSigning(dir.resolve("out").toString());
+    }
+
+    @Test
+    void signsAPreparedDocumentAndNamesItLikeTheSigningAction() throws Exception {
+        Path signedPath = sign("SHA-256");
+
+        assertTrue(Files.isRegularFile(signedPath));
+        assertEquals("SHA256", signatureOf(signedPath).getHashAlgorithm());
+    }
+
+    @Test
+    void signsWithTheDigestAlgorithmOfTheOptions() throws Exception {
+        for (String algorithm : new String[]{"SHA-384", "SHA-512"}) {
+            PdfPKCS7 signature = signatureOf(sign(algorithm));
+
+            assertTrue(signature.verify());
+            assertEquals(algorithm.replace("-", ""), signature.getHashAlgorithm());
+        }
+    }
+
+    @Test
+    void rejectsADigestOfAnotherAlgorithm() throws Exception {
+        String digest = deferredSigning.prepare(prepareModel("SHA-512")).get("digest");
+
+        HashSigningModel hashes = new HashSigningModel(certInfo, null, Arrays.asList(new HashSigningModel.Hash("doc", digest)), "SHA-256");
+        assertThrows(IllegalArgumentException.class, () -> deferredSigning.signHashes(hashes));
+    }
+
+    @Test
+    void rejectsDigestsThatShareAnId() throws Exception {
+        String digest = deferredSigning.prepare(prepareModel("SHA-256")).get("digest");
+
+        HashSigningModel hashes = new HashSigningModel(certInfo, null, Arrays.asList(
+                new HashSigningModel.Hash("doc", digest), new HashSigningModel.Hash("doc", digest)), "SHA-256");
+        assertThrows(IllegalArgumentException.class, () -> deferredSigning.signHashes(hashes));
+    }
+
+    /**
+     * Runs the three steps with the given digest algorithm and returns the signed file.
+     */
+    private Path sign(String digestAlgorithm) throws Exception {
+        HashMap<String, String> prepared = deferredSigning.prepare(prepareModel(digestAlgorithm));
+        assertEquals(digestAlgorithm, prepared.get("digestAlgorithm"));
+        HashMap<String, String> signatures = deferredSigning.signHashes(new HashSigningModel(certInfo, null,
+                Arrays.asList(new HashSigningModel.Hash("doc", prepared.get("digest"))), prepared.get("digestAlgorithm")));
+        HashMap<String, String> signed = deferredSigning.finalizeSignature(new FinalizeModel(prepared.get("preparedPath"),
+                prepared.get("fieldName"), signatures.get("doc"), ""));
+
+        Path signedPath = Paths.get(signed.get("filePath"));
+        assertEquals(signedPath.getFileName().toString(), signed.get("fileName") + ".pdf");
+        return signedPath;
+    }
+
+    private static PdfPKCS7 signatureOf(Path signedPath) throws Exception {
+        PdfReader reader = new PdfReader(signedPath.toString());
+        try {
+            AcroFields fields = reader.getAcroFields();
+            return fields.verifySignature(fields.getSignatureNames().get(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private PrepareModel prepareModel(String digestAlgorithm) {
+        SignatureModel.Options options = new SignatureModel.Options();
+        options.setDigestAlgorithm(digestAlgorithm);
+        options.setCoord(new int[]{10, 10, 200, 80});
+        options.setTimestamp(new SignatureModel.Timestamp(false, "http://tsa.invalid/", null, null));
+        return new PrepareModel(certificate.toString(), options, new SignatureModel.Pdf(document, "", null));
+    }
+}
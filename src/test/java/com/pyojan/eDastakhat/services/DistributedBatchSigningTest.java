@@ -0,0 +1,135 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.pyojan.eDastakhat.TestFixtures;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Runs distributed batch workers one after another on a shared run directory, with shards of two documents and
+ * three-second leases, and checks that every document ends up with exactly one signed file.
+ */
+class DistributedBatchSigningTest {
+
+    private static final Gson gson = new Gson();
+    private static final int DOCUMENTS = 6;
+
+    static {
+        // Read once when the class loads.
+        System.setProperty("eDastakhat.cluster.shardSize", "2");
+        System.setProperty("eDastakhat.cluster.leaseSeconds", "3");
+    }
+
+    @TempDir
+    Path dir;
+
+    private Path manifest;
+    private Path signedDir;
+    private Path runDir;
+
+    @BeforeEach
+    void writeManifest() throws Exception {
+        Path pfx = TestFixtures.pfx(dir.resolve("signer.pfx"), "secret", "CN=Signer");
+        StringBuilder documents = new StringBuilder();
+        for (int i = 0; i < DOCUMENTS; i++) {
+            Path pdf = TestFixtures.pdf(dir.resolve("doc" + i + ".pdf"), 0);
+            documents.append(i == 0 ? "" : ",").append("{\"path\":").append(gson.toJson(pdf.toString())).append('}');
+        }
+        manifest = dir.resolve("manifest.json");
+        Files.write(manifest, ("{\"certInfo\":{\"pfxPath\":" + gson.toJson(pfx.toString()) + ",\"password\":\"secret\"},"
+                + "\"options\":{\"page\":\"L\",\"coord\":[10,10,200,80],\"changesAllowed\":true,"
+                + "\"timestamp\":{\"enabled\":false,\"url\":\"http://tsa.invalid/\"}},"
+                + "\"threads\":2,\"documents\":[" + documents + "]}").getBytes(StandardCharsets.UTF_8));
+        signedDir = Files.createDirectories(dir.resolve("signed"));
+        runDir = dir.resolve("manifest.json.run");
+    }
+
+    @Test
+    void signsNothingAgainWhenTheRunIsRestarted() throws Exception {
+        run("first");
+        assertEquals(expectedOutputs(), outputs());
+
+        run("second");
+        assertEquals(expectedOutputs(), outputs());
+        assertEquals("first", journal(0).get("worker").getAsString());
+    }
+
+    @Test
+    void takesOverTheShardsOfDeadWorkersWithoutSigningTheirDocumentsTwice() throws Exception {
+        run("first");
+
+        // Shard 1: its worker died after signing doc2 and while recording doc3, which never got its file, and its lease
+        // has long expired.
+        Files.delete(runDir.resolve("journal").resolve("shard-000001.json"));
+        Files.delete(signedDir.resolve("doc3_signed.pdf"));
+        Files.write(runDir.resolve("journal").resolve("shard-000001.progress"),
+                "2 1000\n3".getBytes(StandardCharsets.UTF_8));
+        lease(1, "dead-1", System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(5));
+        // Shard 2: its worker died before signing anything, a moment ago; its lease must expire before it is taken.
+        Files.delete(runDir.resolve("journal").resolve("shard-000002.json"));
+        Files.delete(signedDir.resolve("doc4_signed.pdf"));
+        Files.delete(signedDir.resolve("doc5_signed.pdf"));
+        lease(2, "dead-2", System.currentTimeMillis());
+
+        long start = System.nanoTime();
+        run("second");
+
+        assertEquals(expectedOutputs(), outputs());
+        assertFalse(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 2, "The live lease was not waited for.");
+        JsonObject resumed = journal(1);
+        assertEquals("second", resumed.get("worker").getAsString());
+        assertEquals(2, resumed.get("succeeded").getAsInt());
+        assertEquals("second", journal(2).get("worker").getAsString());
+        assertEquals("first", journal(0).get("worker").getAsString());
+        try (Stream<Path> files = Files.list(runDir.resolve("leases"))) {
+            assertEquals(0, files.count());
+        }
+        assertFalse(Files.exists(runDir.resolve("journal").resolve("shard-000001.progress")));
+    }
+
+    private void run(String workerId) throws Exception {
+        System.setProperty("eDastakhat.cluster.workerId", workerId);
+        try {
+            new DistributedBatchSigning(manifest.toString(), signedDir.toString()).execute();
+        } finally {
+            System.clearProperty("eDastakhat.cluster.workerId");
+        }
+    }
+
+    private void lease(int shard, String holder, long modifiedMillis) throws Exception {
+        Path lease = runDir.resolve("leases").resolve(String.format("shard-%06d.lease", shard));
+        Files.write(lease, (holder + " 0").getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(lease, FileTime.fromMillis(modifiedMillis));
+    }
+
+    private JsonObject journal(int shard) throws Exception {
+        Path file = runDir.resolve("journal").resolve(String.format("shard-%06d.json", shard));
+        return gson.fromJson(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), JsonObject.class);
+    }
+
+    private static Set<String> expectedOutputs() {
+        return IntStream.range(0, DOCUMENTS).mapToObj(i -> "doc" + i + "_signed.pdf").collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    private Set<String> outputs() throws Exception {
+        try (Stream<Path> files = Files.list(signedDir)) {
+            return files.map(file -> file.getFileName().toString()).collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.pyojan.eDastakhat.services;
+
+import com.pyojan.eDastakhat.TestFixtures;
+import com.pyojan.eDastakhat.models.SignatureModel;
+import com.pyojan.eDastakhat.models.WatchModel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drops files with the same name into a watched folder and checks that every one of them is signed and kept.
+ */
+class HotFolderSigningTest {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    @TempDir
+    Path dir;
+
+    private Path inbox;
+    private Path signedDir;
+    private Path document;
+    private HotFolderSigning hotFolder;
+
+    @BeforeEach
+    void start() throws Exception {
+        inbox = Files.createDirectories(dir.resolve("inbox"));
+        signedDir = dir.resolve("signed");
+        document = TestFixtures.pdf(dir.resolve("document.pdf"), 0);
+        Path pfx = TestFixtures.pfx(dir.resolve("signer.pfx"), "secret", "CN=Signer");
+        SignatureModel.Options options = new SignatureModel.Options();
+        options.setCoord(new int[]{10, 10, 200, 80});
+        options.setChangesAllowed(true);
+        options.setTimestamp(new SignatureModel.Timestamp(false, "http://tsa.invalid/", null, null));
+        WatchModel model = new WatchModel(new SignatureModel.CertInfo(pfx.toString(), "secret"), options, 2);
+
+        hotFolder = new HotFolderSigning(inbox.toString(), model, signedDir.toString(), 2, 8);
+        hotFolder.start();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        hotFolder.stop();
+    }
+
+    @Test
+    void keepsTheSignedFileOfEveryDropOfTheSameName() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            drop("invoice.pdf");
+            int expected = i;
+            awaitTrue(() -> count(inbox.resolve("done")) == expected);
+        }
+
+        awaitTrue(() -> count(signedDir) == 3);
+        assertTrue(Files.exists(signedDir.resolve("invoice_signed.pdf")));
+        assertTrue(Files.exists(signedDir.resolve("invoice_signed_2.pdf")));
+        assertTrue(Files.exists(signedDir.resolve("invoice_signed_3.pdf")));
+    }
+
+    @Test
+    void signsAFileThatArrivesUnderTheNameOfOneBeingSigned() throws Exception {
+        drop("invoice.pdf");
+        // Drop the next file as soon as the first is moved out, while its job may still be finishing.
+        awaitTrue(() -> Files.exists(inbox.resolve("done").resolve("invoice.pdf")));
+        drop("invoice.pdf");
+
+        awaitTrue(() -> count(inbox.resolve("done")) == 2);
+        awaitTrue(() -> count(signedDir) == 2);
+        assertEquals(0, count(inbox.resolve("failed")));
+    }
+
+    /**
+     * Writes the test document under a temporary name and renames it, so the folder only ever sees a complete file.
+     */
+    private void drop(String name) throws Exception {
+        Path temp = Files.copy(document, dir.resolve(name + ".part"), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, inbox.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long count(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".pdf")).count();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the hot folder.");
+            Thread.sleep(1);
+        }
+    }
+}
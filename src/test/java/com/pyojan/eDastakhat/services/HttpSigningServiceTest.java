@@ -0,0 +1,178 @@
+package com.pyojan.eDastakhat.services;
+
+import com.pyojan.eDastakhat.TestFixtures;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks which key references a client may send to the HTTP service, and how it turns requests down.
+ */
+class HttpSigningServiceTest {
+
+    @TempDir
+    Path dir;
+
+    private Path keys;
+    private byte[] pdf;
+    private HttpSigningService service;
+    private URL url;
+
+    @BeforeEach
+    void start() throws Exception {
+        keys = Files.createDirectories(dir.resolve("keys"));
+        pdf = Files.readAllBytes(TestFixtures.pdf(dir.resolve("document.pdf"), 0));
+        service = new HttpSigningService(2, 2, 1024 * 1024, Collections.singletonList(keys));
+        InetSocketAddress address = service.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        url = new URL("http://127.0.0.1:" + address.getPort() + "/sign");
+    }
+
+    @AfterEach
+    void stop() {
+        service.stop();
+    }
+
+    @Test
+    void signsWithAPfxInsideTheAllowedKeyPaths() throws Exception {
+        Path pfx = TestFixtures.pfx(keys.resolve("signer.pfx"), "secret", "CN=Signer");
+
+        assertEquals(200, post(certInfo("pfxPath", pfx.toString())));
+    }
+
+    @Test
+    void rejectsAPfxOutsideTheAllowedKeyPaths() throws Exception {
+        Path pfx = TestFixtures.pfx(dir.resolve("elsewhere.pfx"), "secret", "CN=Signer");
+
+        assertEquals(400, post(certInfo("pfxPath", pfx.toString())));
+        assertEquals(400, post(certInfo("pfxPath", keys.resolve("..").resolve("elsewhere.pfx").toString())));
+    }
+
+    @Test
+    void rejectsALinkThatLeadsOutOfTheAllowedKeyPaths() throws Exception {
+        Path pfx = TestFixtures.pfx(dir.resolve("elsewhere.pfx"), "secret", "CN=Signer");
+        Path link = Files.createSymbolicLink(keys.resolve("link.pfx"), pfx);
+
+        assertEquals(400, post(certInfo("pfxPath", link.toString())));
+    }
+
+    @Test
+    void rejectsAVaultOrLibraryOutsideTheAllowedKeyPaths() throws Exception {
+        assertEquals(400, post("{\"serial\":\"01\",\"vaultPath\":\"" + dir + "\",\"password\":\"secret\"}"));
+        assertEquals(400, post(certInfo("pkcs11Library", "/usr/lib/softhsm/libsofthsm2.so")));
+        // A line break would add a line to the SunPKCS11 configuration.
+        assertEquals(400, post("{\"pkcs11Library\":\"" + keys + "/lib.so\\nlibrary = /tmp/evil.so\",\"password\":\"secret\"}"));
+    }
+
+    @Test
+    void turnsDownARequestWithoutReadingItsBody() throws Exception {
+        try (Socket put = upload("PUT")) {
+            String response = readResponse(put);
+            assertTrue(response.startsWith("HTTP/1.1 405"), response);
+            assertTrue(response.toLowerCase(Locale.ROOT).contains("connection: close"), response);
+        }
+
+        // Two workers and two queued: four uploads that never finish fill the service.
+        List<Socket> admitted = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                admitted.add(upload("POST"));
+            }
+            awaitAdmitted(4);
+            try (Socket busy = upload("POST")) {
+                String response = readResponse(busy);
+                assertTrue(response.startsWith("HTTP/1.1 429"), response);
+                assertTrue(response.toLowerCase(Locale.ROOT).contains("connection: close"), response);
+            }
+        } finally {
+            for (Socket socket : admitted) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Starts a request that announces a 100 MB document and sends only its first kilobyte.
+     */
+    private Socket upload(String method) throws IOException {
+        Socket socket = new Socket(url.getHost(), url.getPort());
+        socket.setSoTimeout(10000);
+        OutputStream out = socket.getOutputStream();
+        out.write((method + " /sign HTTP/1.1\r\nHost: " + url.getHost() + "\r\nContent-Type: application/pdf\r\n"
+                + "Content-Length: 100000000\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(new byte[1024]);
+        out.flush();
+        return socket;
+    }
+
+    /**
+     * Reads a chunked response to its last chunk, failing if it does not end within the socket timeout.
+     */
+    private static String readResponse(Socket socket) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        InputStream in = socket.getInputStream();
+        int read;
+        while (!new String(response.toByteArray(), StandardCharsets.US_ASCII).endsWith("\r\n0\r\n\r\n")) {
+            if ((read = in.read()) < 0) {
+                break;
+            }
+            response.write(read);
+        }
+        return new String(response.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private void awaitAdmitted(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!service.getPrometheusMetrics().contains("edastakhat_http_admitted " + expected + "\n")) {
+            assertTrue(System.currentTimeMillis() < deadline, "The uploads were not admitted.");
+            Thread.sleep(10);
+        }
+    }
+
+    private static String certInfo(String field, String value) {
+        return "{\"" + field + "\":\"" + value.replace("\\", "\\\\") + "\",\"password\":\"secret\"}";
+    }
+
+    /**
+     * Signs the test document with the given certInfo JSON and returns the response status.
+     */
+    private int post(String certInfo) throws IOException {
+        String payload = "{\"certInfo\":" + certInfo + ","
+                + "\"options\":{\"page\":\"L\",\"coord\":[10,10,200,80],\"timestamp\":{\"enabled\":false,\"url\":\"http://tsa.invalid/\"}}}";
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/pdf");
+        connection.setRequestProperty("X-eDastakhat-Payload", payload);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(pdf);
+        }
+        int status = connection.getResponseCode();
+        try (InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+            while (in != null && in.read() >= 0) {
+                // Drain the response so the connection can be reused.
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,110 @@
+package com.pyojan.eDastakhat.services;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.pyojan.eDastakhat.EDastakhatApplication;
+import com.pyojan.eDastakhat.TestFixtures;
+import com.pyojan.eDastakhat.libs.ChainValidationCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Signs a synthetic PDF far larger than the heap of the signing JVM, which only works when the document streams
+ * from disk to disk. The size and heap are {@code -DeDastakhat.test.largePdfMb} (default 1024) and
+ * {@code -DeDastakhat.test.largePdfXmx} (default {@code 64m}).
+ */
+class LargePdfSigningTest {
+
+    private static final long SIZE_MB = Long.getLong("eDastakhat.test.largePdfMb", 1024);
+    private static final String XMX = System.getProperty("eDastakhat.test.largePdfXmx", "64m");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void signsADocumentLargerThanTheHeap() throws Exception {
+        X509Certificate certificate = TestFixtures.selfSigned("CN=Large Document Signer");
+        Path pfx = TestFixtures.pfx(dir.resolve("signer.pfx"), "secret", TestFixtures.keyPair().getPrivate(), certificate);
+        Path pdf = TestFixtures.pdf(dir.resolve("large.pdf"), SIZE_MB * 1024 * 1024);
+        Path payload = writePayload(pfx, pdf);
+        Path outDir = dir.resolve("out");
+
+        Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx" + XMX, "-cp", System.getProperty("java.class.path"),
+                EDastakhatApplication.class.getName(), "-s", payload.toString(), outDir.toString())
+                .redirectErrorStream(true)
+                .start();
+        String output = readAll(process.getInputStream());
+        assertTrue(process.waitFor(10, TimeUnit.MINUTES), "signing did not finish");
+        assertTrue(output.contains("\"SUCCESS\""), output);
+
+        Path signed;
+        try (Stream<Path> files = Files.list(outDir)) {
+            signed = files.filter(file -> file.toString().endsWith(".pdf")).findFirst().orElseThrow(AssertionError::new);
+        }
+        assertTrue(Files.size(signed) > Files.size(pdf));
+
+        HashMap<String, String> report = SignatureVerification.verify(signed,
+                new ChainValidationCache(TestFixtures.trustStore(certificate), 4));
+        assertEquals("1", report.get("signatures"));
+        assertEquals("true", report.get("valid"), report.toString());
+    }
+
+    private Path writePayload(Path pfx, Path pdf) throws Exception {
+        JsonObject certInfo = new JsonObject();
+        certInfo.addProperty("pfxPath", pfx.toString());
+        certInfo.addProperty("password", "secret");
+
+        JsonArray coord = new JsonArray();
+        for (int value : new int[]{10, 10, 200, 80}) {
+            coord.add(value);
+        }
+        JsonObject timestamp = new JsonObject();
+        timestamp.addProperty("enabled", false);
+        timestamp.addProperty("url", "http://localhost");
+        JsonObject options = new JsonObject();
+        options.addProperty("page", "L");
+        options.add("coord", coord);
+        options.addProperty("reason", "Test");
+        options.addProperty("location", "Test");
+        options.addProperty("customText", "");
+        options.addProperty("greenTick", false);
+        options.addProperty("changesAllowed", false);
+        options.add("timestamp", timestamp);
+        options.addProperty("enableLtv", false);
+
+        JsonObject document = new JsonObject();
+        document.addProperty("path", pdf.toString());
+        document.addProperty("password", "");
+
+        JsonObject root = new JsonObject();
+        root.add("certInfo", certInfo);
+        root.add("options", options);
+        root.add("pdf", document);
+        return Files.write(dir.resolve("payload.json"), root.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,87 @@
+package com.pyojan.eDastakhat.services;
+
+import com.pyojan.eDastakhat.TestFixtures;
+import com.pyojan.eDastakhat.libs.VaultIndex;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Bulk import of generated PFX files into a vault. The number of files is {@code -DeDastakhat.test.pfxCount}
+ * (default 2000).
+ */
+class PfxImportTest {
+
+    private static final int COUNT = Integer.getInteger("eDastakhat.test.pfxCount", 2000);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void importsEveryFileOnceAndSkipsThemOnTheNextRun() throws Exception {
+        Path pfxDir = Files.createDirectories(dir.resolve("pfx"));
+        KeyPair keys = TestFixtures.keyPair();
+        IntStream.range(0, COUNT).parallel().forEach(i -> {
+            try {
+                X509Certificate certificate = TestFixtures.certificate("CN=Test CA", "CN=User " + i,
+                        BigInteger.valueOf(1000 + i), keys, keys.getPrivate());
+                TestFixtures.pfx(pfxDir.resolve(String.format("user-%05d.pfx", i)), "secret", keys.getPrivate(), certificate);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Path vaultDir = dir.resolve("vault").resolve(VaultIndex.DIRECTORY_NAME);
+
+        PfxImport.fromDirectory(pfxDir.toString(), "secret", dir.resolve("vault").toString()).execute();
+        List<VaultIndex.Entry> entries = VaultIndex.open(vaultDir).list();
+        assertEquals(COUNT, entries.size());
+        assertNotNull(VaultIndex.open(vaultDir).findBySerial(BigInteger.valueOf(1000 + COUNT - 1).toString(16)));
+
+        PfxImport.fromDirectory(pfxDir.toString(), "secret", dir.resolve("vault").toString()).execute();
+        assertEquals(COUNT, VaultIndex.open(vaultDir).list().size());
+        try (Stream<Path> files = Files.list(vaultDir)) {
+            assertEquals(COUNT, files.filter(file -> !file.getFileName().toString().startsWith("vault")).count());
+        }
+    }
+
+    @Test
+    void refusesASecondCertificateWithATakenSerial() throws Exception {
+        Path pfxDir = Files.createDirectories(dir.resolve("pfx"));
+        KeyPair keys = TestFixtures.keyPair();
+        BigInteger serial = BigInteger.valueOf(0xABCDEF);
+        X509Certificate first = TestFixtures.certificate("CN=First CA", "CN=First", serial, keys, keys.getPrivate());
+        X509Certificate second = TestFixtures.certificate("CN=Second CA", "CN=Second", serial, keys, keys.getPrivate());
+        TestFixtures.pfx(pfxDir.resolve("a.pfx"), "secret", keys.getPrivate(), first);
+        TestFixtures.pfx(pfxDir.resolve("b.pfx"), "secret", keys.getPrivate(), second);
+        Path vaultDir = dir.resolve("vault").resolve(VaultIndex.DIRECTORY_NAME);
+
+        PfxImport.fromDirectory(pfxDir.toString(), "secret", dir.resolve("vault").toString()).execute();
+
+        List<VaultIndex.Entry> entries = VaultIndex.open(vaultDir).list();
+        assertEquals(1, entries.size());
+        // Whichever certificate came first, the key store on disk is still its own.
+        VaultIndex.Entry entry = VaultIndex.open(vaultDir).findBySerial("ABCDEF");
+        assertEquals(entry.getSubject(), storedCertificate(vaultDir.resolve(entry.getFile())).getSubjectX500Principal().getName());
+    }
+
+    private static X509Certificate storedCertificate(Path keyStoreFile) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = Files.newInputStream(keyStoreFile)) {
+            keyStore.load(in, "secret".toCharArray());
+        }
+        return (X509Certificate) keyStore.getCertificate(keyStore.aliases().nextElement());
+    }
+}
@@ -0,0 +1,137 @@
+package com.pyojan.eDastakhat.services;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.security.BouncyCastleDigest;
+import com.itextpdf.text.pdf.security.MakeSignature;
+import com.itextpdf.text.pdf.security.PrivateKeySignature;
+import com.itextpdf.text.pdf.security.TSAClient;
+import com.pyojan.eDastakhat.StubTsaServer;
+import com.pyojan.eDastakhat.TestFixtures;
+import com.pyojan.eDastakhat.libs.ChainValidationCache;
+import com.pyojan.eDastakhat.libs.TimestampClient;
+import com.pyojan.eDastakhat.libs.TsaClientRegistry;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SignatureVerificationTest {
+
+    private static final String FIELD = "signature[Signature1]";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void acceptsASignatureWithACurrentlyValidCertificate() throws Exception {
+        X509Certificate signer = certificate("CN=Signer", "CN=Signer", -1, 365, false);
+
+        HashMap<String, String> report = verify(sign(signer, daysFromNow(0), null), signer);
+
+        assertEquals("true", report.get("valid"), report.toString());
+        assertEquals("CLAIMED", report.get(FIELD + ".signingTimeSource"));
+    }
+
+    @Test
+    void checksAnUntimestampedSignatureAtTheCurrentTimeRatherThanTheClaimedOne() throws Exception {
+        X509Certificate expired = certificate("CN=Signer", "CN=Signer", -30, -10, false);
+
+        // The signer claims a date inside the validity period of the certificate, which has since expired.
+        HashMap<String, String> report = verify(sign(expired, daysFromNow(-20), null), expired);
+
+        assertEquals("VALID", report.get(FIELD + ".integrity"));
+        assertEquals("CLAIMED", report.get(FIELD + ".signingTimeSource"));
+        assertEquals("false", report.get(FIELD + ".validAtSigningTime"));
+        assertEquals("false", report.get("valid"));
+    }
+
+    @Test
+    void checksTheTimestampChainAtTheTokenTime() throws Exception {
+        X509Certificate signer = certificate("CN=Signer", "CN=Signer", -1, 365, false);
+        X509Certificate tsaRoot = certificate("CN=Expired TSA Root", "CN=Expired TSA Root", -30, -10, false);
+        X509Certificate tsa = certificate("CN=Expired TSA Root", "CN=TSA", -1, 365, true);
+
+        try (StubTsaServer server = new StubTsaServer(TestFixtures.keyPair().getPrivate(), tsa, tsaRoot)) {
+            TSAClient tsaClient = new TimestampClient(server.getUrl(), null, null,
+                    new TsaClientRegistry.Settings(1, 2000, TimeUnit.SECONDS.toNanos(60), 3, TimeUnit.SECONDS.toNanos(30)));
+
+            HashMap<String, String> report = verify(sign(signer, daysFromNow(0), tsaClient), signer, tsaRoot);
+
+            assertEquals("VALID", report.get(FIELD + ".timestamp"));
+            assertEquals("false", report.get(FIELD + ".timestampChainValidAtTime"));
+            assertEquals("CLAIMED", report.get(FIELD + ".signingTimeSource"));
+            assertEquals("false", report.get("valid"));
+        }
+    }
+
+    @Test
+    void usesTheTimeOfAValidTimestamp() throws Exception {
+        X509Certificate signer = certificate("CN=Signer", "CN=Signer", -1, 365, false);
+        X509Certificate tsa = certificate("CN=TSA", "CN=TSA", -1, 365, true);
+
+        try (StubTsaServer server = new StubTsaServer(TestFixtures.keyPair().getPrivate(), tsa)) {
+            TSAClient tsaClient = new TimestampClient(server.getUrl(), null, null,
+                    new TsaClientRegistry.Settings(1, 2000, TimeUnit.SECONDS.toNanos(60), 3, TimeUnit.SECONDS.toNanos(30)));
+
+            HashMap<String, String> report = verify(sign(signer, daysFromNow(-5), tsaClient), signer, tsa);
+
+            assertEquals("TIMESTAMP", report.get(FIELD + ".signingTimeSource"));
+            assertEquals(report.get(FIELD + ".timestampTime"), report.get(FIELD + ".validityCheckedAt"));
+            assertEquals("true", report.get("valid"), report.toString());
+        }
+    }
+
+    private HashMap<String, String> verify(Path pdf, Certificate... anchors) throws Exception {
+        return SignatureVerification.verify(pdf, new ChainValidationCache(TestFixtures.trustStore(anchors), 16));
+    }
+
+    /**
+     * Signs a one-page PDF with the shared test key, claiming the given signing date.
+     */
+    private Path sign(X509Certificate certificate, Calendar signDate, TSAClient tsaClient) throws Exception {
+        Path unsigned = TestFixtures.pdf(dir.resolve("unsigned.pdf"), 0);
+        Path signed = dir.resolve("signed-" + System.nanoTime() + ".pdf");
+        PdfReader reader = new PdfReader(unsigned.toString());
+        try (OutputStream out = Files.newOutputStream(signed)) {
+            PdfStamper stamper = PdfStamper.createSignature(reader, out, '\0');
+            PdfSignatureAppearance appearance = stamper.getSignatureAppearance();
+            appearance.setSignDate(signDate);
+            appearance.setVisibleSignature(new Rectangle(10, 10, 200, 80), 1, "Signature1");
+            MakeSignature.signDetached(appearance, new BouncyCastleDigest(),
+                    new PrivateKeySignature(TestFixtures.keyPair().getPrivate(), "SHA-256", BouncyCastleProvider.PROVIDER_NAME),
+                    new Certificate[]{certificate}, null, null, tsaClient, 0, MakeSignature.CryptoStandard.CMS);
+        } finally {
+            reader.close();
+        }
+        return signed;
+    }
+
+    private static X509Certificate certificate(String issuer, String subject, int notBeforeDays, int notAfterDays,
+                                               boolean timestamping) throws Exception {
+        KeyPair keys = TestFixtures.keyPair();
+        return TestFixtures.certificate(issuer, subject, BigInteger.valueOf(System.nanoTime()), keys, keys.getPrivate(),
+                daysFromNow(notBeforeDays).getTime(), daysFromNow(notAfterDays).getTime(), timestamping);
+    }
+
+    private static Calendar daysFromNow(int days) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(days)));
+        return calendar;
+    }
+}
@@ -0,0 +1,150 @@
+package com.pyojan.eDastakhat.training;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.pyojan.eDastakhat.EDastakhatApplication;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The workload the class-data-sharing archive of the {@code cds} profile is trained on: a version query, a PFX read,
+ * a signature from a file path and from inline Base64, and a verification, all in one JVM so that every class they
+ * load ends up in the archive.
+ * <p>
+ * It generates a throwaway PFX and PDF, so it needs nothing but a scratch directory:
+ * <pre>
+ * java -XX:ArchiveClassesAtExit=eDastakhat.jsa -cp eDastakhat.jar com.pyojan.eDastakhat.training.TrainingRun &lt;scratchDir&gt;
+ * </pre>
+ */
+public final class TrainingRun {
+
+    private static final String PASSWORD = "training";
+
+    private TrainingRun() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            throw new IllegalArgumentException("Usage: TrainingRun <scratchDir>");
+        }
+        Path directory = Files.createDirectories(Paths.get(args[0]));
+        Path pfx = createPfx(directory);
+        Path pdf = createPdf(directory);
+        Path out = Files.createDirectories(directory.resolve("signed"));
+
+        EDastakhatApplication.main(new String[]{"-v"});
+        EDastakhatApplication.main(new String[]{"-p", pfx.toString(), PASSWORD});
+        EDastakhatApplication.main(new String[]{"-s", writePayload(directory, "path.json", pfx, pdf, false).toString(), out.toString()});
+        EDastakhatApplication.main(new String[]{"-s", writePayload(directory, "inline.json", pfx, pdf, true).toString(), out.toString()});
+        try (Stream<Path> signed = Files.list(out)) {
+            Path first = signed.findFirst().orElseThrow(() -> new IOException("The training signature produced no file."));
+            EDastakhatApplication.main(new String[]{"-verify", first.toString()});
+        }
+    }
+
+    private static Path createPfx(Path directory) throws GeneralSecurityException, IOException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+
+        X500Name name = new X500Name("CN=eDastakhat Training,O=eDastakhat,C=IN");
+        long now = System.currentTimeMillis();
+        X509Certificate certificate;
+        try {
+            certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(name,
+                    BigInteger.valueOf(now), new Date(now - TimeUnit.DAYS.toMillis(1)), new Date(now + TimeUnit.DAYS.toMillis(30)),
+                    name, keyPair.getPublic()).build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+        } catch (OperatorCreationException e) {
+            throw new GeneralSecurityException(e);
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("signer", keyPair.getPrivate(), PASSWORD.toCharArray(), new Certificate[]{certificate});
+        Path pfx = directory.resolve("training.pfx");
+        try (OutputStream out = Files.newOutputStream(pfx)) {
+            keyStore.store(out, PASSWORD.toCharArray());
+        }
+        return pfx;
+    }
+
+    private static Path createPdf(Path directory) throws IOException {
+        Path pdf = directory.resolve("training.pdf");
+        try (OutputStream out = Files.newOutputStream(pdf)) {
+            Document document = new Document();
+            PdfWriter.getInstance(document, out);
+            document.open();
+            document.add(new Paragraph("eDastakhat training document"));
+            document.close();
+        } catch (DocumentException e) {
+            throw new IOException(e);
+        }
+        return pdf;
+    }
+
+    private static Path writePayload(Path directory, String fileName, Path pfx, Path pdf, boolean inline) throws IOException {
+        JsonObject certInfo = new JsonObject();
+        certInfo.addProperty("pfxPath", pfx.toString());
+        certInfo.addProperty("password", PASSWORD);
+
+        JsonArray coord = new JsonArray();
+        coord.add(350);
+        coord.add(50);
+        coord.add(550);
+        coord.add(120);
+        JsonObject timestamp = new JsonObject();
+        timestamp.addProperty("enabled", false);
+        timestamp.addProperty("url", "http://timestamp.invalid");
+        JsonObject options = new JsonObject();
+        options.addProperty("page", "L");
+        options.add("coord", coord);
+        options.addProperty("reason", "Training");
+        options.addProperty("location", "Training");
+        options.addProperty("greenTick", true);
+        options.addProperty("changesAllowed", true);
+        options.add("timestamp", timestamp);
+        options.addProperty("enableLtv", false);
+
+        JsonObject pdfObject = new JsonObject();
+        pdfObject.addProperty("password", "");
+        if (inline) {
+            pdfObject.addProperty("base64Content", Base64.getEncoder().encodeToString(Files.readAllBytes(pdf)));
+        } else {
+            pdfObject.addProperty("path", pdf.toString());
+        }
+
+        JsonObject payload = new JsonObject();
+        payload.add("certInfo", certInfo);
+        payload.add("options", options);
+        payload.add("pdf", pdfObject);
+
+        Path file = directory.resolve(fileName);
+        Files.write(file, payload.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}